@@ -4,6 +4,9 @@ channels { ERROR }
 
 // tokens { FSTRING_START_EXPR, FSTRING_ATOM }
 
+// made by CompactTokenStream out of the tokens of a large list or dict of constants
+tokens { LITERAL_TABLE }
+
 options {
   superClass=PyJavaLexerBase;
 }
@@ -66,6 +69,10 @@ ASYNC: 'async';
 AWAIT: 'await';
 MATCH: 'match';
 CASE: 'case';
+CACHED: 'cached';
+RECORD: 'record';
+CONST: 'const';
+INLINE: 'inline';
 
 NAME
   : ID_START ID_CONTINUE*
@@ -20,17 +20,27 @@ import pyjava.PyJavaOptions;
 }
 
 file
-  : statement* comments EOF
+returns [CommentTable commentTable]
+@init {
+    $commentTable = getCommentTable();
+}
+  : statement* EOF
   ;
 
 
 statement
-returns [List<Token> commentTokens]
+returns [List<Token> commentTokens, CommentTable commentTable]
 @init {
     $commentTokens = getPrecedingLineComments();
+    $commentTable = getCommentTable();
 }
-  : ';' comment                            # EmptyStatement
+  : ';'                                                               # EmptyStatement
   | assignment eos                                                   # AssignmentStatement
+  // before expression statements, so that a definition starting with 'cached', 'inline', 'record' or 'const' isn't taken for one
+  | decorators? funcHeader retType? STRING_LITERAL? funcBody          # FunctionDef
+  | decorators? classHeader STRING_LITERAL? classBody                 # ClassDef
+  | 'const' identifier '=' expression eos                            # ConstStatement
+  | 'const' 'if' namedExpressionCond block elif* elseBlock?          # ConstIfStatement
   | starExpressions eos                                              # ExpressionStatement
   | 'return' retVal? eos                                             # ReturnStatement
   | yieldExpression eos                                              # YieldStatement
@@ -51,15 +61,13 @@ returns [List<Token> commentTokens]
   | 'continue' eos                                                    # ContinueStatement
   | 'global' identifier (',' identifier)* eos                         # GlobalStatement
   | 'nonlocal' identifier (',' identifier)* eos                       # NonLocalStatement
-  | decorators? funcHeader retType? comment comments STRING_LITERAL? funcBody          # FunctionDef
-  | decorators? classHeader comment comments STRING_LITERAL? classBody                 # ClassDef
   | 'if' namedExpressionCond block elif* elseBlock?                   # IfStatement
   | 'while' namedExpressionCond block elseBlock?                      # WhileLoop
   | 'async'? 'for' forLoopHeader block elseBlock?                     # ForLoop
   | 'async'? 'with' withItems block                                   # WithStatement
   | 'try' block finallyBlock                                          # TryFinallyStatement
   | 'try' block exceptBlock+ elseBlock? finallyBlock?                 # TryExceptStatement
-  | 'match' {notLineTerminator()}? subjectExprCond comment '{' ({lineTerminatorAhead()}? comment)? caseBlock+ '}' # MatchStatement
+  | 'match' {notLineTerminator()}? subjectExprCond '{' caseBlock+ '}' # MatchStatement
   ;
 
 retVal
@@ -103,9 +111,9 @@ singleSubscriptAttributeTarget
   ;
 
 block
-  : comment '{' ({lineTerminatorAhead()}? comment)? statement* comments '}'
-  | {options.allowColonSimpleBlocks()}? ':' ({lineTerminatorAhead()}? comment)? {!next(SEMI)}? statement
-  | {options.allowNoColonSimpleBlocks()}? ({lineTerminatorAhead()}? comment)? statement
+  : '{' statement* '}'
+  | {options.allowColonSimpleBlocks()}? ':' {!next(SEMI)}? statement
+  | {options.allowNoColonSimpleBlocks()}? statement
   ;
 
 elif
@@ -237,11 +245,24 @@ tPrimary
 
 classHeader
   : 'class' identifier ('(' arguments? ')')?
+  | 'record' identifier '(' recordFields? ')' ('(' arguments? ')')?
+  ;
+
+recordFields
+  : recordField (',' recordField)* ','?
+  ;
+
+recordField
+  : identifier annotation? defaultVal?
   ;
 
 
 funcHeader
-  : 'async'? 'def' identifier '(' parameters? ')'
+  : ('async' | cacheModifier | 'inline')? 'def' identifier '(' parameters? ')'
+  ;
+
+cacheModifier
+  : 'cached' ('(' arguments? ')')?
   ;
 
 retType
@@ -249,11 +270,11 @@ retType
   ;
 
 funcBody
-  : '{' statement* comments '}'
+  : '{' statement* '}'
   ;
 
 classBody
-  : '{' statement* comments '}'
+  : '{' statement* '}'
   ;
 
 parameters
@@ -318,7 +339,7 @@ finally {
 }
 
 decorator
-  : '@' namedExpression comment comments
+  : '@' namedExpression
   ;
 
 
@@ -717,6 +738,7 @@ atom
   | 'None'                                                      # NoneAtom
   | strings                                                     # StringsAtom
   | NUMBER                                                      # NumberAtom
+  | LITERAL_TABLE                                               # LiteralTableAtom
   | '(' yieldExpression ')'                                     # GroupAtom
   | '(' namedExpression ')'                                     # GroupAtom
   | '(' (starNamedExpressions {((TupleAtomContext)$ctx).starNamedExpressions().COMMA(0) != null}?)? ')' # TupleAtom
@@ -862,22 +884,15 @@ identifier
   : NAME
   | 'match'
   | 'case'
-  ;
-
-comment
-returns [Token commentToken]
-  : {$commentToken = getFirstPrecedingComment();}
-  ;
-
-comments
-returns [List<Token> commentTokens]
-  : {$commentTokens = getPrecedingLineComments();}
+  | 'cached'
+  | 'record'
+  | 'const'
+  | 'inline'
   ;
 
 eos
-  : ';' comment
+  : ';'
   | {!options.requireSemicolons()}? 
-    comment
     ( EOF
     | {lineTerminatorAhead()}?
     | {closeBrace()}?
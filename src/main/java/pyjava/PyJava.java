@@ -5,17 +5,27 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.json.simple.parser.JSONParser;
 
-import pyjava.parser.PyJavaLexer;
+import pyjava.parser.ChunkedParser;
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.DFAWarmUp;
+import pyjava.parser.PredictionCache;
 import pyjava.parser.PyJavaParser;
+import pyjava.parser.StructuralIndex;
+import pyjava.tree.ChunkedTranspiler;
 import pyjava.tree.LazyAppendable.AppendFunction;
 import pyjava.tree.Transpiler;
 
@@ -28,6 +38,14 @@ public class PyJava {
 
         Path configFile = null;
         Path outputDir = null;
+        boolean warmUp = false;
+        Path warmUpSnapshot = null;
+        Path recordWarmUp = null;
+        Integer threads = null;
+        PredictionCache.Strategy predictionCache = null;
+        int predictionCacheLimit = 0;
+        boolean cacheStats = false;
+        boolean splitFiles = false;
         var optionsBuilder = PyJavaOptions.builder();
         var inputs = new ArrayList<Path>();
         var include = new ArrayList<PathMatcher>();
@@ -62,6 +80,51 @@ public class PyJava {
                         }
                         outputDir = fs.getPath(args[i]);
                     }
+                    case "--warm-up" -> {
+                        warmUp = true;
+                    }
+                    case "--record-warm-up" -> {
+                        if (recordWarmUp != null) {
+                            error("Error: duplicate argument --record-warm-up");
+                            return;
+                        }
+                        i++;
+                        if (i == args.length) {
+                            error("Error: missing path after " + arg);
+                            return;
+                        }
+                        recordWarmUp = fs.getPath(args[i]);
+                    }
+                    case "--threads", "-j" -> {
+                        if (threads != null) {
+                            error("Error: duplicate argument --threads");
+                            return;
+                        }
+                        i++;
+                        if (i == args.length) {
+                            error("Error: missing number after " + arg);
+                            return;
+                        }
+                        threads = parseThreads(args[i]);
+                    }
+                    case "--prediction-cache" -> {
+                        if (predictionCache != null) {
+                            error("Error: duplicate argument --prediction-cache");
+                            return;
+                        }
+                        i++;
+                        if (i == args.length) {
+                            error("Error: missing strategy after " + arg);
+                            return;
+                        }
+                        predictionCache = parsePredictionCacheStrategy(args[i]);
+                    }
+                    case "--cache-stats" -> {
+                        cacheStats = true;
+                    }
+                    case "--split-files" -> {
+                        splitFiles = true;
+                    }
                     case "--help", "-help", "-h", "--?", "-?", "/?" -> {
                         printHelp();
                         return;
@@ -90,6 +153,41 @@ public class PyJava {
                                 break matchArg;
                             }
                         }
+                        for (var option : new String[] {"--threads=", "-j"}) {
+                            if (arg.startsWith(option)) {
+                                if (threads != null) {
+                                    error("Error: duplicate argument --threads");
+                                    return;
+                                }
+                                threads = parseThreads(arg.substring(option.length()));
+                                break matchArg;
+                            }
+                        }
+                        if (arg.startsWith("--prediction-cache=")) {
+                            if (predictionCache != null) {
+                                error("Error: duplicate argument --prediction-cache");
+                                return;
+                            }
+                            predictionCache = parsePredictionCacheStrategy(arg.substring("--prediction-cache=".length()));
+                            break matchArg;
+                        }
+                        if (arg.startsWith("--warm-up=")) {
+                            if (warmUpSnapshot != null) {
+                                error("Error: duplicate argument --warm-up");
+                                return;
+                            }
+                            warmUp = true;
+                            warmUpSnapshot = fs.getPath(arg.substring("--warm-up=".length()));
+                            break matchArg;
+                        }
+                        if (arg.startsWith("--record-warm-up=")) {
+                            if (recordWarmUp != null) {
+                                error("Error: duplicate argument --record-warm-up");
+                                return;
+                            }
+                            recordWarmUp = fs.getPath(arg.substring("--record-warm-up=".length()));
+                            break matchArg;
+                        }
                         if (arg.startsWith("-")) {
                             error("Error: unknown option "+arg);
                             return;
@@ -170,6 +268,36 @@ public class PyJava {
                 if (jsonObj.containsKey("forceParensInReturnYieldRaise")) {
                     optionsBuilder.forceParensInReturnYieldRaise(getBoolean(jsonObj, "forceParensInReturnYieldRaise"));
                 }
+                if (threads == null && jsonObj.containsKey("threads")) {
+                    threads = getInt(jsonObj, "threads");
+                    if (threads < 1) {
+                        error("Error: invalid config file: expected key threads to be at least 1");
+                        return;
+                    }
+                }
+                if (!splitFiles && jsonObj.containsKey("splitFiles")) {
+                    splitFiles = getBoolean(jsonObj, "splitFiles");
+                }
+                if (predictionCache == null && jsonObj.containsKey("predictionCache")) {
+                    predictionCache = parsePredictionCacheStrategy(getString(jsonObj, "predictionCache"));
+                }
+                if (jsonObj.containsKey("predictionCacheLimit")) {
+                    predictionCacheLimit = getInt(jsonObj, "predictionCacheLimit");
+                    if (predictionCacheLimit < 0) {
+                        error("Error: invalid config file: expected key predictionCacheLimit to be at least 0");
+                        return;
+                    }
+                }
+                if (jsonObj.containsKey("defines")) {
+                    var defines = getObject(jsonObj, "defines");
+                    for (var entry : defines.entrySet()) {
+                        if (!(entry.getValue() instanceof Boolean || entry.getValue() instanceof Long || entry.getValue() instanceof String)) {
+                            error("Error: invalid config file: expected define "+entry.getKey()+" to be a boolean, an integer or a string");
+                            return;
+                        }
+                    }
+                    optionsBuilder.defines(defines);
+                }
                 if (jsonObj.containsKey("files")) {
                     var files = getObject(jsonObj, "files");
                     if (files.containsKey("include")) {
@@ -200,6 +328,7 @@ public class PyJava {
         }
 
         final var options = optionsBuilder.build();
+        final var jobs = new ArrayList<Job>();
 
         class Visitor extends SimpleFileVisitor<Path> {
             private final Path outputDir;
@@ -237,7 +366,7 @@ public class PyJava {
                             name = name.substring(0, i) + ".py";
                         }
                         Path outputFile = outputDir.resolve(parentDir.relativize(file.toAbsolutePath()).resolveSibling(name));
-                        processFile(file, outputFile, options);
+                        jobs.add(new Job(file, outputFile));
                         return FileVisitResult.CONTINUE;
                     }
                 }
@@ -258,42 +387,204 @@ public class PyJava {
                 noParentDirVisitor.visitFile(input, null);
             }
         }
+
+        if (recordWarmUp != null) {
+            var corpus = new ArrayList<Path>(jobs.size());
+            for (var job : jobs) {
+                corpus.add(job.input());
+            }
+            int states = DFAWarmUp.record(corpus, recordWarmUp, options);
+            System.out.println("Recorded "+states+" DFA states from "+corpus.size()+" files to "+recordWarmUp);
+            return;
+        }
+
+        if (warmUp) {
+            try {
+                if (warmUpSnapshot != null) {
+                    DFAWarmUp.load(warmUpSnapshot);
+                } else {
+                    DFAWarmUp.warmUp(options);
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to load warm-up snapshot:");
+                e.printStackTrace(System.err);
+            }
+        }
+
+        PredictionCache.getDefault().setLimit(predictionCacheLimit);
+        PredictionCache.getDefault().setStatisticsEnabled(cacheStats);
+        // identity-based so a shared cache is only counted once
+        final var usedCaches = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<PredictionCache, Boolean>()));
+        if (threads == null || threads == 1 || jobs.size() <= 1 && !splitFiles) {
+            var cache = PredictionCache.getDefault();
+            usedCaches.add(cache);
+            for (var job : jobs) {
+                processFile(job.input(), job.output(), options, () -> cache, null);
+            }
+        } else {
+            var workerCaches = PredictionCache.forWorkers(
+                predictionCache == null? PredictionCache.Strategy.PER_THREAD : predictionCache,
+                PredictionCache.getDefault()
+            );
+            var caches = ThreadLocal.withInitial(() -> {
+                var cache = workerCaches.get();
+                usedCaches.add(cache);
+                return cache;
+            });
+            // a fork/join pool, so that a thread waiting on the chunks of its file helps parsing them
+            var executor = new ForkJoinPool(splitFiles? threads : Math.min(threads, jobs.size()));
+            final var splitPool = splitFiles? executor : null;
+            try {
+                for (var job : jobs) {
+                    executor.execute(() -> processFile(job.input(), job.output(), options, caches::get, splitPool));
+                }
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+        }
+
+        if (cacheStats) {
+            PredictionCache.Statistics total = null;
+            for (var cache : usedCaches) {
+                var stats = cache.getStatistics();
+                total = total == null? stats : total.plus(stats);
+            }
+            if (total != null) {
+                System.err.println("Prediction cache"+(usedCaches.size() == 1? "" : "s ("+usedCaches.size()+")")+": "+total);
+            }
+        }
     }
 
-    private static void processFile(Path input, Path output, PyJavaOptions options) {
-        PyJavaParser.FileContext file;
+    private static record Job(Path input, Path output) {}
+
+    /**
+     * @param caches gives the prediction cache of the current thread
+     * @param splitPool the pool to parse and transpile the chunks of large files on,
+     *                  or {@code null} to process every file as a whole
+     */
+    private static void processFile(Path input, Path output, PyJavaOptions options, Supplier<PredictionCache> caches, ForkJoinPool splitPool) {
+        var cache = caches.get();
+        PyJavaParser.FileContext file = null;
+        List<PyJavaParser.FileContext> chunks = null;
+        CompactTokenStream tokens;
         try {
             var source = CharStreams.fromPath(input);
-            var lexer = new PyJavaLexer(source);
-            var tokens = new CommonTokenStream(lexer);
-            var parser = new PyJavaParser(tokens, options);
-            parser.setErrorHandler(new BailErrorStrategy());
-            file = parser.file();
+            for (boolean literalTables = true; ; literalTables = false) {
+                source.seek(0);
+                var lexer = cache.newLexer(source);
+                tokens = new CompactTokenStream(lexer);
+                tokens.setCollapseLiteralTables(literalTables);
+                try {
+                    if (splitPool != null) {
+                        var splitPoints = ChunkedParser.findSplitPoints(tokens, ChunkedParser.DEFAULT_CHUNK_SIZE);
+                        if (splitPoints.length != 0) {
+                            chunks = ChunkedParser.parse(tokens, splitPoints, options, caches, splitPool);
+                        }
+                    }
+                    if (chunks == null) {
+                        var parser = cache.newParser(tokens, options);
+                        if (tokens.getLiteralTableCount() != 0) {
+                            // errors are reported when the file is parsed again without them
+                            parser.removeErrorListeners();
+                        }
+                        parser.setErrorHandler(new BailErrorStrategy());
+                        file = parser.file();
+                    }
+                    break;
+                } catch (ParseCancellationException e) {
+                    // a literal table may be where the grammar doesn't allow one, such as in a case pattern
+                    if (!literalTables || tokens.getLiteralTableCount() == 0) {
+                        throw e;
+                    }
+                }
+            }
         } catch (Exception e) {
-            System.err.println("Failed to process file "+input+':');
-            e.printStackTrace(System.err);
+            synchronized (System.err) {
+                System.err.println("Failed to process file "+input+':');
+                e.printStackTrace(System.err);
+                if (e instanceof ParseCancellationException) {
+                    printBracketError(input);
+                }
+            }
             return;
+        } finally {
+            cache.trim();
         }
         var transpiler = new Transpiler();
+        transpiler.setTokens(tokens);
+        transpiler.setDefines(options.defines());
+        var chunkedTranspiler = new ChunkedTranspiler(splitPool);
+        chunkedTranspiler.setTokens(tokens);
+        chunkedTranspiler.setDefines(options.defines());
         try {
-            file.accept(transpiler);
+            if (chunks != null) {
+                chunkedTranspiler.transpile(chunks);
+            } else {
+                file.accept(transpiler);
+            }
         } catch (Exception e) {
-            System.err.println("Failed to transpile file "+input+':');
-            e.printStackTrace(System.out);
+            synchronized (System.err) {
+                System.err.println("Failed to transpile file "+input+':');
+                e.printStackTrace(System.out);
+            }
             return;
         }
         try {
             Files.createDirectories(output.getParent());
             try (var writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
-                transpiler.appendTo(AppendFunction.wrap(writer));
+                if (chunks != null) {
+                    chunkedTranspiler.appendTo(AppendFunction.wrap(writer));
+                } else {
+                    transpiler.appendTo(AppendFunction.wrap(writer));
+                }
             }
         } catch (Exception e) {
-            System.err.println("Failed to write to file "+output+':');
-            e.printStackTrace(System.err);
+            synchronized (System.err) {
+                System.err.println("Failed to write to file "+output+':');
+                e.printStackTrace(System.err);
+            }
             return;
         }
     }
 
+    /**
+     * Points at the first bracket which doesn't match in the file, if there is one,
+     * as the parser often only notices it much further.
+     */
+    private static void printBracketError(Path input) {
+        try {
+            var error = StructuralIndex.of(Files.readAllBytes(input)).findBracketError();
+            if (error != null) {
+                System.err.println("Unbalanced brackets at "+error);
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private static int parseThreads(String arg) {
+        try {
+            int threads = Integer.parseInt(arg);
+            if (threads >= 1) {
+                return threads;
+            }
+        } catch (NumberFormatException e) {
+        }
+        error("Error: invalid number of threads: "+arg);
+        return 1;
+    }
+
+    private static PredictionCache.Strategy parsePredictionCacheStrategy(String arg) {
+        return switch (arg) {
+            case "shared" -> PredictionCache.Strategy.SHARED;
+            case "per-thread", "perThread" -> PredictionCache.Strategy.PER_THREAD;
+            default -> {
+                error("Error: unknown prediction cache strategy "+arg+", expected shared or per-thread");
+                yield null;
+            }
+        };
+    }
+
     private static void error(String msg) {
         System.err.println(msg);
         System.exit(1);
@@ -306,6 +597,19 @@ public class PyJava {
         OPTIONS:
           --config FILE, -c FILE    The config file to use. Default is "pyjavaconfig.json".
           --output DIR, -o DIR      Output directory to use. Folder structure is kept intact. Default is ".".
+          --warm-up[=SNAPSHOT]      Load a DFA warm-up snapshot before processing the inputs, so the first
+                                    files don't pay for building the parser's prediction cache.
+                                    If no file is given, a snapshot of PyJava's own corpus is created
+                                    in ~/.cache/pyjava on first use and loaded afterwards.
+          --threads N, -j N         Number of files to process at the same time. Default is 1.
+          --prediction-cache STRATEGY
+                                    How threads share the parser's prediction cache: "per-thread" (default)
+                                    gives each thread its own copy, "shared" makes them all use the same one.
+          --split-files             Parse and transpile large files in chunks of top-level statements on
+                                    several threads, instead of each file on a single thread.
+          --cache-stats             Print the size, hit rate and evictions of the prediction cache when done.
+          --record-warm-up FILE     Record a DFA warm-up snapshot from the inputs to FILE instead of
+                                    transpiling them.
           --                        Everything after this will be treated as an input.
 
         INPUTS  A list of files/glob patterns to run over. Default is "**.pyj".
@@ -326,6 +630,24 @@ public class PyJava {
         return false;
     }
 
+    private static int getInt(Map<String,Object> jsonObj, String key) {
+        var obj = jsonObj.get(key);
+        if (obj instanceof Long l && l == l.intValue()) {
+            return l.intValue();
+        }
+        error("Error: invalid config file: expected key "+key+" to be an integer");
+        return 0;
+    }
+
+    private static String getString(Map<String,Object> jsonObj, String key) {
+        var obj = jsonObj.get(key);
+        if (obj instanceof String str) {
+            return str;
+        }
+        error("Error: invalid config file: expected key "+key+" to be a string");
+        return null;
+    }
+
     @SuppressWarnings("unchecked")
     private static Map<String,Object> getObject(Map<String,Object> jsonObj, String key) {
         var obj = jsonObj.get(key);
@@ -1,17 +1,21 @@
 package pyjava;
 
+import java.util.Map;
+
 public record PyJavaOptions(
     boolean requireSemicolons,
     boolean allowColonSimpleBlocks,
     boolean allowNoColonSimpleBlocks,
     boolean forceParensInStatements,
-    boolean forceParensInReturnYieldRaise
+    boolean forceParensInReturnYieldRaise,
+    Map<String, Object> defines
 ) {
     public static final boolean DEFAULT_REQUIRE_SEMICOLONS = false;
     public static final boolean DEFAULT_ALLOW_COLON_SIMPLE_BLOCKS = true;
     public static final boolean DEFAULT_ALLOW_NO_COLON_SIMPLE_BLOCKS = true;
     public static final boolean DEFAULT_FORCE_PARENS_IN_STATEMENTS = false;
     public static final boolean DEFAULT_FORCE_PARENS_IN_RETURN_YIELD_RAISE = false;
+    public static final Map<String, Object> DEFAULT_DEFINES = Map.of();
 
     public PyJavaOptions() {
         this(
@@ -19,7 +23,8 @@ public record PyJavaOptions(
             DEFAULT_ALLOW_COLON_SIMPLE_BLOCKS,
             DEFAULT_ALLOW_NO_COLON_SIMPLE_BLOCKS,
             DEFAULT_FORCE_PARENS_IN_STATEMENTS,
-            DEFAULT_FORCE_PARENS_IN_RETURN_YIELD_RAISE
+            DEFAULT_FORCE_PARENS_IN_RETURN_YIELD_RAISE,
+            DEFAULT_DEFINES
         );
     }
 
@@ -30,6 +35,7 @@ public record PyJavaOptions(
         b.allowNoColonSimpleBlocks = allowNoColonSimpleBlocks;
         b.forceParensInStatements = forceParensInStatements;
         b.forceParensInReturnYieldRaise = forceParensInReturnYieldRaise;
+        b.defines = defines;
         return b;
     }
 
@@ -43,6 +49,7 @@ public record PyJavaOptions(
         private boolean allowNoColonSimpleBlocks = DEFAULT_ALLOW_NO_COLON_SIMPLE_BLOCKS;
         private boolean forceParensInStatements = DEFAULT_FORCE_PARENS_IN_STATEMENTS;
         private boolean forceParensInReturnYieldRaise = DEFAULT_FORCE_PARENS_IN_RETURN_YIELD_RAISE;
+        private Map<String, Object> defines = DEFAULT_DEFINES;
 
         public Builder requireSemicolons(boolean requireSemicolons) {
             this.requireSemicolons = requireSemicolons;
@@ -69,13 +76,28 @@ public record PyJavaOptions(
             return this;
         }
 
+        /**
+         * @param defines the values of the names which {@code const if} conditions are made of,
+         *                which are booleans, longs or strings
+         */
+        public Builder defines(Map<String, ?> defines) {
+            for (var value : defines.values()) {
+                if (!(value instanceof Boolean || value instanceof Long || value instanceof String)) {
+                    throw new IllegalArgumentException("a define must be a boolean, a long or a string, not "+value);
+                }
+            }
+            this.defines = Map.copyOf(defines);
+            return this;
+        }
+
         public PyJavaOptions build() {
             return new PyJavaOptions(
                 requireSemicolons,
                 allowColonSimpleBlocks,
                 allowNoColonSimpleBlocks,
                 forceParensInStatements,
-                forceParensInReturnYieldRaise
+                forceParensInReturnYieldRaise,
+                defines
             );
         }
     }
@@ -0,0 +1,147 @@
+package pyjava.parser;
+
+import static pyjava.parser.PyJavaLexer.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import pyjava.PyJavaOptions;
+import pyjava.parser.PyJavaParser.FileContext;
+
+/**
+ * Parses a large file as several chunks of top-level statements at the same time.
+ * <p>
+ * Top-level statements don't depend on each other, so the tokens can be cut between two of them and each
+ * chunk parsed by its own parser, on a {@linkplain CompactTokenStream#slice(int, int) slice} of the file's tokens.
+ * Slices keep the tokens' indexes and let the parser look back at the tokens before them, so comments are
+ * attached to the same statements as when the whole file is parsed.
+ * <p>
+ * Where a statement ends can't be known without parsing it, so the chunks are only cut where it is very likely:
+ * outside of any brackets, after a {@code ;}, or after a {@code }} which is followed by a keyword no expression
+ * or statement can continue with, such as {@code def} or {@code class}. If a chunk doesn't parse on its own,
+ * or its last statement only ended because the chunk did, the chunks are thrown away and the file must be
+ * parsed as a whole, which is also what reports syntax errors properly.
+ */
+public final class ChunkedParser {
+    /** The number of tokens a chunk has at least, unless it is the last one. */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 15;
+
+    private ChunkedParser() {}
+
+    /**
+     * Finds where the tokens can be cut into chunks of at least {@code chunkSize} tokens.
+     * @param tokens the tokens of the file
+     * @param chunkSize the minimum number of tokens between two cuts
+     * @return the indexes of the first tokens of the chunks after the first one, in increasing order
+     */
+    public static int[] findSplitPoints(CompactTokenStream tokens, int chunkSize) {
+        int size = tokens.size();
+        var points = new int[16];
+        int count = 0;
+        int depth = 0;
+        int previous = Token.INVALID_TYPE;
+        int next = chunkSize;
+        // the last token is EOF, there is nothing to cut before it
+        for (int i = 0; i < size - 1; i++) {
+            if (tokens.getChannel(i) != Token.DEFAULT_CHANNEL) {
+                continue;
+            }
+            int type = tokens.getType(i);
+            if (depth == 0 && i >= next && size - 1 - i >= chunkSize / 2 && canSplitBetween(previous, type)) {
+                if (count == points.length) {
+                    points = Arrays.copyOf(points, count * 2);
+                }
+                points[count++] = i;
+                next = i + chunkSize;
+            }
+            switch (type) {
+                case LPAREN, LBRACK, LBRACE -> depth++;
+                case RPAREN, RBRACK, RBRACE -> depth = Math.max(depth - 1, 0);
+            }
+            previous = type;
+        }
+        return Arrays.copyOf(points, count);
+    }
+
+    private static boolean canSplitBetween(int previous, int next) {
+        return switch (previous) {
+            case SEMI -> true;
+            case RBRACE -> switch (next) {
+                case DEF, CLASS, IMPORT, WHILE, TRY, WITH, ASYNC -> true;
+                default -> false;
+            };
+            default -> false;
+        };
+    }
+
+    /**
+     * Parses the chunks between the given split points on the given pool.
+     * @param tokens the tokens of the file
+     * @param splitPoints the indexes of the first tokens of the chunks after the first one
+     * @param options the options to parse with
+     * @param caches gives the prediction cache of the thread it is called on
+     * @param pool the pool to parse on
+     * @return the parse trees of the chunks in order, or {@code null} if one of them couldn't be parsed on its own
+     */
+    public static List<FileContext> parse(CompactTokenStream tokens, int[] splitPoints, PyJavaOptions options,
+                                          Supplier<PredictionCache> caches, ForkJoinPool pool) {
+        var tasks = new ArrayList<ForkJoinTask<FileContext>>(splitPoints.length + 1);
+        int start = 0;
+        for (int i = 0; i <= splitPoints.length; i++) {
+            boolean last = i == splitPoints.length;
+            var slice = tokens.slice(start, last? tokens.size() - 1 : splitPoints[i]);
+            tasks.add(ForkJoinTask.adapt(() -> parseChunk(slice, last, options, caches.get())));
+            if (!last) {
+                start = splitPoints[i];
+            }
+        }
+        if (ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+
+        var chunks = new ArrayList<FileContext>(tasks.size());
+        for (var task : tasks) {
+            var chunk = task.join();
+            if (chunk == null) {
+                return null;
+            }
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the parse tree of the chunk, or {@code null} if it isn't the same as in the whole file
+     */
+    private static FileContext parseChunk(CompactTokenStream slice, boolean last, PyJavaOptions options, PredictionCache cache) {
+        try {
+            var parser = cache.newParser(slice, options);
+            // errors are reported when the file is parsed as a whole
+            parser.removeErrorListeners();
+            parser.setErrorHandler(new BailErrorStrategy());
+            var file = parser.file();
+            if (!last) {
+                var statements = file.statement();
+                // a statement without a semicolon that ends at EOF may have gone on in the whole file
+                if (!statements.isEmpty() && statements.get(statements.size() - 1).stop.getType() == Token.EOF) {
+                    return null;
+                }
+            }
+            return file;
+        } catch (ParseCancellationException e) {
+            return null;
+        } finally {
+            cache.trim();
+        }
+    }
+}
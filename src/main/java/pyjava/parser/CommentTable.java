@@ -0,0 +1,200 @@
+package pyjava.parser;
+
+import static pyjava.parser.PyJavaLexer.*;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.RuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+
+import pyjava.parser.PyJavaParser.FileContext;
+import pyjava.parser.PyJavaParser.StatementContext;
+
+/**
+ * Finds the comments around the tokens of a parse tree, by their indexes in the stream it was parsed from.
+ * <p>
+ * The comments are hidden tokens, so the parse tree doesn't have them. A comment between two tokens
+ * of a statement, such as the comment after a {@code ;} or before the {@code }} of a block, is looked up
+ * here by the index of the token after it, or of the token before it. Every parser has its own table,
+ * which the {@linkplain StatementContext#commentTable statements} and {@linkplain FileContext#commentTable files}
+ * it parses keep, so a statement can be moved to the tree of another parse, as {@link IncrementalParser} does,
+ * and still find its comments.
+ */
+public final class CommentTable {
+    private final TokenStream tokens;
+
+    public CommentTable(TokenStream tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * @return the table of the statement or file the node is in
+     * @throws IllegalArgumentException if the node isn't in a statement or a file
+     */
+    public static CommentTable of(RuleContext ctx) {
+        for (var node = ctx; node != null; node = node.parent) {
+            if (node instanceof StatementContext statement) {
+                return statement.commentTable;
+            }
+            if (node instanceof FileContext file) {
+                return file.commentTable;
+            }
+        }
+        throw new IllegalArgumentException("not in a statement or a file");
+    }
+
+    public TokenStream getTokenStream() {
+        return tokens;
+    }
+
+    /**
+     * Gets the comment on the same line as the last token before the given one, if there is one.
+     * @param next a token on the default channel
+     * @return the hidden comment token or {@code null}
+     */
+    public Token commentBefore(Token next) {
+        return commentBefore(next.getTokenIndex());
+    }
+
+    /**
+     * Gets the comment on the same line as the given token, after it, if there is one.
+     * @param previous a token on the default channel
+     * @return the hidden comment token or {@code null}
+     */
+    public Token commentAfter(Token previous) {
+        return commentBefore(nextOnChannel(previous.getTokenIndex()));
+    }
+
+    /**
+     * Gets the comments between the given token and the last token before it,
+     * except the one on the same line as that token.
+     * @param next a token on the default channel
+     * @return a list of the comment tokens or an empty list if there were none
+     */
+    public List<Token> commentsBefore(Token next) {
+        return commentsBefore(next.getTokenIndex());
+    }
+
+    /**
+     * Gets the comments between the given token and the next token, except the one on the same line as it.
+     * @param previous a token on the default channel
+     * @return a list of the comment tokens or an empty list if there were none
+     */
+    public List<Token> commentsAfter(Token previous) {
+        return commentsBefore(nextOnChannel(previous.getTokenIndex()));
+    }
+
+    /**
+     * Gets the comment on the same line as the last token before the given one, if there is one
+     * and the given token is on a later line.
+     * @param next a token on the default channel
+     * @return the hidden comment token or {@code null}
+     */
+    public Token lineCommentBefore(Token next) {
+        int index = next.getTokenIndex();
+        return lineTerminatorBefore(index)? commentBefore(index) : null;
+    }
+
+    /**
+     * Gets the comment on the same line as the given token, after it, if there is one
+     * and the next token is on a later line.
+     * @param previous a token on the default channel
+     * @return the hidden comment token or {@code null}
+     */
+    public Token lineCommentAfter(Token previous) {
+        int index = nextOnChannel(previous.getTokenIndex());
+        return lineTerminatorBefore(index)? commentBefore(index) : null;
+    }
+
+    /**
+     * @return whether the token before the given index is a line terminator, or a block comment
+     *         with one in it, like {@link PyJavaParserBase#lineTerminatorAhead()} says at that index
+     */
+    private boolean lineTerminatorBefore(int index) {
+        if (index < 1) return false;
+        Token ahead = tokens.get(index - 1);
+        if (ahead.getChannel() != Lexer.HIDDEN) return false;
+        return switch (ahead.getType()) {
+            case NEWLINE -> true;
+            case BLOCK_COMMENT -> {
+                String text = ahead.getText();
+                yield text.indexOf('\r') >= 0 || text.indexOf('\n') >= 0;
+            }
+            default -> false;
+        };
+    }
+
+    /**
+     * @return the index of the first token on the default channel after the given index
+     */
+    private int nextOnChannel(int index) {
+        Token token;
+        do {
+            token = tokens.get(++index);
+        } while (token.getChannel() != Token.DEFAULT_CHANNEL && token.getType() != Token.EOF);
+        return index;
+    }
+
+    private Token commentBefore(int index) {
+        // Get the token ahead of the given index.
+        int possibleIndexEosToken = index - 1;
+        if (possibleIndexEosToken < 0) return null;
+        Token ahead = tokens.get(possibleIndexEosToken);
+
+        Token lastCommentToken = null;
+        loop: while (ahead.getChannel() == Lexer.HIDDEN) {
+            switch (ahead.getType()) {
+                case BLOCK_COMMENT, LINE_COMMENT -> {
+                    lastCommentToken = ahead;
+                }
+                case NEWLINE -> {
+                    lastCommentToken = null;
+                }
+                default -> {
+                    break loop;
+                }
+            }
+            if (--possibleIndexEosToken < 0) break;
+            ahead = tokens.get(possibleIndexEosToken);
+        }
+
+        return lastCommentToken;
+    }
+
+    private List<Token> commentsBefore(int index) {
+        // Get the token ahead of the given index.
+        int possibleIndexEosToken = index - 1;
+        if (possibleIndexEosToken < 0) return List.of();
+        Token ahead = tokens.get(possibleIndexEosToken);
+
+        var commentTokens = new LinkedList<Token>();
+        boolean addedCommentLast = false;
+        loop: while (ahead.getChannel() == Lexer.HIDDEN) {
+            switch (ahead.getType()) {
+                case BLOCK_COMMENT, LINE_COMMENT -> {
+                    commentTokens.addFirst(ahead);
+                    addedCommentLast = true;
+                }
+                case NEWLINE -> {
+                    addedCommentLast = false;
+                }
+                default -> {
+                    break loop;
+                }
+            }
+            if (--possibleIndexEosToken < 0) {
+                addedCommentLast = false;
+                break;
+            }
+            ahead = tokens.get(possibleIndexEosToken);
+        }
+        if (addedCommentLast) {
+            commentTokens.removeFirst();
+        }
+
+        return commentTokens;
+    }
+}
@@ -0,0 +1,680 @@
+package pyjava.parser;
+
+import static pyjava.parser.PyJavaLexer.*;
+
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.RuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+/**
+ * A drop-in replacement for {@link org.antlr.v4.runtime.CommonTokenStream CommonTokenStream} which stores its tokens
+ * as parallel arrays instead of one {@link CommonToken} per token.
+ * <p>
+ * The lexer is given a token factory which records each token into the arrays and hands back a single
+ * reused flyweight, so lexing allocates nothing per token. {@link Token} objects are only created when they
+ * are asked for with {@link #get(int)} or {@link #LT(int)}, which is the case for the tokens the parser consumes
+ * and the few hidden tokens {@link PyJavaParserBase} looks back at, but not for most of the hidden ones.
+ * {@link #LA(int)}, which is what the parser's prediction uses, reads the arrays directly.
+ * A token costs about 25 bytes this way, against more than 60 for a {@code CommonToken} in a list.
+ * <p>
+ * Like {@code CommonTokenStream}, the stream only sees the tokens on the default channel.
+ * Unlike it, the whole input is lexed the first time the stream is used.
+ * <p>
+ * A {@linkplain #slice(int, int) slice} of the stream lets a separate parser parse part of the tokens,
+ * without copying them.
+ * <p>
+ * The stream can also {@linkplain #setCollapseLiteralTables(boolean) collapse} large lists and dicts of constants
+ * into single tokens, which the parser goes through much faster than the elements one by one.
+ */
+public class CompactTokenStream implements TokenStream {
+    /** The number of tokens a list, dict or tuple of constants has at least to be collapsed into a single token. */
+    public static final int LITERAL_TABLE_MIN_TOKENS = 64;
+
+    private final TokenSource source;
+    private final Pair<TokenSource, CharStream> sourcePair;
+    private final Recorder recorder = new Recorder();
+
+    private int size;
+    private int[] types;
+    private byte[] channels;
+    private int[] starts, stops;
+    private int[] lines, columns;
+    /** The tokens which were asked for so far, so that the same index always gives the same object. */
+    private Token[] tokens;
+    /** The index of the token at {@code tokens[0]}, which is only not 0 in slices. */
+    private int first;
+
+    /** The index of the current token, or -1 before the input is lexed. */
+    private int p = -1;
+
+    private boolean collapseLiteralTables;
+    private int literalTableCount;
+    private String inputText;
+
+    public CompactTokenStream(TokenSource source) {
+        this.source = source;
+        this.sourcePair = new Pair<>(source, source.getInputStream());
+        var input = source.getInputStream();
+        int capacity = input == null? 64 : Math.max(64, input.size() / 4);
+        types = new int[capacity];
+        channels = new byte[capacity];
+        starts = new int[capacity];
+        stops = new int[capacity];
+        lines = new int[capacity];
+        columns = new int[capacity];
+        tokens = new Token[capacity];
+        source.setTokenFactory(recorder);
+    }
+
+    private CompactTokenStream(CompactTokenStream stream, int start, int stop) {
+        this.source = stream.source;
+        this.sourcePair = stream.sourcePair;
+        this.size = stop + 1;
+        this.types = stream.types;
+        this.channels = stream.channels;
+        this.starts = stream.starts;
+        this.stops = stream.stops;
+        this.lines = stream.lines;
+        this.columns = stream.columns;
+        this.first = start;
+        this.tokens = new Token[stop - start + 1];
+        if (stream.types[stop] != Token.EOF) {
+            var eof = new CommonToken(sourcePair, Token.EOF, Token.DEFAULT_CHANNEL, starts[stop], starts[stop] - 1);
+            eof.setLine(lines[stop]);
+            eof.setCharPositionInLine(columns[stop]);
+            eof.setText("<EOF>");
+            eof.setTokenIndex(stop);
+            tokens[stop - start] = eof;
+        }
+        this.p = nextOnChannel(start);
+    }
+
+    /**
+     * Creates a stream over some of the tokens of this one, which ends with an EOF token in place of the token at {@code stop}.
+     * The tokens keep their indexes, and {@link #get(int)} can still be used to look at the ones before {@code start},
+     * so the parser's lookbehind sees the same hidden tokens it would see in this stream.
+     * <p>
+     * The slice shares this stream's arrays, so slices can be parsed on other threads once this stream is filled.
+     * @param start the index of the first token of the slice
+     * @param stop the index of the token to replace with EOF
+     * @return the slice
+     */
+    public CompactTokenStream slice(int start, int stop) {
+        fill();
+        if (start < 0 || start > stop || stop >= size) {
+            throw new IndexOutOfBoundsException("slice "+start+".."+stop+" out of range 0.."+(size-1));
+        }
+        return new CompactTokenStream(this, start, stop);
+    }
+
+    /**
+     * Sets whether the lists, dicts and tuples of constants which have at least {@value #LITERAL_TABLE_MIN_TOKENS}
+     * tokens are each replaced with a single {@link PyJavaLexer#LITERAL_TABLE LITERAL_TABLE} token when the input
+     * is lexed. Its text is what the {@link pyjava.tree.Transpiler Transpiler} outputs for the literal, so neither
+     * the parser nor the transpiler have to go through the elements one by one.
+     * <p>
+     * A constant is a number, a negated number, strings, {@code True}, {@code False}, {@code None} or such a literal.
+     * Literals are only collapsed after a {@code =}, {@code (}, {@code [}, {@code ,}, {@code :} or {@code return},
+     * but the grammar doesn't allow them everywhere an expression could come there, such as in a {@code case} pattern.
+     * An input which has {@linkplain #getLiteralTableCount() literal tables} and doesn't parse must be parsed again
+     * without collapsing them before reporting errors.
+     * @throws IllegalStateException if the input was already lexed
+     */
+    public void setCollapseLiteralTables(boolean collapse) {
+        if (p != -1) {
+            throw new IllegalStateException("the input was already lexed");
+        }
+        collapseLiteralTables = collapse;
+    }
+
+    /**
+     * @return the number of {@link PyJavaLexer#LITERAL_TABLE LITERAL_TABLE} tokens in the stream
+     */
+    public int getLiteralTableCount() {
+        fill();
+        return literalTableCount;
+    }
+
+    /**
+     * @return the type of the token at index {@code i}, which is EOF for the last token of a slice
+     */
+    private int type(int i) {
+        return i == size - 1? Token.EOF : types[i];
+    }
+
+    /**
+     * Lexes the whole input if it wasn't yet.
+     */
+    public void fill() {
+        if (p != -1) {
+            return;
+        }
+        recorder.recording = true;
+        try {
+            while (source.nextToken().getType() != Token.EOF) {}
+        } finally {
+            recorder.recording = false;
+        }
+        if (collapseLiteralTables) {
+            collapseLiteralTables();
+        }
+        p = nextOnChannel(0);
+    }
+
+    /**
+     * Replaces the tokens of each literal table with a single token, moving the following tokens back in the arrays.
+     */
+    private void collapseLiteralTables() {
+        var text = new StringBuilder();
+        int previous = Token.INVALID_TYPE;
+        int w = 0;
+        for (int r = 0; r < size; w++) {
+            int end;
+            if (channels[r] == Token.DEFAULT_CHANNEL && canStartLiteralTable(previous)
+                    && (end = matchLiteralTable(r, text)) - r >= LITERAL_TABLE_MIN_TOKENS) {
+                int start = starts[r], stop = stops[end - 1], line = lines[r], column = columns[r];
+                var token = new CommonToken(sourcePair, LITERAL_TABLE, Token.DEFAULT_CHANNEL, start, stop);
+                token.setLine(line);
+                token.setCharPositionInLine(column);
+                token.setText(text.toString());
+                token.setTokenIndex(w);
+                set(w, LITERAL_TABLE, Token.DEFAULT_CHANNEL, start, stop, line, column);
+                tokens[w] = token;
+                literalTableCount++;
+                previous = LITERAL_TABLE;
+                r = end;
+            } else {
+                if (channels[r] == Token.DEFAULT_CHANNEL) {
+                    previous = types[r];
+                }
+                if (w != r) {
+                    set(w, types[r], channels[r], starts[r], stops[r], lines[r], columns[r]);
+                    if (tokens[r] instanceof CommonToken token) {
+                        token.setTokenIndex(w);
+                    }
+                    tokens[w] = tokens[r];
+                }
+                r++;
+            }
+        }
+        Arrays.fill(tokens, w, size, null);
+        size = w;
+    }
+
+    private static boolean canStartLiteralTable(int previous) {
+        return switch (previous) {
+            case EQ, LPAREN, LBRACK, COMMA, COLON, RETURN -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return the index of the token after the list, dict or tuple of constants at {@code i}, or -1 if there isn't one
+     */
+    private int matchLiteralTable(int i, StringBuilder text) {
+        text.setLength(0);
+        return switch (types[i]) {
+            case LBRACK, LBRACE, LPAREN -> matchConstant(i, text);
+            default -> -1;
+        };
+    }
+
+    /**
+     * Matches a constant and appends what the transpiler would output for it.
+     * @param i the index of the first token of the constant
+     * @param text the text to append to
+     * @return the index of the token after the constant, or -1 if there isn't one at {@code i}
+     */
+    private int matchConstant(int i, StringBuilder text) {
+        switch (types[i]) {
+            case NUMBER, TRUE, FALSE, NONE -> {
+                appendText(i, text);
+                return i + 1;
+            }
+            case MINUS -> {
+                int j = skipNewlines(i + 1);
+                if (j == -1 || types[j] != NUMBER) {
+                    return -1;
+                }
+                text.append('-');
+                appendText(j, text);
+                return j + 1;
+            }
+            case STRING_LITERAL, BYTES_LITERAL -> {
+                appendText(i, text);
+                for (int j; (j = skipNewlines(i + 1)) != -1 && (types[j] == STRING_LITERAL || types[j] == BYTES_LITERAL); i = j) {
+                    text.append(' ');
+                    appendText(j, text);
+                }
+                return i + 1;
+            }
+            case LBRACK -> {
+                return matchElements(i, RBRACK, text);
+            }
+            case LBRACE -> {
+                return matchElements(i, RBRACE, text);
+            }
+            case LPAREN -> {
+                return matchElements(i, RPAREN, text);
+            }
+            default -> {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Matches a list, dict or tuple of constants, formatted like
+     * {@link pyjava.tree.Transpiler#visitListAtom(PyJavaParser.ListAtomContext) visitListAtom},
+     * {@link pyjava.tree.Transpiler#visitDictAtom(PyJavaParser.DictAtomContext) visitDictAtom} and
+     * {@link pyjava.tree.Transpiler#visitTupleAtom(PyJavaParser.TupleAtomContext) visitTupleAtom} do.
+     * @param i the index of the opening bracket
+     * @param close the type of the closing bracket
+     * @return the index of the token after the closing bracket, or -1 if it isn't such a literal
+     */
+    private int matchElements(int i, int close, StringBuilder text) {
+        boolean dict = close == RBRACE;
+        int mark = text.length();
+        text.append(dict? "{ " : close == RBRACK? "[" : "(");
+        int count = 0;
+        boolean comma = false;
+        i = skipNewlines(i + 1);
+        while (i != -1 && types[i] != close) {
+            if (count != 0) {
+                text.append(", ");
+            }
+            i = matchConstant(i, text);
+            if (dict && i != -1) {
+                i = skipNewlines(i);
+                if (i == -1 || types[i] != COLON) {
+                    return -1;
+                }
+                text.append(": ");
+                i = skipNewlines(i + 1);
+                if (i != -1) {
+                    i = matchConstant(i, text);
+                }
+            }
+            if (i == -1 || (i = skipNewlines(i)) == -1) {
+                return -1;
+            }
+            count++;
+            comma = types[i] == COMMA;
+            if (comma) {
+                i = skipNewlines(i + 1);
+            } else if (types[i] != close) {
+                return -1;
+            }
+        }
+        if (i == -1) {
+            return -1;
+        }
+        if (dict) {
+            if (count == 0) {
+                text.setLength(mark);
+                text.append("{}");
+            } else {
+                text.append(" }");
+            }
+        } else {
+            if (count == 1 && comma) {
+                text.append(',');
+            } else if (count == 1 && close == RPAREN) {
+                // a group, not a tuple
+                return -1;
+            }
+            text.append(close == RBRACK? ']' : ')');
+        }
+        return i + 1;
+    }
+
+    /**
+     * @return the index of the first token at or after {@code i} on the default channel,
+     *         or -1 if there is a token other than a newline before it
+     */
+    private int skipNewlines(int i) {
+        for (; channels[i] != Token.DEFAULT_CHANNEL; i++) {
+            if (types[i] != NEWLINE) {
+                return -1;
+            }
+        }
+        return i;
+    }
+
+    private void appendText(int i, StringBuilder text) {
+        if (tokens[i] instanceof CommonToken token) {
+            text.append(token.getText());
+        } else {
+            text.append(sourcePair.b.getText(Interval.of(starts[i], stops[i])));
+        }
+    }
+
+    private int add(int type, int channel, int start, int stop, int line, int column) {
+        if (size == types.length) {
+            int capacity = size + (size >> 1);
+            types = Arrays.copyOf(types, capacity);
+            channels = Arrays.copyOf(channels, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            stops = Arrays.copyOf(stops, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+            tokens = Arrays.copyOf(tokens, capacity);
+        }
+        set(size, type, channel, start, stop, line, column);
+        return size++;
+    }
+
+    private void set(int i, int type, int channel, int start, int stop, int line, int column) {
+        types[i] = type;
+        channels[i] = (byte)channel;
+        starts[i] = start;
+        stops[i] = stop;
+        lines[i] = line;
+        columns[i] = column;
+    }
+
+    /**
+     * @return the index of the first token at or after {@code i} on the default channel
+     */
+    private int nextOnChannel(int i) {
+        while (i < size - 1 && channels[i] != Token.DEFAULT_CHANNEL) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the first token at or before {@code i} on the default channel, or -1 if there is none
+     */
+    private int previousOnChannel(int i) {
+        while (i >= 0 && channels[i] != Token.DEFAULT_CHANNEL && type(i) != Token.EOF) {
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the {@code k}th token on the default channel from the current one, or -1 if there is none
+     */
+    private int indexOf(int k) {
+        fill();
+        if (k == 0) {
+            return -1;
+        }
+        int i = p;
+        if (k > 0) {
+            for (int n = 1; n < k && i < size - 1; n++) {
+                i = nextOnChannel(i + 1);
+            }
+        } else {
+            // the same quirks as CommonTokenStream, which stops at the first token instead of failing
+            if (p + k < 0) {
+                return -1;
+            }
+            for (int n = 1; n <= -k && i > 0; n++) {
+                i = previousOnChannel(i - 1);
+            }
+        }
+        return i;
+    }
+
+    @Override
+    public int LA(int k) {
+        int i = indexOf(k);
+        return i < 0? Token.INVALID_TYPE : type(i);
+    }
+
+    @Override
+    public Token LT(int k) {
+        int i = indexOf(k);
+        return i < 0? null : get(i);
+    }
+
+    @Override
+    public Token get(int index) {
+        fill();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("token index "+index+" out of range 0.."+(size-1));
+        }
+        if (index < first) {
+            // before the start of a slice
+            return new CompactToken(index);
+        }
+        var token = tokens[index - first];
+        if (token == null) {
+            tokens[index - first] = token = new CompactToken(index);
+        }
+        return token;
+    }
+
+    public int getType(int index) {
+        fill();
+        return type(index);
+    }
+
+    public int getChannel(int index) {
+        fill();
+        return channels[index];
+    }
+
+    public int getStartIndex(int index) {
+        fill();
+        return starts[index];
+    }
+
+    public int getStopIndex(int index) {
+        fill();
+        return stops[index];
+    }
+
+    /**
+     * @return the whole input as a string, in which the tokens' start and stop indexes are the indexes
+     *         of their characters, or {@code null} if the input has characters outside of the BMP,
+     *         whose indexes in the input aren't their indexes in a string
+     */
+    public String getInputText() {
+        if (inputText == null) {
+            var input = sourcePair.b;
+            var text = input.getText(Interval.of(0, input.size() - 1));
+            if (text.length() != input.size()) {
+                return null;
+            }
+            inputText = text;
+        }
+        return inputText;
+    }
+
+    @Override
+    public TokenSource getTokenSource() {
+        return source;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        fill();
+        int start = interval.a;
+        int stop = interval.b;
+        if (start < 0 || stop < 0) {
+            return "";
+        }
+        if (stop >= size) {
+            stop = size - 1;
+        }
+        var sb = new StringBuilder();
+        var input = sourcePair.b;
+        for (int i = start; i <= stop && type(i) != Token.EOF; i++) {
+            if (i >= first && tokens[i - first] instanceof CommonToken token) {
+                sb.append(token.getText());
+            } else {
+                sb.append(input.getText(Interval.of(starts[i], stops[i])));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String getText() {
+        fill();
+        return getText(Interval.of(0, size - 1));
+    }
+
+    @Override
+    public String getText(RuleContext ctx) {
+        return getText(ctx.getSourceInterval());
+    }
+
+    @Override
+    public String getText(Token start, Token stop) {
+        if (start == null || stop == null) {
+            return "";
+        }
+        return getText(Interval.of(start.getTokenIndex(), stop.getTokenIndex()));
+    }
+
+    @Override
+    public void consume() {
+        fill();
+        if (type(p) == Token.EOF) {
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        p = nextOnChannel(p + 1);
+    }
+
+    @Override
+    public int mark() {
+        return 0;
+    }
+
+    @Override
+    public void release(int marker) {}
+
+    @Override
+    public int index() {
+        return p;
+    }
+
+    @Override
+    public void seek(int index) {
+        fill();
+        p = nextOnChannel(Math.max(first, Math.min(index, size - 1)));
+    }
+
+    @Override
+    public int size() {
+        fill();
+        return size;
+    }
+
+    @Override
+    public String getSourceName() {
+        return source.getSourceName();
+    }
+
+    /**
+     * Records the tokens made by the lexer while the stream is being filled.
+     * Tokens made at other times, such as the ones the parser's error recovery makes up, are regular {@link CommonToken}s.
+     */
+    private class Recorder implements TokenFactory<Token> {
+        boolean recording;
+        private final CompactToken flyweight = new CompactToken(-1);
+
+        @Override
+        public Token create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start, int stop, int line, int charPositionInLine) {
+            if (!recording) {
+                return CommonTokenFactory.DEFAULT.create(source, type, text, channel, start, stop, line, charPositionInLine);
+            }
+            int index = add(type, channel, start, stop, line, charPositionInLine);
+            if (text != null) {
+                // the text doesn't come from the input, keep it in a real token
+                var token = CommonTokenFactory.DEFAULT.create(source, type, text, channel, start, stop, line, charPositionInLine);
+                token.setTokenIndex(index);
+                tokens[index] = token;
+                return token;
+            }
+            flyweight.index = index;
+            return flyweight;
+        }
+
+        @Override
+        public Token create(int type, String text) {
+            return CommonTokenFactory.DEFAULT.create(type, text);
+        }
+    }
+
+    private class CompactToken implements Token {
+        int index;
+
+        CompactToken(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getText() {
+            if (types[index] == Token.EOF) {
+                return "<EOF>";
+            }
+            return sourcePair.b.getText(Interval.of(starts[index], stops[index]));
+        }
+
+        @Override
+        public int getType() {
+            return types[index];
+        }
+
+        @Override
+        public int getLine() {
+            return lines[index];
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return columns[index];
+        }
+
+        @Override
+        public int getChannel() {
+            return channels[index];
+        }
+
+        @Override
+        public int getTokenIndex() {
+            return index;
+        }
+
+        @Override
+        public int getStartIndex() {
+            return starts[index];
+        }
+
+        @Override
+        public int getStopIndex() {
+            return stops[index];
+        }
+
+        @Override
+        public TokenSource getTokenSource() {
+            return sourcePair.a;
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return sourcePair.b;
+        }
+
+        @Override
+        public String toString() {
+            String text = getText().replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+            return "[@"+index+","+getStartIndex()+":"+getStopIndex()+"='"+text+"',<"+getType()+">"
+                 + (getChannel() > 0? ",channel="+getChannel() : "")+","+getLine()+":"+getCharPositionInLine()+"]";
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package pyjava.parser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNConfig;
+import org.antlr.v4.runtime.atn.ATNConfigSet;
+import org.antlr.v4.runtime.atn.ATNSimulator;
+import org.antlr.v4.runtime.atn.ArrayPredictionContext;
+import org.antlr.v4.runtime.atn.PredictionContext;
+import org.antlr.v4.runtime.atn.SemanticContext;
+import org.antlr.v4.runtime.atn.SingletonPredictionContext;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+/**
+ * Binary encoding of parser DFAs.
+ * Prediction contexts and semantic contexts are written once each to a table, in an order where
+ * everything an entry refers to comes before it, and DFA states refer to them by index.
+ */
+final class DFASnapshot {
+    private static final int MAGIC = 0x50594446; // "PYDF"
+    private static final int VERSION = 1;
+
+    private static final int ERROR_STATE = -2;
+    private static final int NO_STATE = -1;
+
+    private static final byte CONTEXT_EMPTY = 0, CONTEXT_SINGLETON = 1, CONTEXT_ARRAY = 2;
+    private static final byte SEMANTIC_NONE = 0, SEMANTIC_PREDICATE = 1, SEMANTIC_PRECEDENCE = 2, SEMANTIC_AND = 3, SEMANTIC_OR = 4;
+
+    private DFASnapshot() {}
+
+    /**
+     * @return a value identifying the ATN the states of a snapshot refer to
+     */
+    static int fingerprint(String serializedATN) {
+        return serializedATN.hashCode() * 31 + serializedATN.length();
+    }
+
+    static void write(DFA[] decisionToDFA, int fingerprint, DataOutputStream out) throws IOException {
+        var contexts = new IdentityHashMap<PredictionContext, Integer>();
+        var contextList = new ArrayList<PredictionContext>();
+        var semantics = new HashMap<SemanticContext, Integer>();
+        var semanticList = new ArrayList<SemanticContext>();
+        var stateLists = new ArrayList<List<DFAState>>(decisionToDFA.length);
+
+        for (var dfa : decisionToDFA) {
+            var states = new ArrayList<>(dfa.states.keySet());
+            stateLists.add(states);
+            for (var state : states) {
+                for (var config : state.configs.configs) {
+                    addContext(config.context, contexts, contextList);
+                    addSemantic(config.semanticContext, semantics, semanticList);
+                }
+                if (state.predicates != null) {
+                    for (var pred : state.predicates) {
+                        addSemantic(pred.pred, semantics, semanticList);
+                    }
+                }
+            }
+        }
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fingerprint);
+
+        out.writeInt(contextList.size());
+        for (var context : contextList) {
+            if (context == PredictionContext.EMPTY) {
+                out.writeByte(CONTEXT_EMPTY);
+            } else if (context instanceof SingletonPredictionContext singleton) {
+                out.writeByte(CONTEXT_SINGLETON);
+                out.writeInt(singleton.parent == null? -1 : contexts.get(singleton.parent));
+                out.writeInt(singleton.returnState);
+            } else {
+                var array = (ArrayPredictionContext)context;
+                out.writeByte(CONTEXT_ARRAY);
+                out.writeInt(array.size());
+                for (int i = 0; i < array.size(); i++) {
+                    out.writeInt(array.parents[i] == null? -1 : contexts.get(array.parents[i]));
+                    out.writeInt(array.returnStates[i]);
+                }
+            }
+        }
+
+        out.writeInt(semanticList.size());
+        for (var semantic : semanticList) {
+            if (semantic == SemanticContext.NONE) {
+                out.writeByte(SEMANTIC_NONE);
+            } else if (semantic instanceof SemanticContext.Predicate pred) {
+                out.writeByte(SEMANTIC_PREDICATE);
+                out.writeInt(pred.ruleIndex);
+                out.writeInt(pred.predIndex);
+                out.writeBoolean(pred.isCtxDependent);
+            } else if (semantic instanceof SemanticContext.PrecedencePredicate pred) {
+                out.writeByte(SEMANTIC_PRECEDENCE);
+                out.writeInt(pred.precedence);
+            } else {
+                var operands = semantic instanceof SemanticContext.AND and? and.opnds : ((SemanticContext.OR)semantic).opnds;
+                out.writeByte(semantic instanceof SemanticContext.AND? SEMANTIC_AND : SEMANTIC_OR);
+                out.writeInt(operands.length);
+                for (var operand : operands) {
+                    out.writeInt(semantics.get(operand));
+                }
+            }
+        }
+
+        out.writeInt(decisionToDFA.length);
+        for (int decision = 0; decision < decisionToDFA.length; decision++) {
+            var dfa = decisionToDFA[decision];
+            var states = stateLists.get(decision);
+            var indices = new IdentityHashMap<DFAState, Integer>(states.size());
+            for (var state : states) {
+                indices.put(state, indices.size());
+            }
+
+            out.writeBoolean(dfa.isPrecedenceDfa());
+            out.writeInt(states.size());
+            for (var state : states) {
+                var configs = state.configs;
+                out.writeBoolean(configs.fullCtx);
+                out.writeInt(configs.uniqueAlt);
+                out.writeBoolean(configs.hasSemanticContext);
+                out.writeBoolean(configs.dipsIntoOuterContext);
+                writeBitSet(getConflictingAlts(configs), out);
+                out.writeInt(configs.size());
+                for (var config : configs.configs) {
+                    out.writeInt(config.state.stateNumber);
+                    out.writeInt(config.alt);
+                    out.writeInt(contexts.get(config.context));
+                    out.writeInt(semantics.get(config.semanticContext));
+                    out.writeInt(config.reachesIntoOuterContext);
+                }
+                out.writeBoolean(state.isAcceptState);
+                out.writeInt(state.prediction);
+                out.writeBoolean(state.requiresFullContext);
+                if (state.predicates == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(state.predicates.length);
+                    for (var pred : state.predicates) {
+                        out.writeInt(semantics.get(pred.pred));
+                        out.writeInt(pred.alt);
+                    }
+                }
+            }
+            for (var state : states) {
+                writeEdges(state.edges, indices, out);
+            }
+            if (dfa.isPrecedenceDfa()) {
+                writeEdges(dfa.s0.edges, indices, out);
+            } else {
+                out.writeInt(dfa.s0 == null? NO_STATE : indices.getOrDefault(dfa.s0, NO_STATE));
+            }
+        }
+    }
+
+    /**
+     * Reads DFAs written by {@link #write}.
+     * @param atn the ATN the DFAs belong to
+     * @param fingerprint the {@linkplain #fingerprint fingerprint} of {@code atn}
+     * @param contextCache adds a prediction context read to the cache, returning the equal context which is
+     *                     already there if there is one, which is used instead, like ANTLR's own
+     *                     {@code PredictionContext.getCachedContext} does
+     * @return the DFAs, one per decision
+     * @throws IOException if the snapshot is malformed or belongs to another ATN
+     */
+    static DFA[] read(ATN atn, int fingerprint, DataInputStream in, UnaryOperator<PredictionContext> contextCache) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a DFA snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported DFA snapshot version "+version);
+        }
+        if (in.readInt() != fingerprint) {
+            throw new IOException("DFA snapshot was recorded for a different grammar");
+        }
+
+        var contexts = new PredictionContext[in.readInt()];
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i] = switch (in.readByte()) {
+                case CONTEXT_EMPTY -> PredictionContext.EMPTY;
+                case CONTEXT_SINGLETON -> {
+                    int parent = in.readInt();
+                    yield SingletonPredictionContext.create(parent == -1? null : contexts[parent], in.readInt());
+                }
+                case CONTEXT_ARRAY -> {
+                    int size = in.readInt();
+                    var parents = new PredictionContext[size];
+                    var returnStates = new int[size];
+                    for (int j = 0; j < size; j++) {
+                        int parent = in.readInt();
+                        parents[j] = parent == -1? null : contexts[parent];
+                        returnStates[j] = in.readInt();
+                    }
+                    yield new ArrayPredictionContext(parents, returnStates);
+                }
+                default -> throw new IOException("malformed DFA snapshot: bad prediction context");
+            };
+            // later contexts have this one as a parent, so they are built from the cached one
+            contexts[i] = contextCache.apply(contexts[i]);
+        }
+
+        var semantics = new SemanticContext[in.readInt()];
+        for (int i = 0; i < semantics.length; i++) {
+            byte tag = in.readByte();
+            semantics[i] = switch (tag) {
+                case SEMANTIC_NONE -> SemanticContext.NONE;
+                case SEMANTIC_PREDICATE -> new SemanticContext.Predicate(in.readInt(), in.readInt(), in.readBoolean());
+                case SEMANTIC_PRECEDENCE -> new SemanticContext.PrecedencePredicate(in.readInt());
+                case SEMANTIC_AND, SEMANTIC_OR -> {
+                    int size = in.readInt();
+                    SemanticContext result = semantics[in.readInt()];
+                    for (int j = 1; j < size; j++) {
+                        var operand = semantics[in.readInt()];
+                        result = tag == SEMANTIC_AND? new SemanticContext.AND(result, operand) : new SemanticContext.OR(result, operand);
+                    }
+                    yield result;
+                }
+                default -> throw new IOException("malformed DFA snapshot: bad semantic context");
+            };
+        }
+
+        int decisions = in.readInt();
+        if (decisions != atn.getNumberOfDecisions()) {
+            throw new IOException("malformed DFA snapshot: expected "+atn.getNumberOfDecisions()+" decisions, got "+decisions);
+        }
+        var decisionToDFA = new DFA[decisions];
+        for (int decision = 0; decision < decisions; decision++) {
+            var dfa = new DFA(atn.getDecisionState(decision), decision);
+            boolean precedenceDfa = in.readBoolean();
+            if (precedenceDfa != dfa.isPrecedenceDfa()) {
+                throw new IOException("malformed DFA snapshot: precedence mismatch for decision "+decision);
+            }
+            var states = new DFAState[in.readInt()];
+            for (int i = 0; i < states.length; i++) {
+                var configs = new ATNConfigSet(in.readBoolean());
+                configs.uniqueAlt = in.readInt();
+                configs.hasSemanticContext = in.readBoolean();
+                configs.dipsIntoOuterContext = in.readBoolean();
+                setConflictingAlts(configs, readBitSet(in));
+                int size = in.readInt();
+                configs.configs.ensureCapacity(size);
+                for (int j = 0; j < size; j++) {
+                    var atnState = atn.states.get(in.readInt());
+                    int alt = in.readInt();
+                    var config = new ATNConfig(atnState, alt, contexts[in.readInt()], semantics[in.readInt()]);
+                    config.reachesIntoOuterContext = in.readInt();
+                    configs.configs.add(config);
+                }
+                configs.setReadonly(true);
+
+                var state = new DFAState(configs);
+                state.stateNumber = i;
+                state.isAcceptState = in.readBoolean();
+                state.prediction = in.readInt();
+                state.requiresFullContext = in.readBoolean();
+                int predicates = in.readInt();
+                if (predicates >= 0) {
+                    state.predicates = new DFAState.PredPrediction[predicates];
+                    for (int j = 0; j < predicates; j++) {
+                        state.predicates[j] = new DFAState.PredPrediction(semantics[in.readInt()], in.readInt());
+                    }
+                }
+                states[i] = state;
+                dfa.states.put(state, state);
+            }
+            for (var state : states) {
+                state.edges = readEdges(states, in);
+            }
+            if (precedenceDfa) {
+                dfa.s0.edges = readEdges(states, in);
+            } else {
+                int s0 = in.readInt();
+                dfa.s0 = s0 == NO_STATE? null : states[s0];
+            }
+            decisionToDFA[decision] = dfa;
+        }
+        return decisionToDFA;
+    }
+
+    private static void addContext(PredictionContext root, IdentityHashMap<PredictionContext, Integer> ids, List<PredictionContext> list) {
+        if (root == null || ids.containsKey(root)) return;
+        // iterative post-order walk, context chains can be very deep
+        var stack = new ArrayDeque<PredictionContext>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            var context = stack.peek();
+            boolean ready = true;
+            for (int i = context.size() - 1; i >= 0; i--) {
+                var parent = context.getParent(i);
+                if (parent != null && !ids.containsKey(parent)) {
+                    stack.push(parent);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                if (!ids.containsKey(context)) {
+                    ids.put(context, list.size());
+                    list.add(context);
+                }
+            }
+        }
+    }
+
+    private static void addSemantic(SemanticContext semantic, HashMap<SemanticContext, Integer> ids, List<SemanticContext> list) {
+        if (ids.containsKey(semantic)) return;
+        if (semantic instanceof SemanticContext.AND and) {
+            for (var operand : and.opnds) addSemantic(operand, ids, list);
+        } else if (semantic instanceof SemanticContext.OR or) {
+            for (var operand : or.opnds) addSemantic(operand, ids, list);
+        }
+        ids.put(semantic, list.size());
+        list.add(semantic);
+    }
+
+    private static void writeBitSet(BitSet bits, DataOutputStream out) throws IOException {
+        if (bits == null) {
+            out.writeInt(-1);
+            return;
+        }
+        var words = bits.toLongArray();
+        out.writeInt(words.length);
+        for (var word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    private static BitSet readBitSet(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        var words = new long[length];
+        for (int i = 0; i < length; i++) {
+            words[i] = in.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private static void writeEdges(DFAState[] edges, IdentityHashMap<DFAState, Integer> indices, DataOutputStream out) throws IOException {
+        if (edges == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(edges.length);
+        int count = 0;
+        for (var target : edges) {
+            if (target != null && (target == ATNSimulator.ERROR || indices.containsKey(target))) count++;
+        }
+        out.writeInt(count);
+        for (int i = 0; i < edges.length; i++) {
+            var target = edges[i];
+            if (target == ATNSimulator.ERROR) {
+                out.writeInt(i);
+                out.writeInt(ERROR_STATE);
+            } else if (target != null && indices.containsKey(target)) {
+                out.writeInt(i);
+                out.writeInt(indices.get(target));
+            }
+        }
+    }
+
+    private static DFAState[] readEdges(DFAState[] states, DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        var edges = new DFAState[length];
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int index = in.readInt();
+            int target = in.readInt();
+            edges[index] = target == ERROR_STATE? ATNSimulator.ERROR : states[target];
+        }
+        return edges;
+    }
+
+    // ATNConfigSet.conflictingAlts is protected and has no accessors, but it takes part in equals()
+    private static final Field CONFLICTING_ALTS;
+    static {
+        try {
+            CONFLICTING_ALTS = ATNConfigSet.class.getDeclaredField("conflictingAlts");
+            CONFLICTING_ALTS.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static BitSet getConflictingAlts(ATNConfigSet configs) {
+        try {
+            return (BitSet)CONFLICTING_ALTS.get(configs);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setConflictingAlts(ATNConfigSet configs, BitSet conflictingAlts) {
+        try {
+            CONFLICTING_ALTS.set(configs, conflictingAlts);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package pyjava.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.dfa.DFA;
+
+import pyjava.PyJavaOptions;
+
+/**
+ * Pre-populates the DFA cache shared by every {@link PyJavaParser}, so the first files parsed
+ * by a fresh JVM don't have to pay for building it.
+ * <p>
+ * A snapshot holds the parser's DFA states as they were after parsing a corpus, and
+ * {@linkplain #load(Path) loading} it puts them back in place. Snapshots refer to the states of the
+ * grammar's ATN, so they are only valid for the exact grammar they were recorded with.
+ * PyJava bundles a small corpus instead of a snapshot, which {@link #warmUp(PyJavaOptions)}
+ * replays once per grammar and then caches as a snapshot in the user's {@linkplain #defaultCacheDirectory() cache
+ * directory}, where other users can't replace it.
+ * <p>
+ * The lexer's DFA isn't part of snapshots: it is small and builds quickly.
+ * <p>
+ * A corpus is a UTF-8 text file made of entries of the form
+ * <pre>
+ * #!warmup &lt;length&gt; &lt;name&gt;
+ * &lt;length characters of source code&gt;
+ * </pre>
+ */
+public final class DFAWarmUp {
+    /** The corpus bundled with PyJava, taken from its own test inputs. */
+    public static final String DEFAULT_CORPUS = "warmup-corpus.txt";
+
+    private static final String ENTRY_HEADER = "#!warmup ";
+
+    private DFAWarmUp() {}
+
+    public static record Entry(String name, String source) {}
+
+    /**
+     * Loads the cached snapshot for the current grammar from the {@linkplain #defaultCacheDirectory() default
+     * cache directory}, or creates it by replaying the bundled corpus.
+     * @param options the options the files will be parsed with
+     * @return the number of DFA states added
+     */
+    public static int warmUp(PyJavaOptions options) {
+        return warmUp(options, defaultCacheDirectory());
+    }
+
+    /**
+     * Loads the cached snapshot for the current grammar from a directory, or creates it there by replaying
+     * the bundled corpus. A snapshot which can't be loaded is replaced.
+     * @param options the options the files will be parsed with
+     * @param cacheDirectory the directory the snapshot is kept in, which is created if it doesn't exist
+     * @return the number of DFA states added
+     */
+    public static int warmUp(PyJavaOptions options, Path cacheDirectory) {
+        return warmUp(cacheDirectory, () -> replay(options));
+    }
+
+    /**
+     * @param replay fills the DFA cache when there is no snapshot which can be loaded,
+     *               returning the number of DFA states it added
+     */
+    static int warmUp(Path cacheDirectory, IntSupplier replay) {
+        var cached = cacheDirectory.resolve("pyjava-dfa-" + Integer.toHexString(fingerprint()) + ".snapshot");
+        if (Files.isRegularFile(cached)) {
+            try {
+                return load(cached);
+            } catch (IOException | RuntimeException e) {
+                // corrupt or truncated, recreate it below
+            }
+        }
+        int added = replay.getAsInt();
+        try {
+            Files.createDirectories(cacheDirectory);
+            var temp = Files.createTempFile(cacheDirectory, "pyjava-dfa-", ".tmp");
+            save(temp);
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the cache is only an optimization
+        }
+        return added;
+    }
+
+    /**
+     * @return the directory {@link #warmUp(PyJavaOptions)} keeps its snapshot in, which is in the user's home
+     *         directory so that it can only be written by the user
+     */
+    public static Path defaultCacheDirectory() {
+        return Path.of(System.getProperty("user.home"), ".cache", "pyjava");
+    }
+
+    /**
+     * Replays the corpus bundled with PyJava.
+     * @param options the options the files will be parsed with
+     * @return the number of DFA states added
+     */
+    public static int replay(PyJavaOptions options) {
+        var stream = DFAWarmUp.class.getResourceAsStream(DEFAULT_CORPUS);
+        if (stream == null) {
+            return 0;
+        }
+        try (var reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            return replay(reader, options);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parses every entry of a corpus, discarding the results.
+     * Entries which aren't valid under the given options only warm up the part they got through.
+     * @param corpus the corpus contents
+     * @param options the options the files will be parsed with
+     * @return the number of DFA states added
+     */
+    public static int replay(Reader corpus, PyJavaOptions options) throws IOException {
+        int before = stateCount();
+        for (var entry : readCorpus(corpus)) {
+            parse(entry.source(), options);
+        }
+        return stateCount() - before;
+    }
+
+    /**
+     * Records a snapshot from the given files, starting from an empty DFA cache.
+     * @param files the files to record from
+     * @param snapshot the file to write the snapshot to
+     * @param options the options the files will be parsed with
+     * @return the number of DFA states recorded
+     */
+    public static int record(List<Path> files, Path snapshot, PyJavaOptions options) throws IOException {
+        clear();
+        for (var file : files) {
+            parse(Files.readString(file, StandardCharsets.UTF_8), options);
+        }
+        save(snapshot);
+        return stateCount();
+    }
+
+    /**
+     * Writes the parser's current DFA states to a snapshot file.
+     */
+    public static void save(Path snapshot) throws IOException {
+        try (var out = Files.newOutputStream(snapshot)) {
+            save(out);
+        }
+    }
+
+    public static void save(OutputStream out) throws IOException {
+        var data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+        DFASnapshot.write(PyJavaParser._decisionToDFA, fingerprint(), data);
+        data.flush();
+        data.close();
+    }
+
+    /**
+     * Replaces the parser's DFA states with the ones from a snapshot file.
+     * @return the number of DFA states loaded
+     * @throws IOException if the snapshot can't be read or was recorded for another grammar
+     */
+    public static int load(Path snapshot) throws IOException {
+        try (var in = Files.newInputStream(snapshot)) {
+            return load(in);
+        }
+    }
+
+    public static int load(InputStream in) throws IOException {
+        var data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+        var loaded = DFASnapshot.read(PyJavaParser._ATN, fingerprint(), data, PredictionCache.getDefault().parserContextCache::add);
+        System.arraycopy(loaded, 0, PyJavaParser._decisionToDFA, 0, loaded.length);
+        return stateCount(loaded);
+    }
+
+    public static List<Entry> readCorpus(Reader corpus) throws IOException {
+        var reader = corpus instanceof BufferedReader br? br : new BufferedReader(corpus);
+        var entries = new ArrayList<Entry>();
+        String header;
+        while ((header = reader.readLine()) != null) {
+            if (header.isEmpty()) {
+                continue;
+            }
+            if (!header.startsWith(ENTRY_HEADER)) {
+                throw new IOException("malformed warm-up corpus: expected '"+ENTRY_HEADER.strip()+"', got "+header);
+            }
+            int space = header.indexOf(' ', ENTRY_HEADER.length());
+            int length;
+            String name;
+            try {
+                if (space == -1) {
+                    length = Integer.parseInt(header.substring(ENTRY_HEADER.length()));
+                    name = "";
+                } else {
+                    length = Integer.parseInt(header.substring(ENTRY_HEADER.length(), space));
+                    name = header.substring(space+1);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed warm-up corpus: bad entry length in "+header);
+            }
+            var source = new char[length];
+            int read = 0;
+            while (read < length) {
+                int n = reader.read(source, read, length - read);
+                if (n == -1) {
+                    throw new IOException("malformed warm-up corpus: truncated entry "+name);
+                }
+                read += n;
+            }
+            entries.add(new Entry(name, new String(source)));
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of DFA states currently cached by the parser
+     */
+    public static int stateCount() {
+        return stateCount(PyJavaParser._decisionToDFA);
+    }
+
+    static int stateCount(DFA[] decisionToDFA) {
+        int count = 0;
+        for (var dfa : decisionToDFA) {
+            count += dfa.states.size();
+        }
+        return count;
+    }
+
+    static int fingerprint() {
+        return DFASnapshot.fingerprint(PyJavaParser._serializedATN);
+    }
+
+    private static void clear() {
+        new PyJavaParser(new CompactTokenStream(new PyJavaLexer(CharStreams.fromString("")))).getInterpreter().clearDFA();
+    }
+
+    private static void parse(String source, PyJavaOptions options) {
+        var lexer = new PyJavaLexer(CharStreams.fromString(source));
+        lexer.removeErrorListeners();
+        var parser = new PyJavaParser(new CompactTokenStream(lexer), options);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            parser.file();
+        } catch (RuntimeException e) {
+            // the states reached before the error are still useful
+        }
+    }
+}
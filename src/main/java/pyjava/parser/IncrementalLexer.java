@@ -0,0 +1,534 @@
+package pyjava.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+/**
+ * Keeps the tokens of a piece of text up to date as it is edited, for editors which need the tokens after
+ * every keystroke.
+ * <p>
+ * The only state {@link PyJavaLexer} carries from one token to the next is its stack of open brackets and
+ * whether it lexed a token yet. Every {@value #CHECKPOINT_INTERVAL} tokens or so, the token records that state
+ * as it was right before the token was lexed. An {@linkplain #edit(int, int, CharSequence) edit} restarts the
+ * lexer at the last checkpoint before it, and stops as soon as the lexer reaches an old checkpoint after it
+ * in the same state: from there on it would produce the old tokens again.
+ * <p>
+ * Each token also remembers how far ahead of itself the lexer had to look to match it, as the lexer can be
+ * affected by an edit which is after the token it's lexing, for example when a quote is added at the end
+ * of a line which used to hold an unterminated string. Checkpoints are only used when no token before them
+ * looked as far as the edit.
+ * <p>
+ * The text and the tokens are kept in gap buffers whose gap follows the edits, and the positions of the tokens
+ * after the gap are stored relative to the end of the text, so an edit doesn't touch the tokens it doesn't relex.
+ * An edit costs time proportional to the number of tokens between the checkpoints around it and the distance
+ * from the previous edit, and not to the size of the text, unless the edit leaves a construct which looks ahead
+ * to the end of the file, such as an unterminated block comment.
+ * <p>
+ * Like with {@link org.antlr.v4.runtime.CharStreams#fromString(String) CharStreams.fromString}, the offsets of edits
+ * and the positions of the tokens are counted in code points, so a character outside the Basic Multilingual Plane
+ * is one position, and not two like in the UTF-16 offsets of editors, which have to be converted.
+ */
+public class IncrementalLexer {
+    /** The number of tokens between two checkpoints. */
+    public static final int CHECKPOINT_INTERVAL = 32;
+
+    private final Text text = new Text();
+    private final Pair<TokenSource, CharStream> sourcePair;
+    /** The number of lines in the text, which is one more than the number of line feeds. */
+    private int lineCount = 1;
+    /** The position of the last line feed in the text, or -1 if there is none, for the column of the EOF token. */
+    private int lastLineFeed = -1;
+
+    // The tokens, without the EOF token. Those before the gap store absolute positions and line numbers,
+    // and those after it store them relative to the end of the text and to the line count.
+    private int[] types = new int[64];
+    private byte[] channels = new byte[64];
+    private int[] starts = new int[64];
+    private int[] stops = new int[64];
+    private int[] lines = new int[64];
+    private int[] columns = new int[64];
+    /** The furthest position looked at by the lexer while lexing the token or any token before it. */
+    private int[] reaches = new int[64];
+    /** The state of the lexer before lexing the token, for checkpoints, or {@code null}. */
+    private PyJavaLexerBase.State[] states = new PyJavaLexerBase.State[64];
+    private int gapStart, gapEnd = 64;
+
+    private final PyJavaLexer lexer = new PyJavaLexer(text);
+
+    /**
+     * The result of an {@linkplain IncrementalLexer#edit(int, int, CharSequence) edit}:
+     * the tokens from {@code start} to {@code start + removed} were replaced by those from {@code start}
+     * to {@code start + inserted}. The positions of the tokens after them changed by the edit's length difference.
+     * @param start the index of the first token which changed
+     * @param removed the number of old tokens which were replaced
+     * @param inserted the number of new tokens
+     */
+    public static record TokenEdit(int start, int removed, int inserted) {}
+
+    public IncrementalLexer(CharSequence text) {
+        this.sourcePair = new Pair<>(lexer, this.text);
+        lexer.removeErrorListeners();
+        edit(0, 0, text);
+    }
+
+    /**
+     * Replaces part of the text and relexes what it affects.
+     * @param offset where the replaced part starts, in code points
+     * @param removedLength the number of code points in the replaced part
+     * @param inserted the text to replace it with
+     * @return which tokens were replaced
+     * @throws IndexOutOfBoundsException if the replaced part isn't within the text
+     */
+    public TokenEdit edit(int offset, int removedLength, CharSequence inserted) {
+        int length = text.length();
+        if (offset < 0 || removedLength < 0 || offset > length - removedLength) {
+            throw new IndexOutOfBoundsException("cannot replace "+offset+".."+(offset + removedLength)+" in text of length "+length);
+        }
+
+        // find the last checkpoint which no token before looked past the edit from
+        int restart = lastStartingAtOrBefore(offset);
+        while (restart >= 0 && (states[physical(restart)] == null || restart > 0 && reach(restart - 1) >= offset)) {
+            restart--;
+        }
+        int restartOffset, restartLine, restartColumn;
+        PyJavaLexerBase.State restartState;
+        if (restart < 0) {
+            restart = 0;
+            restartOffset = 0;
+            restartLine = 1;
+            restartColumn = 0;
+            restartState = PyJavaLexerBase.State.INITIAL;
+        } else {
+            int i = physical(restart);
+            restartOffset = start(restart);
+            restartLine = line(restart);
+            restartColumn = columns[i];
+            restartState = states[i];
+        }
+        int reach = restart == 0? -1 : reach(restart - 1);
+
+        moveGap(restart);
+        // the tokens which overlap the replaced part can't be kept, the others are now only shifted
+        int removed = 0;
+        while (gapEnd < types.length && starts[gapEnd] + length < offset + removedLength) {
+            gapEnd++;
+            removed++;
+        }
+        // remember the tokens before the edit, to only report the ones which changed
+        int before = 0;
+        while (before < removed && stops[gapEnd - removed + before] + length < offset) {
+            before++;
+        }
+        var previous = new int[before * 4];
+        for (int n = 0; n < before; n++) {
+            int i = gapEnd - removed + n;
+            previous[n*4] = types[i];
+            previous[n*4 + 1] = channels[i];
+            previous[n*4 + 2] = starts[i] + length;
+            previous[n*4 + 3] = stops[i] + length;
+        }
+        lineCount -= text.lineFeeds(offset, offset + removedLength);
+        int oldLength = length;
+        int insertedLineFeed = text.replace(offset, removedLength, inserted);
+        length = text.length();
+        lineCount += text.lineFeeds(offset, length - (oldLength - offset - removedLength));
+        if (lastLineFeed >= offset + removedLength) {
+            lastLineFeed += length - oldLength;
+        } else if (insertedLineFeed != -1) {
+            lastLineFeed = offset + insertedLineFeed;
+        } else if (lastLineFeed >= offset) {
+            lastLineFeed = text.lastLineFeed(offset);
+        }
+
+        text.seek(restartOffset);
+        lexer.getInterpreter().setLine(restartLine);
+        lexer.getInterpreter().setCharPositionInLine(restartColumn);
+        lexer.restoreState(restartState);
+        lexer._hitEOF = false;
+
+        int added = 0, sinceCheckpoint = 0;
+        int unchanged = 0, unchangedAfter = 0;
+        for (;;) {
+            var state = lexer.saveState();
+            text.lookahead = text.index() - 1;
+            var token = lexer.nextToken();
+            int start = token.getStartIndex();
+            while (gapEnd < types.length && starts[gapEnd] + length < start) {
+                gapEnd++;
+                removed++;
+            }
+            if (token.getType() == Token.EOF) {
+                break;
+            }
+            if (gapEnd < types.length && starts[gapEnd] + length == start && state.equals(states[gapEnd])
+                    && columns[gapEnd] == token.getCharPositionInLine()) {
+                // back in sync with the old tokens
+                break;
+            }
+            if (added == unchanged && unchanged < before) {
+                int n = unchanged*4;
+                if (token.getType() == previous[n] && token.getChannel() == previous[n+1]
+                        && start == previous[n+2] && token.getStopIndex() == previous[n+3]) {
+                    unchanged++;
+                }
+            }
+            if (gapEnd < types.length && starts[gapEnd] + length == start && stops[gapEnd] + length == token.getStopIndex()
+                    && types[gapEnd] == token.getType() && channels[gapEnd] == token.getChannel()
+                    && columns[gapEnd] == token.getCharPositionInLine()) {
+                unchangedAfter++;
+            } else {
+                unchangedAfter = 0;
+            }
+            reach = Math.max(reach, text.lookahead);
+            boolean checkpoint = added == 0 || ++sinceCheckpoint == CHECKPOINT_INTERVAL;
+            if (checkpoint) {
+                sinceCheckpoint = 0;
+            }
+            add(token, reach, checkpoint? state : null);
+            added++;
+        }
+        // the new tokens may have looked further than the old ones did
+        for (int i = gapEnd; i < types.length && reaches[i] + length < reach; i++) {
+            reaches[i] = reach - length;
+        }
+        return new TokenEdit(restart + unchanged, removed - unchanged - unchangedAfter, added - unchanged - unchangedAfter);
+    }
+
+    /**
+     * @return the number of tokens, not counting the EOF token
+     */
+    public int size() {
+        return types.length - (gapEnd - gapStart);
+    }
+
+    /**
+     * @return the token at the given index, which is the EOF token if it's {@link #size()}
+     */
+    public Token get(int index) {
+        int size = size();
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("token index "+index+" out of range 0.."+size);
+        }
+        CommonToken token;
+        if (index == size) {
+            int length = text.length();
+            token = new CommonToken(sourcePair, Token.EOF, Token.DEFAULT_CHANNEL, length, length - 1);
+            token.setLine(lineCount);
+            token.setCharPositionInLine(length - (lastLineFeed + 1));
+        } else {
+            int i = physical(index);
+            token = new CommonToken(sourcePair, types[i], channels[i], start(index), stop(index));
+            token.setLine(line(index));
+            token.setCharPositionInLine(columns[i]);
+            token.setText(text.getText(Interval.of(token.getStartIndex(), token.getStopIndex())));
+        }
+        token.setTokenIndex(index);
+        return token;
+    }
+
+    public int getType(int index) {
+        return index == size()? Token.EOF : types[physical(index)];
+    }
+
+    public int getChannel(int index) {
+        return index == size()? Token.DEFAULT_CHANNEL : channels[physical(index)];
+    }
+
+    /**
+     * @return all the tokens, ending with the EOF token
+     */
+    public List<Token> getTokens() {
+        int size = size();
+        var tokens = new ArrayList<Token>(size + 1);
+        for (int i = 0; i <= size; i++) {
+            tokens.add(get(i));
+        }
+        return tokens;
+    }
+
+    /**
+     * @return a token source giving the current tokens
+     */
+    public TokenSource getTokenSource() {
+        return new ListTokenSource(getTokens());
+    }
+
+    public String getText() {
+        return text.toString();
+    }
+
+    /**
+     * @return the length of the text, in code points
+     */
+    public int length() {
+        return text.length();
+    }
+
+    private int physical(int index) {
+        return index < gapStart? index : index + gapEnd - gapStart;
+    }
+
+    private int start(int index) {
+        return index < gapStart? starts[index] : starts[physical(index)] + text.length();
+    }
+
+    private int stop(int index) {
+        return index < gapStart? stops[index] : stops[physical(index)] + text.length();
+    }
+
+    private int line(int index) {
+        return index < gapStart? lines[index] : lines[physical(index)] + lineCount;
+    }
+
+    private int reach(int index) {
+        return index < gapStart? reaches[index] : reaches[physical(index)] + text.length();
+    }
+
+    /**
+     * @return the index of the last token starting at or before the offset, or -1 if there is none
+     */
+    private int lastStartingAtOrBefore(int offset) {
+        int low = 0, high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (start(mid) <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Moves the gap so that it starts at the given token index.
+     */
+    private void moveGap(int index) {
+        int length = text.length();
+        while (gapStart > index) {
+            gapStart--;
+            gapEnd--;
+            move(gapStart, gapEnd, -length, -lineCount);
+        }
+        while (gapStart < index) {
+            move(gapEnd, gapStart, length, lineCount);
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    private void move(int from, int to, int offsetShift, int lineShift) {
+        types[to] = types[from];
+        channels[to] = channels[from];
+        starts[to] = starts[from] + offsetShift;
+        stops[to] = stops[from] + offsetShift;
+        lines[to] = lines[from] + lineShift;
+        columns[to] = columns[from];
+        reaches[to] = reaches[from] + offsetShift;
+        states[to] = states[from];
+        states[from] = null;
+    }
+
+    private void add(Token token, int reach, PyJavaLexerBase.State state) {
+        if (gapStart == gapEnd) {
+            int capacity = types.length + (types.length >> 1);
+            int after = types.length - gapEnd;
+            types = grow(types, capacity, after);
+            starts = grow(starts, capacity, after);
+            stops = grow(stops, capacity, after);
+            lines = grow(lines, capacity, after);
+            columns = grow(columns, capacity, after);
+            reaches = grow(reaches, capacity, after);
+            var newChannels = new byte[capacity];
+            System.arraycopy(channels, 0, newChannels, 0, gapStart);
+            System.arraycopy(channels, gapEnd, newChannels, capacity - after, after);
+            channels = newChannels;
+            var newStates = new PyJavaLexerBase.State[capacity];
+            System.arraycopy(states, 0, newStates, 0, gapStart);
+            System.arraycopy(states, gapEnd, newStates, capacity - after, after);
+            states = newStates;
+            gapEnd = capacity - after;
+        }
+        int i = gapStart++;
+        types[i] = token.getType();
+        channels[i] = (byte)token.getChannel();
+        starts[i] = token.getStartIndex();
+        stops[i] = token.getStopIndex();
+        lines[i] = token.getLine();
+        columns[i] = token.getCharPositionInLine();
+        reaches[i] = reach;
+        states[i] = state;
+    }
+
+    private int[] grow(int[] array, int capacity, int after) {
+        var grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, gapStart);
+        System.arraycopy(array, gapEnd, grown, capacity - after, after);
+        return grown;
+    }
+
+    /**
+     * The text being lexed, as a gap buffer of code points which records how far the lexer looks ahead.
+     */
+    private static class Text implements CharStream {
+        private int[] codePoints = new int[256];
+        private int gapStart, gapEnd = codePoints.length;
+        private int p;
+        /** The furthest position looked at since it was last reset. */
+        int lookahead;
+
+        /**
+         * @return the index of the last line feed in the inserted text, relative to {@code offset}, or -1 if there is none
+         */
+        int replace(int offset, int removedLength, CharSequence inserted) {
+            moveGap(offset);
+            gapEnd += removedLength;
+            int needed = inserted.length();
+            if (gapEnd - gapStart < needed) {
+                int after = codePoints.length - gapEnd;
+                int capacity = Math.max(codePoints.length + (codePoints.length >> 1), gapStart + needed + after + 256);
+                var grown = new int[capacity];
+                System.arraycopy(codePoints, 0, grown, 0, gapStart);
+                System.arraycopy(codePoints, gapEnd, grown, capacity - after, after);
+                codePoints = grown;
+                gapEnd = capacity - after;
+            }
+            int lineFeed = -1;
+            for (int i = 0; i < needed; ) {
+                int c = Character.codePointAt(inserted, i);
+                if (c == '\n') {
+                    lineFeed = gapStart - offset;
+                }
+                codePoints[gapStart++] = c;
+                i += Character.charCount(c);
+            }
+            return lineFeed;
+        }
+
+        private void moveGap(int offset) {
+            if (offset < gapStart) {
+                int count = gapStart - offset;
+                System.arraycopy(codePoints, offset, codePoints, gapEnd - count, count);
+                gapStart -= count;
+                gapEnd -= count;
+            } else if (offset > gapStart) {
+                int count = offset - gapStart;
+                System.arraycopy(codePoints, gapEnd, codePoints, gapStart, count);
+                gapStart += count;
+                gapEnd += count;
+            }
+        }
+
+        int length() {
+            return codePoints.length - (gapEnd - gapStart);
+        }
+
+        int codePointAt(int index) {
+            return codePoints[index < gapStart? index : index + gapEnd - gapStart];
+        }
+
+        /**
+         * @return the number of line feeds from {@code start} to {@code end}
+         */
+        int lineFeeds(int start, int end) {
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                if (codePointAt(i) == '\n') {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return the index of the last line feed before {@code end}, or -1 if there is none
+         */
+        int lastLineFeed(int end) {
+            for (int i = end - 1; i >= 0; i--) {
+                if (codePointAt(i) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return getText(Interval.of(0, length() - 1));
+        }
+
+        @Override
+        public String getText(Interval interval) {
+            int start = Math.max(interval.a, 0);
+            int stop = Math.min(interval.b, length() - 1);
+            if (stop < start) {
+                return "";
+            }
+            var sb = new StringBuilder(stop - start + 1);
+            for (int i = start; i <= stop; i++) {
+                sb.appendCodePoint(codePointAt(i));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public void consume() {
+            if (p >= length()) {
+                throw new IllegalStateException("cannot consume EOF");
+            }
+            p++;
+        }
+
+        @Override
+        public int LA(int i) {
+            if (i == 0) {
+                return 0;
+            }
+            int index = i > 0? p + i - 1 : p + i;
+            if (index > lookahead) {
+                lookahead = index;
+            }
+            if (index < 0 || index >= length()) {
+                return IntStream.EOF;
+            }
+            return codePointAt(index);
+        }
+
+        @Override
+        public int mark() {
+            return -1;
+        }
+
+        @Override
+        public void release(int marker) {}
+
+        @Override
+        public int index() {
+            return p;
+        }
+
+        @Override
+        public void seek(int index) {
+            p = Math.min(index, length());
+        }
+
+        @Override
+        public int size() {
+            return length();
+        }
+
+        @Override
+        public String getSourceName() {
+            return IntStream.UNKNOWN_SOURCE_NAME;
+        }
+    }
+}
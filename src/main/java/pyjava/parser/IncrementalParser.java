@@ -0,0 +1,380 @@
+package pyjava.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import pyjava.PyJavaOptions;
+import pyjava.parser.PyJavaParser.FileContext;
+import pyjava.parser.PyJavaParser.StatementContext;
+
+/**
+ * Keeps the parse tree of a piece of text up to date as it is edited, reparsing only the top-level statements
+ * an edit touches.
+ * <p>
+ * A file is a list of top-level statements, each of which owns the tokens from the end of the previous one
+ * to its own last token. An {@linkplain #edit(int, int, CharSequence) edit} is passed to an {@link IncrementalLexer},
+ * and the statements which own the tokens it relexed are parsed again, along with the statement before and after
+ * them, since the comment rules and the statement terminators look at the hidden tokens on both sides of a statement.
+ * The new {@link StatementContext}s replace the old ones, and the others are kept as they are.
+ * <p>
+ * Parsing costs time proportional to the size of the statements around the edit. The number of tokens each
+ * statement owns is kept in a Fenwick tree, so finding the statements an edit touches costs time logarithmic
+ * in the number of statements. So does updating the parse tree and the token counts when an edit replaces
+ * statements by as many new ones, which is what most edits inside a statement do. An edit which changes
+ * the number of statements also moves the ones after it in an array and builds the Fenwick tree again, which
+ * is linear in the number of statements, though with a small constant.
+ * <p>
+ * A region is only reparsed on its own when its last statement ended where a statement can end. If the end of
+ * the region is what ended it, or what caused a syntax error, the next statements are added to the region.
+ * When the text has syntax errors, the regions which had them are reparsed along with every edit, so that
+ * an edit which fixes them somewhere else, such as closing a brace opened many statements earlier, is seen,
+ * and every edit looks through all the statements for them.
+ * <p>
+ * The statements which were kept still hold the tokens they were parsed from, whose positions are the ones
+ * they had back then. Positions in {@linkplain #getSyntaxErrors() syntax errors} are always current.
+ */
+public class IncrementalParser {
+    private final IncrementalLexer lexer;
+    private final PyJavaOptions options;
+    private final PredictionCache cache;
+
+    /**
+     * The top-level statements, followed by an entry with a {@code null} statement
+     * for the comments and tokens after the last one.
+     */
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    /**
+     * The Fenwick tree of the token counts of the entries: element {@code i} is the sum of the token counts
+     * of the entries from {@code i - (i & -i)} to {@code i - 1}.
+     */
+    private int[] tokenCounts;
+    /** The comments of the parse which ended at the end of the text, which has the ones after the last statement. */
+    private CommentTable trailingComments;
+    private TerminalNode eof;
+    /** The number of entries marked as erroneous. */
+    private int erroneous;
+    private final FileContext tree = new FileContext(null, ATNState.INVALID_STATE_NUMBER);
+
+    private static final class Entry {
+        final StatementContext statement;
+        /** The number of tokens from the end of the previous statement to the last token of this one. */
+        int tokenCount;
+        /** Whether the entry is the first or last of a region with syntax errors. */
+        boolean erroneous;
+        /** The syntax errors of the region, if the entry is its first. */
+        List<SyntaxError> errors = List.of();
+
+        Entry(StatementContext statement, int tokenCount) {
+            this.statement = statement;
+            this.tokenCount = tokenCount;
+        }
+    }
+
+    public static record SyntaxError(int line, int charPositionInLine, String message) {
+        @Override
+        public String toString() {
+            return "line "+line+":"+charPositionInLine+" "+message;
+        }
+    }
+
+    /**
+     * The result of an {@linkplain IncrementalParser#edit(int, int, CharSequence) edit}:
+     * the top-level statements from {@code start} to {@code start + removed} were replaced by those from {@code start}
+     * to {@code start + inserted}.
+     * @param start the index of the first statement which was reparsed
+     * @param removed the number of old statements which were replaced
+     * @param inserted the number of new statements
+     */
+    public static record StatementEdit(int start, int removed, int inserted) {}
+
+    public IncrementalParser(CharSequence text, PyJavaOptions options) {
+        this(text, options, PredictionCache.getDefault());
+    }
+
+    public IncrementalParser(CharSequence text, PyJavaOptions options, PredictionCache cache) {
+        this.lexer = new IncrementalLexer(text);
+        this.options = options;
+        this.cache = cache;
+        entries.add(new Entry(null, lexer.size()));
+        buildTokenCounts();
+        reparse(0, 0, 0);
+    }
+
+    /**
+     * Replaces part of the text and reparses the statements it affects.
+     * @param offset where the replaced part starts, in code points, see {@link IncrementalLexer}
+     * @param removedLength the number of code points in the replaced part
+     * @param inserted the text to replace it with
+     * @return which statements were replaced
+     * @throws IndexOutOfBoundsException if the replaced part isn't within the text
+     */
+    public StatementEdit edit(int offset, int removedLength, CharSequence inserted) {
+        var tokenEdit = lexer.edit(offset, removedLength, inserted);
+        if (tokenEdit.removed() == 0 && tokenEdit.inserted() == 0 && erroneous == 0) {
+            // only whitespace changed
+            return new StatementEdit(entryAt(tokenEdit.start()), 0, 0);
+        }
+        int first = entryAt(tokenEdit.start());
+        int last = entryAt(tokenEdit.start() + Math.max(tokenEdit.removed(), 1) - 1);
+        return reparse(Math.max(first - 1, 0), Math.min(last + 1, entries.size() - 1), tokenEdit.inserted() - tokenEdit.removed());
+    }
+
+    /**
+     * @return the index of the entry owning the token at the given index
+     */
+    private int entryAt(int tokenIndex) {
+        // find the last entry whose preceding entries own at most tokenIndex tokens
+        int index = 0;
+        for (int step = Integer.highestOneBit(entries.size()); step > 0; step >>= 1) {
+            if (index + step <= entries.size() && tokenCounts[index + step] <= tokenIndex) {
+                index += step;
+                tokenIndex -= tokenCounts[index];
+            }
+        }
+        return Math.min(index, entries.size() - 1);
+    }
+
+    /**
+     * @return the number of tokens owned by the entries before the given one
+     */
+    private int tokensBefore(int entry) {
+        int count = 0;
+        for (int i = entry; i > 0; i -= i & -i) {
+            count += tokenCounts[i];
+        }
+        return count;
+    }
+
+    private void addTokenCount(int entry, int delta) {
+        for (int i = entry + 1; i < tokenCounts.length; i += i & -i) {
+            tokenCounts[i] += delta;
+        }
+    }
+
+    private void buildTokenCounts() {
+        tokenCounts = new int[entries.size() + 1];
+        for (int i = 1; i < tokenCounts.length; i++) {
+            tokenCounts[i] += entries.get(i - 1).tokenCount;
+            int parent = i + (i & -i);
+            if (parent < tokenCounts.length) {
+                tokenCounts[parent] += tokenCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Parses the entries from {@code first} to {@code last} again.
+     * @param delta the difference between their new and old number of tokens
+     */
+    private StatementEdit reparse(int first, int last, int delta) {
+        if (erroneous > 0) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).erroneous) {
+                    first = Math.min(first, i);
+                    last = Math.max(last, i);
+                }
+            }
+        }
+        int begin = tokensBefore(first);
+        int end = tokensBefore(last + 1) + delta;
+
+        int growth = 1;
+        for (;;) {
+            boolean toEnd = last == entries.size() - 1;
+            int stop = toEnd? lexer.size() : end;
+            // the hidden tokens after the region decide how its last statement ends
+            int tailEnd = stop;
+            while (!toEnd && lexer.getChannel(tailEnd) != Token.DEFAULT_CHANNEL) {
+                tailEnd++;
+            }
+
+            var tokens = new ArrayList<Token>(tailEnd - begin + 2);
+            // the comment rules look back as far as the previous statement's last token, keep it out of the parser's way
+            int lead = 0;
+            if (begin > 0) {
+                var previous = (CommonToken)lexer.get(begin - 1);
+                previous.setChannel(Token.HIDDEN_CHANNEL);
+                tokens.add(previous);
+                lead = 1;
+            }
+            for (int i = begin; i < tailEnd; i++) {
+                tokens.add(lexer.get(i));
+            }
+            var next = lexer.get(tailEnd);
+            if (next.getType() != Token.EOF) {
+                var eofToken = new CommonToken(next);
+                eofToken.setType(Token.EOF);
+                eofToken.setText("<EOF>");
+                eofToken.setStopIndex(next.getStartIndex() - 1);
+                next = eofToken;
+            }
+            tokens.add(next);
+
+            var messages = new ArrayList<SyntaxError>();
+            var atEnd = new boolean[1];
+            var parser = cache.newParser(new CommonTokenStream(new ListTokenSource(tokens)), options);
+            parser.removeErrorListeners();
+            parser.addErrorListener(new BaseErrorListener() {
+                @Override
+                public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+                    messages.add(new SyntaxError(line, charPositionInLine, msg));
+                    if (((Token)offendingSymbol).getType() == Token.EOF) {
+                        atEnd[0] = true;
+                    }
+                }
+            });
+            var file = parser.file();
+            var statements = file.statement();
+
+            if (!toEnd && (messages.isEmpty()? !statements.isEmpty() && statements.get(statements.size() - 1).stop.getType() == Token.EOF
+                                             : atEnd[0])) {
+                // the region ended too early, try again with more statements, then twice as many and so on
+                for (int i = 0; i < growth && last < entries.size() - 1; i++) {
+                    last++;
+                    end += entries.get(last).tokenCount;
+                }
+                growth *= 2;
+                continue;
+            }
+
+            var replacement = new ArrayList<Entry>(statements.size() + 1);
+            int previousStop = -1;
+            for (var statement : statements) {
+                int statementStop = Math.min(statement.stop == null? -1 : statement.stop.getTokenIndex() - lead, stop - begin - 1);
+                replacement.add(new Entry(statement, Math.max(statementStop - previousStop, 0)));
+                previousStop = Math.max(previousStop, statementStop);
+            }
+            // whatever is left over belongs to the next entry
+            int leftover = stop - begin - (previousStop + 1);
+            Entry following;
+            if (toEnd) {
+                following = new Entry(null, leftover);
+                replacement.add(following);
+                trailingComments = file.commentTable;
+                eof = file.EOF();
+            } else {
+                following = entries.get(last + 1);
+            }
+
+            int before = 0, after = 0;
+            for (int i = first; i <= last; i++) {
+                if (entries.get(i).erroneous) {
+                    before++;
+                }
+            }
+            if (!toEnd && following.erroneous) {
+                before++;
+            }
+            if (!messages.isEmpty()) {
+                // error recovery can change the statements before the error too, so the whole region is marked
+                var owner = replacement.isEmpty()? following : replacement.get(0);
+                owner.errors = messages;
+                owner.erroneous = true;
+                following.erroneous = true;
+            }
+            for (var entry : replacement) {
+                if (entry.erroneous) {
+                    after++;
+                }
+            }
+            if (!toEnd && following.erroneous) {
+                after++;
+            }
+            erroneous += after - before;
+
+            int removed = last - first + 1 - (toEnd? 1 : 0);
+            int inserted = statements.size();
+            if (replacement.size() == last - first + 1) {
+                for (int i = 0; i < replacement.size(); i++) {
+                    var entry = replacement.get(i);
+                    addTokenCount(first + i, entry.tokenCount - entries.set(first + i, entry).tokenCount);
+                }
+                if (!toEnd) {
+                    following.tokenCount += leftover;
+                    addTokenCount(last + 1, leftover);
+                }
+            } else {
+                if (!toEnd) {
+                    following.tokenCount += leftover;
+                }
+                entries.subList(first, last + 1).clear();
+                entries.addAll(first, replacement);
+                buildTokenCounts();
+            }
+            updateTree(first, removed, statements, toEnd);
+            return new StatementEdit(first, removed, inserted);
+        }
+    }
+
+    /**
+     * Replaces the statements from {@code first} to {@code first + removed} in the parse tree.
+     * @param toEnd whether the statements were parsed up to the end of the text, which has a new EOF token
+     */
+    private void updateTree(int first, int removed, List<StatementContext> statements, boolean toEnd) {
+        if (tree.children == null) {
+            tree.children = new ArrayList<>();
+        }
+        var children = tree.children;
+        if (toEnd && !children.isEmpty()) {
+            children.remove(children.size() - 1);
+        }
+        if (statements.size() == removed) {
+            for (int i = 0; i < removed; i++) {
+                children.set(first + i, statements.get(i));
+            }
+        } else {
+            children.subList(first, first + removed).clear();
+            children.addAll(first, statements);
+        }
+        for (var statement : statements) {
+            statement.setParent(tree);
+        }
+        if (toEnd) {
+            children.add(eof);
+            eof.setParent(tree);
+            tree.commentTable = trailingComments;
+            tree.stop = eof.getSymbol();
+        }
+        tree.start = children.size() > 1? ((StatementContext) children.get(0)).start : eof.getSymbol();
+    }
+
+    /**
+     * @return the parse tree of the current text, which is the same object after every edit, and shares
+     *         the subtrees of the statements which weren't reparsed with its previous versions
+     */
+    public FileContext getTree() {
+        return tree;
+    }
+
+    /**
+     * @return the syntax errors in the current text, in order
+     */
+    public List<SyntaxError> getSyntaxErrors() {
+        if (erroneous == 0) {
+            return List.of();
+        }
+        var errors = new ArrayList<SyntaxError>();
+        for (var entry : entries) {
+            errors.addAll(entry.errors);
+        }
+        return errors;
+    }
+
+    public IncrementalLexer getLexer() {
+        return lexer;
+    }
+
+    public String getText() {
+        return lexer.getText();
+    }
+}
@@ -0,0 +1,63 @@
+package pyjava.parser;
+
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.CharStream;
+
+/**
+ * The keywords of the grammar, taken from the lexer's vocabulary and bucketed by first character.
+ * This is a separate class because PyJavaLexer isn't initialized yet when {@link PyJavaLexerBase} is.
+ */
+final class Keywords {
+    private static final char[][][] NAMES = new char[128][][];
+    private static final int[][] TYPES = new int[128][];
+
+    static {
+        var vocabulary = PyJavaLexer.VOCABULARY;
+        for (int type = 1; type <= vocabulary.getMaxTokenType(); type++) {
+            String literal = vocabulary.getLiteralName(type);
+            if (literal == null || !literal.matches("'[A-Za-z_][A-Za-z0-9_]*'")) {
+                continue;
+            }
+            var name = literal.substring(1, literal.length() - 1).toCharArray();
+            int first = name[0];
+            var names = NAMES[first];
+            if (names == null) {
+                NAMES[first] = new char[][] {name};
+                TYPES[first] = new int[] {type};
+            } else {
+                NAMES[first] = Arrays.copyOf(names, names.length + 1);
+                NAMES[first][names.length] = name;
+                TYPES[first] = Arrays.copyOf(TYPES[first], names.length + 1);
+                TYPES[first][names.length] = type;
+            }
+        }
+    }
+
+    private Keywords() {}
+
+    /**
+     * @return the type of the keyword made of the next {@code length} characters of the input,
+     *         or {@code NAME} if they aren't a keyword
+     */
+    static int lookup(CharStream input, int length) {
+        int first = input.LA(1);
+        var names = first < 128? NAMES[first] : null;
+        if (names != null) {
+        candidates:
+            for (int i = 0; i < names.length; i++) {
+                var name = names[i];
+                if (name.length != length) {
+                    continue;
+                }
+                for (int j = 1; j < length; j++) {
+                    if (name[j] != input.LA(j + 1)) {
+                        continue candidates;
+                    }
+                }
+                return TYPES[first][i];
+            }
+        }
+        return PyJavaLexer.NAME;
+    }
+}
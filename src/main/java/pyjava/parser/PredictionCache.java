@@ -0,0 +1,399 @@
+package pyjava.parser;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.ATNSimulator;
+import org.antlr.v4.runtime.atn.LexerATNSimulator;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionContext;
+import org.antlr.v4.runtime.atn.PredictionContextCache;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+import pyjava.PyJavaOptions;
+
+/**
+ * The DFAs and prediction context caches used by the lexer and parser's ATN simulators.
+ * <p>
+ * The generated {@link PyJavaLexer} and {@link PyJavaParser} always use the {@linkplain #getDefault() default}
+ * cache, which is shared by the whole JVM. ANTLR adds states to it under locks, so threads parsing at the
+ * same time end up waiting on each other. {@link #forWorkers(Strategy, PredictionCache)} can instead give each
+ * worker thread a private copy of a warmed-up cache, which it then grows without any contention.
+ * <p>
+ * The parser's DFA never stops growing as it sees new inputs. In a long-running process, give the cache a
+ * {@linkplain #setLimit(int) limit} and call {@link #trim()} between files: once the parser's DFA has more
+ * states than the limit, the DFAs of the least recently used decisions are dropped. The lexer's DFA is bounded
+ * by the grammar and is never trimmed.
+ * <p>
+ * Parsers only keep track of the decisions they use if the cache has a limit, and only count the hits and misses
+ * of the cache if its {@linkplain #setStatisticsEnabled(boolean) statistics are enabled}, as of when they were
+ * created, so that neither costs anything otherwise.
+ */
+public final class PredictionCache {
+    public static enum Strategy {
+        /** All threads use the same cache. */
+        SHARED,
+        /** Each thread gets its own copy of the cache as it was when the workers were set up. */
+        PER_THREAD;
+    }
+
+    /**
+     * A point-in-time view of a cache's size and effectiveness.
+     * @param states the number of states in the parser's DFA
+     * @param contexts the number of prediction contexts in the parser's context cache
+     * @param hits the number of DFA transitions the parser found in the cache
+     * @param misses the number of DFA transitions the parser had to compute
+     * @param evictions the number of decision DFAs dropped by {@link PredictionCache#trim()}
+     * @param evictedStates the number of states those DFAs had
+     */
+    public static record Statistics(long states, long contexts, long hits, long misses, long evictions, long evictedStates) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0? 0 : (double)hits / total;
+        }
+
+        public Statistics plus(Statistics other) {
+            return new Statistics(
+                states + other.states,
+                contexts + other.contexts,
+                hits + other.hits,
+                misses + other.misses,
+                evictions + other.evictions,
+                evictedStates + other.evictedStates
+            );
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d DFA states, %d prediction contexts, %.1f%% hit rate (%d hits, %d misses), %d evictions (%d states)",
+                                 states, contexts, hitRate() * 100, hits, misses, evictions, evictedStates);
+        }
+    }
+
+    /** Trimming keeps this many states out of every 4 allowed by the limit, so it doesn't need to run again right away. */
+    private static final int LOW_WATER_MARK = 3;
+    /** The context cache may hold this many contexts per allowed state before it gets cleared. */
+    private static final int CONTEXTS_PER_STATE = 16;
+
+    private static final PredictionCache DEFAULT = new PredictionCache(
+        PyJavaLexer._decisionToDFA, PyJavaLexer._sharedContextCache,
+        PyJavaParser._decisionToDFA, new ContextCache()
+    );
+
+    final DFA[] lexerDFA;
+    final PredictionContextCache lexerContextCache;
+    final DFA[] parserDFA;
+    final ContextCache parserContextCache;
+
+    private volatile int limit;
+    private volatile boolean statisticsEnabled;
+    /** The {@link #epoch} in which each parser decision was last used, for picking what to evict. */
+    private final int[] lastUsed;
+    /** The number of calls to {@link #trim()} so far, which only it changes, holding the lock. */
+    private volatile int epoch;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+    private long evictions, evictedStates;
+
+    private PredictionCache(DFA[] lexerDFA, PredictionContextCache lexerContextCache, DFA[] parserDFA, ContextCache parserContextCache) {
+        this.lexerDFA = lexerDFA;
+        this.lexerContextCache = lexerContextCache;
+        this.parserDFA = parserDFA;
+        this.parserContextCache = parserContextCache;
+        this.lastUsed = new int[parserDFA.length];
+    }
+
+    /**
+     * @return the cache used by lexers and parsers created the normal way
+     */
+    public static PredictionCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return a new cache without any states
+     */
+    public static PredictionCache empty() {
+        var lexerDFA = new DFA[PyJavaLexer._ATN.getNumberOfDecisions()];
+        for (int i = 0; i < lexerDFA.length; i++) {
+            lexerDFA[i] = new DFA(PyJavaLexer._ATN.getDecisionState(i), i);
+        }
+        var parserDFA = new DFA[PyJavaParser._ATN.getNumberOfDecisions()];
+        for (int i = 0; i < parserDFA.length; i++) {
+            parserDFA[i] = new DFA(PyJavaParser._ATN.getDecisionState(i), i);
+        }
+        return new PredictionCache(lexerDFA, new PredictionContextCache(), parserDFA, new ContextCache());
+    }
+
+    /**
+     * Creates the caches of worker threads according to the given strategy.
+     * This must be called before the workers start parsing, as {@link Strategy#PER_THREAD} copies {@code base}.
+     * @param strategy how to share {@code base}
+     * @param base the cache to share or to seed the workers' caches with
+     * @return a supplier to call once per worker thread
+     */
+    public static Supplier<PredictionCache> forWorkers(Strategy strategy, PredictionCache base) {
+        return switch (strategy) {
+            case SHARED -> () -> base;
+            case PER_THREAD -> {
+                // copying a cache which is in use isn't safe, so the workers copy a frozen snapshot instead
+                var seed = base.copy();
+                yield seed::copy;
+            }
+        };
+    }
+
+    /**
+     * Copies this cache. The copy shares the immutable ATN configurations of the states with this cache.
+     * No other thread may be using this cache while it's being copied.
+     * @return a new cache with the same states as this one
+     */
+    public PredictionCache copy() {
+        var copy = new PredictionCache(copy(lexerDFA), new PredictionContextCache(), copy(parserDFA), new ContextCache());
+        copy.limit = limit;
+        copy.statisticsEnabled = statisticsEnabled;
+        return copy;
+    }
+
+    public PyJavaLexer newLexer(CharStream input) {
+        var lexer = new PyJavaLexer(input);
+        if (this != DEFAULT) {
+            lexer.setInterpreter(new LexerATNSimulator(lexer, PyJavaLexer._ATN, lexerDFA, lexerContextCache));
+        }
+        return lexer;
+    }
+
+    public PyJavaParser newParser(TokenStream input, PyJavaOptions options) {
+        var parser = new PyJavaParser(input, options);
+        if (statisticsEnabled) {
+            parser.setInterpreter(new CountingParserATNSimulator(parser, this));
+        } else if (limit != 0) {
+            parser.setInterpreter(new TrackingParserATNSimulator(parser, this));
+        } else {
+            parser.setInterpreter(new ParserATNSimulator(parser, PyJavaParser._ATN, parserDFA, parserContextCache));
+        }
+        return parser;
+    }
+
+    /**
+     * @return the number of DFA states in this cache
+     */
+    public int stateCount() {
+        return DFAWarmUp.stateCount(lexerDFA) + DFAWarmUp.stateCount(parserDFA);
+    }
+
+    /**
+     * @return the maximum number of parser DFA states kept by {@link #trim()}, or 0 if there is no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit the maximum number of parser DFA states kept by {@link #trim()}, or 0 for no limit
+     */
+    public void setLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * @return whether parsers created from now on count the hits and misses of the cache
+     *         for {@link #getStatistics()}
+     */
+    public boolean isStatisticsEnabled() {
+        return statisticsEnabled;
+    }
+
+    /**
+     * @param statisticsEnabled whether parsers created from now on count the hits and misses of the cache
+     *                          for {@link #getStatistics()}
+     */
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+    /**
+     * Brings the cache back under its {@linkplain #setLimit(int) limit} if it went over it.
+     * Meant to be called between files. Other threads may keep parsing with this cache meanwhile,
+     * and may trim it at the same time, in which case only one of them evicts anything.
+     * @return {@code true} if anything was evicted
+     */
+    public boolean trim() {
+        int limit = this.limit;
+        if (limit == 0) {
+            return false;
+        }
+        synchronized (this) {
+            int epoch = this.epoch++;
+            // counted with the lock held, since another thread may have just trimmed the cache
+            int states = DFAWarmUp.stateCount(parserDFA);
+            boolean tooManyContexts = parserContextCache.size() > (long)limit * CONTEXTS_PER_STATE;
+            if (states <= limit && !tooManyContexts) {
+                return false;
+            }
+            if (states > limit) {
+                var decisions = new Integer[parserDFA.length];
+                var sizes = new int[parserDFA.length];
+                for (int i = 0; i < decisions.length; i++) {
+                    decisions[i] = i;
+                    sizes[i] = parserDFA[i].states.size();
+                }
+                // least recently used first, then largest first
+                Arrays.sort(decisions, Comparator.<Integer>comparingInt(i -> lastUsed[i])
+                                                 .thenComparing(Comparator.<Integer>comparingInt(i -> sizes[i]).reversed()));
+                int target = limit / 4 * LOW_WATER_MARK;
+                for (int i = 0; i < decisions.length && states > target; i++) {
+                    int decision = decisions[i];
+                    if (sizes[decision] == 0) continue;
+                    parserDFA[decision] = new DFA(PyJavaParser._ATN.getDecisionState(decision), decision);
+                    states -= sizes[decision];
+                    evictions++;
+                    evictedStates += sizes[decision];
+                    lastUsed[decision] = epoch;
+                }
+            }
+            // the evicted states' contexts would otherwise stay reachable from the cache
+            parserContextCache.clear();
+            return true;
+        }
+    }
+
+    public synchronized Statistics getStatistics() {
+        return new Statistics(
+            DFAWarmUp.stateCount(parserDFA),
+            parserContextCache.size(),
+            hits.sum(),
+            misses.sum(),
+            evictions,
+            evictedStates
+        );
+    }
+
+    /**
+     * A context cache which can be cleared while parsers are using it.
+     * ANTLR synchronizes on the cache itself when using it from several threads, and so does every method here,
+     * so that the map is never read or written while it's being cleared.
+     */
+    static class ContextCache extends PredictionContextCache {
+        @Override
+        public PredictionContext add(PredictionContext ctx) {
+            synchronized (this) {
+                return super.add(ctx);
+            }
+        }
+
+        @Override
+        public PredictionContext get(PredictionContext ctx) {
+            synchronized (this) {
+                return super.get(ctx);
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (this) {
+                return super.size();
+            }
+        }
+
+        void clear() {
+            synchronized (this) {
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * Keeps the usage information needed by {@link PredictionCache#trim()}.
+     */
+    private static class TrackingParserATNSimulator extends ParserATNSimulator {
+        final PredictionCache cache;
+
+        TrackingParserATNSimulator(PyJavaParser parser, PredictionCache cache) {
+            super(parser, PyJavaParser._ATN, cache.parserDFA, cache.parserContextCache);
+            this.cache = cache;
+        }
+
+        @Override
+        public int adaptivePredict(TokenStream input, int decision, ParserRuleContext outerContext) {
+            cache.lastUsed[decision] = cache.epoch;
+            return super.adaptivePredict(input, decision, outerContext);
+        }
+    }
+
+    /**
+     * Keeps the statistics as well as the usage information.
+     */
+    private static class CountingParserATNSimulator extends TrackingParserATNSimulator {
+        CountingParserATNSimulator(PyJavaParser parser, PredictionCache cache) {
+            super(parser, cache);
+        }
+
+        @Override
+        protected DFAState getExistingTargetState(DFAState previousD, int t) {
+            var target = super.getExistingTargetState(previousD, t);
+            if (target == null) {
+                cache.misses.increment();
+            } else {
+                cache.hits.increment();
+            }
+            return target;
+        }
+    }
+
+    private static DFA[] copy(DFA[] decisionToDFA) {
+        var result = new DFA[decisionToDFA.length];
+        for (int i = 0; i < decisionToDFA.length; i++) {
+            result[i] = copy(decisionToDFA[i]);
+        }
+        return result;
+    }
+
+    private static DFA copy(DFA dfa) {
+        var result = new DFA(dfa.atnStartState, dfa.decision);
+        var copies = new IdentityHashMap<DFAState, DFAState>(dfa.states.size());
+        for (var state : dfa.states.keySet()) {
+            var copy = new DFAState(state.configs);
+            copy.stateNumber = state.stateNumber;
+            copy.isAcceptState = state.isAcceptState;
+            copy.prediction = state.prediction;
+            copy.lexerActionExecutor = state.lexerActionExecutor;
+            copy.requiresFullContext = state.requiresFullContext;
+            copy.predicates = state.predicates;
+            copies.put(state, copy);
+            result.states.put(copy, copy);
+        }
+        for (var entry : copies.entrySet()) {
+            entry.getValue().edges = copyEdges(entry.getKey().edges, copies);
+        }
+        if (dfa.isPrecedenceDfa()) {
+            result.s0.edges = copyEdges(dfa.s0.edges, copies);
+        } else if (dfa.s0 != null) {
+            result.s0 = copies.get(dfa.s0);
+        }
+        return result;
+    }
+
+    private static DFAState[] copyEdges(DFAState[] edges, IdentityHashMap<DFAState, DFAState> copies) {
+        if (edges == null) return null;
+        var result = new DFAState[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            var target = edges[i];
+            if (target == ATNSimulator.ERROR) {
+                result[i] = target;
+            } else if (target != null) {
+                result[i] = copies.get(target);
+            }
+        }
+        return result;
+    }
+}
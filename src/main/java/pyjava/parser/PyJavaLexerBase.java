@@ -3,6 +3,7 @@ package pyjava.parser;
 import java.util.ArrayDeque;
 
 import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Token;
 
@@ -15,6 +16,8 @@ public abstract class PyJavaLexerBase extends Lexer {
 
     private Token lastToken;
 
+    private boolean asciiFastPath = true;
+
     // private int templateDepth = 0;
 
     protected boolean isStartOfFile() {
@@ -25,9 +28,24 @@ public abstract class PyJavaLexerBase extends Lexer {
     //     return templateDepth > 0;
     // }
 
+    /**
+     * Whether ASCII identifiers and keywords are lexed without going through the ATN simulator.
+     * The tokens are the same either way. Defaults to {@code true}.
+     */
+    public void setAsciiFastPath(boolean asciiFastPath) {
+        this.asciiFastPath = asciiFastPath;
+    }
+
+    public boolean isAsciiFastPath() {
+        return asciiFastPath;
+    }
+
     @Override
     public Token nextToken() {
-        Token next = super.nextToken();
+        Token next = asciiFastPath? nextAsciiName() : null;
+        if (next == null) {
+            next = super.nextToken();
+        }
 
         if (next.getChannel() == Token.DEFAULT_CHANNEL) {
             // Keep track of the last token on the default channel.
@@ -37,6 +55,58 @@ public abstract class PyJavaLexerBase extends Lexer {
         return next;
     }
 
+    /**
+     * Lexes a {@code NAME} or keyword made only of ASCII characters, skipping the spaces before it.
+     * Gives up, having consumed at most the spaces, on anything else, including names which
+     * continue with non-ASCII characters and string prefixes such as {@code rb'...'}.
+     * @return the token, or {@code null} if the regular lexer must handle the input
+     */
+    private Token nextAsciiName() {
+        if (_hitEOF) {
+            return null;
+        }
+        var input = _input;
+        var interpreter = getInterpreter();
+        int c = input.LA(1);
+        while (c == ' ' || c == '\t' || c == '\f') {
+            interpreter.consume(input);
+            c = input.LA(1);
+        }
+        if (!isAsciiIdStart(c)) {
+            return null;
+        }
+        int length = 1;
+        while (isAsciiIdContinue(c = input.LA(length + 1))) {
+            length++;
+        }
+        if (c >= 0x80 || length <= 2 && (c == '\'' || c == '"')) {
+            return null;
+        }
+
+        _token = null;
+        _channel = Token.DEFAULT_CHANNEL;
+        _tokenStartCharIndex = input.index();
+        _tokenStartCharPositionInLine = interpreter.getCharPositionInLine();
+        _tokenStartLine = interpreter.getLine();
+        _text = null;
+        _type = Keywords.lookup(input, length);
+        for (int i = 0; i < length; i++) {
+            interpreter.consume(input);
+        }
+        if (input.LA(1) == CharStream.EOF) {
+            _hitEOF = true;
+        }
+        return emit();
+    }
+
+    private static boolean isAsciiIdStart(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_';
+    }
+
+    private static boolean isAsciiIdContinue(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+
     // protected void increaseTemplateDepth() {
     //     templateDepth++;
     // }
@@ -78,6 +148,38 @@ public abstract class PyJavaLexerBase extends Lexer {
 
     protected final ArrayDeque<BracketType> brackets = new ArrayDeque<>();
 
+    /**
+     * The part of the lexer's state which carries over from one token to the next.
+     * @param brackets the open characters of the unclosed brackets, innermost first
+     * @param startOfFile whether no token on the default channel was lexed yet
+     */
+    static record State(String brackets, boolean startOfFile) {
+        static final State INITIAL = new State("", true);
+        static final State NO_BRACKETS = new State("", false);
+    }
+
+    /** Stands in for the last token after {@link #restoreState(State)}. */
+    private static final Token RESTORED_TOKEN = new CommonToken(Token.INVALID_TYPE);
+
+    State saveState() {
+        if (brackets.isEmpty()) {
+            return lastToken == null? State.INITIAL : State.NO_BRACKETS;
+        }
+        var sb = new StringBuilder(brackets.size());
+        for (var bracket : brackets) {
+            sb.append(bracket.openChar);
+        }
+        return new State(sb.toString(), lastToken == null);
+    }
+
+    void restoreState(State state) {
+        brackets.clear();
+        for (int i = 0; i < state.brackets().length(); i++) {
+            brackets.addLast(BracketType.fromOpenChar(state.brackets().charAt(i)));
+        }
+        lastToken = state.startOfFile()? null : RESTORED_TOKEN;
+    }
+
     protected boolean inBrackets() {
         return !brackets.isEmpty();
     }
@@ -3,7 +3,6 @@ package pyjava.parser;
 import static pyjava.parser.PyJavaLexer.*;
 
 import java.util.ArrayDeque;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 
@@ -17,6 +16,7 @@ import pyjava.PyJavaOptions;
 public abstract class PyJavaParserBase extends Parser {
     protected PyJavaOptions options;
     protected boolean inDecorator;
+    private CommentTable commentTable;
 
     public PyJavaParserBase(TokenStream input) {
         super(input);
@@ -91,34 +91,13 @@ public abstract class PyJavaParserBase extends Parser {
     }
 
     /**
-     * Gets the comment token at the current index of the parser's
-     * token stream if there is one, otherwise returns {@code null}.
-     * @return the hidden comment token or {@code null}.
+     * @return the table of the comments in the tokens being parsed
      */
-    protected Token getFirstPrecedingComment() {
-        // Get the token ahead of the current index.
-        int possibleIndexEosToken = this.getCurrentToken().getTokenIndex() - 1;
-        if (possibleIndexEosToken < 0) return null;
-        Token ahead = _input.get(possibleIndexEosToken);
-        
-        Token lastCommentToken = null;
-        loop: while (ahead.getChannel() == Lexer.HIDDEN) {
-            switch (ahead.getType()) {
-                case BLOCK_COMMENT, LINE_COMMENT -> {
-                    lastCommentToken = ahead;
-                }
-                case NEWLINE -> {
-                    lastCommentToken = null;
-                }
-                default -> {
-                    break loop;
-                }
-            }
-            if (--possibleIndexEosToken < 0) break;
-            ahead = _input.get(possibleIndexEosToken);
+    protected CommentTable getCommentTable() {
+        if (commentTable == null || commentTable.getTokenStream() != _input) {
+            commentTable = new CommentTable(_input);
         }
-
-        return lastCommentToken;
+        return commentTable;
     }
 
     /**
@@ -127,37 +106,7 @@ public abstract class PyJavaParserBase extends Parser {
      * @return a list of the comment tokens or an empty list if there were none.
      */
     protected List<Token> getPrecedingLineComments() {
-        // Get the token ahead of the current index.
-        int possibleIndexEosToken = this.getCurrentToken().getTokenIndex() - 1;
-        if (possibleIndexEosToken < 0) return List.of();
-        Token ahead = _input.get(possibleIndexEosToken);
-        
-        var commentTokens = new LinkedList<Token>();
-        boolean addedCommentLast = false;
-        loop: while (ahead.getChannel() == Lexer.HIDDEN) {
-            switch (ahead.getType()) {
-                case BLOCK_COMMENT, LINE_COMMENT -> {
-                    commentTokens.addFirst(ahead);
-                    addedCommentLast = true;
-                }
-                case NEWLINE -> {
-                    addedCommentLast = false;
-                }
-                default -> {
-                    break loop;
-                }
-            }
-            if (--possibleIndexEosToken < 0) {
-                addedCommentLast = false;
-                break;
-            }
-            ahead = _input.get(possibleIndexEosToken);
-        }
-        if (addedCommentLast) {
-            commentTokens.removeFirst();
-        }
-
-        return commentTokens;
+        return getCommentTable().commentsBefore(getCurrentToken());
     }
 
     /**
@@ -0,0 +1,457 @@
+package pyjava.parser;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * A map of where the brackets, semicolons and newlines of a source file are, leaving out the ones inside
+ * string literals and comments, built from the file's UTF-8 bytes without lexing it.
+ * <p>
+ * The characters which matter here are all ASCII, and the bytes of a UTF-8 encoded non-ASCII character never are,
+ * so the file doesn't need to be decoded. The input is first classified 8 bytes at a time, reading them as a
+ * {@code long} and comparing all of them to a character at once with a few arithmetic operations, into bitmaps of
+ * every bracket, semicolon and newline, and of the quotes and {@code #} which may start a string literal or comment.
+ * Those are much rarer, so they are then gone through one by one, clearing the bits of what each string literal or
+ * comment covers. The ends of string literals and comments are searched for 8 bytes at a time as well.
+ * <p>
+ * The result is one bitmap per {@linkplain Kind kind} of character, with a bit per byte of the input.
+ * String literals and comments end where {@link PyJavaLexer} ends them, including when they aren't terminated,
+ * so the bitmaps agree with the tokens it produces.
+ */
+public final class StructuralIndex {
+    public static enum Kind {
+        /** {@code (}, {@code [} and <code>{</code> */
+        OPEN_BRACKET,
+        /** {@code )}, {@code ]} and <code>}</code> */
+        CLOSE_BRACKET,
+        /** {@code ;} */
+        SEMICOLON,
+        /** {@code \n} */
+        NEWLINE,
+        /** {@code \n}, including the ones inside string literals and comments */
+        LINE_BREAK;
+    }
+
+    /**
+     * The first bracket which doesn't match, as found by {@link StructuralIndex#findBracketError()}.
+     * @param offset the offset of the bracket in the input
+     * @param line the line of the bracket, starting at 1
+     * @param bracket the bracket
+     * @param expected the bracket which should have been there instead, or {@code 0} if it is an opening bracket which is never closed
+     *                 or a closing bracket which was never opened
+     */
+    public static record BracketError(int offset, int line, char bracket, char expected) {
+        @Override
+        public String toString() {
+            if (expected != 0) {
+                return "line "+line+": expected '"+expected+"' but found '"+bracket+"'";
+            } else if (bracket == '(' || bracket == '[' || bracket == '{') {
+                return "line "+line+": '"+bracket+"' is never closed";
+            } else {
+                return "line "+line+": '"+bracket+"' was never opened";
+            }
+        }
+    }
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private static final ByteSet SINGLE_QUOTED = new ByteSet("'\\\r\n\f");
+    private static final ByteSet DOUBLE_QUOTED = new ByteSet("\"\\\r\n\f");
+    private static final ByteSet TRIPLE_SINGLE_QUOTED = new ByteSet("'\\");
+    private static final ByteSet TRIPLE_DOUBLE_QUOTED = new ByteSet("\"\\");
+    private static final ByteSet LINE_COMMENT_END = new ByteSet("\r\n\f");
+    private static final ByteSet HASH = new ByteSet("#");
+
+    private final byte[] input;
+    private final int length;
+    private final boolean wordAtATime;
+    private final long[][] bitmaps = new long[Kind.values().length][];
+
+    private StructuralIndex(byte[] input, int length, boolean wordAtATime) {
+        this.input = input;
+        this.length = length;
+        this.wordAtATime = wordAtATime;
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = new long[(length + 63) >>> 6];
+        }
+    }
+
+    /**
+     * Indexes the given UTF-8 encoded source code.
+     */
+    public static StructuralIndex of(byte[] input) {
+        return of(input, input.length, true);
+    }
+
+    /**
+     * Indexes the first {@code length} bytes of the given UTF-8 encoded source code.
+     * @param wordAtATime whether to read the input 8 bytes at a time, which only exists to measure how much it helps;
+     *                    the index is the same either way
+     */
+    public static StructuralIndex of(byte[] input, int length, boolean wordAtATime) {
+        if (length < 0 || length > input.length) {
+            throw new IndexOutOfBoundsException("length "+length+" out of range 0.."+input.length);
+        }
+        var index = new StructuralIndex(input, length, wordAtATime);
+        index.scan();
+        return index;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean is(Kind kind, int offset) {
+        return (bitmaps[kind.ordinal()][offset >>> 6] & (1L << offset)) != 0;
+    }
+
+    /**
+     * @return the offset of the first character of the given kind at or after {@code from}, or -1 if there is none
+     */
+    public int next(Kind kind, int from) {
+        if (from >= length) {
+            return -1;
+        }
+        return nextBit(bitmaps[kind.ordinal()], from);
+    }
+
+    /**
+     * @return the number of characters of the given kind before {@code offset}
+     */
+    public int count(Kind kind, int offset) {
+        var bitmap = bitmaps[kind.ordinal()];
+        int count = 0;
+        int words = offset >>> 6;
+        for (int i = 0; i < words; i++) {
+            count += Long.bitCount(bitmap[i]);
+        }
+        if ((offset & 63) != 0) {
+            count += Long.bitCount(bitmap[words] & ((1L << offset) - 1));
+        }
+        return count;
+    }
+
+    /**
+     * @return the line of the given offset, starting at 1
+     */
+    public int lineOf(int offset) {
+        return count(Kind.LINE_BREAK, offset) + 1;
+    }
+
+    /**
+     * Finds the first bracket which doesn't match, which is usually close to the cause of a syntax error
+     * when there is one, without having to parse the file.
+     * @return the first bracket which doesn't match, or {@code null} if they all do
+     */
+    public BracketError findBracketError() {
+        var open = new ArrayDeque<Integer>();
+        var opens = bitmaps[Kind.OPEN_BRACKET.ordinal()];
+        var closes = bitmaps[Kind.CLOSE_BRACKET.ordinal()];
+        for (int i = 0; i < opens.length; i++) {
+            long word = opens[i] | closes[i];
+            while (word != 0) {
+                int offset = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                char c = (char)input[offset];
+                if ((opens[i] & (1L << offset)) != 0) {
+                    open.push(offset);
+                } else if (open.isEmpty()) {
+                    return new BracketError(offset, lineOf(offset), c, (char)0);
+                } else {
+                    char expected = closing((char)input[open.pop()]);
+                    if (c != expected) {
+                        return new BracketError(offset, lineOf(offset), c, expected);
+                    }
+                }
+            }
+        }
+        if (!open.isEmpty()) {
+            int offset = open.getLast();
+            return new BracketError(offset, lineOf(offset), (char)input[offset], (char)0);
+        }
+        return null;
+    }
+
+    private static char closing(char open) {
+        return switch (open) {
+            case '(' -> ')';
+            case '[' -> ']';
+            default -> '}';
+        };
+    }
+
+    private void set(Kind kind, int offset) {
+        bitmaps[kind.ordinal()][offset >>> 6] |= 1L << offset;
+    }
+
+    private void scan() {
+        // first find every character of interest, including those in string literals and comments
+        var specials = new long[bitmaps[0].length];
+        int i = 0;
+        if (wordAtATime) {
+            for (; i + 64 <= length; i += 64) {
+                classifyBlock(i, specials);
+            }
+        }
+        for (; i < length; i++) {
+            classifyByte(i, specials);
+        }
+
+        // then take the ones in string literals and comments back out, the starts of which are few
+        var opens = bitmaps[Kind.OPEN_BRACKET.ordinal()];
+        var closes = bitmaps[Kind.CLOSE_BRACKET.ordinal()];
+        var semicolons = bitmaps[Kind.SEMICOLON.ordinal()];
+        var newlines = bitmaps[Kind.NEWLINE.ordinal()];
+        for (int start = nextBit(specials, 0); start != -1; ) {
+            byte b = input[start];
+            int end = b == '#'? skipComment(start) : skipString(start, b);
+            if (end > start + 1) {
+                clear(opens, start + 1, end);
+                clear(closes, start + 1, end);
+                clear(semicolons, start + 1, end);
+                clear(newlines, start + 1, end);
+                clear(specials, start + 1, end);
+            }
+            start = nextBit(specials, start + 1);
+        }
+    }
+
+    /**
+     * Classifies the 64 bytes at {@code offset}, 8 at a time.
+     */
+    private void classifyBlock(int offset, long[] specials) {
+        long opens = 0, closes = 0, semicolons = 0, newlines = 0, starts = 0;
+        for (int shift = 0; shift < 64; shift += 8) {
+            long word = (long)LONGS.get(input, offset + shift);
+            // '[' and '{', as well as ']' and '}', only differ by the bit 0x20
+            long folded = word & 0xDFDFDFDFDFDFDFDFL;
+            opens |= movemask(equal(word, '(') | equal(folded, '[')) << shift;
+            closes |= movemask(equal(word, ')') | equal(folded, ']')) << shift;
+            semicolons |= movemask(equal(word, ';')) << shift;
+            newlines |= movemask(equal(word, '\n')) << shift;
+            starts |= movemask(equal(word, '\'') | equal(word, '"') | equal(word, '#')) << shift;
+        }
+        int i = offset >>> 6;
+        bitmaps[Kind.OPEN_BRACKET.ordinal()][i] = opens;
+        bitmaps[Kind.CLOSE_BRACKET.ordinal()][i] = closes;
+        bitmaps[Kind.SEMICOLON.ordinal()][i] = semicolons;
+        bitmaps[Kind.NEWLINE.ordinal()][i] = newlines;
+        bitmaps[Kind.LINE_BREAK.ordinal()][i] = newlines;
+        specials[i] = starts;
+    }
+
+    /**
+     * @return a word with the bit 0x80 set in each byte of {@code word} which is {@code c}, and no other bits
+     */
+    private static long equal(long word, char c) {
+        long x = word ^ (c * ONES);
+        return ~(((x & ~HIGHS) + ~HIGHS) | x) & HIGHS;
+    }
+
+    /**
+     * @return the high bits of the bytes of {@code word} gathered into the low 8 bits, the first byte's lowest
+     */
+    private static long movemask(long word) {
+        return ((word >>> 7) * 0x0102040810204080L) >>> 56;
+    }
+
+    private void classifyByte(int offset, long[] specials) {
+        long bit = 1L << offset;
+        int i = offset >>> 6;
+        switch (input[offset]) {
+            case '(', '[', '{' -> bitmaps[Kind.OPEN_BRACKET.ordinal()][i] |= bit;
+            case ')', ']', '}' -> bitmaps[Kind.CLOSE_BRACKET.ordinal()][i] |= bit;
+            case ';' -> bitmaps[Kind.SEMICOLON.ordinal()][i] |= bit;
+            case '\n' -> {
+                bitmaps[Kind.NEWLINE.ordinal()][i] |= bit;
+                bitmaps[Kind.LINE_BREAK.ordinal()][i] |= bit;
+            }
+            case '\'', '"', '#' -> specials[i] |= bit;
+        }
+    }
+
+    private static int nextBit(long[] bitmap, int from) {
+        int i = from >>> 6;
+        if (i >= bitmap.length) {
+            return -1;
+        }
+        long word = bitmap[i] & (-1L << from);
+        while (word == 0) {
+            if (++i == bitmap.length) {
+                return -1;
+            }
+            word = bitmap[i];
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Clears the bits from {@code from} to {@code to}, exclusive.
+     */
+    private static void clear(long[] bitmap, int from, int to) {
+        int first = from >>> 6, last = (to - 1) >>> 6;
+        if (first == last) {
+            bitmap[first] &= ~((-1L << from) & (-1L >>> -to));
+        } else {
+            bitmap[first] &= ~(-1L << from);
+            for (int i = first + 1; i < last; i++) {
+                bitmap[i] = 0;
+            }
+            bitmap[last] &= ~(-1L >>> -to);
+        }
+    }
+
+    /**
+     * @return the offset after the comment starting at {@code start}
+     */
+    private int skipComment(int start) {
+        if (start + 1 < length && input[start + 1] == '{') {
+            for (int i = find(HASH, start + 2); i < length; i = find(HASH, i + 1)) {
+                if (i + 1 < length && input[i + 1] == '}') {
+                    return i + 2;
+                }
+            }
+            // an unterminated block comment is a line comment of just '#'
+            return start + 1;
+        }
+        return find(LINE_COMMENT_END, start + 1);
+    }
+
+    /**
+     * @return the offset after the string literal starting at {@code start}
+     */
+    private int skipString(int start, byte quote) {
+        if (start + 2 < length && input[start + 1] == quote && input[start + 2] == quote) {
+            var ends = quote == '\''? TRIPLE_SINGLE_QUOTED : TRIPLE_DOUBLE_QUOTED;
+            for (int i = find(ends, start + 3); i < length; i = find(ends, i)) {
+                if (input[i] == '\\') {
+                    i += 2;
+                } else if (i + 2 < length && input[i + 1] == quote && input[i + 2] == quote) {
+                    return i + 3;
+                } else {
+                    i++;
+                }
+            }
+            // an unterminated long string starts with an empty short one
+            return start + 2;
+        }
+        if (isBytesPrefix(start)) {
+            int end = skipShortBytes(start, quote);
+            if (end != -1) {
+                return end;
+            }
+        }
+        var ends = quote == '\''? SINGLE_QUOTED : DOUBLE_QUOTED;
+        for (int i = find(ends, start + 1); i < length; i = find(ends, i)) {
+            byte b = input[i];
+            if (b == quote) {
+                return i + 1;
+            } else if (b == '\\') {
+                if (i + 1 >= length) {
+                    break;
+                }
+                i += input[i + 1] == '\r' && i + 2 < length && input[i + 2] == '\n'? 3 : 2;
+            } else {
+                // a line break ends an unterminated string, whose quote is a token of its own
+                break;
+            }
+        }
+        return start + 1;
+    }
+
+    /**
+     * @return whether the quote at {@code start} is the start of a bytes literal rather than a string literal
+     */
+    private boolean isBytesPrefix(int start) {
+        boolean b = false, r = false;
+        int i = start - 1;
+        for (; i >= 0 && start - i <= 2; i--) {
+            switch (input[i]) {
+                case 'b', 'B' -> {
+                    if (b) return false;
+                    b = true;
+                }
+                case 'r', 'R' -> {
+                    if (r) return false;
+                    r = true;
+                }
+                default -> {
+                    return b && !isNamePart(input[i]);
+                }
+            }
+        }
+        return b && (i < 0 || !isNamePart(input[i]));
+    }
+
+    private static boolean isNamePart(byte b) {
+        return b < 0 || b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '_';
+    }
+
+    /**
+     * Short bytes literals, unlike short strings, can contain form feeds, but only ASCII characters.
+     * @return the offset after the short bytes literal starting at {@code start}, or -1 if it isn't one
+     */
+    private int skipShortBytes(int start, byte quote) {
+        for (int i = start + 1; i < length; i++) {
+            byte b = input[i];
+            if (b == quote) {
+                return i + 1;
+            } else if (b == '\\') {
+                if (++i >= length || input[i] < 0) {
+                    return -1;
+                }
+            } else if (b == '\r' || b == '\n' || b < 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of the first byte in the given set at or after {@code from}, or {@link #length} if there is none
+     */
+    private int find(ByteSet set, int from) {
+        int i = from;
+        if (wordAtATime) {
+            var patterns = set.patterns;
+            for (; i + 8 <= length; i += 8) {
+                long word = (long)LONGS.get(input, i);
+                long found = 0;
+                for (long pattern : patterns) {
+                    long x = word ^ pattern;
+                    // the high bit of each byte of x which is zero, and maybe of some bytes after it
+                    found |= (x - ONES) & ~x & HIGHS;
+                }
+                if (found != 0) {
+                    return i + (Long.numberOfTrailingZeros(found) >>> 3);
+                }
+            }
+        }
+        var members = set.members;
+        for (; i < length; i++) {
+            if (members[input[i] & 0xFF]) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static final class ByteSet {
+        /** Each byte of the set repeated 8 times. */
+        final long[] patterns;
+        final boolean[] members = new boolean[256];
+
+        ByteSet(String chars) {
+            patterns = new long[chars.length()];
+            for (int i = 0; i < chars.length(); i++) {
+                char c = chars.charAt(i);
+                patterns[i] = c * ONES;
+                members[c] = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package pyjava.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PyJavaParser.FileContext;
+import pyjava.tree.LazyAppendable.AppendFunction;
+
+/**
+ * Transpiles the chunks of a file {@link pyjava.parser.ChunkedParser ChunkedParser} gives at the same time,
+ * with the same output as transpiling the whole file at once.
+ * <p>
+ * The synthetic lambda and class names a chunk uses are numbered from where the previous chunk stopped, and
+ * {@code functools} is only imported, and the decorator of cached methods only defined, by the first chunk which uses
+ * it, which isn't known until the previous chunks are transpiled. Every chunk is first transpiled as if it were
+ * the first, which tells how many names each chunk uses and whether it uses {@code functools} and the decorator,
+ * and then the chunks which use some names and don't come first, or use {@code functools} or the decorator after
+ * a chunk which does, are transpiled again with the right numbers.
+ * The {@link Constants} of the file are found before any chunk is transpiled, since a chunk may use
+ * the constants another one declares.
+ */
+public class ChunkedTranspiler {
+    private final ForkJoinPool pool;
+    private CompactTokenStream tokens;
+    private Map<String, Object> defines = Map.of();
+    private Transpiler[] transpilers = new Transpiler[0];
+
+    public ChunkedTranspiler(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param tokens the tokens of the whole file the chunks were parsed from, see {@link Transpiler#setTokens(CompactTokenStream)}
+     */
+    public void setTokens(CompactTokenStream tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * @param defines the defines to evaluate {@code const if} conditions with, see {@link Transpiler#setDefines(Map)}
+     */
+    public void setDefines(Map<String, Object> defines) {
+        this.defines = defines;
+    }
+
+    public void transpile(List<FileContext> chunks) {
+        var constants = Constants.of(chunks, Defines.of(defines));
+        var transpilers = new Transpiler[chunks.size()];
+        run(chunks.size(), i -> transpilers[i] = transpile(chunks.get(i), i == chunks.size() - 1, constants, 0, 0, false, false));
+
+        var lambdaStarts = new int[chunks.size()];
+        var classStarts = new int[chunks.size()];
+        var functoolsImported = new boolean[chunks.size()];
+        var cachedMethodDefined = new boolean[chunks.size()];
+        var retranspile = new ArrayList<Integer>();
+        int lambdas = 0, classes = 0;
+        boolean functools = false, cachedMethod = false;
+        for (int i = 0; i < transpilers.length; i++) {
+            int lambdaCount = transpilers[i].getSyntheticLambdaCount();
+            int classCount = transpilers[i].getSyntheticClassCount();
+            boolean usesFunctools = transpilers[i].usesFunctools();
+            boolean usesCachedMethod = transpilers[i].usesCachedMethod();
+            if ((lambdaCount != 0 || classCount != 0) && (lambdas != 0 || classes != 0) || usesFunctools && functools
+                    || usesCachedMethod && cachedMethod) {
+                retranspile.add(i);
+            }
+            lambdaStarts[i] = lambdas;
+            classStarts[i] = classes;
+            functoolsImported[i] = functools;
+            cachedMethodDefined[i] = cachedMethod;
+            lambdas += lambdaCount;
+            classes += classCount;
+            functools |= usesFunctools;
+            cachedMethod |= usesCachedMethod;
+        }
+        run(retranspile.size(), j -> {
+            int i = retranspile.get(j);
+            transpilers[i] = transpile(chunks.get(i), i == chunks.size() - 1, constants, lambdaStarts[i], classStarts[i],
+                                       functoolsImported[i], cachedMethodDefined[i]);
+        });
+        this.transpilers = transpilers;
+    }
+
+    private Transpiler transpile(FileContext chunk, boolean last, Constants constants, int lambdaStart, int classStart,
+                                 boolean functoolsImported, boolean cachedMethodDefined) {
+        var transpiler = new Transpiler(lambdaStart, classStart, functoolsImported, cachedMethodDefined);
+        transpiler.setTokens(tokens);
+        transpiler.setDefines(defines);
+        transpiler.setConstants(constants);
+        for (var statement : chunk.statement()) {
+            statement.accept(transpiler);
+        }
+        // the comments at the end of a chunk are the ones before the first statement of the next
+        if (last) {
+            transpiler.handleTrailingComments(chunk);
+        }
+        return transpiler;
+    }
+
+    private void run(int count, IntConsumer action) {
+        var tasks = new ArrayList<ForkJoinTask<?>>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            tasks.add(ForkJoinTask.adapt(() -> action.accept(index)));
+        }
+        if (ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+    }
+
+    public <T extends Throwable> void appendTo(AppendFunction<? extends T> appendFunc) throws T {
+        for (var transpiler : transpilers) {
+            transpiler.appendTo(appendFunc);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package pyjava.tree;
+
+import static pyjava.parser.PyJavaLexer.BLOCK_COMMENT;
+import static pyjava.parser.PyJavaLexer.LINE_COMMENT;
+
+import java.util.Arrays;
+
+/**
+ * Finds the lines of text of a comment, which {@link Transpiler} outputs after a {@code #}.
+ * <p>
+ * The text of a line comment is what follows the {@code #}, and a block comment's is the text between
+ * its {@code #{} and {@code #}} if it is on one line. Otherwise, its first and last lines are only kept
+ * if they have text on them, and the other lines have the {@code #} they all start with, if any,
+ * and the indentation they have in common removed.
+ * <p>
+ * The lines are found in a single pass over the comment and kept as the indexes of where they start and end
+ * in its text, so that they can be output as parts of the text instead of copies of it.
+ * A {@code CommentText} is reused for every comment.
+ */
+final class CommentText {
+    private CharSequence text;
+    /** The start and end of each line in {@link #text}, one after the other. */
+    private int[] bounds = new int[16];
+    private int first, count;
+
+    /**
+     * Finds the lines of the comment between {@code start} and {@code end} in {@code text}.
+     * @param type the comment's token type
+     * @return this
+     */
+    CommentText of(CharSequence text, int start, int end, int type) {
+        this.text = text;
+        first = count = 0;
+        switch (type) {
+            case BLOCK_COMMENT -> findBlockLines(start, end);
+            case LINE_COMMENT -> add(skipWhitespace(start + 1, end), end);
+            default -> throw new IllegalArgumentException();
+        }
+        return this;
+    }
+
+    CharSequence text() {
+        return text;
+    }
+
+    int size() {
+        return count - first;
+    }
+
+    int start(int line) {
+        return bounds[2*(first + line)];
+    }
+
+    int end(int line) {
+        return bounds[2*(first + line) + 1];
+    }
+
+    String get(int line) {
+        return text.subSequence(start(line), end(line)).toString();
+    }
+
+    private void findBlockLines(int start, int end) {
+        if (isSingleLine(start + 2, end - 2)) {
+            int from = skipWhitespace(start + 2, end - 2);
+            add(from, skipWhitespaceBack(from, end - 2));
+            return;
+        }
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (isLineBreak(c)) {
+                add(lineStart, i);
+                if (c == '\r' && i + 1 < end && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+        }
+        add(lineStart, end);
+
+        int last = count - 1;
+        boolean hasEmptyFirstLine = isSpaces(start(0) + 2, end(0));
+        boolean hasEmptyLastLine  = isSpaces(start(last), end - 2);
+        if (hasEmptyLastLine) {
+            count--;
+        } else {
+            bounds[2*last + 1] = skipWhitespaceBack(start(last), end - 2);
+        }
+        if (count > 1) {
+            removeLeadingHash();
+            removeIndent();
+        }
+        if (hasEmptyFirstLine) {
+            first = 1;
+        } else {
+            bounds[0] = skipWhitespace(start(0) + 2, end(0));
+        }
+    }
+
+    /**
+     * Removes the spaces and {@code #} which the lines after the first one start with, if they are the same
+     * on every line that starts with a {@code #}.
+     */
+    private void removeLeadingHash() {
+        int hashStart = start(1);
+        int hash = hashLength(1);
+        for (int i = 2; i < count && hash >= 0; i++) {
+            int length = hashLength(i);
+            if (length >= 0 && !(length == hash && regionMatches(hashStart, start(i), hash))) {
+                hash = -1;
+            }
+        }
+        if (hash >= 0) {
+            for (int i = 1; i < count; i++) {
+                bounds[2*i] = Math.min(start(i) + hash, end(i));
+            }
+        }
+    }
+
+    /**
+     * Removes the indentation which the lines after the first one that aren't blank have in common,
+     * and their trailing whitespace, like {@link String#stripIndent()}.
+     */
+    private void removeIndent() {
+        int indent = Integer.MAX_VALUE;
+        for (int i = 1; i < count; i++) {
+            int from = skipWhitespace(start(i), end(i));
+            if (from != end(i)) {
+                indent = Math.min(indent, from - start(i));
+            }
+        }
+        for (int i = 1; i < count; i++) {
+            int from = start(i), to = end(i);
+            if (skipWhitespace(from, to) == to) {
+                bounds[2*i + 1] = from;
+            } else {
+                bounds[2*i] = from + indent;
+                bounds[2*i + 1] = skipWhitespaceBack(from, to);
+            }
+        }
+    }
+
+    /**
+     * @return whether the text between the {@code #{} and {@code #}} has no line breaks,
+     *         and no {@code #} right before a line break or the {@code #}}
+     */
+    private boolean isSingleLine(int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '#') {
+                if (++i == to) {
+                    return false;
+                }
+                c = text.charAt(i);
+                if (c == '}') {
+                    return false;
+                }
+            }
+            if (c == '\r' || c == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the length of the spaces, tabs and {@code #} the line starts with, or {@code -1} if it doesn't
+     */
+    private int hashLength(int line) {
+        int from = start(line), to = end(line);
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '#') {
+                return i + 1 - from;
+            }
+            if (c != ' ' && c != '\t') {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(int from1, int from2, int length) {
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(from1 + i) != text.charAt(from2 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLineBreak(char c) {
+        return switch (c) {
+            case '\n', '\u000B', '\f', '\r', '\u0085', '\u2028', '\u2029' -> true;
+            default -> false;
+        };
+    }
+
+    private boolean isSpaces(int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to && Character.isWhitespace(text.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private int skipWhitespaceBack(int from, int to) {
+        while (to > from && Character.isWhitespace(text.charAt(to - 1))) {
+            to--;
+        }
+        return to;
+    }
+
+    private void add(int start, int end) {
+        if (2*count == bounds.length) {
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        }
+        bounds[2*count] = start;
+        bounds[2*count + 1] = end;
+        count++;
+    }
+}
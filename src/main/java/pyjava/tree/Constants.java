@@ -0,0 +1,324 @@
+package pyjava.tree;
+
+import static pyjava.parser.PyJavaLexer.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import pyjava.parser.PyJavaParser.CallPrimaryContext;
+import pyjava.parser.PyJavaParser.ConstIfStatementContext;
+import pyjava.parser.PyJavaParser.ConstStatementContext;
+import pyjava.parser.PyJavaParser.FileContext;
+import pyjava.parser.PyJavaParser.FunctionDefContext;
+import pyjava.parser.PyJavaParser.NamedAtomContext;
+import pyjava.parser.PyJavaParser.StatementContext;
+
+/**
+ * The constants a module declares with {@code const} statements at its top level, whose uses {@link Transpiler}
+ * replaces with their values. The statements still assign the constants, for the modules which import them.
+ * The statements of the branches which the {@code const if} statements at the top level take with the defines
+ * are at the top level too, and the other branches are left out, so a constant can be declared differently
+ * in each branch.
+ * <p>
+ * The value of a constant must be a literal expression, made of numbers, strings which aren't f-strings,
+ * {@code True}, {@code False}, {@code None}, {@code ...}, the constants declared before it, and operators, groups
+ * and tuples of them. A constant can't be bound anywhere else in the module, such as by an assignment, an import,
+ * or a function which declares it {@code global}. A function, class, lambda or comprehension which binds the name
+ * itself has a variable of its own, whose uses are left alone, and so are the uses of a name imported from another
+ * module, which is transpiled on its own.
+ * <p>
+ * The functions a module declares with {@code inline def} at its top level are kept with the constants, since
+ * their names can't be rebound either, and their calls are replaced by their bodies, see {@link InlineFunction}.
+ * The temporaries the bodies assign their arguments to are named with a prefix which no name in the module starts
+ * with followed by a digit, so that they can't be confused with a variable of the program.
+ * <p>
+ * The output of a statement depends on the constants of the whole module, so the transpilers which transpile
+ * the statements of a module separately give all of them the same constants.
+ */
+final class Constants {
+    private static final String TEMPORARY_PREFIX = "__inline";
+
+    static final Constants EMPTY = new Constants(new NameTable(), List.of(), List.of(), TEMPORARY_PREFIX);
+
+    /** The names of the constants and inline functions, whose ids are the indexes of their declarations. */
+    private final NameTable names;
+    private final List<StatementContext> declarations;
+    /** The inline function of each declaration, or {@code null} for a constant. */
+    private final List<InlineFunction> inlineFunctions;
+    private final String temporaryPrefix;
+
+    private Constants(NameTable names, List<StatementContext> declarations, List<InlineFunction> inlineFunctions,
+                      String temporaryPrefix) {
+        this.names = names;
+        this.declarations = declarations;
+        this.inlineFunctions = inlineFunctions;
+        this.temporaryPrefix = temporaryPrefix;
+    }
+
+    /**
+     * Finds the constants and inline functions of a module.
+     * @param files the module, or the chunks it was parsed in
+     * @param defines the defines to evaluate the conditions of {@code const if} statements with
+     * @throws IllegalArgumentException if a constant or inline function is declared twice or is rebound,
+     *         a constant doesn't have a literal value, an inline function can't be inlined, or the condition
+     *         of a {@code const if} statement can't be evaluated
+     */
+    static Constants of(List<FileContext> files, Defines defines) {
+        var statements = new ArrayList<StatementContext>();
+        for (var file : files) {
+            addTopLevelStatements(file.statement(), defines, statements);
+        }
+        var names = new NameTable();
+        var declarations = new ArrayList<StatementContext>();
+        var inlineFunctions = new ArrayList<InlineFunction>();
+        for (var statement : statements) {
+            if (statement instanceof ConstStatementContext declaration) {
+                String name = declaration.identifier().getText();
+                if (names.find(name) != -1) {
+                    throw error(declaration, "const "+name+" is already declared");
+                }
+                if (!isLiteral(declaration.expression(), names)) {
+                    throw error(declaration, "the value of const "+name+" is not a literal expression");
+                }
+                names.intern(name);
+                declarations.add(declaration);
+                inlineFunctions.add(null);
+            } else if (statement instanceof FunctionDefContext declaration && declaration.funcHeader().INLINE() != null) {
+                String name = declaration.funcHeader().identifier().getText();
+                if (names.find(name) != -1) {
+                    throw error(declaration, "inline def "+name+" is already declared");
+                }
+                inlineFunctions.add(InlineFunction.of(declaration));
+                names.intern(name);
+                declarations.add(declaration);
+            }
+        }
+        if (declarations.isEmpty()) {
+            return EMPTY;
+        }
+
+        var constants = new Constants(names, declarations, inlineFunctions, TEMPORARY_PREFIX);
+        var scopeNames = new NameTable();
+        for (var statement : statements) {
+            constants.checkNotRebound(statement, scopeNames, defines);
+        }
+        if (inlineFunctions.stream().anyMatch(function -> function != null)) {
+            String temporaryPrefix = TEMPORARY_PREFIX;
+            while (startsAnyName(scopeNames, temporaryPrefix)) {
+                temporaryPrefix += '_';
+            }
+            return new Constants(names, declarations, inlineFunctions, temporaryPrefix);
+        }
+        return constants;
+    }
+
+    /**
+     * Checks the top-level statements added to a module whose declarations are all still there, and which had
+     * these constants, without looking at the other statements again.
+     * @return whether the constants are still the module's, which they aren't if the temporaries would have to
+     *         be named differently, or some statements were removed and the temporaries were named differently
+     *         because of names which may have been in them
+     * @throws IllegalArgumentException if one of the statements rebinds a constant or an inline function
+     */
+    boolean admit(List<StatementContext> added, boolean removed, Defines defines) {
+        if (declarations.isEmpty()) {
+            return true;
+        }
+        var scopeNames = new NameTable();
+        for (var statement : added) {
+            checkNotRebound(statement, scopeNames, defines);
+        }
+        if (inlineFunctions.stream().allMatch(function -> function == null)) {
+            return true;
+        }
+        if (removed && !temporaryPrefix.equals(TEMPORARY_PREFIX)) {
+            return false;
+        }
+        return !startsAnyName(scopeNames, temporaryPrefix);
+    }
+
+    /**
+     * @return whether the statement is one which {@link #of(List, Defines)} may find declarations in
+     */
+    static boolean mayDeclare(StatementContext statement) {
+        return statement instanceof ConstStatementContext || statement instanceof ConstIfStatementContext
+                || statement instanceof FunctionDefContext functionDef && functionDef.funcHeader().INLINE() != null;
+    }
+
+    /**
+     * Interns the names of the statement in {@code scopeNames}.
+     * @throws IllegalArgumentException if the statement binds a constant or an inline function it doesn't declare
+     */
+    private void checkNotRebound(StatementContext statement, NameTable scopeNames, Defines defines) {
+        var module = Scopes.of(statement, scopeNames, defines).getModule();
+        for (int id = 0; id < declarations.size(); id++) {
+            int name = scopeNames.find(names.get(id));
+            if (name != -1 && (module.getFlags(name) & Scope.BOUND) != 0 && statement != declarations.get(id)) {
+                throw error(statement, (inlineFunctions.get(id) == null? "const " : "inline def ")
+                                       +names.get(id)+" is rebound by this statement");
+            }
+        }
+    }
+
+    /**
+     * Adds the statements which are output at the top level of the module, which are the statements of the branches
+     * the {@code const if} statements there take instead of the {@code const if} statements themselves.
+     */
+    private static void addTopLevelStatements(List<StatementContext> statements, Defines defines,
+                                              List<StatementContext> topLevel) {
+        for (var statement : statements) {
+            if (statement instanceof ConstIfStatementContext constIf) {
+                var chosen = defines.choose(constIf);
+                if (chosen != null) {
+                    addTopLevelStatements(chosen.statement(), defines, topLevel);
+                }
+            } else {
+                topLevel.add(statement);
+            }
+        }
+    }
+
+    /**
+     * @return whether a name starts with the prefix followed by a digit
+     */
+    private static boolean startsAnyName(NameTable names, String prefix) {
+        for (int id = 0; id < names.size(); id++) {
+            String name = names.get(id);
+            if (name.length() > prefix.length() && name.startsWith(prefix) && Character.isDigit(name.charAt(prefix.length()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return declarations.isEmpty();
+    }
+
+    /**
+     * @return the declaration of the constant, or {@code null} if there isn't one with that name
+     */
+    ConstStatementContext get(String name) {
+        int id = names.find(name);
+        return id == -1 || inlineFunctions.get(id) != null? null : (ConstStatementContext) declarations.get(id);
+    }
+
+    /**
+     * @return the inline function, or {@code null} if there isn't one with that name
+     */
+    InlineFunction getInlineFunction(String name) {
+        int id = names.find(name);
+        return id == -1? null : inlineFunctions.get(id);
+    }
+
+    /**
+     * @return the name of the temporary an argument of an inlined call is assigned to
+     * @param depth the number of inlined calls the call is in
+     */
+    String getTemporary(int depth, String parameter) {
+        return temporaryPrefix+depth+"_"+parameter;
+    }
+
+    /**
+     * @return whether there is a constant or an inline function named by the characters of {@code text}
+     *         from {@code start} to {@code end}
+     */
+    boolean contains(CharSequence text, int start, int end) {
+        return names.find(text, start, end) != -1;
+    }
+
+    /**
+     * @return whether the statement is the declaration of one of the constants
+     */
+    boolean isDeclaredBy(ConstStatementContext statement) {
+        return get(statement.identifier().getText()) == statement;
+    }
+
+    /**
+     * @return whether the statement is the declaration of one of the inline functions
+     */
+    boolean isDeclaredBy(FunctionDefContext statement) {
+        var function = getInlineFunction(statement.funcHeader().identifier().getText());
+        return function != null && function.getDeclaration() == statement;
+    }
+
+    /**
+     * Two modules' constants are equal if they have the same names and values, and their inline functions
+     * are written the same, and their temporaries are named the same, which makes the output of a statement
+     * the same with either.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof Constants other) || other.declarations.size() != declarations.size()
+                || !other.temporaryPrefix.equals(temporaryPrefix)) {
+            return false;
+        }
+        for (int id = 0; id < declarations.size(); id++) {
+            if (!names.get(id).equals(other.names.get(id))
+                    || !declarations.get(id).getText().equals(other.declarations.get(id).getText())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int id = 0; id < declarations.size(); id++) {
+            hash = 31*hash + names.get(id).hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * @param constants the constants declared so far
+     * @return whether the tree only has literals, operators, groups and tuples, and names of the constants
+     */
+    private static boolean isLiteral(ParseTree tree, NameTable constants) {
+        if (tree instanceof NamedAtomContext namedAtom) {
+            return constants.find(namedAtom.getText()) != -1;
+        }
+        if (tree instanceof CallPrimaryContext) {
+            return false;
+        }
+        if (tree instanceof TerminalNode terminal) {
+            return switch (terminal.getSymbol().getType()) {
+                case STRING_LITERAL -> !isFormatString(terminal.getText());
+                case NUMBER, BYTES_LITERAL, TRUE, FALSE, NONE, ELLIPSIS, LPAREN, RPAREN, COMMA, IF, ELSE,
+                     PLUS, MINUS, STAR, SLASH, SLASHSLASH, PER, STARSTAR, LTLT, GTGT, AMP, BAR, CARET, TILDE,
+                     LT, GT, EQEQ, GTEQ, LTEQ, LTGT, BANGEQ, AND, OR, NOT, IN, IS -> true;
+                default -> false;
+            };
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (!isLiteral(tree.getChild(i), constants)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isFormatString(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (c == '\'' || c == '"') {
+                return false;
+            }
+            if (c == 'f' || c == 'F') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static IllegalArgumentException error(StatementContext statement, String message) {
+        return new IllegalArgumentException("line "+statement.start.getLine()+":"+statement.start.getCharPositionInLine()+" "+message);
+    }
+}
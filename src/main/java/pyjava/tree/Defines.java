@@ -0,0 +1,237 @@
+package pyjava.tree;
+
+import java.util.Map;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import pyjava.PyJavaOptions;
+import pyjava.parser.PyJavaParser.*;
+
+/**
+ * Evaluates the conditions of {@code const if} statements, which {@link Transpiler} only outputs the chosen branch of.
+ * <p>
+ * A condition is made of the names of the defines, which are set in the config file, see
+ * {@link PyJavaOptions#defines()}, of {@code True}, {@code False}, {@code None}, integers and plain strings,
+ * and of {@code not}, {@code and}, {@code or}, comparisons and parentheses, which work like they do in Python.
+ * Anything else, including a name which isn't defined, is an error, so that a mistyped name doesn't silently
+ * drop a branch.
+ */
+final class Defines {
+    static final Defines EMPTY = new Defines(Map.of());
+
+    private final Map<String, Object> values;
+
+    private Defines(Map<String, Object> values) {
+        this.values = values;
+    }
+
+    /**
+     * @param values the defines, which are booleans, longs or strings
+     */
+    static Defines of(Map<String, Object> values) {
+        return values.isEmpty()? EMPTY : new Defines(values);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the condition isn't made only of defines, literals and operators
+     */
+    boolean test(NamedExpressionCondContext condition) {
+        return isTrue(evaluate(condition));
+    }
+
+    /**
+     * @return the block of the first branch of the statement whose condition is true, or its else block,
+     *         or {@code null} if there is neither
+     * @throws IllegalArgumentException if a condition it evaluates isn't made only of defines, literals and operators
+     */
+    BlockContext choose(ConstIfStatementContext ctx) {
+        if (test(ctx.namedExpressionCond())) {
+            return ctx.block();
+        }
+        for (var elif : ctx.elif()) {
+            if (test(elif.namedExpressionCond())) {
+                return elif.block();
+            }
+        }
+        var elseBlock = ctx.elseBlock();
+        return elseBlock == null? null : elseBlock.block();
+    }
+
+    /**
+     * @return the value, which is a {@link Boolean}, a {@link Long}, a {@link String} or {@code null} for {@code None}
+     */
+    private Object evaluate(ParseTree tree) {
+        if (tree instanceof NamedExpressionCondContext ctx) {
+            var atom = ctx.atom();
+            if (atom == null) {
+                return evaluate(ctx.namedExpression());
+            }
+            var value = evaluate(atom);
+            return ctx.NOT() != null? !isTrue(value) : value;
+        }
+        if (tree instanceof DisjunctionContext ctx) {
+            var iter = ctx.conjunction().iterator();
+            var value = evaluate(iter.next());
+            while (iter.hasNext() && !isTrue(value)) {
+                value = evaluate(iter.next());
+            }
+            return value;
+        }
+        if (tree instanceof ConjunctionContext ctx) {
+            var iter = ctx.inversion().iterator();
+            var value = evaluate(iter.next());
+            while (iter.hasNext() && isTrue(value)) {
+                value = evaluate(iter.next());
+            }
+            return value;
+        }
+        if (tree instanceof InversionContext ctx && ctx.NOT() != null) {
+            return !isTrue(evaluate(ctx.inversion()));
+        }
+        if (tree instanceof ComparisonContext ctx && !ctx.compareOpBitwiseOrPair().isEmpty()) {
+            var left = evaluate(ctx.bitwiseOr());
+            for (var pair : ctx.compareOpBitwiseOrPair()) {
+                var right = evaluate(pair.bitwiseOr());
+                if (!compare(pair.compareOp(), left, right)) {
+                    return false;
+                }
+                left = right;
+            }
+            return true;
+        }
+        if (tree instanceof FactorContext ctx && ctx.prefixOp() != null && ctx.prefixOp().MINUS() != null) {
+            var value = evaluate(ctx.factor());
+            if (value instanceof Long l) {
+                return -l;
+            }
+            throw error(ctx, "bad operand for unary -");
+        }
+        if (tree instanceof GroupAtomContext ctx && ctx.namedExpression() != null) {
+            return evaluate(ctx.namedExpression());
+        }
+        if (tree instanceof NamedAtomContext ctx) {
+            String name = ctx.getText();
+            if (!values.containsKey(name)) {
+                throw error(ctx, name+" is not defined");
+            }
+            return values.get(name);
+        }
+        if (tree instanceof TrueAtomContext) {
+            return true;
+        }
+        if (tree instanceof FalseAtomContext) {
+            return false;
+        }
+        if (tree instanceof NoneAtomContext) {
+            return null;
+        }
+        if (tree instanceof NumberAtomContext ctx) {
+            return parseInteger(ctx);
+        }
+        if (tree instanceof StringsAtomContext ctx) {
+            return parseString(ctx);
+        }
+        var child = SingleChild.of(tree);
+        if (child == null) {
+            throw error((ParserRuleContext) tree, "a const if condition can only use defines, literals, not, and, or, and comparisons");
+        }
+        return evaluate(child);
+    }
+
+    private static boolean isTrue(Object value) {
+        if (value instanceof Boolean b) {
+            return b;
+        }
+        if (value instanceof Long l) {
+            return l != 0;
+        }
+        if (value instanceof String str) {
+            return !str.isEmpty();
+        }
+        return false;
+    }
+
+    private static boolean compare(CompareOpContext op, Object left, Object right) {
+        switch (op.getText()) {
+            case "==":
+                return isEqual(left, right);
+            case "!=":
+            case "<>":
+                return !isEqual(left, right);
+        }
+        int comparison;
+        if (isNumber(left) && isNumber(right)) {
+            comparison = Long.compare(toLong(left), toLong(right));
+        } else if (left instanceof String l && right instanceof String r) {
+            comparison = l.compareTo(r);
+        } else {
+            throw error(op, "can't compare "+left+" and "+right+" with "+op.getText());
+        }
+        return switch (op.getText()) {
+            case "<" -> comparison < 0;
+            case "<=" -> comparison <= 0;
+            case ">" -> comparison > 0;
+            case ">=" -> comparison >= 0;
+            default -> throw error(op, op.getText()+" can't be used in a const if condition");
+        };
+    }
+
+    private static boolean isEqual(Object left, Object right) {
+        // like in Python, True == 1
+        if (isNumber(left) && isNumber(right)) {
+            return toLong(left) == toLong(right);
+        }
+        return left == null? right == null : left.equals(right);
+    }
+
+    private static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Boolean;
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Boolean b? (b? 1 : 0) : (Long) value;
+    }
+
+    private static Long parseInteger(NumberAtomContext ctx) {
+        String text = ctx.getText().replace("_", "").toLowerCase();
+        try {
+            if (text.startsWith("0x")) {
+                return Long.parseLong(text.substring(2), 16);
+            }
+            if (text.startsWith("0o")) {
+                return Long.parseLong(text.substring(2), 8);
+            }
+            if (text.startsWith("0b")) {
+                return Long.parseLong(text.substring(2), 2);
+            }
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw error(ctx, "only integers can be used in a const if condition");
+        }
+    }
+
+    private static String parseString(StringsAtomContext ctx) {
+        var strings = ctx.strings();
+        var sb = new StringBuilder();
+        for (int i = 0; i < strings.getChildCount(); i++) {
+            String literal = strings.getChild(i).getText();
+            int start = 0;
+            while (Character.isLetter(literal.charAt(start))) {
+                start++;
+            }
+            String prefix = literal.substring(0, start).toLowerCase();
+            int quotes = literal.startsWith("'''", start) || literal.startsWith("\"\"\"", start)? 3 : 1;
+            String contents = literal.substring(start + quotes, literal.length() - quotes);
+            if (prefix.contains("b") || prefix.contains("f") || !prefix.contains("r") && contents.indexOf('\\') != -1) {
+                throw error(ctx, "only plain strings can be used in a const if condition");
+            }
+            sb.append(contents);
+        }
+        return sb.toString();
+    }
+
+    private static IllegalArgumentException error(ParserRuleContext ctx, String message) {
+        return new IllegalArgumentException("line "+ctx.start.getLine()+":"+ctx.start.getCharPositionInLine()+" "+message);
+    }
+}
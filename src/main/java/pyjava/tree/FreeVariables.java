@@ -0,0 +1,234 @@
+package pyjava.tree;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import pyjava.parser.PyJavaParser.*;
+import pyjava.tree.Scope.Kind;
+
+/**
+ * Tells whether a lambda or an anonymous class which {@link Transpiler} hoists out of the statement it is in
+ * uses any variable of the functions it is in, so that it can be put at the top level of the module and run once,
+ * instead of before the statement, where it is run every time the statement is.
+ * <p>
+ * A lambda or class captures nothing if its {@link Scope} has no free variables, which it would also have
+ * if a scope nested in it had any. Nothing is hoisted out of a class, since the names in a class body are mangled.
+ * The scopes of each top-level statement are built the first time something in it is asked about.
+ * <p>
+ * The names a lambda or class uses when it is defined rather than when it is called, which are the ones in the
+ * defaults and annotations of a lambda's parameters, and the ones in a class's superclass arguments and
+ * in its body outside of its methods, would be evaluated when the module is loaded instead. A lambda can't use any,
+ * and a class can only use builtins which the top-level statement it is in doesn't bind, since a top-level
+ * statement's output only depends on the statement itself.
+ * <p>
+ * The same scopes tell {@link Transpiler} which uses of the names of {@link Constants} refer to them,
+ * and whether the body of an {@link InlineFunction} means the same in the place of a call to it.
+ */
+final class FreeVariables {
+    /** The builtins a class can use when it is defined. */
+    private static final Set<String> BUILTINS = Set.of(
+        "object", "type", "property", "staticmethod", "classmethod", "super", "bool", "int", "float", "complex",
+        "str", "bytes", "bytearray", "list", "tuple", "dict", "set", "frozenset", "range", "slice", "len", "print",
+        "isinstance", "issubclass", "callable", "iter", "next", "any", "all", "min", "max", "sum", "abs", "round",
+        "sorted", "reversed", "enumerate", "zip", "map", "filter", "repr", "hash", "id", "getattr", "setattr",
+        "hasattr", "delattr", "NotImplemented", "Ellipsis", "BaseException", "Exception", "ArithmeticError",
+        "AttributeError", "IndexError", "KeyError", "LookupError", "NotImplementedError", "RuntimeError",
+        "StopIteration", "TypeError", "ValueError"
+    );
+
+    private final NameTable names = new NameTable();
+    /** The scopes of the top-level statements which were looked at so far. */
+    private final Map<ParserRuleContext, Scopes> scopes = new IdentityHashMap<>();
+    private String inputText;
+
+    /**
+     * @param inputText the whole input the trees were parsed from, or {@code null}
+     */
+    void setInputText(String inputText) {
+        this.inputText = inputText;
+    }
+
+    /**
+     * @param lambda a {@link LambdaExpressionContext} or a {@link MultiLineLambdaExpressionContext}
+     * @return whether the lambda is in a function, not in a class, and captures nothing from the function
+     */
+    boolean isClosureFree(ParserRuleContext lambda) {
+        var scope = scopesOf(lambda).getScope(lambda);
+        boolean inFunction = false;
+        for (var outer = scope.getParent(); outer != null; outer = outer.getParent()) {
+            if (outer.getKind() == Kind.CLASS) {
+                return false;
+            }
+            if (outer.getKind() == Kind.FUNCTION || outer.getKind() == Kind.LAMBDA) {
+                inFunction = true;
+            }
+        }
+        var header = lambda instanceof LambdaExpressionContext lambdaExpression? lambdaExpression.lambdaHeader()
+                : ((MultiLineLambdaExpressionContext) lambda).lambdaHeader();
+        return inFunction && !usesNames(header) && !scope.hasFreeVariables();
+    }
+
+    /**
+     * @return whether the class is not in a class, captures nothing from the functions it is in,
+     *         and only uses builtins the top-level statement it is in doesn't bind when it is defined
+     */
+    boolean isClosureFree(AnonymousClassExpressionContext anonymousClass) {
+        var scopes = scopesOf(anonymousClass);
+        var scope = scopes.getScope(anonymousClass);
+        for (var outer = scope.getParent(); outer != null; outer = outer.getParent()) {
+            if (outer.getKind() == Kind.CLASS) {
+                return false;
+            }
+        }
+        if (scope.hasFreeVariables()) {
+            return false;
+        }
+        // the constructor arguments are evaluated where the class is instantiated, so they don't count
+        return (anonymousClass.superClassArgs == null
+                || usesOnlyBuiltins(anonymousClass.superClassArgs, scopes, scope.getParent()))
+                && usesOnlyBuiltins(scope, scopes.getModule());
+    }
+
+    /**
+     * @return whether the name refers to a variable of the module, or to a builtin, where it is used
+     */
+    boolean isGlobal(IdentifierContext identifier) {
+        var scopes = scopesOf(identifier);
+        return scopes.scopeOf(identifier).isGlobal(scopes.nameOf(identifier));
+    }
+
+    /**
+     * @return whether the name would refer to a variable of a function or class where the node is,
+     *         rather than to one of the module or a builtin
+     */
+    boolean isShadowed(ParserRuleContext node, String name) {
+        var scopes = scopesOf(node);
+        int id = names.find(name);
+        if (id == -1) {
+            return false;
+        }
+        var scope = scopes.scopeOf(node);
+        int flags = scope.getFlags(id);
+        if ((flags & (Scope.LOCAL | Scope.FREE)) != 0) {
+            return true;
+        }
+        if ((flags & Scope.GLOBAL) != 0) {
+            return false;
+        }
+        // a name which isn't in the scope refers to the variable of a function it is in which binds it
+        for (var outer = scope.getParent(); outer != null; outer = outer.getParent()) {
+            if (outer.getKind() == Kind.CLASS) {
+                continue;
+            }
+            flags = outer.getFlags(id);
+            if ((flags & Scope.DECLARED_GLOBAL) != 0) {
+                return false;
+            }
+            if ((flags & (Scope.LOCAL | Scope.FREE)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the name is a variable of the function, lambda or comprehension it is used in
+     *         which no other scope uses, so that nothing else can rebind it
+     */
+    boolean isUnsharedLocal(IdentifierContext identifier) {
+        var scopes = scopesOf(identifier);
+        var scope = scopes.scopeOf(identifier);
+        int name = scopes.nameOf(identifier);
+        return scope.getKind() != Kind.MODULE && scope.getKind() != Kind.CLASS
+                && (scope.getFlags(name) & Scope.LOCAL) != 0 && !scope.isCaptured(name);
+    }
+
+    /**
+     * @return whether an assignment expression put where the node is binds a variable of a function, which
+     *         it doesn't at the top level of the module or in a class body, where the variable would be seen
+     *         from outside, and can't in a comprehension in a class body or in the iterable of a comprehension
+     */
+    boolean allowsTemporary(ParserRuleContext node) {
+        ParseTree child = node;
+        for (var parent = node.getParent(); parent != null; child = parent, parent = parent.getParent()) {
+            if (parent instanceof ForIfClauseContext clause && child == clause.disjunction()) {
+                return false;
+            }
+        }
+        var scope = scopesOf(node).scopeOf(node);
+        while (scope.getKind() == Kind.COMPREHENSION) {
+            scope = scope.getParent();
+        }
+        return scope.getKind() == Kind.FUNCTION || scope.getKind() == Kind.LAMBDA;
+    }
+
+    private Scopes scopesOf(ParserRuleContext ctx) {
+        ParserRuleContext statement = ctx;
+        for (var node = ctx.getParent(); node != null; node = node.getParent()) {
+            if (node instanceof StatementContext) {
+                statement = node;
+            }
+        }
+        return scopes.computeIfAbsent(statement, root -> Scopes.of(root, names, inputText));
+    }
+
+    /**
+     * @return whether the names the scope and the classes and comprehensions in it use when they are run
+     *         are all builtins the module doesn't bind
+     */
+    private boolean usesOnlyBuiltins(Scope scope, Scope module) {
+        var symbols = scope.getSymbols();
+        for (int i = 0; i < symbols.size(); i++) {
+            int name = symbols.name(i);
+            if ((symbols.get(name) & Scope.USED) != 0 && !isBuiltin(name, scope, module)) {
+                return false;
+            }
+        }
+        for (var nested : scope.getChildren()) {
+            if (nested.getKind() != Kind.FUNCTION && nested.getKind() != Kind.LAMBDA && !usesOnlyBuiltins(nested, module)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the names used in the tree, which is evaluated in the given scope, are all builtins
+     *         the module doesn't bind, counting a name used in a scope nested in the tree as not one
+     */
+    private boolean usesOnlyBuiltins(ParseTree tree, Scopes scopes, Scope scope) {
+        if (tree instanceof IdentifierContext identifier) {
+            return Scopes.kind(identifier) != Scopes.NameKind.USE
+                    || isBuiltin(scopes.nameOf(identifier), scope, scopes.getModule());
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (!usesOnlyBuiltins(tree.getChild(i), scopes, scope)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isBuiltin(int name, Scope scope, Scope module) {
+        return scope.isGlobal(name) && (module.getFlags(name) & Scope.BOUND) == 0 && BUILTINS.contains(names.get(name));
+    }
+
+    /**
+     * @return whether any name is used in the tree
+     */
+    private static boolean usesNames(ParseTree tree) {
+        if (tree instanceof IdentifierContext identifier) {
+            return Scopes.kind(identifier) == Scopes.NameKind.USE;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (usesNames(tree.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,139 @@
+package pyjava.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import pyjava.parser.PyJavaParser.FileContext;
+import pyjava.parser.PyJavaParser.StatementContext;
+import pyjava.tree.LazyAppendable.AppendFunction;
+
+/**
+ * Transpiles successive versions of a file, such as the ones {@link pyjava.parser.IncrementalParser IncrementalParser}
+ * gives, reusing the output of the top-level statements which are the same {@link StatementContext} objects as
+ * in the previous version.
+ * <p>
+ * A statement's output only depends on the statement itself, on the numbers its synthetic lambda and
+ * class names start at, on whether the statements before it imported {@code functools} and defined the decorator
+ * of cached methods, and on the {@link Constants} of the file and the defines, so the output of a statement which
+ * uses synthetic names is only reused if the statements before it use as many of them as they did before, the
+ * output of a statement which uses {@code functools} or the decorator if they still do or don't, and no output is
+ * reused if the constants or the defines changed.
+ * <p>
+ * The constants are only found again when a statement which may declare some, a {@code const}, an {@code inline def}
+ * or a {@code const if}, was added or removed, and otherwise only the added statements are checked not to rebind
+ * them. Apart from transpiling the added statements, a version costs a lookup of each statement's output and
+ * copying the output, so it is still linear in the number of statements and the size of the output, though with
+ * a small constant.
+ */
+public class IncrementalTranspiler {
+    private Map<StatementContext, Output> outputs = new IdentityHashMap<>();
+    /** The statements of the previous version, which {@link #constants} are the constants of. */
+    private Set<StatementContext> statements = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** The number of {@link #statements} which may declare constants, see {@link Constants#mayDeclare}. */
+    private int declaringCount;
+    private Constants constants = Constants.EMPTY;
+    private Map<String, Object> defines = Map.of();
+    private int transpiledCount;
+
+    private static record Output(String text, int lambdaStart, int classStart, int lambdaCount, int classCount,
+                                 boolean functoolsImported, boolean usesFunctools, boolean cachedMethodDefined,
+                                 boolean usesCachedMethod) {
+        boolean usableAt(int lambdaStart, int classStart, boolean functoolsImported, boolean cachedMethodDefined) {
+            return (lambdaCount == 0 && classCount == 0 || this.lambdaStart == lambdaStart && this.classStart == classStart)
+                    && (!usesFunctools || this.functoolsImported == functoolsImported)
+                    && (!usesCachedMethod || this.cachedMethodDefined == cachedMethodDefined);
+        }
+    }
+
+    /**
+     * Sets the defines to evaluate {@code const if} conditions with, see {@link Transpiler#setDefines(Map)},
+     * which makes the next call to {@link #transpile(FileContext)} transpile every statement again if they changed.
+     */
+    public void setDefines(Map<String, Object> defines) {
+        if (!defines.equals(this.defines)) {
+            this.defines = Objects.requireNonNull(defines);
+            outputs.clear();
+            statements.clear();
+            declaringCount = 0;
+            constants = Constants.EMPTY;
+        }
+    }
+
+    /**
+     * @return the transpiled file
+     */
+    public String transpile(FileContext file) {
+        var sb = new StringBuilder();
+        var newOutputs = new IdentityHashMap<StatementContext, Output>();
+        var newStatements = Collections.<StatementContext>newSetFromMap(new IdentityHashMap<>());
+        var added = new ArrayList<StatementContext>();
+        int newDeclaringCount = 0, keptDeclaringCount = 0;
+        boolean declarationsChanged = false;
+        for (var statement : file.statement()) {
+            newStatements.add(statement);
+            boolean declaring = Constants.mayDeclare(statement);
+            if (declaring) {
+                newDeclaringCount++;
+            }
+            if (!statements.contains(statement)) {
+                added.add(statement);
+                declarationsChanged |= declaring;
+            } else if (declaring) {
+                keptDeclaringCount++;
+            }
+        }
+        declarationsChanged |= keptDeclaringCount < declaringCount;
+        boolean removed = newStatements.size() - added.size() < statements.size();
+        var constants = this.constants;
+        if (declarationsChanged || !constants.admit(added, removed, Defines.of(defines))) {
+            constants = Constants.of(List.of(file), Defines.of(defines));
+            if (!constants.equals(this.constants)) {
+                outputs.clear();
+            }
+        }
+        this.constants = constants;
+        statements = newStatements;
+        declaringCount = newDeclaringCount;
+        int lambdas = 0, classes = 0;
+        boolean functools = false, cachedMethod = false;
+        transpiledCount = 0;
+        for (var statement : file.statement()) {
+            var output = outputs.get(statement);
+            if (output == null || !output.usableAt(lambdas, classes, functools, cachedMethod)) {
+                var transpiler = new Transpiler(lambdas, classes, functools, cachedMethod);
+                transpiler.setDefines(defines);
+                transpiler.setConstants(constants);
+                statement.accept(transpiler);
+                var text = new StringBuilder();
+                transpiler.appendTo(AppendFunction.wrap(text));
+                output = new Output(text.toString(), lambdas, classes,
+                                    transpiler.getSyntheticLambdaCount() - lambdas, transpiler.getSyntheticClassCount() - classes,
+                                    functools, transpiler.usesFunctools(), cachedMethod, transpiler.usesCachedMethod());
+                transpiledCount++;
+            }
+            newOutputs.put(statement, output);
+            sb.append(output.text());
+            lambdas += output.lambdaCount();
+            classes += output.classCount();
+            functools |= output.usesFunctools();
+            cachedMethod |= output.usesCachedMethod();
+        }
+        var transpiler = new Transpiler(lambdas, classes);
+        transpiler.handleTrailingComments(file);
+        transpiler.appendTo(AppendFunction.wrap(sb));
+        outputs = newOutputs;
+        return sb.toString();
+    }
+
+    /**
+     * @return the number of statements the last call to {@link #transpile(FileContext)} had to transpile
+     */
+    public int getTranspiledCount() {
+        return transpiledCount;
+    }
+}
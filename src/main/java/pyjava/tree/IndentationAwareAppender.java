@@ -157,6 +157,15 @@ public class IndentationAwareAppender implements LazyAppendable {
         }
     }
 
+    /**
+     * @return an appender whose output goes before everything appended to this one so far
+     */
+    public IndentationAwareAppender earlier() {
+        var result = new IndentationAwareAppender();
+        appendables.addFirst(result);
+        return result;
+    }
+
     public IndentationAwareAppender later() {
         var result = new IndentationAwareAppender();
         appendables.addLast(result);
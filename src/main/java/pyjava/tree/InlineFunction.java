@@ -0,0 +1,371 @@
+package pyjava.tree;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import pyjava.parser.PyJavaLexer;
+import pyjava.parser.PyJavaParser.*;
+
+/**
+ * A function declared with {@code inline def} at the top level of a module, whose calls in the module
+ * {@link Transpiler} replaces with the expression it returns, with the arguments in the place of the parameters.
+ * <p>
+ * The body of an inline function must be a single {@code return} statement with a value, which can't have
+ * a lambda, a comprehension, a class, an f-string, a {@code :=}, an {@code await} or a {@code yield} in it,
+ * and its parameters can't have defaults or be {@code /}, {@code *} or {@code **} ones.
+ * <p>
+ * An argument which is a literal or a local variable nothing else can rebind is put in the place of every use
+ * of its parameter, and so is any other name, unless something in the body which may run code of the program
+ * could rebind it before a use: a call, an attribute, a subscript, or an operator or a truth test of something
+ * which isn't a literal. Any other argument is assigned to a temporary with {@code :=} at the first use of its
+ * parameter and read from it at the rest, so that it is evaluated exactly once. Since the arguments are then
+ * evaluated where their parameters are first used, a call is only inlined if that is in the order they are in
+ * the call, before anything in the body which may run code, and not in a part of the body which may not be
+ * evaluated, such as the right of an {@code and}, and if every such argument's parameter is used. A call which
+ * can't be inlined is left alone, so the function is still defined.
+ */
+final class InlineFunction {
+    /** How a use of a parameter is output. */
+    enum Binding {
+        /** the argument is put in its place */
+        SUBSTITUTE,
+        /** the argument is assigned to the parameter's temporary */
+        ASSIGN,
+        /** the parameter's temporary is read */
+        READ
+    }
+
+    /** What an argument is, which tells whether it can be evaluated more than once or later than it is in the call. */
+    enum ArgumentKind {
+        /**
+         * a literal, a constant, or a name which nothing in the body can rebind, such as a variable of the function
+         * the call is in which no other function uses, which can be evaluated any number of times anywhere
+         */
+        LITERAL,
+        /** any other name, which can be evaluated any number of times until something which could rebind it is */
+        NAME,
+        /** anything else, which must be evaluated exactly once, in the order of the arguments */
+        EXPRESSION
+    }
+
+    /**
+     * How the body is output in the place of a call.
+     * @param arguments the argument of each parameter
+     * @param bindings how each use of a parameter is output
+     */
+    static record Expansion(List<ExpressionContext> arguments, Map<NamedAtomContext, Binding> bindings) {}
+
+    /**
+     * A use of a parameter in the body.
+     * @param conditional whether the use is in a part of the body which may not be evaluated
+     * @param effectsBefore the number of things in the body which may run code that are evaluated before the use
+     */
+    private static record Use(NamedAtomContext atom, int parameter, boolean conditional, int effectsBefore) {}
+
+    private final FunctionDefContext declaration;
+    private final List<String> parameters = new ArrayList<>();
+    private final ExpressionContext body;
+    /** The uses of the parameters in the body, in the order they are evaluated. */
+    private final List<Use> uses = new ArrayList<>();
+    /** The other names used in the body, which refer to variables of the module or to builtins. */
+    private final List<String> globals = new ArrayList<>();
+    /**
+     * The calls, attributes, subscripts, operators and truth tests in the body which may run code of the program,
+     * in the order they are evaluated.
+     */
+    private final List<ParserRuleContext> effects = new ArrayList<>();
+    /** The number of names visited so far while collecting the uses. */
+    private int namesCollected;
+
+    private InlineFunction(FunctionDefContext declaration, ExpressionContext body) {
+        this.declaration = declaration;
+        this.body = body;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the function can't be inlined
+     */
+    static InlineFunction of(FunctionDefContext declaration) {
+        String name = declaration.funcHeader().identifier().getText();
+        if (declaration.decorators() != null) {
+            throw error(declaration, "inline def "+name+" can't have decorators");
+        }
+        var statements = declaration.funcBody().statement();
+        if (statements.size() != 1 || !(statements.get(0) instanceof ReturnStatementContext returnStatement)
+                || returnStatement.retVal() == null || returnStatement.retVal().starExpressions() == null) {
+            throw error(declaration, "the body of inline def "+name+" must be a single return statement with a value");
+        }
+        var starExpressions = returnStatement.retVal().starExpressions();
+        if (starExpressions.starExpression().size() != 1 || !starExpressions.COMMA().isEmpty()
+                || starExpressions.starExpression(0).expression() == null) {
+            throw error(declaration, "inline def "+name+" must return a single expression");
+        }
+        var function = new InlineFunction(declaration, starExpressions.starExpression(0).expression());
+        var parameters = declaration.funcHeader().parameters();
+        if (parameters != null) {
+            if (parameters.paramsNoDefault() == null || parameters.slashNoDefault() != null
+                    || parameters.paramsWithDefault() != null || parameters.starEtc() != null) {
+                throw error(declaration, "the parameters of inline def "+name+" can't have defaults or be /, * or ** ones");
+            }
+            for (var parameter : parameters.paramsNoDefault().paramNoDefault()) {
+                function.parameters.add(parameter.identifier().getText());
+            }
+        }
+        if (!function.collectUses(function.body, false)) {
+            throw error(declaration, "the return value of inline def "+name
+                                     +" can't have a lambda, a comprehension, a class, an f-string, :=, await or yield");
+        }
+        return function;
+    }
+
+    FunctionDefContext getDeclaration() {
+        return declaration;
+    }
+
+    ExpressionContext getBody() {
+        return body;
+    }
+
+    /**
+     * @return the names used in the body which aren't parameters
+     */
+    List<String> getGlobals() {
+        return globals;
+    }
+
+    /**
+     * @return whether nothing in the body may run code of the program, so that a call to the function
+     *         has no side effects other than the ones of evaluating its arguments
+     */
+    boolean hasNoEffects() {
+        return effects.isEmpty();
+    }
+
+    /**
+     * @return the index of the parameter the use in the body is of
+     */
+    int parameterOf(NamedAtomContext use) {
+        return parameters.indexOf(use.getText());
+    }
+
+    /**
+     * Works out how the body is output in the place of a call.
+     * @param kindOf what an argument is
+     * @param hasSideEffects whether a call in the body may have side effects, which the other effects may
+     * @return how the body is output, or {@code null} if the call can't be inlined
+     */
+    Expansion expand(CallPrimaryContext call, Function<ExpressionContext, ArgumentKind> kindOf,
+                     Predicate<CallPrimaryContext> hasSideEffects) {
+        // the parameters in the order their arguments are in the call, of which the ones whose arguments
+        // are evaluated once are kept
+        var evaluated = new ArrayList<Integer>();
+        var arguments = bind(call.arguments(), evaluated);
+        if (arguments == null) {
+            return null;
+        }
+        var kinds = new ArgumentKind[parameters.size()];
+        boolean[] once = new boolean[parameters.size()];
+        for (int parameter : evaluated) {
+            kinds[parameter] = kindOf.apply(arguments.get(parameter));
+            once[parameter] = kinds[parameter] == ArgumentKind.EXPRESSION;
+        }
+        // the number of effects before each one which may have side effects
+        int[] sideEffects = new int[effects.size() + 1];
+        for (int i = 0; i < effects.size(); i++) {
+            sideEffects[i + 1] = sideEffects[i]
+                    + (effects.get(i) instanceof CallPrimaryContext effect && !hasSideEffects.test(effect)? 0 : 1);
+        }
+        boolean[] afterEffect = new boolean[uses.size()];
+        for (int i = 0; i < uses.size(); i++) {
+            afterEffect[i] = sideEffects[uses.get(i).effectsBefore()] != 0;
+        }
+        // a name must be read before anything which could rebind it is evaluated
+        boolean evaluatedBefore = false;
+        for (int i = 0; i < uses.size(); i++) {
+            var use = uses.get(i);
+            if ((afterEffect[i] || evaluatedBefore) && kinds[use.parameter()] == ArgumentKind.NAME) {
+                once[use.parameter()] = true;
+            }
+            evaluatedBefore |= once[use.parameter()];
+        }
+        evaluated.removeIf(parameter -> !once[parameter]);
+
+        var bindings = new IdentityHashMap<NamedAtomContext, Binding>();
+        boolean[] assigned = new boolean[parameters.size()];
+        int next = 0;
+        for (int i = 0; i < uses.size(); i++) {
+            var use = uses.get(i);
+            int parameter = use.parameter();
+            if (!once[parameter]) {
+                bindings.put(use.atom(), Binding.SUBSTITUTE);
+            } else if (assigned[parameter]) {
+                bindings.put(use.atom(), Binding.READ);
+            } else if (use.conditional() || afterEffect[i] || next == evaluated.size() || evaluated.get(next) != parameter) {
+                return null;
+            } else {
+                bindings.put(use.atom(), Binding.ASSIGN);
+                assigned[parameter] = true;
+                next++;
+            }
+        }
+        // an argument of a parameter which isn't used must still be evaluated
+        return next == evaluated.size()? new Expansion(arguments, bindings) : null;
+    }
+
+    /**
+     * @param evaluated the indexes of the parameters are added to it in the order their arguments are in
+     * @return the argument of each parameter, or {@code null} if the arguments don't match the parameters
+     *         one to one or are unpacked
+     */
+    private List<ExpressionContext> bind(ArgumentsContext ctx, List<Integer> evaluated) {
+        var arguments = new ArrayList<ExpressionContext>(parameters.size());
+        for (int i = 0; i < parameters.size(); i++) {
+            arguments.add(null);
+        }
+        if (ctx != null) {
+            int position = 0;
+            for (var argument : ctx.argument()) {
+                if (argument.expression() == null || position == parameters.size()) {
+                    return null;
+                }
+                arguments.set(position, argument.expression());
+                evaluated.add(position++);
+            }
+            var kwargs = ctx.kwargs();
+            if (kwargs != null) {
+                for (int i = 0; i < kwargs.getChildCount(); i++) {
+                    var child = kwargs.getChild(i);
+                    if (child instanceof TerminalNode) {
+                        continue;
+                    }
+                    var kwarg = (ParserRuleContext) child;
+                    var identifier = kwarg.getRuleContext(IdentifierContext.class, 0);
+                    if (identifier == null) {
+                        return null;
+                    }
+                    int parameter = parameters.indexOf(identifier.getText());
+                    if (parameter == -1 || arguments.get(parameter) != null) {
+                        return null;
+                    }
+                    arguments.set(parameter, kwarg.getRuleContext(ExpressionContext.class, 0));
+                    evaluated.add(parameter);
+                }
+            }
+        }
+        return arguments.contains(null)? null : arguments;
+    }
+
+    /**
+     * Adds the uses of the parameters and the other names in the tree, in the order they are evaluated.
+     * @param conditional whether the tree may not be evaluated
+     * @return {@code false} if the tree has something an inline function's body can't
+     */
+    private boolean collectUses(ParseTree tree, boolean conditional) {
+        if (tree instanceof ForIfClausesContext || tree instanceof LambdaExpressionContext
+                || tree instanceof MultiLineLambdaExpressionContext || tree instanceof AnonymousClassExpressionContext
+                || tree instanceof AssignmentExpressionContext || tree instanceof YieldExpressionContext) {
+            return false;
+        }
+        if (tree instanceof TerminalNode terminal) {
+            return terminal.getSymbol().getType() != PyJavaLexer.AWAIT
+                    && !(terminal.getSymbol().getType() == PyJavaLexer.STRING_LITERAL
+                         && Constants.isFormatString(terminal.getText()));
+        }
+        if (tree instanceof NamedAtomContext namedAtom) {
+            namesCollected++;
+            String name = namedAtom.getText();
+            int parameter = parameters.indexOf(name);
+            if (parameter != -1) {
+                uses.add(new Use(namedAtom, parameter, conditional, effects.size()));
+            } else if (!globals.contains(name)) {
+                globals.add(name);
+            }
+            return true;
+        }
+        if (tree instanceof IfExpressionContext ifExpression) {
+            if (!collectUses(ifExpression.disjunction(1), conditional)) {
+                return false;
+            }
+            effects.add(ifExpression);
+            return collectUses(ifExpression.disjunction(0), true)
+                    && collectUses(ifExpression.expression(), true);
+        }
+        if (tree instanceof CallPrimaryContext call) {
+            boolean allowed = collectChildUses(call, conditional);
+            effects.add(call);
+            return allowed;
+        }
+        if (tree instanceof DisjunctionContext || tree instanceof ConjunctionContext) {
+            // the operands after the first are only evaluated depending on the truth of the ones before
+            for (int i = 0; i < tree.getChildCount(); i++) {
+                if (!collectUses(tree.getChild(i), conditional || i != 0)) {
+                    return false;
+                }
+                if (i != tree.getChildCount() - 1 && !(tree.getChild(i) instanceof TerminalNode)) {
+                    effects.add((ParserRuleContext) tree);
+                }
+            }
+            return true;
+        }
+        if (tree instanceof ComparisonContext comparison) {
+            var pairs = comparison.compareOpBitwiseOrPair();
+            if (!collectUses(comparison.bitwiseOr(), conditional)) {
+                return false;
+            }
+            // only the first comparison of a chain is always evaluated
+            for (int i = 0; i < pairs.size(); i++) {
+                if (!collectUses(pairs.get(i), conditional || i != 0)) {
+                    return false;
+                }
+                effects.add(pairs.get(i));
+            }
+            return true;
+        }
+        int names = namesCollected, effectCount = effects.size();
+        if (!collectChildUses(tree, conditional)) {
+            return false;
+        }
+        // an operation on literals alone can't run code of the program
+        if (isOperation(tree) && (namesCollected != names || effects.size() != effectCount)) {
+            effects.add((ParserRuleContext) tree);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the node is an attribute, a subscript, an operator, or a dict or set display,
+     *         which hashes its keys
+     */
+    private static boolean isOperation(ParseTree tree) {
+        if (tree instanceof PropertyPrimaryContext || tree instanceof SlicePrimaryContext || tree instanceof DictAtomContext) {
+            return true;
+        }
+        if (tree instanceof BitwiseOrContext || tree instanceof BitwiseXorContext || tree instanceof BitwiseAndContext
+                || tree instanceof ShiftExprContext || tree instanceof SumContext || tree instanceof TermContext
+                || tree instanceof FactorContext || tree instanceof PowerContext || tree instanceof InversionContext) {
+            return tree.getChildCount() > 1;
+        }
+        return false;
+    }
+
+    private boolean collectChildUses(ParseTree tree, boolean conditional) {
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (!collectUses(tree.getChild(i), conditional)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static IllegalArgumentException error(StatementContext statement, String message) {
+        return new IllegalArgumentException("line "+statement.start.getLine()+":"+statement.start.getCharPositionInLine()+" "+message);
+    }
+}
@@ -0,0 +1,121 @@
+package pyjava.tree;
+
+import java.util.Arrays;
+
+/**
+ * Interns names to small {@code int} ids, numbered from 0 in the order they are first seen.
+ * <p>
+ * A name can be looked up by its characters in any {@link CharSequence}, such as the whole input of a parse,
+ * so only the first occurrence of a name makes a {@code String} of it. The ids are kept in an open addressing
+ * hash table of {@code int}s.
+ */
+public final class NameTable {
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int size;
+    /** The id of each name plus one, or 0, at the index its hash gives. Its length is a power of two. */
+    private int[] slots = new int[128];
+
+    /**
+     * @return the id of the name
+     */
+    public int intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    /**
+     * @return the id of the name made of the characters of {@code text} from {@code start} to {@code end}
+     */
+    public int intern(CharSequence text, int start, int end) {
+        int hash = hash(text, start, end);
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        for (int slot; (slot = slots[i]) != 0; i = (i + 1) & mask) {
+            int id = slot - 1;
+            if (hashes[id] == hash && matches(names[id], text, start, end)) {
+                return id;
+            }
+        }
+        int id = size++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+            hashes = Arrays.copyOf(hashes, id * 2);
+        }
+        names[id] = text.subSequence(start, end).toString();
+        hashes[id] = hash;
+        slots[i] = id + 1;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of the name, or {@code -1} if it wasn't interned
+     */
+    public int find(String name) {
+        return find(name, 0, name.length());
+    }
+
+    /**
+     * @return the id of the name made of the characters of {@code text} from {@code start} to {@code end},
+     *         or {@code -1} if it wasn't interned
+     */
+    public int find(CharSequence text, int start, int end) {
+        int hash = hash(text, start, end);
+        int mask = slots.length - 1;
+        for (int i = hash & mask, slot; (slot = slots[i]) != 0; i = (i + 1) & mask) {
+            int id = slot - 1;
+            if (hashes[id] == hash && matches(names[id], text, start, end)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the name with the given id
+     */
+    public String get(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the number of names, which is one more than the largest id
+     */
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = hashes[id] & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id + 1;
+        }
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31*h + text.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String name, CharSequence text, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+package pyjava.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * A scope of the Python the parse tree becomes, with the flags of the names in it, by their ids in the
+ * {@link NameTable} of the {@link Scopes} it is in. Every name used, bound or declared in a scope is in its symbol
+ * table, and so are the free variables of the scopes nested in it which it passes on to them.
+ * <p>
+ * Once the scopes are built, each name in a scope is exactly one of {@link #LOCAL}, {@link #GLOBAL}
+ * or {@link #FREE}, and a local name may also be a {@link #CELL}. A name bound in the module scope is global.
+ * The only exception is a name of a class which is also a variable of a function the class is in
+ * that a method of the class uses, which is both local and free in the class.
+ */
+public final class Scope {
+    public enum Kind { MODULE, CLASS, FUNCTION, LAMBDA, COMPREHENSION }
+
+    /** The name is assigned, deleted, imported or defined in the scope. */
+    public static final int BOUND = 1;
+    /** The name is a parameter of the function or lambda. */
+    public static final int PARAMETER = 1 << 1;
+    /** The name's value is read in the scope. */
+    public static final int USED = 1 << 2;
+    /** The scope has a {@code global} statement for the name. */
+    public static final int DECLARED_GLOBAL = 1 << 3;
+    /** The scope has a {@code nonlocal} statement for the name. */
+    public static final int DECLARED_NONLOCAL = 1 << 4;
+    /** The name is a variable of the scope. */
+    public static final int LOCAL = 1 << 5;
+    /** The name is a variable of the module, or a builtin. */
+    public static final int GLOBAL = 1 << 6;
+    /** The name is a variable of a function the scope is nested in. */
+    public static final int FREE = 1 << 7;
+    /** The name is a local variable which a scope nested in this one uses. */
+    public static final int CELL = 1 << 8;
+
+    private final Kind kind;
+    private final Scope parent;
+    private final ParserRuleContext node;
+    private final List<Scope> children = new ArrayList<>();
+    private final SymbolTable symbols = new SymbolTable();
+
+    Scope(Kind kind, Scope parent, ParserRuleContext node) {
+        this.kind = kind;
+        this.parent = parent;
+        this.node = node;
+        if (parent != null) {
+            parent.children.add(this);
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the scope this one is nested in, or {@code null} for the module scope
+     */
+    public Scope getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the scopes nested directly in this one, in the order they are in the source
+     */
+    public List<Scope> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * @return the node which opens the scope, which is the root of the tree for the module scope
+     */
+    public ParserRuleContext getNode() {
+        return node;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * @return the flags of the name, or 0 if it isn't in the scope
+     */
+    public int getFlags(int name) {
+        return symbols.get(name);
+    }
+
+    public boolean isLocal(int name) {
+        return (symbols.get(name) & LOCAL) != 0;
+    }
+
+    public boolean isGlobal(int name) {
+        return (symbols.get(name) & GLOBAL) != 0;
+    }
+
+    public boolean isFree(int name) {
+        return (symbols.get(name) & FREE) != 0;
+    }
+
+    /**
+     * @return whether the name is a local variable of this scope which a nested scope uses
+     */
+    public boolean isCaptured(int name) {
+        return (symbols.get(name) & CELL) != 0;
+    }
+
+    /**
+     * @return whether the scope uses any variable of the functions it is in, directly or through the scopes
+     *         nested in it
+     */
+    public boolean hasFreeVariables() {
+        for (int i = 0; i < symbols.size(); i++) {
+            if ((symbols.get(symbols.name(i)) & FREE) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the scope whose variable the name refers to in this scope, which is {@code null} for a global name
+     *         the module scope doesn't bind, such as a builtin, or for a name which isn't in this scope
+     */
+    public Scope resolve(int name) {
+        int flags = symbols.get(name);
+        if ((flags & LOCAL) != 0) {
+            return this;
+        }
+        if ((flags & FREE) != 0) {
+            for (var scope = parent; scope != null; scope = scope.parent) {
+                if (scope.kind != Kind.CLASS && (scope.symbols.get(name) & CELL) != 0) {
+                    return scope;
+                }
+            }
+            return null;
+        }
+        if ((flags & GLOBAL) != 0) {
+            var module = this;
+            while (module.parent != null) {
+                module = module.parent;
+            }
+            return (module.symbols.get(name) & BOUND) != 0? module : null;
+        }
+        return null;
+    }
+
+    void add(int name, int flags) {
+        symbols.add(name, flags);
+    }
+
+    @Override
+    public String toString() {
+        return kind + " scope at line " + node.start.getLine();
+    }
+}
@@ -0,0 +1,400 @@
+package pyjava.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PyJavaParser.*;
+import pyjava.tree.Scope.Kind;
+
+/**
+ * The scopes of the Python a parse tree becomes, and which of them each name used in it refers to.
+ * <p>
+ * The tree is walked once. Each function, class, lambda and comprehension in it opens a {@link Scope},
+ * in which the names its body uses, binds and declares {@code global} or {@code nonlocal} are put,
+ * by their ids in a {@link NameTable}. Like in Python, the decorators, cache arguments, defaults and annotations of a function,
+ * the arguments and decorators of a class, and the first iterable of a comprehension belong to the scope
+ * around it, and an assignment expression in a comprehension binds the name in the function it is in.
+ * Then the names are resolved, each free one by looking through the functions the scope is in, skipping classes,
+ * whose names aren't seen by the scopes nested in them.
+ * <p>
+ * The root of the tree is the module scope. It can be a whole file, or a single top-level statement,
+ * in which case the names the other statements bind aren't known, but what is local, free or captured
+ * in the functions of the statement is the same.
+ */
+public final class Scopes {
+    private final NameTable names;
+    private final String inputText;
+    /** The defines which decide the branches of {@code const if} statements, or {@code null} to walk all of them. */
+    private final Defines defines;
+    private final Scope module;
+    /** The scopes other than the module scope by the nodes which open them. */
+    private final Map<ParserRuleContext, Scope> scopes = new IdentityHashMap<>();
+    /** Every scope, each one before the ones nested in it. */
+    private final List<Scope> order = new ArrayList<>();
+
+    private Scopes(ParserRuleContext root, NameTable names, String inputText, Defines defines) {
+        this.names = names;
+        this.inputText = inputText;
+        this.defines = defines;
+        module = new Scope(Kind.MODULE, null, root);
+        order.add(module);
+        walk(root, module);
+        resolve();
+    }
+
+    /**
+     * Builds the scopes of a file or a top-level statement.
+     */
+    public static Scopes of(ParserRuleContext root) {
+        return new Scopes(root, new NameTable(), null, null);
+    }
+
+    /**
+     * Builds the scopes of a file or a top-level statement.
+     * @param names the table to intern the names in, which can be shared by many trees
+     * @param inputText the whole input the tree was parsed from, which the names are looked up in instead of
+     *                  the text of their tokens, or {@code null}, see {@link CompactTokenStream#getInputText()}
+     */
+    public static Scopes of(ParserRuleContext root, NameTable names, String inputText) {
+        return new Scopes(root, names, inputText, null);
+    }
+
+    /**
+     * Builds the scopes of a file or a top-level statement as it is output with the defines, leaving out the
+     * branches of its {@code const if} statements which aren't taken.
+     */
+    static Scopes of(ParserRuleContext root, NameTable names, Defines defines) {
+        return new Scopes(root, names, null, defines);
+    }
+
+    public NameTable getNames() {
+        return names;
+    }
+
+    public Scope getModule() {
+        return module;
+    }
+
+    /**
+     * @return every scope, each one before the ones nested in it
+     */
+    public List<Scope> getScopes() {
+        return Collections.unmodifiableList(order);
+    }
+
+    /**
+     * @param node a {@link FunctionDefContext}, {@link ClassDefContext}, {@link AnonymousClassExpressionContext},
+     *             {@link LambdaExpressionContext}, {@link MultiLineLambdaExpressionContext},
+     *             {@link ListCompAtomContext}, {@link DictCompAtomContext} or {@link GenExpContext},
+     *             or the root of the tree
+     * @return the scope the node opens, or {@code null} if it doesn't open one
+     */
+    public Scope getScope(ParserRuleContext node) {
+        var scope = scopes.get(node);
+        if (scope == null && node == module.getNode()) {
+            return module;
+        }
+        return scope;
+    }
+
+    /**
+     * @return the scope the node is evaluated in
+     */
+    public Scope scopeOf(ParseTree tree) {
+        // whether the path up from the tree went through a part of the next function, class or comprehension
+        // which is evaluated where it is
+        boolean outside = false, parameter = false, firstIterable = false;
+        ParseTree child = tree;
+        for (var node = tree.getParent(); node != null; child = node, node = node.getParent()) {
+            var scope = scopes.get(node);
+            if (node instanceof DefaultValContext || node instanceof AnnotationContext || node instanceof RetTypeContext
+                    || node instanceof DecoratorsContext) {
+                outside = true;
+            } else if (node instanceof ParametersContext || node instanceof LambdaParametersContext) {
+                parameter = true;
+            } else if (node instanceof ForIfClauseContext clause && child == clause.disjunction()
+                    && ((ForIfClausesContext) clause.getParent()).forIfClause(0) == clause) {
+                firstIterable = true;
+            } else if (scope != null) {
+                boolean inside = switch (scope.getKind()) {
+                    case FUNCTION, LAMBDA -> !outside && (parameter || child instanceof FuncBodyContext
+                            || node instanceof LambdaExpressionContext lambda && child == lambda.expression());
+                    case CLASS -> child instanceof ClassBodyContext;
+                    default -> !firstIterable;
+                };
+                if (inside) {
+                    return scope;
+                }
+                outside = parameter = firstIterable = false;
+            }
+            if (node == module.getNode()) {
+                break;
+            }
+        }
+        return module;
+    }
+
+    /**
+     * @return the id of the name in the {@linkplain #getNames() name table}
+     */
+    public int nameOf(IdentifierContext identifier) {
+        var token = identifier.start;
+        // a CommonToken may have text which isn't from the input
+        if (inputText != null && !(token instanceof CommonToken)) {
+            return names.intern(inputText, token.getStartIndex(), token.getStopIndex() + 1);
+        }
+        return names.intern(token.getText());
+    }
+
+    private Scope open(Kind kind, Scope parent, ParserRuleContext node) {
+        var scope = new Scope(kind, parent, node);
+        scopes.put(node, scope);
+        order.add(scope);
+        return scope;
+    }
+
+    private void walk(ParseTree tree, Scope scope) {
+        if (tree instanceof IdentifierContext identifier) {
+            name(identifier, scope);
+        } else if (tree instanceof GlobalStatementContext global) {
+            for (var identifier : global.identifier()) {
+                scope.add(nameOf(identifier), Scope.DECLARED_GLOBAL);
+            }
+        } else if (tree instanceof NonLocalStatementContext nonlocal) {
+            for (var identifier : nonlocal.identifier()) {
+                scope.add(nameOf(identifier), Scope.DECLARED_NONLOCAL);
+            }
+        } else if (tree instanceof ConstIfStatementContext constIf && defines != null) {
+            var chosen = defines.choose(constIf);
+            if (chosen != null) {
+                walk(chosen, scope);
+            }
+        } else if (tree instanceof FunctionDefContext functionDef) {
+            var decorators = functionDef.decorators();
+            if (decorators != null) {
+                walk(decorators, scope);
+            }
+            var header = functionDef.funcHeader();
+            if (header.cacheModifier() != null) {
+                walk(header.cacheModifier(), scope);
+            }
+            scope.add(nameOf(header.identifier()), Scope.BOUND);
+            var nested = open(Kind.FUNCTION, scope, functionDef);
+            if (header.parameters() != null) {
+                walkParameters(header.parameters(), scope, nested);
+            }
+            if (functionDef.retType() != null) {
+                walk(functionDef.retType(), scope);
+            }
+            walk(functionDef.funcBody(), nested);
+        } else if (tree instanceof ClassDefContext classDef) {
+            var header = classDef.classHeader();
+            var recordFields = header.recordFields();
+            var decorators = classDef.decorators();
+            if (decorators != null) {
+                walk(decorators, scope);
+            }
+            // the name and arguments
+            walkExcept(header, recordFields, scope);
+            var nested = open(Kind.CLASS, scope, classDef);
+            if (recordFields != null) {
+                // the fields of a record are slots of the class, and their annotations and defaults
+                // are evaluated in the class body, by the __init__ it gets
+                walk(recordFields, nested);
+            }
+            walk(classDef.classBody(), nested);
+        } else if (tree instanceof AnonymousClassExpressionContext anonymousClass) {
+            // the arguments
+            walkExcept(anonymousClass, anonymousClass.classBody(), scope);
+            walk(anonymousClass.classBody(), open(Kind.CLASS, scope, anonymousClass));
+        } else if (tree instanceof LambdaExpressionContext lambda) {
+            var nested = open(Kind.LAMBDA, scope, lambda);
+            walkParameters(lambda.lambdaHeader(), scope, nested);
+            walk(lambda.expression(), nested);
+        } else if (tree instanceof MultiLineLambdaExpressionContext lambda) {
+            var nested = open(Kind.LAMBDA, scope, lambda);
+            walkParameters(lambda.lambdaHeader(), scope, nested);
+            walk(lambda.funcBody(), nested);
+        } else if (tree instanceof ListCompAtomContext || tree instanceof DictCompAtomContext
+                || tree instanceof GenExpContext) {
+            var ctx = (ParserRuleContext) tree;
+            var forIfClauses = ctx.getRuleContext(ForIfClausesContext.class, 0);
+            // the first iterable is evaluated where the comprehension is
+            var iterable = forIfClauses.forIfClause(0).disjunction();
+            walk(iterable, scope);
+            walkExcept(ctx, iterable, open(Kind.COMPREHENSION, scope, ctx));
+        } else {
+            for (int i = 0; i < tree.getChildCount(); i++) {
+                walk(tree.getChild(i), scope);
+            }
+        }
+    }
+
+    /**
+     * Walks the parameters of a function or lambda, their defaults and annotations and the return type
+     * in {@code outside}, and their names in {@code scope}.
+     */
+    private void walkParameters(ParseTree tree, Scope outside, Scope scope) {
+        if (tree instanceof DefaultValContext || tree instanceof AnnotationContext || tree instanceof RetTypeContext) {
+            walk(tree, outside);
+        } else if (tree instanceof IdentifierContext identifier) {
+            scope.add(nameOf(identifier), Scope.BOUND | Scope.PARAMETER);
+        } else {
+            for (int i = 0; i < tree.getChildCount(); i++) {
+                walkParameters(tree.getChild(i), outside, scope);
+            }
+        }
+    }
+
+    /**
+     * Walks everything in the tree except the given node.
+     */
+    private void walkExcept(ParseTree tree, ParseTree skipped, Scope scope) {
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            var child = tree.getChild(i);
+            if (child == skipped) {
+                continue;
+            }
+            if (child instanceof ForIfClausesContext || child instanceof ForIfClauseContext) {
+                walkExcept(child, skipped, scope);
+            } else {
+                walk(child, scope);
+            }
+        }
+    }
+
+    private void name(IdentifierContext identifier, Scope scope) {
+        var kind = kind(identifier);
+        if (kind == NameKind.OTHER) {
+            return;
+        }
+        int name = nameOf(identifier);
+        if (kind == NameKind.USE) {
+            scope.add(name, Scope.USED);
+        } else if (identifier.getParent() instanceof AssignmentExpressionContext && scope.getKind() == Kind.COMPREHENSION) {
+            // an assignment expression in a comprehension binds the name in the function the comprehension is in
+            var target = scope;
+            while (target.getKind() == Kind.COMPREHENSION) {
+                target = target.getParent();
+            }
+            target.add(name, Scope.BOUND);
+            scope.add(name, Scope.USED);
+        } else {
+            scope.add(name, isAugmentedTarget(identifier)? Scope.BOUND | Scope.USED : Scope.BOUND);
+        }
+    }
+
+    private void resolve() {
+        // a name declared global is bound in the module by the scopes which bind it
+        for (var scope : order) {
+            var symbols = scope.getSymbols();
+            for (int i = 0; i < symbols.size(); i++) {
+                int name = symbols.name(i);
+                int flags = symbols.get(name);
+                if ((flags & Scope.DECLARED_GLOBAL) != 0 && (flags & Scope.BOUND) != 0) {
+                    module.add(name, Scope.BOUND);
+                }
+            }
+        }
+        for (var scope : order) {
+            var symbols = scope.getSymbols();
+            for (int i = 0; i < symbols.size(); i++) {
+                int name = symbols.name(i);
+                int flags = symbols.get(name);
+                if (scope == module || (flags & Scope.DECLARED_GLOBAL) != 0) {
+                    scope.add(name, Scope.GLOBAL);
+                } else if ((flags & (Scope.BOUND | Scope.PARAMETER)) != 0 && (flags & Scope.DECLARED_NONLOCAL) == 0) {
+                    scope.add(name, Scope.LOCAL);
+                } else if ((flags & (Scope.GLOBAL | Scope.FREE)) == 0) {
+                    resolveFree(scope, name, flags);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the function a name the scope uses without binding it is bound in, and makes it free in the scope
+     * and in the scopes between them, which pass it on, or makes it global if none of them binds it.
+     */
+    private void resolveFree(Scope scope, int name, int flags) {
+        Scope binder = null;
+        for (var outer = scope.getParent(); outer != module; outer = outer.getParent()) {
+            if (outer.getKind() == Kind.CLASS) {
+                continue;
+            }
+            int outerFlags = outer.getFlags(name);
+            if ((outerFlags & Scope.DECLARED_GLOBAL) != 0) {
+                break;
+            }
+            if ((outerFlags & (Scope.BOUND | Scope.PARAMETER)) != 0 && (outerFlags & Scope.DECLARED_NONLOCAL) == 0) {
+                binder = outer;
+                break;
+            }
+        }
+        if (binder == null) {
+            // a nonlocal name must be bound in a function, so it is left free even if none binds it
+            scope.add(name, (flags & Scope.DECLARED_NONLOCAL) != 0? Scope.FREE : Scope.GLOBAL);
+            return;
+        }
+        for (var s = scope; s != binder; s = s.getParent()) {
+            s.add(name, Scope.FREE);
+        }
+        binder.add(name, Scope.CELL);
+    }
+
+    enum NameKind { USE, BINDING, OTHER }
+
+    /**
+     * @return whether the name is the target of an augmented assignment, which also uses it
+     */
+    static boolean isAugmentedTarget(IdentifierContext identifier) {
+        var parent = identifier.getParent();
+        while (parent instanceof SingleTargetContext) {
+            parent = parent.getParent();
+        }
+        return parent instanceof AugAssignmentContext;
+    }
+
+    /**
+     * Tells what a name is by where it is. A name which isn't known to be used or to be an attribute,
+     * keyword or module name is taken to be bound there.
+     */
+    static NameKind kind(IdentifierContext identifier) {
+        var parent = identifier.getParent();
+        if (parent instanceof NamedAtomContext || parent instanceof NameOrAttrContext) {
+            return NameKind.USE;
+        }
+        if (parent instanceof PropertyPrimaryContext || parent instanceof PropertyTPrimaryContext
+                || parent instanceof PropertyDelTargetContext || parent instanceof PropertyTargetWithStarAtomContext
+                || parent instanceof SingleSubscriptAttributeTargetContext || parent instanceof AttrContext
+                || parent instanceof KeywordPatternContext || parent instanceof KwargOrStarredContext
+                || parent instanceof KwargOrDoubleStarredContext) {
+            return NameKind.OTHER;
+        }
+        if (parent instanceof DottedNameContext dottedName) {
+            if (dottedName.identifier(0) != identifier) {
+                return NameKind.OTHER;
+            }
+            var grandparent = dottedName.getParent();
+            if (grandparent instanceof AttrContext) {
+                return NameKind.USE;
+            }
+            if (grandparent instanceof DottedAsNameContext dottedAsName && dottedAsName.alias == null) {
+                return NameKind.BINDING;
+            }
+            return NameKind.OTHER;
+        }
+        if (parent instanceof ImportFromAsNameContext importFromAsName) {
+            return importFromAsName.alias == null || importFromAsName.alias == identifier? NameKind.BINDING : NameKind.OTHER;
+        }
+        return NameKind.BINDING;
+    }
+}
@@ -0,0 +1,108 @@
+package pyjava.tree;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import pyjava.parser.PyJavaParser.*;
+
+/**
+ * The step {@link GetGroupAtom}, {@link GetPrimary} and {@link GetGroupAtomContents} have in common,
+ * which goes down from a node which only wraps an expression, a target or a pattern to what it wraps.
+ */
+final class SingleChild {
+    private SingleChild() {}
+
+    /**
+     * @return the only expression, target or pattern the node is made of, or {@code null} if it has
+     *         an operator, several elements or a trailing comma, or isn't one of the nodes that wrap one
+     */
+    static ParseTree of(ParseTree tree) {
+        if (tree instanceof DisjunctionExpressionContext ctx) {
+            return ctx.disjunction();
+        }
+        if (tree instanceof DisjunctionContext ctx) {
+            return ctx.conjunction(1) != null? null : ctx.conjunction(0);
+        }
+        if (tree instanceof ConjunctionContext ctx) {
+            return ctx.inversion(1) != null? null : ctx.inversion(0);
+        }
+        if (tree instanceof InversionContext ctx) {
+            return ctx.comparison();
+        }
+        if (tree instanceof ComparisonContext ctx) {
+            return ctx.compareOpBitwiseOrPair(0) != null? null : ctx.bitwiseOr();
+        }
+        if (tree instanceof BitwiseOrContext ctx) {
+            return ctx.bitwiseOr() != null? null : ctx.bitwiseXor();
+        }
+        if (tree instanceof BitwiseXorContext ctx) {
+            return ctx.bitwiseXor() != null? null : ctx.bitwiseAnd();
+        }
+        if (tree instanceof BitwiseAndContext ctx) {
+            return ctx.bitwiseAnd() != null? null : ctx.shiftExpr();
+        }
+        if (tree instanceof ShiftExprContext ctx) {
+            return ctx.shiftExpr() != null? null : ctx.sum();
+        }
+        if (tree instanceof SumContext ctx) {
+            return ctx.sum() != null? null : ctx.term();
+        }
+        if (tree instanceof TermContext ctx) {
+            return ctx.term() != null? null : ctx.factor();
+        }
+        if (tree instanceof FactorContext ctx) {
+            return ctx.power();
+        }
+        if (tree instanceof PowerContext ctx) {
+            return ctx.factor() != null? null : ctx.awaitPrimary();
+        }
+        if (tree instanceof AwaitPrimaryContext ctx) {
+            return ctx.AWAIT() != null? null : ctx.primary();
+        }
+        if (tree instanceof AtomPrimaryContext ctx) {
+            return ctx.atom();
+        }
+        if (tree instanceof AtomTPrimaryContext ctx) {
+            return ctx.atom();
+        }
+        if (tree instanceof NamedExpressionContext ctx) {
+            return ctx.expression();
+        }
+        if (tree instanceof StarExpressionsContext ctx) {
+            return ctx.starExpression(1) != null || ctx.COMMA(0) != null? null : ctx.starExpression(0);
+        }
+        if (tree instanceof StarExpressionContext ctx) {
+            return ctx.expression();
+        }
+        if (tree instanceof StarNamedExpressionsContext ctx) {
+            return ctx.starNamedExpression(1) != null || ctx.COMMA(0) != null? null : ctx.starNamedExpression(0);
+        }
+        if (tree instanceof StarNamedExpressionContext ctx) {
+            return ctx.namedExpression();
+        }
+        if (tree instanceof ArgumentContext ctx) {
+            return ctx.getChild(0);
+        }
+        if (tree instanceof SubjectExprContext ctx) {
+            return ctx.namedExpression();
+        }
+        if (tree instanceof StarTargetsContext ctx) {
+            return ctx.starTarget(1) != null || ctx.COMMA(0) != null? null : ctx.starTarget(0);
+        }
+        if (tree instanceof StarTargetContext ctx) {
+            return ctx.STAR() != null? null : ctx.targetWithStarAtom();
+        }
+        if (tree instanceof TargetStarAtomContext ctx) {
+            return ctx.starAtom();
+        }
+        if (tree instanceof PatternsContext ctx) {
+            return ctx.pattern();
+        }
+        if (tree instanceof PatternContext ctx) {
+            return ctx.getChild(0);
+        }
+        if (tree instanceof OrPatternContext ctx) {
+            return ctx.BAR(0) != null? null : ctx.closedPattern(0);
+        }
+        return null;
+    }
+}
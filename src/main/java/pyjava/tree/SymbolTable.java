@@ -0,0 +1,94 @@
+package pyjava.tree;
+
+import java.util.Arrays;
+
+/**
+ * The flags of the names in a {@link Scope}, by their ids in a {@link NameTable}, kept in an open addressing
+ * hash table of {@code int}s. The names can also be gone through in the order they were first seen in.
+ */
+public final class SymbolTable {
+    /** The id of each name plus one, or 0, at the index its id gives. Its length is a power of two. */
+    private int[] keys = new int[16];
+    private int[] flags = new int[16];
+    /** The ids of the names in the order they were added. */
+    private int[] order = new int[8];
+    private int size;
+
+    /**
+     * @return the flags of the name, or 0 if it isn't in the table
+     */
+    public int get(int name) {
+        int mask = keys.length - 1;
+        for (int i = spread(name) & mask, key; (key = keys[i]) != 0; i = (i + 1) & mask) {
+            if (key == name + 1) {
+                return flags[i];
+            }
+        }
+        return 0;
+    }
+
+    public boolean contains(int name) {
+        return get(name) != 0;
+    }
+
+    /**
+     * @return the number of names in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the id of the {@code index}th name added to the table
+     */
+    public int name(int index) {
+        return order[index];
+    }
+
+    /**
+     * Adds flags to a name, adding it to the table if it isn't in it.
+     */
+    void add(int name, int flags) {
+        int mask = keys.length - 1;
+        int i = spread(name) & mask;
+        for (int key; (key = keys[i]) != 0; i = (i + 1) & mask) {
+            if (key == name + 1) {
+                this.flags[i] |= flags;
+                return;
+            }
+        }
+        keys[i] = name + 1;
+        this.flags[i] = flags;
+        if (size == order.length) {
+            order = Arrays.copyOf(order, size * 2);
+        }
+        order[size++] = name;
+        if (size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        var oldKeys = keys;
+        var oldFlags = flags;
+        keys = new int[oldKeys.length * 2];
+        flags = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            int key = oldKeys[j];
+            if (key != 0) {
+                int i = spread(key - 1) & mask;
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                flags[i] = oldFlags[j];
+            }
+        }
+    }
+
+    private static int spread(int name) {
+        int h = name * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,21 +1,22 @@
 package pyjava.tree;
 
-import static pyjava.parser.PyJavaLexer.BLOCK_COMMENT;
 import static pyjava.parser.PyJavaLexer.DOT;
 import static pyjava.parser.PyJavaLexer.ELLIPSIS;
-import static pyjava.parser.PyJavaLexer.LINE_COMMENT;
 import static pyjava.tree.GetGroupAtom.getGroupAtom;
 import static pyjava.tree.GetGroupAtomContents.getGroupAtomContents;
 import static pyjava.tree.GetPrimary.getPrimary;
 
 import java.util.*;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
+import pyjava.parser.CommentTable;
+import pyjava.parser.CompactTokenStream;
 import pyjava.parser.PyJavaParser.*;
 import pyjava.parser.PyJavaParserBaseVisitor;
 import pyjava.tree.LazyAppendable.AppendFunction;
@@ -23,19 +24,216 @@ import pyjava.tree.LazyAppendable.AppenderState;
 
 public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     protected IndentationAwareAppender a;
-    private LinkedList<IndentationAwareAppender> beforeStatement = new LinkedList<>();
+    /**
+     * The places in the output before the statements being visited, innermost last.
+     * A construct which is hoisted out of a statement is output to the last one, and the statements in it
+     * push their own places on top of it.
+     */
+    private final ArrayDeque<IndentationAwareAppender> beforeStatement = new ArrayDeque<>();
+    /**
+     * The places at the top level of the module before the top-level statement being visited,
+     * innermost last. A construct which is hoisted out of the functions it is in is output to the last one,
+     * and pushes a place before itself for the constructs hoisted out of it.
+     */
+    private final ArrayDeque<IndentationAwareAppender> beforeModuleStatement = new ArrayDeque<>();
+    private final FreeVariables freeVariables = new FreeVariables();
+    private Constants constants = Constants.EMPTY;
+    private Defines defines = Defines.EMPTY;
+    /** The call to an inline function whose body is being visited in its place, innermost. */
+    private Inlining inlining;
+    /** The number of calls whose bodies are being visited, which numbers their temporaries. */
+    private int inliningDepth;
+    /**
+     * The atom or primary which the expression being output in the place of {@link #placedAt} is all of,
+     * so that what replaces it in turn is put in parentheses depending on where it is in the output.
+     */
+    private ParserRuleContext placedRoot, placedAt;
+
+    /**
+     * A call to an {@link InlineFunction} whose body is output in its place.
+     * @param site the call in the module which the outermost body is output in the place of
+     * @param outer the inlined call whose body the call is in
+     */
+    private static record Inlining(InlineFunction function, InlineFunction.Expansion expansion, int depth,
+                                   CallPrimaryContext site, Inlining outer) {}
 
     public Transpiler() {
-        this(new IndentationAwareAppender(), 0, 0);
+        this(new IndentationAwareAppender(), 0, 0, false, false);
     }
 
-    protected Transpiler(IndentationAwareAppender a, int syntheticLambdaCount, int syntheticClassCount) {
+    /**
+     * Creates a transpiler for part of a file, whose synthetic names are numbered from where
+     * the transpiler of the previous part stopped.
+     */
+    public Transpiler(int syntheticLambdaCount, int syntheticClassCount) {
+        this(new IndentationAwareAppender(), syntheticLambdaCount, syntheticClassCount, false, false);
+    }
+
+    /**
+     * Creates a transpiler for part of a file, whose synthetic names are numbered from where
+     * the transpiler of the previous part stopped.
+     * @param functoolsImported whether the previous parts imported {@code functools}, see {@link #usesFunctools()}
+     * @param cachedMethodDefined whether the previous parts defined the decorator of cached methods,
+     *                            see {@link #usesCachedMethod()}
+     */
+    public Transpiler(int syntheticLambdaCount, int syntheticClassCount, boolean functoolsImported,
+                      boolean cachedMethodDefined) {
+        this(new IndentationAwareAppender(), syntheticLambdaCount, syntheticClassCount, functoolsImported,
+             cachedMethodDefined);
+    }
+
+    protected Transpiler(IndentationAwareAppender a, int syntheticLambdaCount, int syntheticClassCount,
+                         boolean functoolsImported, boolean cachedMethodDefined) {
         this.a = Objects.requireNonNull(a);
         this.syntheticLambdaCount = syntheticLambdaCount;
         this.syntheticClassCount = syntheticClassCount;
+        this.functoolsImported = functoolsImported;
+        this.cachedMethodDefined = cachedMethodDefined;
     }
 
     private int syntheticLambdaCount, syntheticClassCount;
+    private boolean functoolsImported, usesFunctools, cachedMethodDefined, usesCachedMethod;
+    private IndentationAwareAppender functoolsImport;
+
+    private VerbatimSpans verbatimSpans;
+    /** The whole input, which the output refers to parts of instead of copying them. */
+    private String inputText;
+    private final CommentText commentText = new CommentText();
+
+    /**
+     * Sets the tokens the parse trees were parsed from, which lets the expressions that come out the way they
+     * are written be copied from the input instead of being visited, see {@link VerbatimSpans},
+     * and the text of the tokens be output as parts of the input instead of copies of it.
+     * The output is the same either way.
+     * @param tokens the tokens, or {@code null} to visit every expression
+     */
+    public void setTokens(CompactTokenStream tokens) {
+        verbatimSpans = tokens == null? null : new VerbatimSpans(tokens);
+        if (verbatimSpans != null) {
+            verbatimSpans.setConstants(constants);
+        }
+        inputText = tokens == null? null : tokens.getInputText();
+        freeVariables.setInputText(inputText);
+    }
+
+    /**
+     * Sets the defines which the conditions of {@code const if} statements are evaluated with, see
+     * {@link pyjava.PyJavaOptions#defines()}. There are none by default.
+     */
+    public void setDefines(Map<String, Object> defines) {
+        this.defines = Defines.of(defines);
+    }
+
+    /**
+     * Sets the constants of the module the statements are in, whose uses are replaced by their values.
+     * Visiting a whole file sets them from it.
+     */
+    void setConstants(Constants constants) {
+        this.constants = constants;
+        if (verbatimSpans != null) {
+            verbatimSpans.setConstants(constants);
+        }
+    }
+
+    /**
+     * Appends the text of a token, or of a rule which is a single token. When the input is known,
+     * the output refers to the token's part of it, so the text is only copied when it is written.
+     */
+    protected IndentationAwareAppender appendText(ParseTree tree) {
+        if (inputText != null) {
+            Token token = null;
+            if (tree instanceof TerminalNode terminal) {
+                token = terminal.getSymbol();
+            } else if (tree instanceof ParserRuleContext ctx && ctx.start == ctx.stop) {
+                token = ctx.start;
+            }
+            // a CommonToken may have text which isn't from the input
+            if (token != null && !(token instanceof CommonToken)) {
+                return a.append(inputText, token.getStartIndex(), token.getStopIndex() + 1);
+            }
+        }
+        return a.append(tree.getText());
+    }
+
+    /**
+     * @return the number the next synthetic lambda name will have
+     */
+    public int getSyntheticLambdaCount() {
+        return syntheticLambdaCount;
+    }
+
+    /**
+     * @return the number the next synthetic class name will have
+     */
+    public int getSyntheticClassCount() {
+        return syntheticClassCount;
+    }
+
+    /**
+     * @return whether anything output so far uses {@code functools}, which the first thing that does in a module
+     *         imports at the top level before the statement it is in
+     */
+    public boolean usesFunctools() {
+        return usesFunctools;
+    }
+
+    /**
+     * Imports {@code functools} before the current top-level statement, and before anything hoisted out of it,
+     * if it wasn't imported in the module yet.
+     */
+    protected void importFunctools() {
+        usesFunctools = true;
+        if (!functoolsImported) {
+            functoolsImported = true;
+            functoolsImport = beforeModuleStatement.getFirst().earlier().append("import functools").newline();
+        }
+    }
+
+    /**
+     * @return whether anything output so far uses the decorator of cached methods, which the first thing
+     *         that does in a module defines at the top level before the statement it is in
+     */
+    public boolean usesCachedMethod() {
+        return usesCachedMethod;
+    }
+
+    /**
+     * Defines {@value #CACHED_METHOD}, the decorator of cached methods, before the current top-level statement,
+     * if it wasn't defined in the module yet, and imports {@code functools} before it.
+     * <p>
+     * The decorator keeps a cache for each instance in the instance's {@code __dict__}, under a key made of
+     * the method's qualified name, so that an override calling the method it overrides with {@code super()}
+     * doesn't share its cache. The cache only refers to the instance weakly, so that it doesn't make a cycle
+     * through the instance.
+     */
+    protected void defineCachedMethod() {
+        usesCachedMethod = true;
+        if (!cachedMethodDefined) {
+            cachedMethodDefined = true;
+            importFunctools();
+            // right after the import if it is output by this transpiler, since it can be in the same statement
+            var definition = functoolsImport != null? functoolsImport : beforeModuleStatement.getFirst().earlier();
+            definition.append("import weakref").newline();
+            definition.append("def ").append(CACHED_METHOD).append("(cache):").incrIndent().newline();
+            definition.append("def decorator(method):").incrIndent().newline();
+            definition.append("key = '__cache_' + method.__qualname__").newline();
+            definition.append("def wrapper(self, *args, **kwargs):").incrIndent().newline();
+            definition.append("try:").incrIndent().newline();
+            definition.append("function = self.__dict__[key]").decrIndentNewline();
+            definition.append("except KeyError:").incrIndent().newline();
+            definition.append("ref = weakref.ref(self)").newline();
+            definition.append("function = self.__dict__[key] = cache(lambda *args, **kwargs: method(ref(), *args, **kwargs))")
+                      .decrIndentNewline();
+            definition.append("return function(*args, **kwargs)").decrIndentNewline();
+            definition.append("return functools.update_wrapper(wrapper, method)").decrIndentNewline();
+            definition.append("return decorator").decrIndentNewline();
+        } else {
+            importFunctools();
+        }
+    }
+
+    /** The name of the decorator of cached methods, which isn't mangled in a class body. */
+    private static final String CACHED_METHOD = "_cached_method";
 
     protected String getFirstArgumentIdentifier(ArgumentsContext args) {
         if (args == null) return "object";
@@ -86,20 +284,82 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     }
 
     protected void newStatement() {
-        beforeStatement.addLast(a.later());
+        var place = a.later();
+        if (beforeStatement.isEmpty()) {
+            beforeModuleStatement.addLast(place.later());
+        }
+        beforeStatement.addLast(place);
     }
 
     protected void endStatement() {
         beforeStatement.removeLast();
+        if (beforeStatement.isEmpty()) {
+            beforeModuleStatement.clear();
+        }
+    }
+
+    /**
+     * Makes the output go before the current statement, for a construct which is hoisted out of it.
+     * The construct is visited by this transpiler, so its synthetic names go on from the ones before it.
+     * @return the appender the output went to, to give back to {@link #endHoist(IndentationAwareAppender)}
+     */
+    protected IndentationAwareAppender beginHoist() {
+        var outer = a;
+        a = beforeStatement();
+        return outer;
+    }
+
+    /**
+     * Makes the output go back to where it went before {@link #beginHoist()}.
+     */
+    protected void endHoist(IndentationAwareAppender outer) {
+        a = outer;
+    }
+
+    /**
+     * Makes the output go to the top level of the module, before the current top-level statement,
+     * for a construct which is hoisted out of the functions it is in so that it is only run once.
+     * @return the appender the output went to, to give back to {@link #endModuleHoist(IndentationAwareAppender)}
+     */
+    protected IndentationAwareAppender beginModuleHoist() {
+        var outer = a;
+        a = beforeModuleStatement.getLast();
+        beforeModuleStatement.addLast(a.later());
+        return outer;
+    }
+
+    /**
+     * Makes the output go back to where it went before {@link #beginModuleHoist()}.
+     */
+    protected void endModuleHoist(IndentationAwareAppender outer) {
+        beforeModuleStatement.removeLast();
+        a = outer;
+    }
+
+    /**
+     * @param lambda a lambda which is output as a {@code def}
+     * @return whether the {@code def} goes to the top level of the module instead of before the current statement,
+     *         which it does if the lambda is in a function and captures nothing from it, see {@link FreeVariables}
+     */
+    private boolean hoistsToModule(ParserRuleContext lambda) {
+        return freeVariables.isClosureFree(lambda);
+    }
+
+    /**
+     * @return whether the class is defined once at the top level of the module instead of by a function
+     *         before the current statement, which it is if it captures nothing, see {@link FreeVariables}
+     */
+    private boolean hoistsToModule(AnonymousClassExpressionContext anonymousClass) {
+        return freeVariables.isClosureFree(anonymousClass);
     }
 
     @Override
     public Void visitEmptyStatement(EmptyStatementContext ctx) {
         handleComments(ctx.commentTokens);
         a.append("pass");
-        var comment = ctx.comment();
-        if (comment != null) {
-            comment.accept(this);
+        var semi = ctx.SEMI();
+        if (semi != null) {
+            appendComment(CommentTable.of(ctx).commentAfter(semi.getSymbol()));
         }
         a.newline();
         return null;
@@ -115,9 +375,25 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitConstStatement(ConstStatementContext ctx) {
+        if (!constants.isDeclaredBy(ctx)) {
+            throw new IllegalArgumentException("line "+ctx.start.getLine()+":"+ctx.start.getCharPositionInLine()
+                                               +" const is only allowed at the top level of a module");
+        }
+        newStatement();
+        handleComments(ctx.commentTokens);
+        appendText(ctx.identifier());
+        a.append(" = ");
+        ctx.expression().accept(this);
+        ctx.eos().accept(this);
+        endStatement();
+        return null;
+    }
+
     @Override
     public Void visitVarDeclAssignment(VarDeclAssignmentContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         ctx.annotation().accept(this);
         var annotatedRhs = ctx.annotatedRhs();
         if (annotatedRhs != null) {
@@ -150,7 +426,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     public Void visitSingleTarget(SingleTargetContext ctx) {
         var identifier = ctx.identifier();
         if (identifier != null) {
-            a.append(identifier.getText());
+            appendText(identifier);
             return null;
         }
         var singleTarget = ctx.singleTarget();
@@ -171,7 +447,8 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         ctx.tPrimary().accept(this);
         var identifier = ctx.identifier();
         if (identifier != null) {
-            a.append('.').append(identifier.getText());
+            a.append('.');
+            appendText(identifier);
         } else {
             a.append('[');
             ctx.slices().accept(this);
@@ -281,7 +558,8 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     @Override
     public Void visitPropertyTargetWithStarAtom(PropertyTargetWithStarAtomContext ctx) {
         ctx.tPrimary().accept(this);
-        a.append('.').append(ctx.identifier().getText());
+        a.append('.');
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -301,7 +579,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitNamedStarAtom(NamedStarAtomContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -472,7 +750,8 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     public Void visitDottedAsName(DottedAsNameContext ctx) {
         ctx.name.accept(this);
         if (ctx.alias != null) {
-            a.append(" as ").append(ctx.alias.getText());
+            a.append(" as ");
+            appendText(ctx.alias);
         }
         return null;
     }
@@ -531,9 +810,10 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitImportFromAsName(ImportFromAsNameContext ctx) {
-        a.append(ctx.name.getText());
+        appendText(ctx.name);
         if (ctx.alias != null) {
-            a.append(" as ").append(ctx.alias.getText());
+            a.append(" as ");
+            appendText(ctx.alias);
         }
         return null;
     }
@@ -584,7 +864,8 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     @Override
     public Void visitPropertyDelTarget(PropertyDelTargetContext ctx) {
         ctx.tPrimary().accept(this);
-        a.append('.').append(ctx.identifier().getText());
+        a.append('.');
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -599,7 +880,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitNameDelTarget(NameDelTargetContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -689,9 +970,10 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         handleComments(ctx.commentTokens);
         a.append("global ");
         var iter = ctx.identifier().iterator();
-        a.append(iter.next().getText());
+        appendText(iter.next());
         while (iter.hasNext()) {
-            a.append(", ").append(iter.next().getText());
+            a.append(", ");
+            appendText(iter.next());
         }
         ctx.eos().accept(this);
         return null;
@@ -702,9 +984,10 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         handleComments(ctx.commentTokens);
         a.append("nonlocal ");
         var iter = ctx.identifier().iterator();
-        a.append(iter.next().getText());
+        appendText(iter.next());
         while (iter.hasNext()) {
-            a.append(", ").append(iter.next().getText());
+            a.append(", ");
+            appendText(iter.next());
         }
         ctx.eos().accept(this);
         return null;
@@ -712,6 +995,10 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitFunctionDef(FunctionDefContext ctx) {
+        if (ctx.funcHeader().INLINE() != null && !constants.isDeclaredBy(ctx)) {
+            throw new IllegalArgumentException("line "+ctx.start.getLine()+":"+ctx.start.getCharPositionInLine()
+                                               +" inline def is only allowed at the top level of a module");
+        }
         newStatement();
         handleComments(ctx.commentTokens);
         var decorators = ctx.decorators();
@@ -724,52 +1011,50 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
             retType.accept(this);
         }
 
-        var comment = ctx.comment();
-        var comments = ctx.comments();
-
         var funcBody = ctx.funcBody();
-        var funcBodyComments = funcBody.comments();
         var statements = funcBody.statement();
         var iter = statements.iterator();
         
         var strLiteral = ctx.STRING_LITERAL();
+        var commentTable = CommentTable.of(ctx);
+        var next = strLiteral != null? strLiteral.getSymbol() : funcBody.start;
+        var comment = commentTable.commentBefore(next);
+        var comments = commentTable.commentsBefore(next);
+        var funcBodyComments = commentTable.commentsBefore(funcBody.stop);
         if (strLiteral != null) {
             a.append(':');
-            comment.accept(this);
+            appendComment(comment);
             a.incrIndent().newline();
-            comments.accept(this);
-            a.append(strLiteral.getText()).newline();
+            handleComments(comments);
+            appendText(strLiteral).newline();
         } else {
-            if (statements.size() == 1 && comment.commentToken == null && comments.commentTokens.isEmpty() && (funcBodyComments == null || funcBodyComments.commentTokens.isEmpty())) {
+            if (statements.size() == 1 && comment == null && comments.isEmpty() && funcBodyComments.isEmpty()) {
                 var first = statements.get(0);
                 if (first instanceof ExpressionStatementContext exprStmt) {
                     var expr = getGroupAtom(exprStmt.starExpressions());
                     if (expr instanceof EllipsisAtomContext) {
                         a.append(": ...").newline();
+                        endStatement();
                         return null;
                     }
                 }
             }
             a.append(':');
-            comment.accept(this);
+            appendComment(comment);
             a.incrIndent().newline();
-            comments.accept(this);
+            handleComments(comments);
         }
         if (iter.hasNext()) {
             do {
                 iter.next().accept(this);
             } while (iter.hasNext());
-            if (funcBodyComments != null) {
-                funcBodyComments.accept(this);
-            }
+            handleComments(funcBodyComments);
             a.decrIndentNewline();
         } else {
             if (strLiteral == null) {
                 a.append("pass").newline();
             }
-            if (funcBodyComments != null) {
-                funcBodyComments.accept(this);
-            }
+            handleComments(funcBodyComments);
             a.decrIndentNewline();
         }
         endStatement();
@@ -778,12 +1063,16 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitFuncHeader(FuncHeaderContext ctx) {
+        var cacheModifier = ctx.cacheModifier();
+        if (cacheModifier != null) {
+            cacheModifier.accept(this);
+        }
         if (ctx.ASYNC() != null) {
             a.append("async def ");
         } else {
             a.append("def ");
         }
-        a.append(ctx.identifier().getText()).append('(');
+        appendText(ctx.identifier()).append('(');
         var parameters = ctx.parameters();
         if (parameters != null) {
             parameters.accept(this);
@@ -792,6 +1081,84 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         return null;
     }
 
+    /**
+     * Outputs the decorator a {@code cached def} becomes, after the function's own decorators, which is
+     * a {@code functools.lru_cache}. A method, unless it is a static or class method, gets a cache for each
+     * instance instead, which is made the first time the method is called on the instance, so that the cache
+     * doesn't keep the instance alive, see {@link #defineCachedMethod()}. The cache is kept in the instance's
+     * {@code __dict__}, which a record doesn't have.
+     */
+    @Override
+    public Void visitCacheModifier(CacheModifierContext ctx) {
+        var functionDef = (FunctionDefContext) ctx.getParent().getParent();
+        if (isMethod(functionDef)) {
+            if (isInRecord(functionDef)) {
+                throw new IllegalArgumentException("line "+ctx.start.getLine()+":"+ctx.start.getCharPositionInLine()
+                                                   +" cached methods can't be used in a record, which has no __dict__");
+            }
+            defineCachedMethod();
+            a.append('@').append(CACHED_METHOD).append('(');
+            appendCache(ctx);
+            a.append(')');
+        } else {
+            importFunctools();
+            a.append('@');
+            appendCache(ctx);
+        }
+        a.newline();
+        return null;
+    }
+
+    private void appendCache(CacheModifierContext ctx) {
+        // functools.cache is new in Python 3.9
+        if (ctx.LPAREN() == null) {
+            a.append("functools.lru_cache(maxsize=None)");
+        } else {
+            a.append("functools.lru_cache(");
+            var arguments = ctx.arguments();
+            if (arguments != null) {
+                arguments.accept(this);
+            }
+            a.append(')');
+        }
+    }
+
+    /**
+     * @return whether the function is defined in a class body, and isn't a static or class method
+     */
+    private static boolean isMethod(FunctionDefContext functionDef) {
+        var decorators = functionDef.decorators();
+        if (decorators != null) {
+            for (var decorator : decorators.decorator()) {
+                var name = decorator.namedExpression().getText();
+                if (name.equals("staticmethod") || name.equals("classmethod")) {
+                    return false;
+                }
+            }
+        }
+        for (var node = functionDef.getParent(); node != null; node = node.getParent()) {
+            if (node instanceof ClassBodyContext) {
+                return true;
+            }
+            if (node instanceof FuncBodyContext) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the method is defined in the body of a record
+     */
+    private static boolean isInRecord(FunctionDefContext method) {
+        for (var node = method.getParent(); node != null; node = node.getParent()) {
+            if (node instanceof ClassBodyContext) {
+                return node.getParent() instanceof ClassDefContext classDef && classDef.classHeader().RECORD() != null;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Void visitParameters(ParametersContext ctx) {
         var slashNoDefault = ctx.slashNoDefault();
@@ -887,7 +1254,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitParamNoDefault(ParamNoDefaultContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         var annotation = ctx.annotation();
         if (annotation != null) {
             annotation.accept(this);
@@ -908,7 +1275,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitParamWithDefault(ParamWithDefaultContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         var annotation = ctx.annotation();
         if (annotation != null) {
             annotation.accept(this);
@@ -926,7 +1293,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitParamMaybeDefault(ParamMaybeDefaultContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         var annotation = ctx.annotation();
         if (annotation != null) {
             annotation.accept(this);
@@ -994,26 +1361,36 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
             decorators.accept(this);
         }
         ctx.classHeader().accept(this);
+        var strLiteral = ctx.STRING_LITERAL();
+        var classBody = ctx.classBody();
+        var commentTable = CommentTable.of(ctx);
+        var next = strLiteral != null? strLiteral.getSymbol() : classBody.start;
         a.append(':');
-        ctx.comment().accept(this);
+        appendComment(commentTable.commentBefore(next));
         a.incrIndent().newline();
-        ctx.comments().accept(this);
-        var strLiteral = ctx.STRING_LITERAL();
+        handleComments(commentTable.commentsBefore(next));
         if (strLiteral != null) {
-            a.append(strLiteral.getText());
+            appendText(strLiteral).newline();
         }
-        var classBody = ctx.classBody();
-        var classBodyComments = classBody.comments();
+        var header = ctx.classHeader();
+        boolean record = header.RECORD() != null;
+        if (record) {
+            appendRecordMembers(header);
+        }
+        var classBodyComments = commentTable.commentsBefore(classBody.stop);
         var iter = classBody.statement().iterator();
         if (iter.hasNext()) {
             do {
                 iter.next().accept(this);
             } while (iter.hasNext());
-            classBodyComments.accept(this);
+            handleComments(classBodyComments);
+            a.decrIndentNewline();
+        } else if (record || strLiteral != null) {
+            handleComments(classBodyComments);
             a.decrIndentNewline();
-        } else if (!classBodyComments.commentTokens.isEmpty()) {
+        } else if (!classBodyComments.isEmpty()) {
             a.append("pass").newline();
-            classBodyComments.accept(this);
+            handleComments(classBodyComments);
             a.decrIndentNewline();
         } else {
             a.append("pass").decrIndent().newline();
@@ -1024,8 +1401,11 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitClassHeader(ClassHeaderContext ctx) {
-        a.append("class ").append(ctx.identifier().getText());
-        if (ctx.LPAREN() != null) {
+        a.append("class ");
+        appendText(ctx.identifier());
+        if (ctx.RECORD() != null) {
+            appendRecordBases(ctx);
+        } else if (!ctx.LPAREN().isEmpty()) {
             a.append('(');
             var arguments = ctx.arguments();
             if (arguments != null) {
@@ -1036,6 +1416,152 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         return null;
     }
 
+    /**
+     * Outputs the superclass arguments of a record, which come after its fields, without its {@code hash} option.
+     */
+    private void appendRecordBases(ClassHeaderContext ctx) {
+        var arguments = ctx.arguments();
+        if (arguments == null) {
+            return;
+        }
+        var hashOption = recordHashOption(ctx);
+        var bases = new ArrayList<ParserRuleContext>(arguments.argument());
+        var kwargs = arguments.kwargs();
+        if (kwargs != null) {
+            for (var kwarg : kwargs.getRuleContexts(ParserRuleContext.class)) {
+                if (kwarg != hashOption) {
+                    bases.add(kwarg);
+                }
+            }
+        }
+        if (!bases.isEmpty()) {
+            a.append('(');
+            var iter = bases.iterator();
+            iter.next().accept(this);
+            while (iter.hasNext()) {
+                a.append(", ");
+                iter.next().accept(this);
+            }
+            a.append(')');
+        }
+    }
+
+    /**
+     * @return the {@code hash=} keyword argument among the superclass arguments of a record, or {@code null}
+     */
+    private static ParserRuleContext recordHashOption(ClassHeaderContext ctx) {
+        var arguments = ctx.arguments();
+        var kwargs = arguments == null? null : arguments.kwargs();
+        if (kwargs != null) {
+            for (var kwarg : kwargs.getRuleContexts(ParserRuleContext.class)) {
+                var identifier = kwarg.getRuleContext(IdentifierContext.class, 0);
+                if (identifier != null && identifier.getText().equals("hash")) {
+                    return kwarg;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Outputs the members a record gets from its fields: {@code __slots__}, so that its instances have no
+     * {@code __dict__}, an {@code __init__} taking the fields in order, a {@code __repr__} and an {@code __eq__}
+     * comparing the fields of records of the same class. A {@code __hash__} of the fields is added if the record's
+     * {@code hash} option is true. The record's own body comes after them, so it can replace any of them.
+     */
+    private void appendRecordMembers(ClassHeaderContext ctx) {
+        var recordFields = ctx.recordFields();
+        var fields = recordFields == null? List.<RecordFieldContext>of() : recordFields.recordField();
+        var names = new ArrayList<String>(fields.size());
+        for (var field : fields) {
+            names.add(field.identifier().getText());
+        }
+
+        a.append("__slots__ = ");
+        appendTuple(names, "'", "'");
+        a.newline();
+
+        a.append("def __init__(self");
+        for (var field : fields) {
+            a.append(", ");
+            appendText(field.identifier());
+            var annotation = field.annotation();
+            if (annotation != null) {
+                annotation.accept(this);
+            }
+            var defaultVal = field.defaultVal();
+            if (defaultVal != null) {
+                defaultVal.accept(this);
+            }
+        }
+        a.append("):").incrIndent().newline();
+        if (names.isEmpty()) {
+            a.append("pass").newline();
+        }
+        for (var name : names) {
+            a.append("self.").append(name).append(" = ").append(name).newline();
+        }
+        a.decrIndentNewline();
+
+        a.append("def __repr__(self):").incrIndent().newline();
+        a.append("return f'").append(ctx.identifier().getText()).append('(');
+        for (int i = 0; i < names.size(); i++) {
+            if (i != 0) {
+                a.append(", ");
+            }
+            a.append(names.get(i)).append("={self.").append(names.get(i)).append("!r}");
+        }
+        a.append(")'").decrIndentNewline();
+
+        a.append("def __eq__(self, other):").incrIndent().newline();
+        a.append("if other.__class__ is not self.__class__:").incrIndent().newline();
+        a.append("return NotImplemented").decrIndentNewline();
+        a.append("return ");
+        appendTuple(names, "self.", "");
+        a.append(" == ");
+        appendTuple(names, "other.", "");
+        a.decrIndentNewline();
+
+        var hashOption = recordHashOption(ctx);
+        if (hashOption != null) {
+            var condition = hashOption.getRuleContext(ExpressionContext.class, 0);
+            if (condition.getText().equals("False")) {
+                return;
+            }
+            boolean conditional = !condition.getText().equals("True");
+            if (conditional) {
+                // the option is only known when the class is defined
+                a.append("if ");
+                condition.accept(this);
+                a.append(':').incrIndent().newline();
+            }
+            a.append("def __hash__(self):").incrIndent().newline();
+            a.append("return hash(");
+            appendTuple(names, "self.", "");
+            a.append(')').decrIndentNewline();
+            if (conditional) {
+                a.decrIndentNewline();
+            }
+        }
+    }
+
+    /**
+     * Outputs a tuple of the names, each one between the given prefix and suffix.
+     */
+    private void appendTuple(List<String> names, String prefix, String suffix) {
+        a.append('(');
+        for (int i = 0; i < names.size(); i++) {
+            if (i != 0) {
+                a.append(", ");
+            }
+            a.append(prefix).append(names.get(i)).append(suffix);
+        }
+        if (names.size() == 1) {
+            a.append(',');
+        }
+        a.append(')');
+    }
+
     @Override
     public Void visitDecorators(DecoratorsContext ctx) {
         for (var decorator : ctx.decorator()) {
@@ -1048,19 +1574,10 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     public Void visitDecorator(DecoratorContext ctx) {
         a.append('@');
         ctx.namedExpression().accept(this);
-        // var comment = ctx.comment();
-        // List<Token> comments = ctx.comments().commentTokens;
-        // if (comment.commentToken != null) {
-        //     if (!comments.isEmpty() && comments.get(0) == comment.commentToken) {
-        //         comments = comments.subList(1, comments.size());
-        //     }
-        //     a.append(' ');
-        //     comment.accept(this);
-        // }
-        ctx.comment().accept(this);
+        var commentTable = CommentTable.of(ctx);
+        appendComment(commentTable.commentAfter(ctx.stop));
         a.newline();
-        ctx.comments().accept(this);
-        // handleComments(comments);
+        handleComments(commentTable.commentsAfter(ctx.stop));
         return null;
     }
 
@@ -1099,7 +1616,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitAssignmentExpression(AssignmentExpressionContext ctx) {
-        a.append(ctx.identifier().getText()).append(" := ");
+        appendText(ctx.identifier()).append(" := ");
         ctx.expression().accept(this);
         return null;
     }
@@ -1130,7 +1647,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         if (starredExpression != null) {
             starredExpression.accept(this);
         } else {
-            a.append(ctx.identifier().getText()).append('=');
+            appendText(ctx.identifier()).append('=');
             ctx.expression().accept(this);
         }
         return null;
@@ -1140,7 +1657,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     public Void visitKwargOrDoubleStarred(KwargOrDoubleStarredContext ctx) {
         var identifier = ctx.identifier();
         if (identifier != null) {
-            a.append(ctx.identifier().getText()).append('=');
+            appendText(ctx.identifier()).append('=');
         } else {
             a.append("**");
         }
@@ -1200,6 +1717,61 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         return null;
     }
 
+    /**
+     * Outputs the statements of the branch whose condition is true with the defines, or of the else block,
+     * in the place of the whole statement, and nothing for the other branches. A {@code pass} is output after
+     * the last statement of a block if none of its statements output anything, since the block would otherwise
+     * be empty.
+     */
+    @Override
+    public Void visitConstIfStatement(ConstIfStatementContext ctx) {
+        handleComments(ctx.commentTokens);
+        var chosen = defines.choose(ctx);
+        if (chosen != null) {
+            for (var statement : chosen.statement()) {
+                statement.accept(this);
+            }
+            if (chosen.LBRACE() != null) {
+                handleComments(CommentTable.of(chosen).commentsBefore(chosen.stop));
+            }
+        }
+        var parent = ctx.getParent();
+        if (!(parent instanceof FileContext) && !isConstIfBranch(parent)) {
+            var statements = parent.getRuleContexts(StatementContext.class);
+            if (statements.get(statements.size() - 1) == ctx && statements.stream().noneMatch(this::hasOutput)) {
+                a.append("pass").newline();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the node is a block of a {@code const if}, whose statements are output in the place of
+     *         the {@code const if}, so that the block the {@code const if} is in decides about the {@code pass}
+     */
+    private static boolean isConstIfBranch(ParserRuleContext node) {
+        if (!(node instanceof BlockContext)) {
+            return false;
+        }
+        var parent = node.getParent();
+        if (parent instanceof ElifContext || parent instanceof ElseBlockContext) {
+            parent = parent.getParent();
+        }
+        return parent instanceof ConstIfStatementContext;
+    }
+
+    /**
+     * @return whether the statement outputs anything, which a {@code const if} does only if the branch chosen
+     *         by the defines does
+     */
+    private boolean hasOutput(StatementContext statement) {
+        if (statement instanceof ConstIfStatementContext constIf) {
+            var chosen = defines.choose(constIf);
+            return chosen != null && chosen.statement().stream().anyMatch(this::hasOutput);
+        }
+        return true;
+    }
+
     @Override
     public Void visitElif(ElifContext ctx) {
         handleComments(ctx.commentTokens);
@@ -1220,9 +1792,9 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     @Override
     public Void visitFuncBody(FuncBodyContext ctx) {
         var statements = ctx.statement();
-        var comments = ctx.comments();
+        var comments = CommentTable.of(ctx).commentsBefore(ctx.stop);
         var iter = statements.iterator();
-        if (statements.size() == 1 && comments.commentTokens.isEmpty()) {
+        if (statements.size() == 1 && comments.isEmpty()) {
             var first = statements.get(0);
             if (first instanceof ExpressionStatementContext exprStmt) {
                 var expr = getGroupAtom(exprStmt.starExpressions());
@@ -1238,12 +1810,12 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
             do {
                 iter.next().accept(this);
             } while (iter.hasNext());
-            comments.accept(this);
+            handleComments(comments);
             a.decrIndentNewline();
-        } else if (!comments.commentTokens.isEmpty()) {
+        } else if (!comments.isEmpty()) {
             a.incrIndent().newline()
              .append("pass").newline();
-            comments.accept(this);
+            handleComments(comments);
             a.decrIndentNewline();
         } else {
             a.append(" pass").newline();
@@ -1253,7 +1825,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitClassBody(ClassBodyContext ctx) {
-        var comments = ctx.comments();
+        var comments = CommentTable.of(ctx).commentsBefore(ctx.stop);
         var iter = ctx.statement().iterator();
         a.append(':');
         if (iter.hasNext()) {
@@ -1261,12 +1833,12 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
             do {
                 iter.next().accept(this);
             } while (iter.hasNext());
-            comments.accept(this);
+            handleComments(comments);
             a.decrIndentNewline();
-        } else if (!comments.commentTokens.isEmpty()) {
+        } else if (!comments.isEmpty()) {
             a.incrIndent().newline()
              .append("pass").newline();
-            comments.accept(this);
+            handleComments(comments);
             a.decrIndentNewline();
         } else {
             a.append(" pass").newline();
@@ -1276,29 +1848,38 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitBlock(BlockContext ctx) {
-        var comments = ctx.comments();
+        var commentTable = CommentTable.of(ctx);
+        List<Token> comments = null;
+        Token comment, innerComment = null;
+        var lbrace = ctx.LBRACE();
+        var colon = ctx.COLON();
+        if (lbrace != null) {
+            comment = commentTable.commentBefore(lbrace.getSymbol());
+            innerComment = commentTable.lineCommentAfter(lbrace.getSymbol());
+            comments = commentTable.commentsBefore(ctx.stop);
+        } else if (colon != null) {
+            comment = commentTable.lineCommentAfter(colon.getSymbol());
+        } else {
+            comment = commentTable.lineCommentBefore(ctx.start);
+        }
         var iter = ctx.statement().iterator();
         a.append(':');
-        boolean hasComment = false;
-        for (var comment : ctx.comment()) {
-            comment.accept(this);
-            if (comment.commentToken != null) {
-                hasComment = true;
-            }
-        }
+        appendComment(comment);
+        appendComment(innerComment);
+        boolean hasComment = comment != null || innerComment != null;
         if (iter.hasNext()) {
             a.incrIndent().newline();
             do {
                 iter.next().accept(this);
             } while (iter.hasNext());
             if (comments != null) {
-                comments.accept(this);
+                handleComments(comments);
             }
             a.decrIndentNewline();
-        } else if (comments != null && !comments.commentTokens.isEmpty()) {
+        } else if (comments != null && !comments.isEmpty()) {
             a.incrIndent().newline();
             a.append("pass").newline();
-            comments.accept(this);
+            handleComments(comments);
             a.decrIndentNewline();
         } else if (hasComment) {
             a.incrIndent().newline().append("pass").decrIndent().newline();
@@ -1429,7 +2010,8 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         ctx.expression().accept(this);
         var identifier = ctx.identifier();
         if (identifier != null) {
-            a.append(" as ").append(identifier.getText());
+            a.append(" as ");
+            appendText(identifier);
         }
         return null;
     }
@@ -1448,9 +2030,10 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         a.append("match ");
         ctx.subjectExprCond().accept(this);
         a.append(':');
-        for (var comment : ctx.comment()) {
-            comment.accept(this);
-        }
+        var commentTable = CommentTable.of(ctx);
+        var lbrace = ctx.LBRACE().getSymbol();
+        appendComment(commentTable.commentBefore(lbrace));
+        appendComment(commentTable.lineCommentAfter(lbrace));
         a.incrIndent().newline();
         for (var caseBlock : ctx.caseBlock()) {
             caseBlock.accept(this);
@@ -1661,9 +2244,10 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     @Override
     public Void visitStrings(StringsContext ctx) {
         var iter = ctx.children.iterator();
-        a.append(iter.next().getText());
+        appendText(iter.next());
         while (iter.hasNext()) {
-            a.append(' ').append(iter.next().getText());
+            a.append(' ');
+            appendText(iter.next());
         }
         return null;
     }
@@ -1688,7 +2272,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitPatternCaptureTarget(PatternCaptureTargetContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -1735,7 +2319,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitKeywordPattern(KeywordPatternContext ctx) {
-        a.append(ctx.identifier().getText()).append('=');
+        appendText(ctx.identifier()).append('=');
         ctx.pattern().accept(this);
         return null;
     }
@@ -1793,7 +2377,8 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     @Override
     public Void visitAttr(AttrContext ctx) {
         ctx.dottedName().accept(this);
-        a.append('.').append(ctx.identifier().getText());
+        a.append('.');
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -1822,31 +2407,32 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         var retType = lambdaHeader.retType();
         if (hasLParen || isAsync || retType != null) {
             final String name = syntheticLambdaName();
-            {
-                var a = this.beforeStatement();
-                var that = new Transpiler(a, this.syntheticLambdaCount, this.syntheticClassCount);
-                that.newStatement();
-                if (isAsync) {
-                    a.append("async def ");
-                } else {
-                    a.append("def ");
-                }
-                a.append(name).append('(');
-                if (parameters != null) {
-                    parameters.accept(that);
-                } else if (lambdaParameters != null) {
-                    lambdaParameters.accept(that);
-                }
-                a.append(')');
-                if (retType != null) {
-                    retType.accept(that);
-                }
-                a.append(": return ");
-                ctx.expression().accept(that);
-                a.newline();
-                that.endStatement();
-                this.syntheticLambdaCount = that.syntheticLambdaCount;
-                this.syntheticClassCount  = that.syntheticClassCount;
+            boolean toModule = hoistsToModule(ctx);
+            var outer = toModule? beginModuleHoist() : beginHoist();
+            newStatement();
+            if (isAsync) {
+                a.append("async def ");
+            } else {
+                a.append("def ");
+            }
+            a.append(name).append('(');
+            if (parameters != null) {
+                parameters.accept(this);
+            } else if (lambdaParameters != null) {
+                lambdaParameters.accept(this);
+            }
+            a.append(')');
+            if (retType != null) {
+                retType.accept(this);
+            }
+            a.append(": return ");
+            ctx.expression().accept(this);
+            a.newline();
+            endStatement();
+            if (toModule) {
+                endModuleHoist(outer);
+            } else {
+                endHoist(outer);
             }
             a.append(name);
         } else {
@@ -1906,31 +2492,32 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
             return null;
         }
         final String name = syntheticLambdaName();
-        {
-            var a = this.beforeStatement();
-            var that = new Transpiler(a, this.syntheticLambdaCount, this.syntheticClassCount);
-            that.newStatement();
-            if (lambdaHeader.ASYNC() != null) {
-                a.append("async def ");
-            } else {
-                a.append("def ");
-            }
-            a.append(name).append('(');
-            var parameters = lambdaHeader.parameters();
-            var lambdaParameters = lambdaHeader.lambdaParameters();
-            if (parameters != null) {
-                parameters.accept(that);
-            } else if (lambdaParameters != null) {
-                lambdaParameters.accept(that);
-            }
-            a.append(')');
-            if (retType != null) {
-                retType.accept(that);
-            }
-            funcBody.accept(that);
-            that.endStatement();
-            this.syntheticLambdaCount = that.syntheticLambdaCount;
-            this.syntheticClassCount  = that.syntheticClassCount;
+        boolean toModule = hoistsToModule(ctx);
+        var outer = toModule? beginModuleHoist() : beginHoist();
+        newStatement();
+        if (lambdaHeader.ASYNC() != null) {
+            a.append("async def ");
+        } else {
+            a.append("def ");
+        }
+        a.append(name).append('(');
+        var parameters = lambdaHeader.parameters();
+        var lambdaParameters = lambdaHeader.lambdaParameters();
+        if (parameters != null) {
+            parameters.accept(this);
+        } else if (lambdaParameters != null) {
+            lambdaParameters.accept(this);
+        }
+        a.append(')');
+        if (retType != null) {
+            retType.accept(this);
+        }
+        funcBody.accept(this);
+        endStatement();
+        if (toModule) {
+            endModuleHoist(outer);
+        } else {
+            endHoist(outer);
         }
         a.append(name);
         return null;
@@ -2036,7 +2623,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitLambdaParamNoDefault(LambdaParamNoDefaultContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -2053,14 +2640,14 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitLambdaParamWithDefault(LambdaParamWithDefaultContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         ctx.defaultVal().accept(this);
         return null;
     }
 
     @Override
     public Void visitLambdaParamMaybeDefault(LambdaParamMaybeDefaultContext ctx) {
-        a.append(ctx.identifier().getText());
+        appendText(ctx.identifier());
         var defaultVal = ctx.defaultVal();
         if (defaultVal != null) {
             defaultVal.accept(this);
@@ -2110,6 +2697,10 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitDisjunction(DisjunctionContext ctx) {
+        // the body of an inline function has its parameters replaced
+        if (verbatimSpans != null && inlining == null && verbatimSpans.appendTo(a, ctx)) {
+            return null;
+        }
         var iter = ctx.conjunction().iterator();
         iter.next().accept(this);
         while (iter.hasNext()) {
@@ -2302,7 +2893,8 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     @Override
     public Void visitPropertyPrimary(PropertyPrimaryContext ctx) {
         ctx.primary().accept(this);
-        a.append('.').append(ctx.identifier().getText());
+        a.append('.');
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -2315,6 +2907,9 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitCallPrimary(CallPrimaryContext ctx) {
+        if (!constants.isEmpty() && appendInlined(ctx)) {
+            return null;
+        }
         ctx.primary().accept(this);
         a.append('(');
         var arguments = ctx.arguments();
@@ -2354,7 +2949,8 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
     @Override
     public Void visitPropertyTPrimary(PropertyTPrimaryContext ctx) {
         ctx.tPrimary().accept(this);
-        a.append('.').append(ctx.identifier().getText());
+        a.append('.');
+        appendText(ctx.identifier());
         return null;
     }
 
@@ -2431,10 +3027,201 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitNamedAtom(NamedAtomContext ctx) {
-        a.append(ctx.identifier().getText());
+        if (inlining != null) {
+            var binding = inlining.expansion().bindings().get(ctx);
+            if (binding != null) {
+                appendArgument(ctx, binding);
+                return null;
+            }
+        }
+        if (!constants.isEmpty()) {
+            var declaration = constants.get(ctx.getText());
+            if (declaration != null && freeVariables.isGlobal(ctx.identifier())) {
+                appendInPlaceOf(ctx, declaration.expression());
+                return null;
+            }
+        }
+        appendText(ctx.identifier());
         return null;
     }
 
+    /**
+     * Outputs the body of an inline function in the place of a call to it, if the call can be inlined,
+     * see {@link InlineFunction}. A call in the body of the function itself isn't, so a recursive function
+     * isn't unrolled. Neither is a call where the body would use another variable than in the function,
+     * or where the arguments would have to be assigned to temporaries which wouldn't be local variables of a function.
+     * @return {@code false} if the call must be output instead
+     */
+    private boolean appendInlined(CallPrimaryContext call) {
+        if (!(call.primary() instanceof AtomPrimaryContext primary && primary.atom() instanceof NamedAtomContext name)) {
+            return false;
+        }
+        var function = constants.getInlineFunction(name.getText());
+        if (function == null || !freeVariables.isGlobal(name.identifier())) {
+            return false;
+        }
+        for (var outer = inlining; outer != null; outer = outer.outer()) {
+            if (outer.function() == function) {
+                return false;
+            }
+        }
+        if (inlining == null) {
+            for (var node = call.getParent(); node != null; node = node.getParent()) {
+                if (node == function.getDeclaration()) {
+                    return false;
+                }
+            }
+        }
+        var expansion = function.expand(call, this::kindOf, this::hasSideEffects);
+        if (expansion == null) {
+            return false;
+        }
+        var site = inlining == null? call : inlining.site();
+        if (expansion.bindings().containsValue(InlineFunction.Binding.ASSIGN) && !freeVariables.allowsTemporary(site)) {
+            return false;
+        }
+        for (String global : function.getGlobals()) {
+            if (constants.get(global) == null && freeVariables.isShadowed(site, global)) {
+                return false;
+            }
+        }
+        var previous = inlining;
+        inlining = new Inlining(function, expansion, inliningDepth++, site, previous);
+        try {
+            appendInPlaceOf(call, function.getBody());
+        } finally {
+            inlining = previous;
+            inliningDepth--;
+        }
+        return true;
+    }
+
+    /**
+     * Outputs a use of a parameter in the body of an inline function being output in the place of a call.
+     * The argument is visited in the context of the call, which may itself be in the body of another one.
+     */
+    private void appendArgument(NamedAtomContext use, InlineFunction.Binding binding) {
+        var current = inlining;
+        int parameter = current.function().parameterOf(use);
+        String temporary = constants.getTemporary(current.depth(), use.getText());
+        var argument = current.expansion().arguments().get(parameter);
+        if (binding == InlineFunction.Binding.READ) {
+            a.append(temporary);
+            return;
+        }
+        inlining = current.outer();
+        try {
+            if (binding == InlineFunction.Binding.ASSIGN) {
+                a.append('(').append(temporary).append(" := ");
+                argument.accept(this);
+                a.append(')');
+            } else {
+                appendInPlaceOf(use, argument);
+            }
+        } finally {
+            inlining = current;
+        }
+    }
+
+    /**
+     * @return whether the call in the body of an inline function may have side effects, which it doesn't
+     *         if it is to an inline function in which nothing may run code of the program
+     */
+    private boolean hasSideEffects(CallPrimaryContext call) {
+        if (call.primary() instanceof AtomPrimaryContext primary && primary.atom() instanceof NamedAtomContext name) {
+            var function = constants.getInlineFunction(name.getText());
+            return function == null || !function.hasNoEffects() || !freeVariables.isGlobal(name.identifier());
+        }
+        return true;
+    }
+
+    /**
+     * @return what the argument of a call to an inline function is, which for a parameter of an inlined call
+     *         the call is in is what the parameter is replaced by
+     */
+    private InlineFunction.ArgumentKind kindOf(ExpressionContext argument) {
+        var context = inlining;
+        while (true) {
+            var atom = getGroupAtom(argument);
+            if (atom instanceof NamedAtomContext name) {
+                var binding = context == null? null : context.expansion().bindings().get(name);
+                if (binding == null) {
+                    return constants.get(name.getText()) != null && freeVariables.isGlobal(name.identifier())
+                            || freeVariables.isUnsharedLocal(name.identifier())?
+                            InlineFunction.ArgumentKind.LITERAL : InlineFunction.ArgumentKind.NAME;
+                }
+                if (binding != InlineFunction.Binding.SUBSTITUTE) {
+                    // a temporary isn't rebound while it is in use
+                    return binding == InlineFunction.Binding.READ? InlineFunction.ArgumentKind.LITERAL
+                            : InlineFunction.ArgumentKind.EXPRESSION;
+                }
+                argument = context.expansion().arguments().get(context.function().parameterOf(name));
+                context = context.outer();
+            } else if (atom instanceof NumberAtomContext || atom instanceof TrueAtomContext || atom instanceof FalseAtomContext
+                    || atom instanceof NoneAtomContext || atom instanceof EllipsisAtomContext) {
+                return InlineFunction.ArgumentKind.LITERAL;
+            } else {
+                return InlineFunction.ArgumentKind.EXPRESSION;
+            }
+        }
+    }
+
+    /**
+     * Outputs the value of a constant in the place of a use of it, or an expression in the place of a call or
+     * a parameter it replaces, in parentheses unless it is a single atom or the use is a whole expression.
+     * A number is put in parentheses before an attribute, which it would otherwise be read as the decimal point of.
+     * A name or a primary, which may be replaced in turn, goes where the use is.
+     * @param use the atom or primary being replaced
+     */
+    private void appendInPlaceOf(ParserRuleContext use, ExpressionContext value) {
+        var position = use == placedRoot? placedAt : use;
+        var atom = getGroupAtom(value);
+        var primary = getPrimary(value);
+        boolean parens;
+        if (atom instanceof NumberAtomContext) {
+            parens = (position instanceof AtomContext? position.getParent() : position).getParent() instanceof PropertyPrimaryContext;
+        } else if (atom instanceof NamedAtomContext || atom instanceof StringsAtomContext || atom instanceof TrueAtomContext
+                || atom instanceof FalseAtomContext || atom instanceof NoneAtomContext || atom instanceof EllipsisAtomContext
+                || atom instanceof GroupAtomContext || atom instanceof TupleAtomContext
+                || atom == value && primary != value && !(primary instanceof AtomPrimaryContext)) {
+            parens = false;
+        } else {
+            parens = !isWholeExpression(position);
+        }
+        var previousRoot = placedRoot;
+        var previousAt = placedAt;
+        placedRoot = parens? null : atom != value? (ParserRuleContext) atom : (ParserRuleContext) primary;
+        placedAt = position;
+        try {
+            if (parens) {
+                a.append('(');
+                value.accept(this);
+                a.append(')');
+            } else {
+                value.accept(this);
+            }
+        } finally {
+            placedRoot = previousRoot;
+            placedAt = previousAt;
+        }
+    }
+
+    /**
+     * @return whether the atom or primary is all there is to the expression it is in
+     */
+    private static boolean isWholeExpression(ParserRuleContext use) {
+        ParseTree tree = use;
+        for (var parent = use.getParent(); parent != null; tree = parent, parent = parent.getParent()) {
+            if (SingleChild.of(parent) != tree) {
+                return false;
+            }
+            if (parent instanceof ExpressionContext) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Void visitTrueAtom(TrueAtomContext ctx) {
         a.append("True");
@@ -2460,7 +3247,14 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitNumberAtom(NumberAtomContext ctx) {
-        a.append(ctx.NUMBER().getText());
+        appendText(ctx.NUMBER());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralTableAtom(LiteralTableAtomContext ctx) {
+        // the token's text is already formatted, see CompactTokenStream.setCollapseLiteralTables
+        a.append(ctx.LITERAL_TABLE().getText());
         return null;
     }
 
@@ -2535,13 +3329,21 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitFile(FileContext ctx) {
+        setConstants(Constants.of(List.of(ctx), defines));
         for (var statement : ctx.statement()) {
             statement.accept(this);
         }
-        ctx.comments().accept(this);
+        handleTrailingComments(ctx);
         return null;
     }
 
+    /**
+     * Outputs the comments after the last statement of the file.
+     */
+    protected void handleTrailingComments(FileContext ctx) {
+        handleComments(ctx.commentTable.commentsBefore(ctx.EOF().getSymbol()));
+    }
+
     @Override
     public Void visitFilter(FilterContext ctx) {
         a.append("if ");
@@ -2565,7 +3367,7 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
 
     @Override
     public Void visitRealNumber(RealNumberContext ctx) {
-        a.append(ctx.NUMBER().getText());
+        appendText(ctx.NUMBER());
         return null;
     }
 
@@ -2583,13 +3385,13 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         if (ctx.MINUS() != null) {
             a.append('-');
         }
-        a.append(ctx.NUMBER().getText());
+        appendText(ctx.NUMBER());
         return null;
     }
 
     @Override
     public Void visitImaginaryNumber(ImaginaryNumberContext ctx) {
-        a.append(ctx.NUMBER().getText());
+        appendText(ctx.NUMBER());
         return null;
     }
 
@@ -2673,34 +3475,39 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         var genExp = ctx.genExp();
         final String name;
         name = syntheticClassName(getFirstArgumentIdentifier(ctx.superClassArgs));
-        {
-            var a = this.beforeStatement();
-            var that = new Transpiler(a, syntheticLambdaCount, syntheticClassCount);
+        // a class which captures nothing is only defined once, otherwise a function makes it every time
+        boolean toModule = hoistsToModule(ctx);
+        var outer = toModule? beginModuleHoist() : beginHoist();
+        if (!toModule) {
             a.append("def ").append(name).append("():").incrIndent().newline();
-            that.newStatement();
-            a.append("class ").append(name);
-            boolean hasParens;
+        }
+        newStatement();
+        a.append("class ").append(name);
+        boolean hasParens;
+        if (ctx.superClassArgs != null) {
+            hasParens = true;
+        } else if (genExp != null) {
+            hasParens = ctx.LPAREN(0) != null;
+        } else {
+            hasParens = ctx.LPAREN(1) != null;
+        }
+        if (hasParens) {
+            a.append('(');
             if (ctx.superClassArgs != null) {
-                hasParens = true;
-            } else if (genExp != null) {
-                hasParens = ctx.LPAREN(0) != null;
-            } else {
-                hasParens = ctx.LPAREN(1) != null;
+                ctx.superClassArgs.accept(this);
             }
-            if (hasParens) {
-                a.append('(');
-                if (ctx.superClassArgs != null) {
-                    ctx.superClassArgs.accept(that);
-                }
-                a.append(')');
-            }
-            ctx.classBody().accept(that);
-            that.endStatement();
+            a.append(')');
+        }
+        ctx.classBody().accept(this);
+        endStatement();
+        if (toModule) {
+            endModuleHoist(outer);
+            a.append(name);
+        } else {
             a.append("return ").append(name).decrIndent().newline();
-            this.syntheticLambdaCount = that.syntheticLambdaCount;
-            this.syntheticClassCount  = that.syntheticClassCount;
+            endHoist(outer);
+            a.append(name).append("()");
         }
-        a.append(name).append("()");
         if (genExp != null) {
             genExp.accept(this);
         } else {
@@ -2739,95 +3546,60 @@ public class Transpiler extends PyJavaParserBaseVisitor<Void> {
         return ctx.genExp().accept(this);
     }
 
-    private static final Pattern BLOCK_COMMENT_SINGLE_LINE = Pattern.compile("^#\\{(?:[^#\r\n]|#[^}\r\n])*#}$");
-    private static final Pattern BLOCK_COMMENT_BEGIN_EMPTY = Pattern.compile("^#\\{[\s\t]*$");
-    private static final Pattern BLOCK_COMMENT_END_EMPTY   = Pattern.compile("^[\s\t]*#}$");
-    private static final Pattern LEADING_HASH = Pattern.compile("\\A[\s\t]*#");
-
     protected void handleComments(List<Token> commentTokens) {
         for (var commentToken : commentTokens) {
-            for (var line : getCommentText(commentToken)) {
-                a.append("# "+line).newline();
+            var lines = commentText(commentToken);
+            for (int i = 0; i < lines.size(); i++) {
+                a.append("# ").append(lines.text(), lines.start(i), lines.end(i)).newline();
             }
         }
     }
 
     @Override
     public Void visitEos(EosContext ctx) {
-        var comment = ctx.comment();
-        if (comment != null) {
-            comment.accept(this);
-        }
+        var commentTable = CommentTable.of(ctx);
+        var semi = ctx.SEMI();
+        // without a semicolon, the comment is before the token after the statement, or EOF
+        appendComment(semi != null? commentTable.commentAfter(semi.getSymbol()) : commentTable.commentBefore(ctx.start));
         a.newline();
         return null;
     }
 
-    @Override
-    public Void visitComments(CommentsContext ctx) {
-        handleComments(ctx.commentTokens);
-        return null;
+    /**
+     * Outputs a comment at the end of the current line.
+     * @param commentToken the comment, or {@code null} if there is none
+     */
+    protected void appendComment(Token commentToken) {
+        if (commentToken != null) {
+            var lines = commentText(commentToken);
+            a.append(" # ");
+            for (int i = 0; i < lines.size(); i++) {
+                if (i != 0) {
+                    a.append(' ');
+                }
+                a.append(lines.text(), lines.start(i), lines.end(i));
+            }
+        }
     }
 
-    @Override
-    public Void visitComment(CommentContext ctx) {
-        if (ctx.commentToken != null) {
-            a.append(" # "+String.join(" ", getCommentText(ctx.commentToken)));
+    protected String[] getCommentText(Token commentToken) {
+        var lines = commentText(commentToken);
+        var result = new String[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = lines.get(i);
         }
-        return null;
+        return result;
     }
 
-    protected String[] getCommentText(Token commentToken) {
-        switch (commentToken.getType()) {
-            case BLOCK_COMMENT -> {
-                String text = commentToken.getText();
-                if (BLOCK_COMMENT_SINGLE_LINE.matcher(text).matches()) {
-                    return new String[] {text.substring(2, text.length() - 2).strip()};
-                }
-                String[] lines = text.split("\\R");
-                assert lines[0].startsWith("#{");
-                assert lines[lines.length-1].endsWith("#}");
-                boolean hasEmptyFirstLine = BLOCK_COMMENT_BEGIN_EMPTY.matcher(lines[0]).matches();
-                boolean hasEmptyLastLine  = BLOCK_COMMENT_END_EMPTY.matcher(lines[lines.length-1]).matches();
-                if (!hasEmptyLastLine) {
-                    String line = lines[lines.length-1];
-                    assert line.endsWith("#}");
-                    lines[lines.length-1] = line.substring(0, line.length() - 2).stripTrailing();
-                }
-                int end = lines.length - (hasEmptyLastLine? 1 : 0);
-                var resultLinesList = new ArrayList<String>(lines.length - (hasEmptyLastLine? 1 : 0));
-                if (1 < end) {
-                    resultLinesList.add(lines[1]);
-                    var hashMatcher = LEADING_HASH.matcher(lines[1]);
-                    String leadingHash = hashMatcher.find()? hashMatcher.group() : null;
-                    for (int i = 2; i < end; i++) {
-                        String line = lines[i];
-                        resultLinesList.add(line);
-                        if (leadingHash != null && hashMatcher.reset(line).find()) {
-                            if (!leadingHash.equals(hashMatcher.group())) {
-                                leadingHash = null;   
-                            }
-                        }
-                    }
-                    if (leadingHash != null) {
-                        for (int i = 0; i < resultLinesList.size(); i++) {
-                            resultLinesList.set(i, resultLinesList.get(i).substring(leadingHash.length()));
-                        }
-                    }
-                    String[] tempLines = String.join("\n", resultLinesList).stripIndent().split("\n");
-                    assert tempLines.length == resultLinesList.size();
-                    for (int i = 0; i < resultLinesList.size(); i++) {
-                        resultLinesList.set(i, tempLines[i]);
-                    }
-                }
-                if (!hasEmptyFirstLine) {
-                    resultLinesList.add(0, lines[0].substring(2).stripLeading());
-                }
-                return resultLinesList.toArray(String[]::new);
-            }
-            case LINE_COMMENT -> {
-                return new String[] {commentToken.getText().substring(1).stripLeading()};
-            }
-            default -> throw new IllegalArgumentException();
+    /**
+     * Finds the lines of text of a comment, in its part of the input if it is known.
+     * The result is only valid until the next comment is looked at.
+     */
+    private CommentText commentText(Token commentToken) {
+        if (inputText != null && !(commentToken instanceof CommonToken)) {
+            return commentText.of(inputText, commentToken.getStartIndex(), commentToken.getStopIndex() + 1, commentToken.getType());
         }
+        String text = commentToken.getText();
+        return commentText.of(text, 0, text.length(), commentToken.getType());
     }
 }
@@ -0,0 +1,227 @@
+package pyjava.tree;
+
+import static pyjava.parser.PyJavaLexer.*;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
+
+import pyjava.parser.CompactTokenStream;
+
+/**
+ * Gives the output of the expressions which {@link Transpiler} doesn't rewrite, straight from their tokens.
+ * <p>
+ * An expression made only of names, constants, operators, calls, subscripts with no slices, attributes, groups,
+ * tuples and lists comes out of the transpiler the way it is written, apart from the whitespace between the tokens,
+ * which is one space around binary operators and after commas and none elsewhere. Such an expression is output
+ * by copying the text between its first and last token from the input, and only building a new string with
+ * the whitespace fixed if it isn't already written that way, instead of visiting every node of it.
+ * Whether an expression can be copied is told from the {@link CompactTokenStream} it was parsed from,
+ * which is much faster than going through its parse tree.
+ * <p>
+ * An expression with a token which the transpiler could rewrite or which depends on the context,
+ * such as a {@code lambda}, a {@code class}, a {@code :}, a {@code {} or a trailing comma,
+ * or with a comment, isn't copied.
+ */
+final class VerbatimSpans {
+    private final CompactTokenStream tokens;
+    private final CharStream input;
+    /** The whole input, if the tokens' indexes are indexes in it. */
+    private final String inputText;
+    private final StringBuilder sb = new StringBuilder();
+    private Constants constants = Constants.EMPTY;
+    /**
+     * The index of the last token which stopped an expression from being copied, so that the expressions
+     * in it which have the same token fail without being looked at again.
+     */
+    private int failedAt = -1;
+
+    /**
+     * @param tokens the tokens the expressions were parsed from
+     */
+    VerbatimSpans(CompactTokenStream tokens) {
+        this.tokens = tokens;
+        this.input = tokens.getTokenSource().getInputStream();
+        this.inputText = tokens.getInputText();
+    }
+
+    /**
+     * Sets the constants of the module, whose names aren't copied, since they may have to be replaced by their values.
+     */
+    void setConstants(Constants constants) {
+        this.constants = constants;
+        failedAt = -1;
+    }
+
+    /**
+     * Appends the output for the expression if it can be copied.
+     * @return {@code false} if the expression must be visited instead
+     */
+    boolean appendTo(IndentationAwareAppender a, ParserRuleContext ctx) {
+        int start = ctx.start.getTokenIndex(), stop = ctx.stop.getTokenIndex();
+        if (start < 0 || stop < start || start <= failedAt && failedAt <= stop) {
+            return false;
+        }
+        for (int i = start; i <= stop; i++) {
+            if (tokens.getChannel(i) == Token.DEFAULT_CHANNEL? !isCopied(tokens.getType(i)) : tokens.getType(i) != NEWLINE) {
+                // the token can't be copied or is a comment
+                failedAt = i;
+                return false;
+            }
+            if (!constants.isEmpty() && isName(tokens.getType(i)) && isConstant(i)) {
+                failedAt = i;
+                return false;
+            }
+        }
+        return format(a, start, stop);
+    }
+
+    private static boolean isCopied(int type) {
+        return isOperand(type) || isBinaryOperator(type) || switch (type) {
+            case TILDE, DOT, COMMA, EQ, LPAREN, RPAREN, LBRACK, RBRACK, AWAIT -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isOperand(int type) {
+        return switch (type) {
+            case NAME, MATCH, CASE, CACHED, RECORD, CONST, INLINE, NUMBER, STRING_LITERAL, BYTES_LITERAL, TRUE, FALSE, NONE, LITERAL_TABLE -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isName(int type) {
+        return switch (type) {
+            case NAME, MATCH, CASE, CACHED, RECORD, CONST, INLINE -> true;
+            default -> false;
+        };
+    }
+
+    private boolean isConstant(int token) {
+        if (inputText != null) {
+            return constants.contains(inputText, tokens.getStartIndex(token), tokens.getStopIndex(token) + 1);
+        }
+        var text = tokens.get(token).getText();
+        return constants.contains(text, 0, text.length());
+    }
+
+    private static boolean isBinaryOperator(int type) {
+        return switch (type) {
+            case PLUS, MINUS, STAR, SLASH, SLASHSLASH, PER, AT, STARSTAR, LTLT, GTGT, AMP, BAR, CARET,
+                 LT, GT, EQEQ, GTEQ, LTEQ, LTGT, BANGEQ, AND, OR, NOT, IN, IS -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean isString(int type) {
+        return type == STRING_LITERAL || type == BYTES_LITERAL;
+    }
+
+    /**
+     * Appends the text of the tokens with the whitespace the transpiler puts between them.
+     * @return {@code false} if they can't be copied
+     */
+    private boolean format(IndentationAwareAppender a, int startToken, int stopToken) {
+        int first = tokens.getStartIndex(startToken);
+        int last = tokens.getStopIndex(stopToken);
+        // the text the tokens are in, and the index in the input of its first character
+        String span;
+        int offset;
+        if (inputText != null) {
+            span = inputText;
+            offset = 0;
+        } else {
+            span = input.getText(Interval.of(first, last));
+            offset = first;
+            if (span.length() != last - first + 1) {
+                // the indexes are of code points, which a surrogate pair is one of
+                return false;
+            }
+        }
+        sb.setLength(0);
+        boolean same = true;
+        boolean operand = false, space = false;
+        int previous = Token.INVALID_TYPE;
+        int end = 0;
+        for (int i = startToken; i <= stopToken; i++) {
+            if (tokens.getChannel(i) != Token.DEFAULT_CHANNEL) {
+                continue;
+            }
+            int type = tokens.getType(i);
+            int start = tokens.getStartIndex(i) - offset;
+            String separator;
+            if (operand) {
+                if (isBinaryOperator(type) || isString(type) && isString(previous)) {
+                    separator = " ";
+                } else if (isOperand(type) || type == TILDE || type == AWAIT) {
+                    return fail(i);
+                } else {
+                    separator = "";
+                }
+            } else {
+                if (previous == COMMA && (type == RPAREN || type == RBRACK)) {
+                    // a trailing comma is only kept after a single element
+                    return fail(i);
+                }
+                if (isBinaryOperator(type) && type != NOT && type != PLUS && type != MINUS && type != STAR
+                        && type != STARSTAR && !(type == IN && previous == NOT)) {
+                    return fail(i);
+                }
+                separator = space? " " : "";
+            }
+            if (i != startToken) {
+                same &= start - end == separator.length() && (separator.isEmpty() || span.charAt(end) == ' ');
+                sb.append(separator);
+            }
+            end = tokens.getStopIndex(i) - offset + 1;
+            if (type == LITERAL_TABLE) {
+                same = false;
+                sb.append(tokens.get(i).getText());
+            } else {
+                sb.append(span, start, end);
+            }
+
+            switch (type) {
+                case RPAREN, RBRACK -> {
+                    operand = true;
+                    space = false;
+                }
+                case COMMA -> {
+                    operand = false;
+                    space = true;
+                }
+                case DOT, EQ, LPAREN, LBRACK, TILDE -> {
+                    operand = false;
+                    space = false;
+                }
+                case AWAIT -> {
+                    operand = false;
+                    space = true;
+                }
+                default -> {
+                    if (isOperand(type)) {
+                        operand = true;
+                        space = false;
+                    } else {
+                        // a binary operator or a keyword, unless it was in the place of an operand
+                        space = operand || type == NOT || type == IN;
+                        operand = false;
+                    }
+                }
+            }
+            previous = type;
+        }
+        if (same) {
+            a.append(span, first - offset, last - offset + 1);
+        } else {
+            a.append(sb.toString());
+        }
+        return true;
+    }
+
+    private boolean fail(int i) {
+        failedAt = i;
+        return false;
+    }
+}
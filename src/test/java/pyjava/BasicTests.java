@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.Map;
 import java.util.function.Supplier;
 
 import org.antlr.v4.runtime.*;
@@ -12,6 +13,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import pyjava.parser.CompactTokenStream;
 import pyjava.parser.PyJavaLexer;
 import pyjava.parser.PyJavaParser;
 import pyjava.tree.LazyAppendable.AppendFunction;
@@ -204,6 +206,415 @@ class BasicTests {
         );
     }
 
+    @Test
+    void testRecords() {
+        runTest(
+            """
+            record Point(x: int, y: int = 0) "A point" {
+                def norm(self) {
+                    return (self.x ** 2 + self.y ** 2) ** 0.5;
+                }
+            }
+            record Key(name: str)(Base, hash=True) {}
+            record Empty() {}
+            record = Point(1);
+            """,
+            REQUIRE_SEMICOLONS,
+            """
+            class Point:
+                "A point"
+                __slots__ = ('x', 'y')
+                def __init__(self, x: int, y: int=0):
+                    self.x = x
+                    self.y = y
+                def __repr__(self):
+                    return f'Point(x={self.x!r}, y={self.y!r})'
+                def __eq__(self, other):
+                    if other.__class__ is not self.__class__:
+                        return NotImplemented
+                    return (self.x, self.y) == (other.x, other.y)
+                def norm(self):
+                    return (self.x ** 2 + self.y ** 2) ** 0.5
+            class Key(Base):
+                __slots__ = ('name',)
+                def __init__(self, name: str):
+                    self.name = name
+                def __repr__(self):
+                    return f'Key(name={self.name!r})'
+                def __eq__(self, other):
+                    if other.__class__ is not self.__class__:
+                        return NotImplemented
+                    return (self.name,) == (other.name,)
+                def __hash__(self):
+                    return hash((self.name,))
+            class Empty:
+                __slots__ = ()
+                def __init__(self):
+                    pass
+                def __repr__(self):
+                    return f'Empty()'
+                def __eq__(self, other):
+                    if other.__class__ is not self.__class__:
+                        return NotImplemented
+                    return () == ()
+            record = Point(1)
+            """
+        );
+    }
+
+    @Test
+    void testConstants() {
+        runTest(
+            """
+            const LIMIT = 100;
+            const STEP = -LIMIT // 10;
+            const NAME = "pyjava";
+            def f(xs, NAME) {
+                for x in xs {
+                    if x > LIMIT {
+                        yield x * STEP, LIMIT.bit_length(), NAME;
+                    }
+                }
+                return [LIMIT for LIMIT in xs];
+            }
+            print(STEP, f"{NAME}", NAME);
+            """,
+            REQUIRE_SEMICOLONS,
+            """
+            LIMIT = 100
+            STEP = -100 // 10
+            NAME = "pyjava"
+            def f(xs, NAME):
+                for x in xs:
+                    if x > 100:
+                        yield x * (-100 // 10), (100).bit_length(), NAME
+                return [LIMIT for LIMIT in xs]
+            print(-100 // 10, f"{NAME}", "pyjava")
+            """
+        );
+    }
+
+    @Test
+    void testCachedMethodInRecord() {
+        var e = assertThrows(IllegalArgumentException.class, () ->
+            runTest(
+                """
+                record Point(x: int, y: int) {
+                    cached def norm(self) {
+                        return (self.x ** 2 + self.y ** 2) ** 0.5;
+                    }
+                }
+                """,
+                REQUIRE_SEMICOLONS,
+                null
+            )
+        );
+        assertException(e, IllegalArgumentException.class, "line 2:4 cached methods can't be used in a record, which has no __dict__");
+    }
+
+    @Test
+    void testReassigningConstants() {
+        var e = assertThrows(IllegalArgumentException.class, () ->
+            runTest(
+                """
+                const LIMIT = 100;
+                def reset() {
+                    global LIMIT;
+                    LIMIT = 0;
+                }
+                """,
+                REQUIRE_SEMICOLONS,
+                null
+            )
+        );
+        assertException(e, IllegalArgumentException.class, "line 2:0 const LIMIT is rebound by this statement");
+    }
+
+    @Test
+    void testConstIf() {
+        var input = """
+            const if DEBUG {
+                import logging;
+            }
+            def f(x) {
+                const if DEBUG and LEVEL >= 2 {
+                    logging.debug(x);
+                }
+            }
+            def g(x) {
+                const if TARGET == "prod" {
+                    return x;
+                } elif LEVEL > 1 {
+                    return -x;
+                } else {
+                    return 0;
+                }
+            }
+            """;
+        runTest(
+            input,
+            REQUIRE_SEMICOLONS,
+            Map.of("DEBUG", true, "LEVEL", 2L, "TARGET", "prod"),
+            """
+            import logging
+            def f(x):
+                logging.debug(x)
+            def g(x):
+                return x
+            """
+        );
+        runTest(
+            input,
+            REQUIRE_SEMICOLONS,
+            Map.of("DEBUG", false, "LEVEL", 2L, "TARGET", "dev"),
+            """
+            def f(x):
+                pass
+            def g(x):
+                return -x
+            """
+        );
+        var e = assertThrows(IllegalArgumentException.class, () ->
+            runTest(input, REQUIRE_SEMICOLONS, Map.of("DEBUG", false), null)
+        );
+        assertException(e, IllegalArgumentException.class, "line 10:13 TARGET is not defined");
+    }
+
+    @Test
+    void testConstIfSiblings() {
+        var input = """
+            const LIMIT = 100;
+            def f(x) {
+                const if DEBUG {
+                    print(x);
+                }
+                const if NAME == "prod" {
+                    return x * LIMIT;
+                }
+            }
+            def g(x) {
+                const if DEBUG {
+                    const if NAME == "dev" {
+                        print(x);
+                    }
+                }
+                return x;
+            }
+            """;
+        runTest(
+            input,
+            REQUIRE_SEMICOLONS,
+            Map.of("DEBUG", false, "NAME", "prod"),
+            """
+            LIMIT = 100
+            def f(x):
+                return x * 100
+            def g(x):
+                return x
+            """
+        );
+        runTest(
+            input,
+            REQUIRE_SEMICOLONS,
+            Map.of("DEBUG", true, "NAME", "test"),
+            """
+            LIMIT = 100
+            def f(x):
+                print(x)
+            def g(x):
+                return x
+            """
+        );
+        runTest(
+            input,
+            REQUIRE_SEMICOLONS,
+            Map.of("DEBUG", false, "NAME", "test"),
+            """
+            LIMIT = 100
+            def f(x):
+                pass
+            def g(x):
+                return x
+            """
+        );
+    }
+
+    @Test
+    void testConstIfConstants() {
+        var input = """
+            const if DEBUG {
+                const LIMIT = 10;
+            } else {
+                const LIMIT = 1000;
+            }
+            def check(xs) {
+                const if not DEBUG {
+                    global LIMIT;
+                    LIMIT = len(xs);
+                }
+                return [min(x, LIMIT) for x in xs];
+            }
+            """;
+        runTest(
+            input,
+            REQUIRE_SEMICOLONS,
+            Map.of("DEBUG", true),
+            """
+            LIMIT = 10
+            def check(xs):
+                return [min(x, 10) for x in xs]
+            """
+        );
+        var e = assertThrows(IllegalArgumentException.class, () ->
+            runTest(input, REQUIRE_SEMICOLONS, Map.of("DEBUG", false), null)
+        );
+        assertException(e, IllegalArgumentException.class, "line 6:0 const LIMIT is rebound by this statement");
+    }
+
+    @Test
+    void testInlineFunctions() {
+        runTest(
+            """
+            import math;
+            const SCALE = 3;
+            inline def sq(x) {
+                return x * x;
+            }
+            inline def hypot(x, y) {
+                return math.sqrt(sq(x) + sq(y));
+            }
+            inline def clamp(v, lo, hi) {
+                return lo if v < lo else hi if v > hi else v;
+            }
+            inline def fact(n) {
+                return 1 if n <= 1 else n * fact(n - 1);
+            }
+            def f(a, b, xs) {
+                print(sq(a), sq(a + 1), hypot(a, b), clamp(next(xs), 0, SCALE), sq(SCALE).real);
+                print(fact(5), sq(*xs), clamp(0, next(xs), next(xs)));
+                return [sq(x) for x in range(sq(b))];
+            }
+            class A {
+                y = sq(len(A));
+                def m(self, math) {
+                    return hypot(1, 2);
+                }
+            }
+            """,
+            REQUIRE_SEMICOLONS,
+            """
+            import math
+            SCALE = 3
+            def sq(x):
+                return x * x
+            def hypot(x, y):
+                return math.sqrt((x * x) + (y * y))
+            def clamp(v, lo, hi):
+                return lo if v < lo else hi if v > hi else v
+            def fact(n):
+                return 1 if n <= 1 else n * fact(n - 1)
+            def f(a, b, xs):
+                print(a * a, (__inline0_x := a + 1) * __inline0_x, math.sqrt((a * a) + (b * b)), 0 if (__inline0_v := next(xs)) < 0 else 3 if __inline0_v > 3 else __inline0_v, (3 * 3).real)
+                print(1 if 5 <= 1 else 5 * fact(5 - 1), sq(*xs), clamp(0, next(xs), next(xs)))
+                return [x * x for x in range(b * b)]
+            class A:
+                y = sq(len(A))
+                def m(self, math):
+                    return hypot(1, 2)
+            """
+        );
+    }
+
+    @Test
+    void testInlineFunctionArgumentsEvaluatedOnce() {
+        runTest(
+            """
+            inline def sq(x) {
+                return x * x;
+            }
+            inline def first(x, y) {
+                return x;
+            }
+            inline def offset(o, x) {
+                return o.base + x;
+            }
+            def f(o, xs) {
+                __inline0_n = 0;
+                return sq(o.size), sq(xs[0]), first(o, next(xs)), offset(o, next(xs)), offset(o, 1);
+            }
+            total = sq(len(xs));
+            """,
+            REQUIRE_SEMICOLONS,
+            """
+            def sq(x):
+                return x * x
+            def first(x, y):
+                return x
+            def offset(o, x):
+                return o.base + x
+            def f(o, xs):
+                __inline0_n = 0
+                return (__inline_0_x := o.size) * __inline_0_x, (__inline_0_x := xs[0]) * __inline_0_x, first(o, next(xs)), offset(o, next(xs)), o.base + 1
+            total = sq(len(xs))
+            """
+        );
+    }
+
+    @Test
+    void testInvalidInlineFunctions() {
+        var e = assertThrows(IllegalArgumentException.class, () ->
+            runTest(
+                """
+                inline def first(xs) {
+                    x = xs[0];
+                    return x;
+                }
+                """,
+                REQUIRE_SEMICOLONS,
+                null
+            )
+        );
+        assertException(e, IllegalArgumentException.class, "line 1:0 the body of inline def first must be a single return statement with a value");
+        e = assertThrows(IllegalArgumentException.class, () ->
+            runTest(
+                """
+                inline def evens(xs) {
+                    return [x for x in xs if x % 2 == 0];
+                }
+                """,
+                REQUIRE_SEMICOLONS,
+                null
+            )
+        );
+        assertException(e, IllegalArgumentException.class, "line 1:0 the return value of inline def evens can't have a lambda, a comprehension, a class, an f-string, :=, await or yield");
+        e = assertThrows(IllegalArgumentException.class, () ->
+            runTest(
+                """
+                inline def show(x) {
+                    return f"<{x}>";
+                }
+                """,
+                REQUIRE_SEMICOLONS,
+                null
+            )
+        );
+        assertException(e, IllegalArgumentException.class, "line 1:0 the return value of inline def show can't have a lambda, a comprehension, a class, an f-string, :=, await or yield");
+        e = assertThrows(IllegalArgumentException.class, () ->
+            runTest(
+                """
+                def f() {
+                    inline def g(x) {
+                        return x;
+                    }
+                }
+                """,
+                REQUIRE_SEMICOLONS,
+                null
+            )
+        );
+        assertException(e, IllegalArgumentException.class, "line 2:4 inline def is only allowed at the top level of a module");
+    }
+
     @Test
     void testRidiculousSingleLineInput() {
         runTest(
@@ -320,12 +731,17 @@ class BasicTests {
     }
 
     static void runTest(String input, int flags, String expected) {
+        runTest(input, flags, Map.of(), expected);
+    }
+
+    static void runTest(String input, int flags, Map<String, Object> defines, String expected) {
+        TestLexer.assertSameTokens(input, "tokens of the hand-written lexer");
         var source = CharStreams.fromString(input);
         var lexer = new PyJavaLexer(source);
         var errorListener = new BaseErrorListener();
         lexer.removeErrorListeners();
         lexer.addErrorListener(errorListener);
-        var tokens = new CommonTokenStream(lexer);
+        var tokens = new CompactTokenStream(lexer);
         var parser = new PyJavaParser(tokens,
             PyJavaOptions.builder()
             .requireSemicolons((flags & REQUIRE_SEMICOLONS) != 0)
@@ -338,6 +754,7 @@ class BasicTests {
         parser.addErrorListener(errorListener);
         var file = parser.file();
         var transpiler = new Transpiler();
+        transpiler.setDefines(defines);
         file.accept(transpiler);
         var sb = new StringBuilder();
         transpiler.appendTo(AppendFunction.wrap(sb));
@@ -0,0 +1,74 @@
+package pyjava;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PredictionCache;
+import pyjava.parser.PyJavaParser.FileContext;
+import pyjava.tree.LazyAppendable.AppendFunction;
+import pyjava.tree.Transpiler;
+
+/**
+ * Measures how fast a module which is mostly comments is transpiled, with the comments' lines
+ * output as parts of the input and as parts of copies of the comments.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class CommentBenchmark {
+    static final int FUNCTIONS = 2000;
+    static final int ROUNDS = 10;
+
+    static final String HEADER = """
+        #{
+        # Copyright (c) the authors.
+        #
+        # Licensed under the Apache License, Version 2.0 (the "License");
+        # you may not use this file except in compliance with the License.
+        # Unless required by applicable law or agreed to in writing, software
+        # distributed under the License is distributed on an "AS IS" BASIS.
+        #}
+        """;
+
+    @Test
+    void benchmarkComments() {
+        var sb = new StringBuilder();
+        for (int i = 0; i < FUNCTIONS; i++) {
+            if (i % 50 == 0) {
+                sb.append(HEADER);
+            }
+            sb.append("#{\n")
+              .append("    Returns the value of entry ").append(i).append(".\n")
+              .append("        The lookup is done once and cached.\n")
+              .append("#}\n")
+              .append("# see also f").append(i + 1).append('\n')
+              .append("def f").append(i).append("(x) { #{ the key #}\n")
+              .append("    # look it up\n")
+              .append("    return table[x]; # may raise KeyError\n")
+              .append("}\n");
+        }
+        var source = sb.toString();
+        var options = new PyJavaOptions();
+        var cache = PredictionCache.getDefault();
+        var tokens = new CompactTokenStream(cache.newLexer(CharStreams.fromString(source)));
+        FileContext file = cache.newParser(tokens, options).file();
+
+        System.out.printf("%-10s %10s %10s%n", "comments", "ms", "KB/s");
+        for (var fromInput : new boolean[] {false, true}) {
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                var transpiler = new Transpiler();
+                if (fromInput) {
+                    transpiler.setTokens(tokens);
+                }
+                file.accept(transpiler);
+                var output = new StringBuilder(source.length());
+                transpiler.appendTo(AppendFunction.wrap(output));
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%-10s %10.1f %10.0f%n", fromInput? "input" : "copies", best / 1e6, source.length() / (best / 1e6));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PredictionCache;
+import pyjava.tree.LazyAppendable.AppendFunction;
+import pyjava.tree.Transpiler;
+
+/**
+ * Measures how fast the generated code for a function which calls closure-free multi-line lambdas runs
+ * with the lambdas defined once at the top level of the module and with them defined on every call.
+ * Needs {@code python3} on the path. Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class LambdaHoistingBenchmark {
+    static final int CALLS = 200_000;
+    static final int ROUNDS = 5;
+
+    /**
+     * The lambdas start with the given statement, which makes them capture {@code local} if it reads it,
+     * so that they have to be defined on every call.
+     */
+    static final String SOURCE = """
+        def summarize(items) {
+            local = None;
+            ordered = sorted(items, key=lambda (item) {
+                %1$s
+                return -item;
+            });
+            evens = filter(lambda (item) {
+                %1$s
+                return item %% 2 == 0;
+            }, ordered);
+            return list(map(lambda (item) {
+                %1$s
+                return item * item;
+            }, evens));
+        }
+        """;
+
+    static final String HARNESS = """
+        import time
+        items = list(range(8))
+        best = None
+        for _ in range(%d):
+            start = time.perf_counter()
+            for _ in range(%d):
+                summarize(items)
+            elapsed = time.perf_counter() - start
+            best = elapsed if best is None or elapsed < best else best
+        print(best * 1000)
+        """;
+
+    @Test
+    void benchmarkLambdaHoisting() throws IOException, InterruptedException {
+        assumeTrue(hasPython(), "python3 isn't installed");
+        var options = new PyJavaOptions();
+        var cache = PredictionCache.getDefault();
+
+        System.out.printf("%-10s %10s %10s%n", "lambdas", "ms", "calls/ms");
+        for (var hoisted : new boolean[] {false, true}) {
+            var source = SOURCE.formatted(hoisted? "pass;" : "local;");
+            var tokens = new CompactTokenStream(cache.newLexer(CharStreams.fromString(source)));
+            var transpiler = new Transpiler();
+            cache.newParser(tokens, options).file().accept(transpiler);
+            var output = new StringBuilder();
+            transpiler.appendTo(AppendFunction.wrap(output));
+            output.append(HARNESS.formatted(ROUNDS, CALLS));
+
+            double ms = Double.parseDouble(runPython(output.toString()));
+            System.out.printf("%-10s %10.1f %10.0f%n", hoisted? "module" : "per call", ms, CALLS / ms);
+        }
+    }
+
+    static boolean hasPython() {
+        try {
+            return new ProcessBuilder("python3", "--version").start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    static String runPython(String code) throws IOException, InterruptedException {
+        var file = Files.createTempFile("lambdas", ".py");
+        try {
+            Files.writeString(file, code, StandardCharsets.UTF_8);
+            var process = new ProcessBuilder("python3", file.toString()).redirectErrorStream(true).start();
+            var result = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).strip();
+            if (process.waitFor() != 0) {
+                throw new AssertionError(result);
+            }
+            return result;
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package pyjava;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.DFAWarmUp;
+import pyjava.parser.PyJavaFastLexer;
+import pyjava.parser.PyJavaLexer;
+
+/**
+ * Measures the throughput of the generated lexer, with and without its ASCII fast path,
+ * and of the hand-written lexer on ASCII-only and mixed ASCII/Unicode inputs.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class LexerBenchmark {
+    static final int COPIES = 200;
+    static final int ROUNDS = 20;
+
+    @Test
+    void benchmarkLexers() throws Exception {
+        var ascii = new StringBuilder();
+        var mixed = new StringBuilder();
+        try (var reader = new InputStreamReader(DFAWarmUp.class.getResourceAsStream(DFAWarmUp.DEFAULT_CORPUS), StandardCharsets.UTF_8)) {
+            for (var entry : DFAWarmUp.readCorpus(reader)) {
+                ascii.append(entry.source()).append('\n');
+            }
+        }
+        // every third name gets a non-ASCII character
+        var lexer = new PyJavaLexer(CharStreams.fromString(ascii.toString()));
+        int names = 0, last = 0;
+        for (Token token; (token = lexer.nextToken()).getType() != Token.EOF; ) {
+            if (token.getType() == PyJavaLexer.NAME && names++ % 3 == 0) {
+                mixed.append(ascii, last, token.getStopIndex() + 1).append('é');
+                last = token.getStopIndex() + 1;
+            }
+        }
+        mixed.append(ascii, last, ascii.length());
+
+        System.out.printf("%-8s %-12s %14s%n", "corpus", "lexer", "tokens/s");
+        for (var corpus : new String[][] {{"ascii", ascii.toString().repeat(COPIES)}, {"mixed", mixed.toString().repeat(COPIES)}}) {
+            run(corpus[0], "generated", corpus[1], source -> {
+                var l = new PyJavaLexer(CharStreams.fromString(source));
+                l.setAsciiFastPath(false);
+                return l;
+            });
+            run(corpus[0], "fast-path", corpus[1], source -> new PyJavaLexer(CharStreams.fromString(source)));
+            run(corpus[0], "hand-written", corpus[1], source -> new PyJavaFastLexer(CharStreams.fromString(source)));
+        }
+    }
+
+    static void run(String corpus, String name, String source, Function<String, TokenSource> lexers) {
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            var lexer = lexers.apply(source);
+            var counter = new Counter();
+            lexer.setTokenFactory(counter);
+            long start = System.nanoTime();
+            do {
+                lexer.nextToken();
+            } while (counter.lastType != Token.EOF);
+            best = Math.max(best, counter.count / ((System.nanoTime() - start) / 1e9));
+        }
+        System.out.printf("%-8s %-12s %14.0f%n", corpus, name, best);
+    }
+
+    /**
+     * Counts the tokens without creating them, so only the lexer itself is measured.
+     */
+    static class Counter implements TokenFactory<Token> {
+        final Token token = new CommonToken(Token.INVALID_TYPE);
+        int count;
+        int lastType;
+
+        @Override
+        public Token create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start, int stop, int line, int charPositionInLine) {
+            count++;
+            lastType = type;
+            return token;
+        }
+
+        @Override
+        public Token create(int type, String text) {
+            return create(null, type, text, Token.DEFAULT_CHANNEL, -1, -1, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package pyjava;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PredictionCache;
+import pyjava.tree.LazyAppendable.AppendFunction;
+import pyjava.tree.Transpiler;
+
+/**
+ * Measures how fast a module which is a large list of dicts of constants is parsed and transpiled,
+ * with and without {@linkplain CompactTokenStream#setCollapseLiteralTables(boolean) collapsing} it.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class LiteralTableBenchmark {
+    static final int ROWS = 2000;
+    static final int ROUNDS = 5;
+
+    @Test
+    void benchmarkLiteralTables() {
+        var sb = new StringBuilder("TABLE = [\n");
+        for (int i = 0; i < ROWS; i++) {
+            sb.append("    {'id': ").append(i).append(", 'name': \"row ").append(i)
+              .append("\", 'weights': [").append(i * 0.5).append(", -").append(i).append(", 1e-3], 'active': ")
+              .append(i % 2 == 0? "True" : "False").append(", 'parent': None},\n");
+        }
+        var source = sb.append("];\n").toString();
+        var options = new PyJavaOptions();
+        var cache = PredictionCache.getDefault();
+
+        System.out.printf("%-10s %10s %10s%n", "tables", "ms", "KB/s");
+        for (var collapse : new boolean[] {false, true}) {
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                var tokens = new CompactTokenStream(cache.newLexer(CharStreams.fromString(source)));
+                tokens.setCollapseLiteralTables(collapse);
+                var transpiler = new Transpiler();
+                cache.newParser(tokens, options).file().accept(transpiler);
+                var output = new StringBuilder(source.length());
+                transpiler.appendTo(AppendFunction.wrap(output));
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%-10s %10.1f %10.0f%n", collapse? "collapsed" : "parsed", best / 1e6, source.length() / (best / 1e6));
+        }
+    }
+}
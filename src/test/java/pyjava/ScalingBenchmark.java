@@ -0,0 +1,101 @@
+package pyjava;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.DFAWarmUp;
+import pyjava.parser.PredictionCache;
+
+/**
+ * Measures how parsing throughput scales with the number of threads for each prediction cache strategy.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class ScalingBenchmark {
+    static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    static final int FILES = 500;
+    static final int ROUNDS = 2;
+
+    @Test
+    void benchmarkThreadScaling() throws Exception {
+        var options = new PyJavaOptions();
+        var seed = PredictionCache.empty();
+        var sources = new ArrayList<String>();
+        try (var reader = new InputStreamReader(DFAWarmUp.class.getResourceAsStream(DFAWarmUp.DEFAULT_CORPUS), StandardCharsets.UTF_8)) {
+            for (var entry : DFAWarmUp.readCorpus(reader)) {
+                try {
+                    parse(entry.source(), options, seed);
+                    sources.add(entry.source());
+                } catch (RuntimeException e) {
+                    // not valid with the default options
+                }
+            }
+        }
+        var workload = new ArrayList<String>(FILES);
+        for (int i = 0; i < FILES; i++) {
+            workload.add(sources.get(i % sources.size()));
+        }
+
+        System.out.printf("%d files per round, %d available processors%n", FILES, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-11s %7s %12s %8s %10s%n", "strategy", "threads", "files/s", "speedup", "efficiency");
+        for (var strategy : PredictionCache.Strategy.values()) {
+            double baseline = 0;
+            for (int threads : THREADS) {
+                double best = 0;
+                for (int round = 0; round < ROUNDS; round++) {
+                    var caches = ThreadLocal.withInitial(PredictionCache.forWorkers(strategy, seed.copy()));
+                    best = Math.max(best, run(workload, threads, options, caches));
+                }
+                if (threads == 1) {
+                    baseline = best;
+                }
+                double speedup = best / baseline;
+                System.out.printf("%-11s %7d %12.0f %7.2fx %9.0f%%%n", strategy, threads, best, speedup, 100 * speedup / threads);
+            }
+        }
+    }
+
+    static double run(List<String> workload, int threads, PyJavaOptions options, ThreadLocal<PredictionCache> caches) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // start every thread and give it its cache before the clock starts
+            var ready = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++) {
+                ready.add(executor.submit(() -> caches.get()));
+            }
+            for (var future : ready) {
+                future.get();
+            }
+
+            long start = System.nanoTime();
+            var futures = new ArrayList<Future<?>>(workload.size());
+            for (var source : workload) {
+                futures.add(executor.submit(() -> parse(source, options, caches.get())));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+            return workload.size() / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static void parse(String source, PyJavaOptions options, PredictionCache cache) {
+        var lexer = cache.newLexer(CharStreams.fromString(source));
+        var parser = cache.newParser(new CompactTokenStream(lexer), options);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.file();
+    }
+}
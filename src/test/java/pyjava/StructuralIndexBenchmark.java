@@ -0,0 +1,42 @@
+package pyjava;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.DFAWarmUp;
+import pyjava.parser.StructuralIndex;
+
+/**
+ * Measures the throughput of {@link StructuralIndex}, reading its input a byte at a time and a word at a time.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class StructuralIndexBenchmark {
+    static final int COPIES = 200;
+    static final int ROUNDS = 20;
+
+    @Test
+    void benchmarkStructuralIndex() throws Exception {
+        var sb = new StringBuilder();
+        try (var reader = new InputStreamReader(DFAWarmUp.class.getResourceAsStream(DFAWarmUp.DEFAULT_CORPUS), StandardCharsets.UTF_8)) {
+            for (var entry : DFAWarmUp.readCorpus(reader)) {
+                sb.append(entry.source()).append('\n');
+            }
+        }
+        var source = sb.toString().repeat(COPIES).getBytes(StandardCharsets.UTF_8);
+
+        System.out.printf("%-14s %10s%n", "scan", "MB/s");
+        for (var wordAtATime : new boolean[] {false, true}) {
+            double best = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                StructuralIndex.of(source, source.length, wordAtATime);
+                best = Math.max(best, source.length / ((System.nanoTime() - start) / 1e3));
+            }
+            System.out.printf("%-14s %10.0f%n", wordAtATime? "word-at-a-time" : "byte-at-a-time", best);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.ChunkedParser;
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PredictionCache;
+import pyjava.parser.PyJavaLexer;
+import pyjava.parser.PyJavaParser;
+import pyjava.tree.ChunkedTranspiler;
+import pyjava.tree.LazyAppendable.AppendFunction;
+import pyjava.tree.Transpiler;
+
+/**
+ * Test cases checking that parsing and transpiling a file in chunks gives the same output as doing it as a whole
+ */
+class TestChunkedParser {
+    @Test
+    void testSameOutputAsWholeFile() {
+        var options = new PyJavaOptions();
+        var sb = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            sb.append("# statement ").append(i).append('\n')
+              .append("const K").append(i).append(" = ").append(i).append(" * 2;\n")
+              .append("def f").append(i).append("(x) {\n")
+              .append("    return list(filter(lambda y { return y > x; }, values));\n")
+              .append("}\n")
+              .append("a").append(i).append(" = class(Base)() { def g(self) { return 1; } }; # trailing\n")
+              .append("b").append(i).append(" = [f").append(i).append("(1), (lambda: 2)(), K0 + K").append(i).append("];\n")
+              .append("cached def h").append(i).append("(n) { return n * 2; }\n");
+        }
+        var source = sb.toString();
+
+        var expected = new Transpiler();
+        newParser(source, options).file().accept(expected);
+        var expectedOutput = new StringBuilder();
+        expected.appendTo(AppendFunction.wrap(expectedOutput));
+
+        var tokens = new CompactTokenStream(new PyJavaLexer(CharStreams.fromString(source)));
+        var splitPoints = ChunkedParser.findSplitPoints(tokens, 20);
+        assertTrue(splitPoints.length > 5, () -> splitPoints.length+" split points");
+        var pool = new ForkJoinPool(4);
+        try {
+            var caches = ThreadLocal.withInitial(PredictionCache::getDefault);
+            var chunks = ChunkedParser.parse(tokens, splitPoints, options, caches::get, pool);
+            assertNotNull(chunks);
+            assertEquals(splitPoints.length + 1, chunks.size());
+            var transpiler = new ChunkedTranspiler(pool);
+            transpiler.setTokens(tokens);
+            transpiler.transpile(chunks);
+            var output = new StringBuilder();
+            transpiler.appendTo(AppendFunction.wrap(output));
+            assertEquals(expectedOutput.toString(), output.toString());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testChunkWhichDoesNotParseAlone() {
+        var options = new PyJavaOptions();
+        var source = """
+            try: a = 1;
+            except ValueError: a = 2;
+            """;
+        var tokens = new CompactTokenStream(new PyJavaLexer(CharStreams.fromString(source)));
+        var splitPoints = ChunkedParser.findSplitPoints(tokens, 1);
+        assertEquals(1, splitPoints.length);
+        var pool = new ForkJoinPool(2);
+        try {
+            assertNull(ChunkedParser.parse(tokens, splitPoints, options, PredictionCache::getDefault, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static PyJavaParser newParser(String source, PyJavaOptions options) {
+        return new PyJavaParser(new CompactTokenStream(new PyJavaLexer(CharStreams.fromString(source))), options);
+    }
+}
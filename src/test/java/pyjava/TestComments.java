@@ -106,6 +106,46 @@ class TestComments {
         );
     }
 
+    @Test
+    void testBlockCommentIndentedStyleWithBlankLines() {
+        runTest(
+            """
+            #{
+                Block comment
+
+                with blank lines
+
+            #}
+            """,
+
+            """
+            # Block comment
+            #\s
+            # with blank lines
+            #\s
+            """
+        );
+    }
+
+    @Test
+    void testBlockCommentPrecedingHashtagsStyleWithBlankLine() {
+        runTest(
+            """
+            #{
+            # Block comment
+
+            # with a blank line
+            #}
+            """,
+
+            """
+            # Block comment
+            #\s
+            # with a blank line
+            """
+        );
+    }
+
     @Test
     void testBlockCommentFollowingStatement() {
         runTest(
@@ -0,0 +1,90 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.DFAWarmUp;
+import pyjava.parser.PyJavaLexer;
+import pyjava.parser.PyJavaParser;
+import pyjava.tree.LazyAppendable.AppendFunction;
+import pyjava.tree.Transpiler;
+
+/**
+ * Test cases checking that {@link CompactTokenStream} behaves like {@link CommonTokenStream}
+ */
+class TestCompactTokenStream {
+    @Test
+    void testSameTokensAsCommonTokenStream() throws Exception {
+        try (var reader = new InputStreamReader(DFAWarmUp.class.getResourceAsStream(DFAWarmUp.DEFAULT_CORPUS), StandardCharsets.UTF_8)) {
+            for (var entry : DFAWarmUp.readCorpus(reader)) {
+                var expected = new CommonTokenStream(new PyJavaLexer(CharStreams.fromString(entry.source())));
+                expected.fill();
+                var actual = new CompactTokenStream(new PyJavaLexer(CharStreams.fromString(entry.source())));
+                assertEquals(expected.size(), actual.size(), entry.name());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertSameToken(expected.get(i), actual.get(i), entry.name());
+                }
+                assertEquals(expected.getText(), actual.getText(), entry.name());
+
+                // walk both streams like the parser does
+                for (;;) {
+                    assertEquals(expected.index(), actual.index(), entry.name());
+                    assertEquals(expected.LA(1), actual.LA(1), entry.name());
+                    assertEquals(expected.LA(2), actual.LA(2), entry.name());
+                    assertSameToken(expected.LT(3), actual.LT(3), entry.name());
+                    assertSameToken(expected.LT(-1), actual.LT(-1), entry.name());
+                    assertSameToken(expected.LT(-2), actual.LT(-2), entry.name());
+                    if (expected.LA(1) == Token.EOF) break;
+                    expected.consume();
+                    actual.consume();
+                }
+            }
+        }
+    }
+
+    @Test
+    void testLiteralTablesSameOutput() {
+        var rows = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            rows.append("    [").append(i).append(", -").append(i).append(".5,'a' \"b\", True, None, (), (1,), [2,]],\n");
+        }
+        var source = "table = [\n" + rows + "];\n"
+                   + "mapping = {\n" + rows.toString().replace("    [", "    -1: [") + "    'empty': {}, False: [], \"x\": (1, 2,),\n};\n"
+                   + "def f(x=(" + rows + ")) {\n    return [" + rows + "][0];\n}\n"
+                   + "print([" + rows + "], " + "{'k': [" + rows + "]});\n"
+                   + "names = [" + rows + "x];\n"
+                   + "groups = [" + rows + "(1)];\n"
+                   + "commented = [" + rows + "# comment\n];\n"
+                   + "small = [1, 2, 3];\n";
+
+        var tokens = new CompactTokenStream(new PyJavaLexer(CharStreams.fromString(source)));
+        tokens.setCollapseLiteralTables(true);
+        assertEquals(6, tokens.getLiteralTableCount());
+        assertEquals(transpile(new CompactTokenStream(new PyJavaLexer(CharStreams.fromString(source)))), transpile(tokens));
+    }
+
+    static String transpile(TokenStream tokens) {
+        var transpiler = new Transpiler();
+        new PyJavaParser(tokens, new PyJavaOptions()).file().accept(transpiler);
+        var output = new StringBuilder();
+        transpiler.appendTo(AppendFunction.wrap(output));
+        return output.toString();
+    }
+
+    static void assertSameToken(Token expected, Token actual, String message) {
+        if (expected == null) {
+            assertEquals(null, actual, message);
+        } else {
+            assertEquals(expected.toString(), actual.toString(), message);
+        }
+    }
+}
@@ -44,12 +44,10 @@ class TestCompoundExpressions {
                 .say_hello();
             """,
             """
-            def __object0():
-                class __object0:
-                    def say_hello(self):
-                        print("Hello!")
-                return __object0
-            __object0()().say_hello()
+            class __object0:
+                def say_hello(self):
+                    print("Hello!")
+            __object0().say_hello()
             """
         );
     }
@@ -160,4 +158,158 @@ class TestCompoundExpressions {
             """
         );
     }
+
+    @Test
+    void testClosureFreeLambdaInFunction() {
+        runTest(
+            """
+            def sort_desc(xs, key_name) {
+                by_key = sorted(xs, key=lambda (x) {
+                    return x[key_name];
+                });
+                return sorted(by_key, key=lambda (x) {
+                    y = -x.size;
+                    return y;
+                }, reverse=True);
+            }
+            """,
+            """
+            def __lambda1(x):
+                y = -x.size
+                return y
+            def sort_desc(xs, key_name):
+                def __lambda0(x):
+                    return x[key_name]
+                by_key = sorted(xs, key=__lambda0)
+                return sorted(by_key, key=__lambda1, reverse=True)
+            """
+        );
+    }
+
+    @Test
+    void testNestedClosureFreeLambdas() {
+        runTest(
+            """
+            def make() {
+                return lambda (x) {
+                    inc = lambda (y) { return y + 1; };
+                    add = lambda (y) { return y + x; };
+                    return inc(add(x));
+                };
+            }
+            """,
+            """
+            def __lambda1(y):
+                return y + 1
+            def __lambda0(x):
+                inc = __lambda1
+                def __lambda2(y):
+                    return y + x
+                add = __lambda2
+                return inc(add(x))
+            def make():
+                return __lambda0
+            """
+        );
+    }
+
+    @Test
+    void testLambdasNotHoistedToModule() {
+        runTest(
+            """
+            def f(xs, n) {
+                a = lambda (x=n) { return x; };
+                b = [lambda (x) { return x + y; } for y in xs];
+                c = lambda () { nonlocal n; n += 1; };
+                return a, b, c;
+            }
+            class A {
+                def m(self) { return lambda (x) { return x; }; }
+            }
+            """,
+            """
+            def f(xs, n):
+                def __lambda0(x=n):
+                    return x
+                a = __lambda0
+                def __lambda1(x):
+                    return x + y
+                b = [__lambda1 for y in xs]
+                def __lambda2():
+                    nonlocal n
+                    n += 1
+                c = __lambda2
+                return a, b, c
+            class A:
+                def m(self):
+                    def __lambda3(x):
+                        return x
+                    return __lambda3
+            """
+        );
+    }
+
+    @Test
+    void testAnonymousClassesInFunction() {
+        runTest(
+            """
+            def make_counters(start) {
+                plain = class() {
+                    def __init__(self) { self.count = 0; }
+                    @property
+                    def next(self) -> int { self.count += 1; return self.count; }
+                };
+                offset = class() {
+                    def __init__(self) { self.count = start; }
+                };
+                return plain, offset;
+            }
+            """,
+            """
+            class __object0:
+                def __init__(self):
+                    self.count = 0
+                @property
+                def next(self) -> int:
+                    self.count += 1
+                    return self.count
+            def make_counters(start):
+                plain = __object0()
+                def __object1():
+                    class __object1:
+                        def __init__(self):
+                            self.count = start
+                    return __object1
+                offset = __object1()()
+                return plain, offset
+            """
+        );
+    }
+
+    @Test
+    void testAnonymousClassesUsingNamesWhenDefined() {
+        runTest(
+            """
+            def f(xs) {
+                a = class(Base)("error") { code = 3; };
+                b = [class() { value = x; }() for x in xs];
+                return a, b;
+            }
+            """,
+            """
+            def f(xs):
+                def __Base0():
+                    class __Base0(Base):
+                        code = 3
+                    return __Base0
+                a = __Base0()("error")
+                def __object1():
+                    class __object1:
+                        value = x
+                    return __object1
+                b = [__object1()()() for x in xs]
+                return a, b
+            """
+        );
+    }
 }
@@ -0,0 +1,47 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.DFAWarmUp;
+
+/**
+ * Test cases for saving and loading DFA warm-up snapshots
+ */
+class TestDFAWarmUp {
+    static final String SAMPLE = """
+        def f(x, *args, y=2) -> int {
+            return x + y * len(args)
+        }
+        """;
+    static final String CORPUS = "#!warmup " + SAMPLE.length() + " sample\n" + SAMPLE;
+
+    @Test
+    void testSnapshotRoundTrip() throws Exception {
+        DFAWarmUp.replay(new StringReader(CORPUS), new PyJavaOptions());
+        int states = DFAWarmUp.stateCount();
+        assertTrue(states > 0);
+
+        var out = new ByteArrayOutputStream();
+        DFAWarmUp.save(out);
+        assertEquals(states, DFAWarmUp.load(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(states, DFAWarmUp.stateCount());
+
+        // the loaded states must be usable as-is
+        assertEquals(0, DFAWarmUp.replay(new StringReader(CORPUS), new PyJavaOptions()));
+
+        BasicTests.runTest(
+            SAMPLE,
+            """
+            def f(x, *args, y=2) -> int:
+                return x + y * len(args)
+            """
+        );
+    }
+}
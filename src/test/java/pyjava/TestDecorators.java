@@ -1,5 +1,6 @@
 package pyjava;
 
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static pyjava.BasicTests.runTest;
 
 import org.junit.jupiter.api.Test;
@@ -111,4 +112,175 @@ class TestDecorators {
             """
         );
     }
+
+    @Test
+    void testCachedFunctions() {
+        runTest(
+            """
+            import math;
+            cached def fib(n) {
+                return n if n < 2 else fib(n - 1) + fib(n - 2);
+            }
+            @trace cached(maxsize=256) def distance(x, y) {
+                return math.hypot(x, y);
+            }
+            cached = {};
+            """,
+
+            """
+            import math
+            import functools
+            @functools.lru_cache(maxsize=None)
+            def fib(n):
+                return n if n < 2 else fib(n - 1) + fib(n - 2)
+            @trace
+            @functools.lru_cache(maxsize=256)
+            def distance(x, y):
+                return math.hypot(x, y)
+            cached = {}
+            """
+        );
+    }
+
+    @Test
+    void testCachedMethods() {
+        runTest(
+            """
+            class Grid {
+                cached def cell(self, i) {
+                    return i * self.size;
+                }
+
+                @staticmethod
+                cached() def norm(x) {
+                    return abs(x);
+                }
+            }
+            """,
+
+            """
+            import functools
+            import weakref
+            def _cached_method(cache):
+                def decorator(method):
+                    key = '__cache_' + method.__qualname__
+                    def wrapper(self, *args, **kwargs):
+                        try:
+                            function = self.__dict__[key]
+                        except KeyError:
+                            ref = weakref.ref(self)
+                            function = self.__dict__[key] = cache(lambda *args, **kwargs: method(ref(), *args, **kwargs))
+                        return function(*args, **kwargs)
+                    return functools.update_wrapper(wrapper, method)
+                return decorator
+            class Grid:
+                @_cached_method(functools.lru_cache(maxsize=None))
+                def cell(self, i):
+                    return i * self.size
+                @staticmethod
+                @functools.lru_cache()
+                def norm(x):
+                    return abs(x)
+            """
+        );
+    }
+
+    @Test
+    void testFunctoolsImportedBeforeHoistedClasses() {
+        runTest(
+            """
+            def f() {
+                return class() { cached def m(self) { return 1; } }.m();
+            }
+            """,
+
+            """
+            import functools
+            import weakref
+            def _cached_method(cache):
+                def decorator(method):
+                    key = '__cache_' + method.__qualname__
+                    def wrapper(self, *args, **kwargs):
+                        try:
+                            function = self.__dict__[key]
+                        except KeyError:
+                            ref = weakref.ref(self)
+                            function = self.__dict__[key] = cache(lambda *args, **kwargs: method(ref(), *args, **kwargs))
+                        return function(*args, **kwargs)
+                    return functools.update_wrapper(wrapper, method)
+                return decorator
+            class __object0:
+                @_cached_method(functools.lru_cache(maxsize=None))
+                def m(self):
+                    return 1
+            def f():
+                return __object0().m()
+            """
+        );
+    }
+
+    @Test
+    void testCachedMethodsOverridden() {
+        runTest(
+            """
+            class Grid {
+                cached def cell(self, i) {
+                    return i * self.size;
+                }
+            }
+            class Padded(Grid) {
+                cached(maxsize=64) def cell(self, i) {
+                    return super().cell(i) + 1;
+                }
+            }
+            """,
+
+            """
+            import functools
+            import weakref
+            def _cached_method(cache):
+                def decorator(method):
+                    key = '__cache_' + method.__qualname__
+                    def wrapper(self, *args, **kwargs):
+                        try:
+                            function = self.__dict__[key]
+                        except KeyError:
+                            ref = weakref.ref(self)
+                            function = self.__dict__[key] = cache(lambda *args, **kwargs: method(ref(), *args, **kwargs))
+                        return function(*args, **kwargs)
+                    return functools.update_wrapper(wrapper, method)
+                return decorator
+            class Grid:
+                @_cached_method(functools.lru_cache(maxsize=None))
+                def cell(self, i):
+                    return i * self.size
+            class Padded(Grid):
+                @_cached_method(functools.lru_cache(maxsize=64))
+                def cell(self, i):
+                    return super().cell(i) + 1
+            """
+        );
+    }
+
+    @Test
+    void testCachedDecoratorsArePython38() {
+        var output = TestIncrementalParser.parse(
+            """
+            cached def f(x) { return x; }
+            class C {
+                cached def m(self) { return 1; }
+                @classmethod
+                cached(maxsize=2) def n(cls) { return 2; }
+            }
+            """,
+            new PyJavaOptions()
+        ).output();
+        // before Python 3.9, a decorator can only be a dotted name, optionally called
+        for (var line : output.lines().toList()) {
+            line = line.strip();
+            if (line.startsWith("@")) {
+                assertTrue(line.matches("@[\\w.]+(\\(.*\\))?"), line);
+            }
+        }
+    }
 }
@@ -0,0 +1,128 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.Token;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.IncrementalLexer;
+import pyjava.parser.PyJavaLexer;
+
+/**
+ * Test cases checking that {@link IncrementalLexer} gives the same tokens as lexing the whole text again
+ */
+class TestIncrementalLexer {
+    static final String[] SNIPPETS = {
+        "x", "1", " ", "\n", "(", ")", "[", "]", "{", "}", ";", "'", "\"", "'''", "\"\"\"", "#", "#{", "#}", "\\", ".", "r", "b'",
+        "def f() {\n", "}\n", "lambda x: x", "a = (1,\n2)", "# comment\n"
+    };
+    /** Snippets which can't open, close, hide or reveal brackets, so they can't change the tokens of the rest of the text */
+    static final String[] LOCAL_SNIPPETS = {"x", "1", " ", "\n", ";", ".", "lambda x: x"};
+
+    @Test
+    void testRandomEdits() throws Exception {
+        var random = new Random(42);
+        for (var input : TestLexer.inputs()) {
+            var lexer = new IncrementalLexer(input.source());
+            assertSameTokens(input.source(), lexer, input.name());
+            for (int i = 0; i < 100; i++) {
+                var text = lexer.getText();
+                int offset = random.nextInt(text.length() + 1);
+                int removed = Math.min(random.nextInt(4), text.length() - offset);
+                var inserted = random.nextInt(4) == 0? "" : SNIPPETS[random.nextInt(SNIPPETS.length)];
+                lexer.edit(offset, removed, inserted);
+                var expected = text.substring(0, offset) + inserted + text.substring(offset + removed);
+                assertEquals(expected, lexer.getText());
+                assertSameTokens(expected, lexer, input.name()+" after edit "+i);
+            }
+        }
+    }
+
+    @Test
+    void testTypingIntoEmptyText() {
+        var source = TestLexer.EDGE_CASES;
+        var lexer = new IncrementalLexer("");
+        for (int i = 0; i < source.length(); i++) {
+            lexer.edit(i, 0, source.substring(i, i+1));
+            assertSameTokens(source.substring(0, i+1), lexer, "typed "+(i+1)+" characters");
+        }
+    }
+
+    @Test
+    void testCharactersOutsideTheBasicMultilingualPlane() {
+        // 𝑥 is a name, not two unknown surrogates, and positions are counted in code points
+        var source = "\uD835\uDC65 = 1;\n" + TestLexer.SUPPLEMENTARY_SAMPLE;
+        var lexer = new IncrementalLexer(source);
+        assertSameTokens(source, lexer, "supplementary");
+
+        var edited = "\uD835\uDC65\uD835\uDC66" + source.substring(2);
+        lexer.edit(1, 0, "\uD835\uDC66");
+        assertEquals(edited, lexer.getText());
+        assertSameTokens(edited, lexer, "inserted after a character outside the BMP");
+
+        // the last line now ends the text without a line feed
+        int end = edited.codePointCount(0, edited.length());
+        lexer.edit(end - 1, 1, " \uD83D\uDE00");
+        edited = edited.substring(0, edited.length() - 1) + " \uD83D\uDE00";
+        assertSameTokens(edited, lexer, "replaced the last line feed");
+        lexer.edit(end - 1, 2, "\n");
+        edited = edited.substring(0, edited.length() - 3) + "\n";
+        assertEquals(edited, lexer.getText());
+        assertSameTokens(edited, lexer, "restored the last line feed");
+    }
+
+    @Test
+    void testRelexingIsLocal() {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("def f").append(i).append("(x, y) {\n")
+              .append("    z = [x, y, {'a': (x + 1)}];\n")
+              .append("    # comment ").append(i).append('\n')
+              .append("    return g(z, \"s\", 1.5e3);\n")
+              .append("}\n");
+        }
+        var source = sb.toString();
+        var lexer = new IncrementalLexer(source);
+        var random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            int offset = random.nextInt(lexer.getText().length());
+            var snippet = LOCAL_SNIPPETS[random.nextInt(LOCAL_SNIPPETS.length)];
+            var edit = lexer.edit(offset, 0, snippet);
+            assertTrue(edit.inserted() <= 3 * IncrementalLexer.CHECKPOINT_INTERVAL, () -> "relexed "+edit.inserted()+" tokens for "+snippet.strip());
+            lexer.edit(offset, snippet.length(), "");
+        }
+        assertEquals(source, lexer.getText());
+        assertSameTokens(source, lexer, "after undoing every edit");
+    }
+
+    static void assertSameTokens(String source, IncrementalLexer lexer, String message) {
+        var expected = new PyJavaLexer(CharStreams.fromString(source));
+        expected.removeErrorListeners();
+        var expectedTokens = new ArrayList<String>();
+        Token token;
+        do {
+            token = expected.nextToken();
+            expectedTokens.add(describe(token));
+        } while (token.getType() != Token.EOF);
+        assertEquals(expectedTokens, describe(lexer.getTokens()), message);
+    }
+
+    static List<String> describe(List<Token> tokens) {
+        var descriptions = new ArrayList<String>(tokens.size());
+        for (var token : tokens) {
+            descriptions.add(describe(token));
+        }
+        return descriptions;
+    }
+
+    static String describe(Token token) {
+        return token.getStartIndex()+":"+token.getStopIndex()+"='"+token.getText()+"',<"+token.getType()+">,channel="+token.getChannel()
+             + ","+token.getLine()+":"+token.getCharPositionInLine();
+    }
+}
@@ -0,0 +1,237 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.IncrementalParser;
+import pyjava.parser.PyJavaLexer;
+import pyjava.parser.PyJavaParser;
+import pyjava.tree.IncrementalTranspiler;
+import pyjava.tree.LazyAppendable.AppendFunction;
+import pyjava.tree.Transpiler;
+
+/**
+ * Test cases checking that {@link IncrementalParser} and {@link IncrementalTranspiler} give the same results
+ * as parsing and transpiling the whole text again
+ */
+class TestIncrementalParser {
+    static final String[] SNIPPETS = {
+        "x", "1", " ", "\n", ";", "(", ")", "{", "}", "# comment\n", "#{ block #}", "'", "lambda x: x + 1", ".y",
+        "def g() { return 1; }\n", "class C { pass }\n", "if x {\n", "f(lambda: 2)"
+    };
+
+    static record Result(String output, List<String> errors) {}
+
+    @Test
+    void testEditsAndUndos() throws Exception {
+        var random = new Random(7);
+        var options = new PyJavaOptions();
+        for (var input : TestLexer.inputs()) {
+            var source = input.source();
+            if (source.length() > 200 || !parse(source, options).errors().isEmpty()) {
+                continue;
+            }
+            var parser = new IncrementalParser(source, options);
+            var transpiler = new IncrementalTranspiler();
+            assertSameResult(parser, transpiler, options, input.name());
+            for (int i = 0; i < 3; i++) {
+                var text = parser.getText();
+                int offset = random.nextInt(text.length() + 1);
+                int removed = Math.min(random.nextInt(6), text.length() - offset);
+                var inserted = random.nextInt(3) == 0? "" : SNIPPETS[random.nextInt(SNIPPETS.length)];
+                parser.edit(offset, removed, inserted);
+                assertSameResult(parser, transpiler, options, input.name()+" after edit "+i);
+                parser.edit(offset, inserted.length(), text.substring(offset, offset + removed));
+                assertEquals(text, parser.getText());
+                assertSameResult(parser, transpiler, options, input.name()+" after undoing edit "+i);
+            }
+            assertEquals(source, parser.getText());
+        }
+    }
+
+    @Test
+    void testReparsingIsLocal() {
+        var options = new PyJavaOptions();
+        var sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("# function ").append(i).append('\n')
+              .append("def f").append(i).append("(x, y) {\n")
+              .append("    z = [x, y, {'a': (lambda: x + 1)}];\n")
+              .append("    return g(z, \"s\", 1.5e3);\n")
+              .append("}\n")
+              .append("v").append(i).append(" = f").append(i).append("(1, 2);\n");
+        }
+        var source = sb.toString();
+        var parser = new IncrementalParser(source, options);
+        var transpiler = new IncrementalTranspiler();
+        var expected = transpiler.transpile(parser.getTree());
+        assertEquals(200, transpiler.getTranspiledCount());
+
+        int offset = source.indexOf("1.5e3", source.length() / 2);
+        var edit = parser.edit(offset, 0, "2 * ");
+        assertTrue(edit.removed() <= 3 && edit.inserted() <= 3, edit::toString);
+        var output = transpiler.transpile(parser.getTree());
+        assertEquals(parse(parser.getText(), options).output(), output);
+        assertTrue(transpiler.getTranspiledCount() <= 3, () -> "transpiled "+transpiler.getTranspiledCount()+" statements");
+
+        // adding a lambda renumbers the lambdas after it
+        parser.edit(offset, 4, "(lambda: 2)() * ");
+        assertEquals(parse(parser.getText(), options).output(), transpiler.transpile(parser.getTree()));
+
+        parser.edit(offset, "(lambda: 2)() * ".length(), "");
+        assertEquals(expected, transpiler.transpile(parser.getTree()));
+        assertTrue(transpiler.getTranspiledCount() < 200);
+    }
+
+    @Test
+    void testFixingAnErrorElsewhere() {
+        var options = new PyJavaOptions();
+        var source = """
+            def f(x) {
+                a = x + 1;
+                b = a * 2;
+                return b;
+            }
+            y = f(3);
+            """;
+        var parser = new IncrementalParser(source, options);
+        var transpiler = new IncrementalTranspiler();
+        int brace = source.indexOf("}\n");
+        parser.edit(brace, 1, "");
+        assertEquals(false, parser.getSyntaxErrors().isEmpty());
+        assertSameResult(parser, transpiler, options, "without the closing brace");
+        parser.edit(brace, 0, "}");
+        assertEquals(List.of(), parser.getSyntaxErrors());
+        assertEquals(parse(source, options).output(), transpiler.transpile(parser.getTree()));
+    }
+
+    @Test
+    void testImportingFunctoolsOnce() {
+        var options = new PyJavaOptions();
+        var source = """
+            cached def f(x) { return x; }
+            y = 1;
+            cached def g(x) { return x; }
+            """;
+        var parser = new IncrementalParser(source, options);
+        var transpiler = new IncrementalTranspiler();
+        assertEquals(parse(source, options).output(), transpiler.transpile(parser.getTree()));
+        // the import moves to the second function
+        int first = source.indexOf("cached");
+        parser.edit(first, "cached ".length(), "");
+        assertEquals(parse(parser.getText(), options).output(), transpiler.transpile(parser.getTree()));
+        parser.edit(first, 0, "cached ");
+        assertEquals(parse(source, options).output(), transpiler.transpile(parser.getTree()));
+    }
+
+    @Test
+    void testChangingConstants() {
+        var options = new PyJavaOptions();
+        var source = """
+            const LIMIT = 10;
+            def f(x) { return min(x, LIMIT); }
+            y = LIMIT;
+            """;
+        var parser = new IncrementalParser(source, options);
+        var transpiler = new IncrementalTranspiler();
+        assertEquals(parse(source, options).output(), transpiler.transpile(parser.getTree()));
+        // the statements which use the constant aren't edited, but their output changes
+        parser.edit(source.indexOf("10"), 2, "20");
+        var output = transpiler.transpile(parser.getTree());
+        assertEquals(parse(parser.getText(), options).output(), output);
+        assertTrue(output.contains("min(x, 20)"), output);
+    }
+
+    @Test
+    void testChangingInlineFunctions() {
+        var options = new PyJavaOptions();
+        var source = """
+            inline def twice(x) { return x * 2; }
+            y = twice(3);
+            """;
+        var parser = new IncrementalParser(source, options);
+        var transpiler = new IncrementalTranspiler();
+        assertEquals(parse(source, options).output(), transpiler.transpile(parser.getTree()));
+        // the declaration is parsed again but written the same
+        parser.edit(source.indexOf("x * 2"), 0, " ");
+        assertEquals(parse(parser.getText(), options).output(), transpiler.transpile(parser.getTree()));
+        parser.edit(parser.getText().indexOf("2;"), 1, "3");
+        var output = transpiler.transpile(parser.getTree());
+        assertEquals(parse(parser.getText(), options).output(), output);
+        assertTrue(output.contains("y = 3 * 3"), output);
+    }
+
+    @Test
+    void testAddingStatementsNextToConstants() {
+        var options = new PyJavaOptions();
+        var source = """
+            const LIMIT = 10;
+            inline def square(x) { return x * x; }
+            def g(a) { return square(f(a, LIMIT)); }
+            """;
+        var parser = new IncrementalParser(source, options);
+        var transpiler = new IncrementalTranspiler();
+        assertEquals(parse(source, options).output(), transpiler.transpile(parser.getTree()));
+        // a name like the temporaries renames them
+        parser.edit(source.length(), 0, "__inline0 = 1;\n");
+        var output = transpiler.transpile(parser.getTree());
+        assertEquals(parse(parser.getText(), options).output(), output);
+        assertTrue(output.contains("__inline_0_x"), output);
+        parser.edit(source.length(), "__inline0 = 1;\n".length(), "");
+        assertEquals(parse(source, options).output(), transpiler.transpile(parser.getTree()));
+
+        parser.edit(source.length(), 0, "LIMIT = 2;\n");
+        var e = assertThrows(IllegalArgumentException.class, () -> transpiler.transpile(parser.getTree()));
+        assertEquals("line 4:0 const LIMIT is rebound by this statement", e.getMessage());
+        parser.edit(source.length(), "LIMIT = 2;\n".length(), "");
+        assertEquals(parse(source, options).output(), transpiler.transpile(parser.getTree()));
+    }
+
+    static void assertSameResult(IncrementalParser parser, IncrementalTranspiler transpiler, PyJavaOptions options, String message) {
+        var expected = parse(parser.getText(), options);
+        assertEquals(expected.errors().isEmpty(), parser.getSyntaxErrors().isEmpty(), () -> message+": "+expected.errors()+" vs "+parser.getSyntaxErrors());
+        if (expected.output() != null) {
+            assertEquals(expected.output(), transpiler.transpile(parser.getTree()), message);
+        }
+    }
+
+    static Result parse(String source, PyJavaOptions options) {
+        var errors = new ArrayList<String>();
+        var lexer = new PyJavaLexer(CharStreams.fromString(source));
+        lexer.removeErrorListeners();
+        var parser = new PyJavaParser(new CompactTokenStream(lexer), options);
+        parser.removeErrorListeners();
+        parser.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+                errors.add("line "+line+":"+charPositionInLine+" "+msg);
+            }
+        });
+        var file = parser.file();
+        if (!errors.isEmpty()) {
+            return new Result(null, errors);
+        }
+        var transpiler = new Transpiler();
+        try {
+            file.accept(transpiler);
+        } catch (RuntimeException | AssertionError e) {
+            // valid syntax the transpiler doesn't support
+            return new Result(null, errors);
+        }
+        var sb = new StringBuilder();
+        transpiler.appendTo(AppendFunction.wrap(sb));
+        return new Result(sb.toString(), errors);
+    }
+}
@@ -0,0 +1,103 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.DFAWarmUp;
+import pyjava.parser.PyJavaFastLexer;
+import pyjava.parser.PyJavaLexer;
+
+/**
+ * Test cases checking that the lexer's fast paths and the hand-written lexer produce the same tokens as the generated lexer
+ */
+class TestLexer {
+    static final String UNICODE_SAMPLE = """
+        def grüße(naïve, x_1, _) {
+            café = naïve + x_1;
+            return rb'\\x00' + r"raw" + f'{café}' + b"";
+        }
+        λ = lambda x: x ** 2;\tif not λ is None: print(λ(3), ab, rb, br, u);
+        x·y = ξ1;
+        """;
+
+    /** Characters outside the Basic Multilingual Plane, in names, literals, comments and unknown tokens */
+    static final String SUPPLEMENTARY_SAMPLE = """
+        \uD835\uDC9Cb\uD835\uDC9C = "\uD83D\uDE00" + '''\uD83D\uDE00
+        '''; # \uD83D\uDE00 \uD83D\uDE00
+        x = (\uD83D\uDE00, b'\uD83D\uDE00', \uD835\uDC9C);
+        """;
+
+    static final String EDGE_CASES = """
+        0 00 007 0_0 1_000 1__0 1_ 0x1F 0x 0o17 0b1_0 0b2 1. .5 1.5 1.e5 1e+5 1e- 5j 1.5J 0123.4 0123 09j ..5 ... .. x.1
+        '' '''''' ''' '' ' "a\\"b" 'a\\'' '''a\\'''' \"""x
+        y\""" 'esc\\
+        ' 'bad
+        b'\\x00\f' B"\\\"" rb'' Rb\"""a\\\"b\"""\" br'ok' bR'é' b'é' u'' U"x" f'' Fr'' rF"" ur'' fb'' bu''
+        #{ block
+        comment #} #line #{ #{unterminated
+        #\f(#
+        a = (1,
+             2) [3,
+             4] {5:
+             6} ( { x
+             } ) ); ] } {
+        ! != -> -= ** **= // //= << <<= >> >>= <> <= >= == := @= |= ^= &= %= ~ $ ? `\r
+        \r\n x\r\ny
+        """;
+
+    static List<DFAWarmUp.Entry> inputs() throws Exception {
+        try (var reader = new InputStreamReader(DFAWarmUp.class.getResourceAsStream(DFAWarmUp.DEFAULT_CORPUS), StandardCharsets.UTF_8)) {
+            var inputs = new ArrayList<>(DFAWarmUp.readCorpus(reader));
+            inputs.add(new DFAWarmUp.Entry("unicode", UNICODE_SAMPLE));
+            inputs.add(new DFAWarmUp.Entry("edge cases", EDGE_CASES));
+            return inputs;
+        }
+    }
+
+    static List<String> tokens(TokenSource lexer) {
+        var tokens = new ArrayList<String>();
+        Token token;
+        do {
+            token = lexer.nextToken();
+            tokens.add(token.toString());
+        } while (token.getType() != Token.EOF);
+        return tokens;
+    }
+
+    @Test
+    void testAsciiFastPath() throws Exception {
+        for (var input : inputs()) {
+            var expected = new PyJavaLexer(CharStreams.fromString(input.source()));
+            expected.setAsciiFastPath(false);
+            var actual = new PyJavaLexer(CharStreams.fromString(input.source()));
+            assertEquals(tokens(expected), tokens(actual), input.name());
+        }
+    }
+
+    @Test
+    void testHandWrittenLexer() throws Exception {
+        for (var input : inputs()) {
+            assertSameTokens(input.source(), input.name());
+        }
+        assertSameTokens(SUPPLEMENTARY_SAMPLE, "supplementary");
+    }
+
+    /**
+     * Checks that the hand-written lexer gives the same tokens as the generated lexer.
+     */
+    static void assertSameTokens(String source, String name) {
+        var expected = new PyJavaLexer(CharStreams.fromString(source));
+        expected.setAsciiFastPath(false);
+        var actual = new PyJavaFastLexer(CharStreams.fromString(source));
+        assertEquals(tokens(expected), tokens(actual), name);
+    }
+}
@@ -0,0 +1,94 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PredictionCache;
+
+/**
+ * Test cases for bounding the prediction cache
+ */
+class TestPredictionCache {
+    static void parse(String source, PredictionCache cache) {
+        var parser = cache.newParser(new CompactTokenStream(cache.newLexer(CharStreams.fromString(source))), new PyJavaOptions());
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.file();
+    }
+
+    @Test
+    void testTrimEvictsDownToLimit() {
+        var cache = PredictionCache.empty();
+        cache.setStatisticsEnabled(true);
+        parse(TestDFAWarmUp.SAMPLE, cache);
+        var before = cache.getStatistics();
+        assertTrue(before.states() > 0);
+        assertTrue(before.misses() > 0);
+        assertEquals(0, before.evictions());
+
+        // no limit
+        assertFalse(cache.trim());
+
+        int limit = (int)before.states() / 2;
+        cache.setLimit(limit);
+        assertTrue(cache.trim());
+        var after = cache.getStatistics();
+        assertTrue(after.states() <= limit, () -> after.states() + " states left with a limit of " + limit);
+        assertTrue(after.evictions() > 0);
+        assertEquals(before.states() - after.states(), after.evictedStates());
+        assertFalse(cache.trim());
+
+        // the evicted decisions get rebuilt
+        parse(TestDFAWarmUp.SAMPLE, cache);
+        var rebuilt = cache.getStatistics();
+        assertTrue(rebuilt.hits() > after.hits());
+        assertTrue(rebuilt.misses() > after.misses());
+    }
+
+    @Test
+    void testStatisticsOnlyCountedWhenEnabled() {
+        var cache = PredictionCache.empty();
+        parse(TestDFAWarmUp.SAMPLE, cache);
+        var stats = cache.getStatistics();
+        assertTrue(stats.states() > 0);
+        assertEquals(0, stats.hits() + stats.misses());
+    }
+
+    @Test
+    void testConcurrentTrimsEvictOnce() throws Exception {
+        var cache = PredictionCache.empty();
+        parse(TestDFAWarmUp.SAMPLE, cache);
+        cache.setLimit((int)cache.getStatistics().states() / 2);
+        var start = new CountDownLatch(1);
+        var pool = Executors.newFixedThreadPool(4);
+        try {
+            var trims = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 4; i++) {
+                trims.add(pool.submit(() -> {
+                    start.await();
+                    return cache.trim();
+                }));
+            }
+            start.countDown();
+            int evicting = 0;
+            for (var trim : trims) {
+                if (trim.get()) {
+                    evicting++;
+                }
+            }
+            assertEquals(1, evicting);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
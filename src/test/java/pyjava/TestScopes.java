@@ -0,0 +1,215 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PyJavaLexer;
+import pyjava.parser.PyJavaParser;
+import pyjava.parser.PyJavaParser.FileContext;
+import pyjava.parser.PyJavaParser.LambdaExpressionContext;
+import pyjava.tree.NameTable;
+import pyjava.tree.Scope;
+import pyjava.tree.Scopes;
+
+/**
+ * Test cases checking which names {@link Scopes} finds to be local, global, free and captured in each scope
+ */
+class TestScopes {
+    @Test
+    void testNonLocalAndCaptured() {
+        assertScopes(
+            """
+            def outer(a) {
+                b = 1;
+                def inner() {
+                    nonlocal b;
+                    b += a;
+                    return len(c);
+                }
+                return inner;
+            }
+            """,
+
+            """
+            MODULE: outer global
+              FUNCTION: a param local cell, b local cell, inner local
+                FUNCTION: b free, a free, len global, c global
+            """
+        );
+    }
+
+    @Test
+    void testGlobal() {
+        assertScopes(
+            """
+            def f() {
+                global counter;
+                counter = 0;
+                x = counter;
+            }
+            """,
+
+            """
+            MODULE: f global, counter global
+              FUNCTION: counter global, x local
+            """
+        );
+    }
+
+    @Test
+    void testClassesAndComprehensions() {
+        assertScopes(
+            """
+            def f(xs) {
+                class A {
+                    y = 1;
+                    def m(self) {
+                        return y;
+                    }
+                    zs = [y for x in xs];
+                }
+                total = [last := x for x in xs];
+            }
+            """,
+
+            """
+            MODULE: f global
+              FUNCTION: xs param local cell, A local, total local, last local cell
+                CLASS: y local, m local, zs local, xs free
+                  FUNCTION: self param local, y global
+                  COMPREHENSION: y global, x local
+                COMPREHENSION: last free, x local
+            """
+        );
+    }
+
+    @Test
+    void testRecordFields() {
+        assertScopes(
+            """
+            def f(T, n) {
+                record Pair(a: T, b = n) {
+                    def swap(self) {
+                        return Pair(self.b, self.a);
+                    }
+                }
+            }
+            """,
+
+            """
+            MODULE: f global
+              FUNCTION: T param local cell, n param local cell, Pair local cell
+                CLASS: a local, T free, b local, n free, swap local, Pair free
+                  FUNCTION: self param local, Pair free
+            """
+        );
+    }
+
+    @Test
+    void testLambdas() {
+        var file = parse(
+            """
+            def f(n) {
+                g = lambda x, k=n: x + k + n;
+            }
+            """
+        );
+        var scopes = Scopes.of(file);
+        assertEquals(
+            """
+            MODULE: f global
+              FUNCTION: n param local cell, g local
+                LAMBDA: x param local, k param local, n free
+            """,
+            describe(scopes)
+        );
+        var f = scopes.getModule().getChildren().get(0);
+        var lambda = f.getChildren().get(0);
+        var lambdaExpression = (LambdaExpressionContext) lambda.getNode();
+        assertSame(lambda, scopes.getScope(lambdaExpression));
+        assertSame(f, scopes.scopeOf(lambdaExpression));
+        int n = scopes.getNames().find("n");
+        assertSame(f, lambda.resolve(n));
+        assertSame(f, f.resolve(n));
+        assertSame(scopes.getModule(), scopes.getModule().resolve(scopes.getNames().find("f")));
+        assertSame(lambda, lambda.resolve(scopes.getNames().find("x")));
+        assertNull(lambda.resolve(scopes.getNames().find("g")));
+    }
+
+    @Test
+    void testNamesFromInputText() {
+        var input =
+            """
+            def f(a, b) {
+                return [a + x for x in b if x];
+            }
+            """;
+        var lexer = new PyJavaLexer(CharStreams.fromString(input));
+        var tokens = new CompactTokenStream(lexer);
+        var file = new PyJavaParser(tokens, PyJavaOptions.builder().build()).file();
+        var names = new NameTable();
+        var fromInput = Scopes.of(file, names, tokens.getInputText());
+        assertEquals(describe(Scopes.of(file)), describe(fromInput));
+        assertEquals(4, names.size());
+    }
+
+    @Test
+    void testNameTable() {
+        var names = new NameTable();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, names.intern("name" + i));
+        }
+        var text = "  name512 name1000 ";
+        assertEquals(512, names.intern(text, 2, 9));
+        assertEquals(1000, names.intern(text, 10, 18));
+        assertEquals("name1000", names.get(1000));
+        assertEquals(1000, names.find("name1000"));
+        assertEquals(-1, names.find("name1001"));
+        assertEquals(1001, names.size());
+    }
+
+    static FileContext parse(String input) {
+        var lexer = new PyJavaLexer(CharStreams.fromString(input));
+        var parser = new PyJavaParser(new CompactTokenStream(lexer), PyJavaOptions.builder().build());
+        parser.setErrorHandler(new BailErrorStrategy());
+        return parser.file();
+    }
+
+    static void assertScopes(String input, String expected) {
+        assertEquals(expected, describe(Scopes.of(parse(input))));
+    }
+
+    /**
+     * @return a line for each scope, indented by how deeply it is nested, with the names in it and their flags
+     */
+    static String describe(Scopes scopes) {
+        var sb = new StringBuilder();
+        describe(scopes.getModule(), scopes.getNames(), "", sb);
+        return sb.toString();
+    }
+
+    private static void describe(Scope scope, NameTable names, String indent, StringBuilder sb) {
+        sb.append(indent).append(scope.getKind()).append(':');
+        var symbols = scope.getSymbols();
+        for (int i = 0; i < symbols.size(); i++) {
+            int name = symbols.name(i);
+            int flags = symbols.get(name);
+            sb.append(i == 0? " " : ", ").append(names.get(name));
+            if ((flags & Scope.PARAMETER) != 0) sb.append(" param");
+            if ((flags & Scope.LOCAL) != 0) sb.append(" local");
+            if ((flags & Scope.GLOBAL) != 0) sb.append(" global");
+            if ((flags & Scope.FREE) != 0) sb.append(" free");
+            if ((flags & Scope.CELL) != 0) sb.append(" cell");
+        }
+        sb.append('\n');
+        for (var nested : scope.getChildren()) {
+            describe(nested, names, indent + "  ", sb);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.Token;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.PyJavaLexer;
+import pyjava.parser.StructuralIndex;
+import pyjava.parser.StructuralIndex.Kind;
+
+/**
+ * Test cases checking that {@link StructuralIndex} leaves out the same string literals and comments as the lexer
+ */
+class TestStructuralIndex {
+    static final String[] SNIPPETS = {
+        "'", "\"", "'''", "\"\"\"", "#", "#{", "#}", "\\", "\n", "\r\n", "\f", "(", ")", "[", "]", "{", "}", ";", "b", "rb", "é", "x"
+    };
+
+    @Test
+    void testSameAsLexer() throws Exception {
+        var random = new Random(3);
+        for (var input : TestLexer.inputs()) {
+            assertSameAsLexer(input.source(), input.name());
+            var sb = new StringBuilder(input.source());
+            for (int i = 0; i < 50; i++) {
+                sb.insert(random.nextInt(sb.length() + 1), SNIPPETS[random.nextInt(SNIPPETS.length)]);
+                assertSameAsLexer(sb.toString(), input.name()+" after edit "+i);
+            }
+        }
+    }
+
+    @Test
+    void testBracketErrors() {
+        assertNull(index("f(x[1], {'a': ')'}) # (\n").findBracketError());
+        assertEquals("line 2: expected ')' but found ']'", index("f(\nx]").findBracketError().toString());
+        assertEquals("line 3: '}' was never opened", index("a;\n'}'\n}").findBracketError().toString());
+        assertEquals("line 1: '{' is never closed", index("def f() { \"\"\"\n}\"\"\"").findBracketError().toString());
+    }
+
+    static StructuralIndex index(String source) {
+        return StructuralIndex.of(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void assertSameAsLexer(String source, String message) {
+        var bytes = source.getBytes(StandardCharsets.UTF_8);
+        var expected = expectedKinds(source);
+        for (var wordAtATime : new boolean[] {true, false}) {
+            var index = StructuralIndex.of(bytes, bytes.length, wordAtATime);
+            for (var kind : Kind.values()) {
+                var actual = new ArrayList<Integer>();
+                for (int i = index.next(kind, 0); i != -1; i = index.next(kind, i + 1)) {
+                    actual.add(i);
+                }
+                assertEquals(expected.get(kind.ordinal()), actual, message+": "+kind);
+            }
+        }
+    }
+
+    /**
+     * @return the byte offsets of the characters of each kind, according to the lexer
+     */
+    static List<List<Integer>> expectedKinds(String source) {
+        var codePoints = source.codePoints().toArray();
+        var hidden = new boolean[codePoints.length];
+        var lexer = new PyJavaLexer(CharStreams.fromString(source));
+        lexer.removeErrorListeners();
+        for (Token token; (token = lexer.nextToken()).getType() != Token.EOF; ) {
+            switch (token.getType()) {
+                case PyJavaLexer.STRING_LITERAL, PyJavaLexer.BYTES_LITERAL, PyJavaLexer.LINE_COMMENT, PyJavaLexer.BLOCK_COMMENT -> {
+                    for (int i = token.getStartIndex(); i <= token.getStopIndex(); i++) {
+                        hidden[i] = true;
+                    }
+                }
+            }
+        }
+        var kinds = new ArrayList<List<Integer>>();
+        for (int i = 0; i < Kind.values().length; i++) {
+            kinds.add(new ArrayList<>());
+        }
+        int offset = 0;
+        for (int i = 0; i < codePoints.length; i++) {
+            int c = codePoints[i];
+            Kind kind = switch (c) {
+                case '(', '[', '{' -> Kind.OPEN_BRACKET;
+                case ')', ']', '}' -> Kind.CLOSE_BRACKET;
+                case ';' -> Kind.SEMICOLON;
+                case '\n' -> Kind.NEWLINE;
+                default -> null;
+            };
+            if (kind != null && !hidden[i]) {
+                kinds.get(kind.ordinal()).add(offset);
+            }
+            if (c == '\n') {
+                kinds.get(Kind.LINE_BREAK.ordinal()).add(offset);
+            }
+            offset += new String(Character.toChars(c)).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return kinds;
+    }
+}
@@ -0,0 +1,72 @@
+package pyjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.junit.jupiter.api.Test;
+
+import pyjava.parser.CompactTokenStream;
+import pyjava.parser.PyJavaLexer;
+import pyjava.parser.PyJavaParser;
+import pyjava.tree.LazyAppendable.AppendFunction;
+import pyjava.tree.Transpiler;
+
+/**
+ * Test cases checking that copying expressions from the input gives the same output as visiting them
+ */
+class TestVerbatimSpans {
+    static final String SPACING = """
+        x = a+b*  c -d;
+        y = f( a ,b )( *args, **kwargs )[ 0 ].attr;
+        z = not a   is not b and c not in d or -~e ** -f;
+        w = 'a''b'  b"c" 'd';
+        v = (a,)  + (a, b,) + [a,] + [a, b,] + f(a,) + [] + ();
+        u = g(x   =1, y=  [1,
+              2]);
+        t = h(a,  # comment
+              b) + i(a #{ block #}, b);
+        s = await   q(r) @ m // n % o << 1 >> 2 & 3 | 4 ^ 5 != 7 <= 8 >= 9 < 10 > 11;
+        r = '𝄞' + x;
+        q = lambda x: x+1;
+        p = a if b else c+d;
+        o = k[1 : 2] + {'a':1};
+        """;
+
+    @Test
+    void testSameOutputAsVisiting() throws Exception {
+        for (var input : TestLexer.inputs()) {
+            String expected;
+            try {
+                expected = transpile(input.source(), false);
+            } catch (ParseCancellationException e) {
+                // not all of the lexer's inputs are valid
+                continue;
+            }
+            assertEquals(expected, transpile(input.source(), true), input.name());
+        }
+        assertEquals(transpile(SPACING, false), transpile(SPACING, true));
+        // without characters outside of the BMP, the output refers to the whole input instead of copies of parts of it
+        var bmp = SPACING.replace("\uD834\uDD1E", "\u00E9");
+        assertEquals(transpile(bmp, false), transpile(bmp, true));
+        var tabs = SPACING.replace(' ', '\t');
+        assertEquals(transpile(tabs, false), transpile(tabs, true));
+    }
+
+    static String transpile(String source, boolean copyVerbatimSpans) {
+        var tokens = new CompactTokenStream(new PyJavaLexer(CharStreams.fromString(source)));
+        tokens.setCollapseLiteralTables(true);
+        var parser = new PyJavaParser(tokens, new PyJavaOptions());
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        var transpiler = new Transpiler();
+        if (copyVerbatimSpans) {
+            transpiler.setTokens(tokens);
+        }
+        parser.file().accept(transpiler);
+        var output = new StringBuilder();
+        transpiler.appendTo(AppendFunction.wrap(output));
+        return output.toString();
+    }
+}
@@ -0,0 +1,805 @@
+package pyjava.parser;
+
+import static pyjava.parser.PyJavaLexer.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.NotSetTransition;
+import org.antlr.v4.runtime.atn.RuleStopState;
+import org.antlr.v4.runtime.atn.WildcardTransition;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.IntervalSet;
+import org.antlr.v4.runtime.misc.Pair;
+
+/**
+ * A hand-written lexer which produces exactly the same tokens as the generated {@link PyJavaLexer},
+ * including the bracket-sensitive handling of {@code NEWLINE}.
+ * <p>
+ * It is only kept with the tests, as a reference for how fast lexing can get: on ASCII code, where the generated
+ * lexer's DFA is already warm, it is only about twice as fast as the generated lexer, short of the three times it
+ * has to be to be worth shipping a second implementation of the lexer grammar. {@code LexerBenchmark} measures both.
+ * <p>
+ * It works on the input's UTF-16 characters directly, dispatching on the first character of each token
+ * instead of simulating the lexer's ATN. Only names look at whole code points, since every other token
+ * is delimited by ASCII characters, and the characters' indexes are only mapped to the code point indexes
+ * of the tokens if the input has characters outside the Basic Multilingual Plane. The column of a token is worked
+ * out from where its line starts, so that nothing but the position has to be kept up to date between tokens.
+ * The characters allowed in names are read from the {@code ID_START} and {@code ID_CONTINUE} rules of the generated
+ * lexer's ATN, so they always agree with the grammar.
+ * If the lexer grammar changes, this class must be updated to match it; {@code TestLexer} compares the two.
+ */
+public class PyJavaFastLexer implements TokenSource {
+    private static final int DEC = 0, OCT = 1, HEX = 2, BIN = 3, ZERO = 4;
+
+    private static final byte PAREN = 1, SQUARE = 2, CURLY = 3;
+
+    private final CharStream input;
+    private final Pair<TokenSource, CharStream> sourcePair;
+    private final char[] chars;
+    private final int end;
+    /** The index of the code point at each character and at the end, or {@code null} if they are the same. */
+    private final int[] codePointIndexes;
+    private TokenFactory<?> factory = CommonTokenFactory.DEFAULT;
+
+    private int pos;
+    private int line = 1;
+    private int lineStart;
+
+    private byte[] brackets = new byte[16];
+    private int depth;
+
+    public PyJavaFastLexer(CharStream input) {
+        this.input = input;
+        this.sourcePair = new Pair<>(this, input);
+        this.chars = input.getText(Interval.of(0, input.size() - 1)).toCharArray();
+        this.end = chars.length;
+        if (end == input.size()) {
+            codePointIndexes = null;
+        } else {
+            codePointIndexes = new int[end + 1];
+            for (int i = 0, index = 0; i <= end; index++) {
+                codePointIndexes[i++] = index;
+                if (i < end && Character.isLowSurrogate(chars[i]) && Character.isHighSurrogate(chars[i-1])) {
+                    codePointIndexes[i++] = index;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Token nextToken() {
+        for (;;) {
+            int start = pos;
+            int startLine = line;
+            if (start >= end) {
+                int index = index(start);
+                return factory.create(sourcePair, Token.EOF, null, Token.DEFAULT_CHANNEL, index, index - 1, startLine,
+                                      index - index(lineStart));
+            }
+            int type;
+            int stop;
+            int channel = Token.DEFAULT_CHANNEL;
+            int c = chars[start];
+            switch (c) {
+                case ' ', '\t', '\f' -> {
+                    int p = start + 1;
+                    while (p < end && ((c = chars[p]) == ' ' || c == '\t' || c == '\f')) {
+                        p++;
+                    }
+                    pos = p;
+                    continue;
+                }
+                case '\n' -> {
+                    int lineStart = this.lineStart;
+                    pos = start + 1;
+                    line++;
+                    this.lineStart = start + 1;
+                    if (depth != 0 && brackets[depth-1] != CURLY) {
+                        continue;
+                    }
+                    return create(NEWLINE, Lexer.HIDDEN, start, start + 1, startLine, lineStart);
+                }
+                case '\r' -> {
+                    if (start + 1 < end && chars[start+1] == '\n') {
+                        int lineStart = this.lineStart;
+                        pos = start + 2;
+                        line++;
+                        this.lineStart = start + 2;
+                        if (depth != 0 && brackets[depth-1] != CURLY) {
+                            continue;
+                        }
+                        return create(NEWLINE, Lexer.HIDDEN, start, start + 2, startLine, lineStart);
+                    }
+                    type = UNKNOWN;
+                    stop = start + 1;
+                }
+                case '#' -> {
+                    int closing = start + 1 < end && chars[start+1] == '{'? indexOf('#', '}', start + 2) : -1;
+                    channel = Lexer.HIDDEN;
+                    if (closing != -1) {
+                        type = BLOCK_COMMENT;
+                        stop = closing + 2;
+                    } else {
+                        type = LINE_COMMENT;
+                        stop = start + 1;
+                        if (stop < end && (c = chars[stop]) != '{' && c != '\r' && c != '\n' && c != '\f') {
+                            while (stop < end && (c = chars[stop]) != '\r' && c != '\n' && c != '\f') {
+                                stop++;
+                            }
+                        }
+                    }
+                }
+                case '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' -> {
+                    type = NUMBER;
+                    stop = numberEnd(start);
+                }
+                case '.' -> {
+                    int number = numberEnd(start);
+                    if (number != -1) {
+                        type = NUMBER;
+                        stop = number;
+                    } else if (start + 2 < end && chars[start+1] == '.' && chars[start+2] == '.') {
+                        type = ELLIPSIS;
+                        stop = start + 3;
+                    } else {
+                        type = DOT;
+                        stop = start + 1;
+                    }
+                }
+                case '\'', '"' -> {
+                    int string = stringEnd(start);
+                    if (string != -1) {
+                        type = STRING_LITERAL;
+                        stop = string;
+                    } else {
+                        type = UNKNOWN;
+                        stop = start + 1;
+                    }
+                }
+                case '(' -> {
+                    push(PAREN);
+                    type = LPAREN;
+                    stop = start + 1;
+                }
+                case ')' -> {
+                    pop(PAREN);
+                    type = RPAREN;
+                    stop = start + 1;
+                }
+                case '[' -> {
+                    push(SQUARE);
+                    type = LBRACK;
+                    stop = start + 1;
+                }
+                case ']' -> {
+                    pop(SQUARE);
+                    type = RBRACK;
+                    stop = start + 1;
+                }
+                case '{' -> {
+                    push(CURLY);
+                    type = LBRACE;
+                    stop = start + 1;
+                }
+                case '}' -> {
+                    pop(CURLY);
+                    type = RBRACE;
+                    stop = start + 1;
+                }
+                case ',' -> {
+                    type = COMMA;
+                    stop = start + 1;
+                }
+                case ';' -> {
+                    type = SEMI;
+                    stop = start + 1;
+                }
+                case '~' -> {
+                    type = TILDE;
+                    stop = start + 1;
+                }
+                case ':' -> {
+                    if (next(start, '=')) {
+                        type = COLONEQ;
+                        stop = start + 2;
+                    } else {
+                        type = COLON;
+                        stop = start + 1;
+                    }
+                }
+                case '=' -> {
+                    if (next(start, '=')) {
+                        type = EQEQ;
+                        stop = start + 2;
+                    } else {
+                        type = EQ;
+                        stop = start + 1;
+                    }
+                }
+                case '!' -> {
+                    if (next(start, '=')) {
+                        type = BANGEQ;
+                        stop = start + 2;
+                    } else {
+                        type = UNKNOWN;
+                        stop = start + 1;
+                    }
+                }
+                case '+' -> {
+                    type = next(start, '=')? PLUSEQ : PLUS;
+                    stop = type == PLUS? start + 1 : start + 2;
+                }
+                case '-' -> {
+                    if (next(start, '>')) {
+                        type = ARROW;
+                        stop = start + 2;
+                    } else if (next(start, '=')) {
+                        type = MINUSEQ;
+                        stop = start + 2;
+                    } else {
+                        type = MINUS;
+                        stop = start + 1;
+                    }
+                }
+                case '%' -> {
+                    type = next(start, '=')? PEREQ : PER;
+                    stop = type == PER? start + 1 : start + 2;
+                }
+                case '@' -> {
+                    type = next(start, '=')? ATEQ : AT;
+                    stop = type == AT? start + 1 : start + 2;
+                }
+                case '|' -> {
+                    type = next(start, '=')? BAREQ : BAR;
+                    stop = type == BAR? start + 1 : start + 2;
+                }
+                case '^' -> {
+                    type = next(start, '=')? CARETEQ : CARET;
+                    stop = type == CARET? start + 1 : start + 2;
+                }
+                case '&' -> {
+                    type = next(start, '=')? AMPEQ : AMP;
+                    stop = type == AMP? start + 1 : start + 2;
+                }
+                case '*' -> {
+                    if (next(start, '*')) {
+                        if (next(start + 1, '=')) {
+                            type = STARSTAREQ;
+                            stop = start + 3;
+                        } else {
+                            type = STARSTAR;
+                            stop = start + 2;
+                        }
+                    } else if (next(start, '=')) {
+                        type = STAREQ;
+                        stop = start + 2;
+                    } else {
+                        type = STAR;
+                        stop = start + 1;
+                    }
+                }
+                case '/' -> {
+                    if (next(start, '/')) {
+                        if (next(start + 1, '=')) {
+                            type = SLASHSLASHEQ;
+                            stop = start + 3;
+                        } else {
+                            type = SLASHSLASH;
+                            stop = start + 2;
+                        }
+                    } else if (next(start, '=')) {
+                        type = SLASHEQ;
+                        stop = start + 2;
+                    } else {
+                        type = SLASH;
+                        stop = start + 1;
+                    }
+                }
+                case '<' -> {
+                    if (next(start, '<')) {
+                        if (next(start + 1, '=')) {
+                            type = LTLTEQ;
+                            stop = start + 3;
+                        } else {
+                            type = LTLT;
+                            stop = start + 2;
+                        }
+                    } else if (next(start, '=')) {
+                        type = LTEQ;
+                        stop = start + 2;
+                    } else if (next(start, '>')) {
+                        type = LTGT;
+                        stop = start + 2;
+                    } else {
+                        type = LT;
+                        stop = start + 1;
+                    }
+                }
+                case '>' -> {
+                    if (next(start, '>')) {
+                        if (next(start + 1, '=')) {
+                            type = GTGTEQ;
+                            stop = start + 3;
+                        } else {
+                            type = GTGT;
+                            stop = start + 2;
+                        }
+                    } else if (next(start, '=')) {
+                        type = GTEQ;
+                        stop = start + 2;
+                    } else {
+                        type = GT;
+                        stop = start + 1;
+                    }
+                }
+                default -> {
+                    if (c < 128? IdentifierChars.ASCII_START[c] : IdentifierChars.isStart(Character.codePointAt(chars, start, end))) {
+                        int name = start + Character.charCount(Character.codePointAt(chars, start, end));
+                        while (name < end) {
+                            if ((c = chars[name]) < 128) {
+                                if (!IdentifierChars.ASCII_CONTINUE[c]) {
+                                    break;
+                                }
+                                name++;
+                            } else {
+                                int codePoint = Character.codePointAt(chars, name, end);
+                                if (!IdentifierChars.isContinue(codePoint)) {
+                                    break;
+                                }
+                                name += Character.charCount(codePoint);
+                            }
+                        }
+                        int literal = name - start <= 2 && name < end && (chars[name] == '\'' || chars[name] == '"')? prefixedLiteralEnd(start) : -1;
+                        if (literal > name) {
+                            type = isBytesPrefix(start)? BYTES_LITERAL : STRING_LITERAL;
+                            stop = literal;
+                        } else {
+                            type = KeywordTable.lookup(chars, start, name - start);
+                            stop = name;
+                        }
+                    } else {
+                        type = UNKNOWN;
+                        stop = start + Character.charCount(Character.codePointAt(chars, start, end));
+                    }
+                }
+            }
+            pos = stop;
+            int lineStart = this.lineStart;
+            switch (type) {
+                case BLOCK_COMMENT, STRING_LITERAL, BYTES_LITERAL -> advance(start, stop);
+            }
+            return create(type, channel, start, stop, startLine, lineStart);
+        }
+    }
+
+    /**
+     * @param stop the index of the character after the token
+     * @param lineStart the index of the first character of the line the token starts on
+     */
+    private Token create(int type, int channel, int start, int stop, int line, int lineStart) {
+        if (codePointIndexes == null) {
+            return factory.create(sourcePair, type, null, channel, start, stop - 1, line, start - lineStart);
+        }
+        int index = codePointIndexes[start];
+        return factory.create(sourcePair, type, null, channel, index, codePointIndexes[stop] - 1, line,
+                              index - codePointIndexes[lineStart]);
+    }
+
+    /**
+     * @return the index of the code point at the character
+     */
+    private int index(int p) {
+        return codePointIndexes == null? p : codePointIndexes[p];
+    }
+
+    /**
+     * Updates the line for text which may contain line breaks.
+     */
+    private void advance(int start, int stop) {
+        for (int i = start; i < stop; i++) {
+            if (chars[i] == '\n') {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    private boolean next(int p, int c) {
+        return p + 1 < end && chars[p+1] == c;
+    }
+
+    private int indexOf(int c1, int c2, int from) {
+        for (int i = from; i + 1 < end; i++) {
+            if (chars[i] == c1 && chars[i+1] == c2) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void push(byte bracket) {
+        if (depth == brackets.length) {
+            brackets = Arrays.copyOf(brackets, depth * 2);
+        }
+        brackets[depth++] = bracket;
+    }
+
+    private void pop(byte bracket) {
+        if (depth != 0 && brackets[depth-1] == bracket) {
+            depth--;
+        }
+    }
+
+    // NUMBER
+
+    private static boolean isDigit(int c, int kind) {
+        return switch (kind) {
+            case DEC -> c >= '0' && c <= '9';
+            case OCT -> c >= '0' && c <= '7';
+            case HEX -> c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+            case BIN -> c == '0' || c == '1';
+            default -> c == '0';
+        };
+    }
+
+    /**
+     * Matches {@code DIGIT+ ('_'+ DIGIT+)*} for the given kind of digit.
+     * @return the end of the match, or -1 if there is none
+     */
+    private int digitsEnd(int p, int kind) {
+        if (p >= end || !isDigit(chars[p], kind)) {
+            return -1;
+        }
+        p++;
+        for (;;) {
+            while (p < end && isDigit(chars[p], kind)) {
+                p++;
+            }
+            int q = p;
+            while (q < end && chars[q] == '_') {
+                q++;
+            }
+            if (q == p || q == end || !isDigit(chars[q], kind)) {
+                return p;
+            }
+            p = q;
+        }
+    }
+
+    /**
+     * @return the end of the {@code EXPONENT} following {@code p}, or -1 if there is none
+     */
+    private int exponentEnd(int p) {
+        if (p < 0 || p >= end || (chars[p] != 'e' && chars[p] != 'E')) {
+            return -1;
+        }
+        p++;
+        if (p < end && (chars[p] == '+' || chars[p] == '-')) {
+            p++;
+        }
+        return digitsEnd(p, DEC);
+    }
+
+    private int imagEnd(int p) {
+        return p >= 0 && p < end && (chars[p] == 'j' || chars[p] == 'J')? p + 1 : -1;
+    }
+
+    /**
+     * Finds the longest match of {@code NUMBER} starting at a digit or a dot.
+     * @return the end of the match, or -1 if there is none
+     */
+    private int numberEnd(int start) {
+        int digits, pointFloat;
+        int best = -1;
+        if (chars[start] == '.') {
+            digits = -1;
+            pointFloat = digitsEnd(start + 1, DEC);
+        } else {
+            digits = digitsEnd(start, DEC);
+            if (chars[start] != '0') {
+                best = digits;
+            } else {
+                best = digitsEnd(start, ZERO);
+                if (start + 1 < end) {
+                    int radix = switch (chars[start+1]) {
+                        case 'o', 'O' -> OCT;
+                        case 'x', 'X' -> HEX;
+                        case 'b', 'B' -> BIN;
+                        default -> -1;
+                    };
+                    if (radix != -1) {
+                        best = Math.max(best, digitsEnd(start + 2, radix));
+                    }
+                }
+            }
+            if (digits < end && chars[digits] == '.') {
+                pointFloat = Math.max(digits + 1, digitsEnd(digits + 1, DEC));
+            } else {
+                pointFloat = -1;
+            }
+        }
+        int exponentFloat = Math.max(exponentEnd(digits), exponentEnd(pointFloat));
+        best = Math.max(best, Math.max(pointFloat, exponentFloat));
+        best = Math.max(best, Math.max(imagEnd(digits), Math.max(imagEnd(pointFloat), imagEnd(exponentFloat))));
+        return best;
+    }
+
+    // STRING_LITERAL and BYTES_LITERAL
+
+    /**
+     * @return the length of the string or bytes prefix at {@code p} if it's followed by a quote, otherwise -1
+     */
+    private int prefixLength(int p) {
+        int length = 0;
+        while (length < 2 && p + length < end) {
+            int c = chars[p + length];
+            if (c == '\'' || c == '"') {
+                break;
+            }
+            length++;
+        }
+        if (p + length >= end || chars[p + length] != '\'' && chars[p + length] != '"') {
+            return -1;
+        }
+        if (length == 1) {
+            return switch (chars[p]) {
+                case 'r', 'R', 'u', 'U', 'f', 'F', 'b', 'B' -> 1;
+                default -> -1;
+            };
+        }
+        int a = Character.toLowerCase(chars[p]), b = Character.toLowerCase(chars[p+1]);
+        return a == 'f' && b == 'r' || a == 'r' && b == 'f' || a == 'b' && b == 'r' || a == 'r' && b == 'b'? 2 : -1;
+    }
+
+    private boolean isBytesPrefix(int p) {
+        return chars[p] == 'b' || chars[p] == 'B' || chars[p+1] == 'b' || chars[p+1] == 'B';
+    }
+
+    /**
+     * @return the end of the string or bytes literal with a prefix starting at {@code p}, or -1 if there is none
+     */
+    private int prefixedLiteralEnd(int p) {
+        int prefix = prefixLength(p);
+        if (prefix == -1) {
+            return -1;
+        }
+        return isBytesPrefix(p)? bytesEnd(p + prefix) : stringEnd(p + prefix);
+    }
+
+    private boolean isTripleQuote(int p, int quote) {
+        return p + 2 < end && chars[p] == quote && chars[p+1] == quote && chars[p+2] == quote;
+    }
+
+    private int stringEnd(int p) {
+        int quote = chars[p];
+        if (isTripleQuote(p, quote)) {
+            for (int i = p + 3; i < end; ) {
+                if (isTripleQuote(i, quote)) {
+                    return i + 3;
+                }
+                if (chars[i] == '\\') {
+                    if (i + 1 == end) break;
+                    i += 2;
+                } else {
+                    i++;
+                }
+            }
+            // an unterminated long string starts with an empty short string
+        }
+        for (int i = p + 1; i < end; ) {
+            int c = chars[i];
+            if (c == quote) {
+                return i + 1;
+            }
+            if (c == '\\') {
+                if (i + 1 == end) break;
+                i += i + 2 < end && chars[i+1] == '\r' && chars[i+2] == '\n'? 3 : 2;
+            } else if (c == '\r' || c == '\n' || c == '\f') {
+                break;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private int bytesEnd(int p) {
+        int quote = chars[p];
+        if (isTripleQuote(p, quote)) {
+            for (int i = p + 3; i < end; ) {
+                if (isTripleQuote(i, quote)) {
+                    return i + 3;
+                }
+                int c = chars[i];
+                if (c == '\\') {
+                    if (i + 1 == end || chars[i+1] > 0x7F) break;
+                    i += 2;
+                } else if (c > 0x7F) {
+                    break;
+                } else {
+                    i++;
+                }
+            }
+        }
+        for (int i = p + 1; i < end; ) {
+            int c = chars[i];
+            if (c == quote) {
+                return i + 1;
+            }
+            if (c == '\\') {
+                if (i + 1 == end || chars[i+1] > 0x7F) break;
+                i += 2;
+            } else if (c == '\r' || c == '\n' || c > 0x7F) {
+                break;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public int getCharPositionInLine() {
+        return index(pos) - index(lineStart);
+    }
+
+    @Override
+    public CharStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public String getSourceName() {
+        return input.getSourceName();
+    }
+
+    @Override
+    public void setTokenFactory(TokenFactory<?> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+        return factory;
+    }
+
+    /**
+     * The keywords of the lexer's vocabulary, bucketed by first character.
+     */
+    private static final class KeywordTable {
+        private static final char[][][] NAMES = new char[128][][];
+        private static final int[][] TYPES = new int[128][];
+
+        static {
+            var vocabulary = PyJavaLexer.VOCABULARY;
+            for (int type = 1; type <= vocabulary.getMaxTokenType(); type++) {
+                String literal = vocabulary.getLiteralName(type);
+                if (literal == null || !literal.matches("'[A-Za-z_][A-Za-z0-9_]*'")) {
+                    continue;
+                }
+                var name = literal.substring(1, literal.length() - 1).toCharArray();
+                int first = name[0];
+                int count = NAMES[first] == null? 0 : NAMES[first].length;
+                NAMES[first] = NAMES[first] == null? new char[1][] : Arrays.copyOf(NAMES[first], count + 1);
+                TYPES[first] = TYPES[first] == null? new int[1] : Arrays.copyOf(TYPES[first], count + 1);
+                NAMES[first][count] = name;
+                TYPES[first][count] = type;
+            }
+        }
+
+        /**
+         * @return the type of the keyword made of {@code chars[start:start+length]},
+         *         or {@code NAME} if they aren't a keyword
+         */
+        static int lookup(char[] chars, int start, int length) {
+            int first = chars[start];
+            var names = first < 128? NAMES[first] : null;
+            if (names != null) {
+            candidates:
+                for (int i = 0; i < names.length; i++) {
+                    var name = names[i];
+                    if (name.length != length) {
+                        continue;
+                    }
+                    for (int j = 1; j < length; j++) {
+                        if (name[j] != chars[start + j]) {
+                            continue candidates;
+                        }
+                    }
+                    return TYPES[first][i];
+                }
+            }
+            return NAME;
+        }
+    }
+
+    /**
+     * The characters of the {@code ID_START} and {@code ID_CONTINUE} lexer rules, read from the generated lexer's ATN.
+     */
+    private static final class IdentifierChars {
+        private static final boolean[] ASCII_START = new boolean[128], ASCII_CONTINUE = new boolean[128];
+        /** Sorted, disjoint ranges as {@code [first0, last0, first1, last1, ...]}. */
+        private static final int[] START = ranges("ID_START"), CONTINUE = ranges("ID_CONTINUE");
+
+        static {
+            for (int c = 0; c < 128; c++) {
+                ASCII_START[c] = contains(START, c);
+                ASCII_CONTINUE[c] = contains(CONTINUE, c);
+            }
+        }
+
+        static boolean isStart(int c) {
+            return c < 128? ASCII_START[c] : contains(START, c);
+        }
+
+        static boolean isContinue(int c) {
+            return c < 128? ASCII_CONTINUE[c] : contains(CONTINUE, c);
+        }
+
+        private static boolean contains(int[] ranges, int c) {
+            int low = 0, high = ranges.length / 2 - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (c < ranges[2*mid]) {
+                    high = mid - 1;
+                } else if (c > ranges[2*mid+1]) {
+                    low = mid + 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Collects the characters matched by a lexer rule which only ever matches one character.
+         */
+        private static int[] ranges(String ruleName) {
+            int rule = Arrays.asList(PyJavaLexer.ruleNames).indexOf(ruleName);
+            if (rule == -1) {
+                throw new IllegalStateException("no lexer rule named "+ruleName);
+            }
+            var set = new IntervalSet();
+            collect(PyJavaLexer._ATN.ruleToStartState[rule], set, new HashSet<>());
+            var intervals = set.getIntervals();
+            var ranges = new int[intervals.size() * 2];
+            for (int i = 0; i < intervals.size(); i++) {
+                ranges[2*i] = intervals.get(i).a;
+                ranges[2*i+1] = intervals.get(i).b;
+            }
+            return ranges;
+        }
+
+        private static void collect(ATNState state, IntervalSet set, Set<ATNState> visited) {
+            if (state instanceof RuleStopState || !visited.add(state)) {
+                return;
+            }
+            for (int i = 0; i < state.getNumberOfTransitions(); i++) {
+                var transition = state.transition(i);
+                if (transition.isEpsilon()) {
+                    collect(transition.target, set, visited);
+                } else if (transition instanceof WildcardTransition) {
+                    set.add(Lexer.MIN_CHAR_VALUE, Lexer.MAX_CHAR_VALUE);
+                } else if (transition instanceof NotSetTransition) {
+                    set.addAll(transition.label().complement(Lexer.MIN_CHAR_VALUE, Lexer.MAX_CHAR_VALUE));
+                } else {
+                    set.addAll(transition.label());
+                }
+            }
+        }
+    }
+}
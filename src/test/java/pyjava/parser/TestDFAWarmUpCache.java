@@ -0,0 +1,67 @@
+package pyjava.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import pyjava.PyJavaOptions;
+
+/**
+ * Test cases for the snapshot {@link DFAWarmUp#warmUp(PyJavaOptions)} caches, replaying a small corpus
+ * instead of the bundled one
+ */
+class TestDFAWarmUpCache {
+    static final String SAMPLE = """
+        class C(B) {
+            def m(self, *args) { return [a for a in args if a]; }
+        }
+        """;
+    static final String CORPUS = "#!warmup " + SAMPLE.length() + " sample\n" + SAMPLE;
+
+    @Test
+    void testCorruptSnapshotIsRecreated(@TempDir Path directory) throws Exception {
+        var cache = directory.resolve("cache");
+        var replays = new AtomicInteger();
+        IntSupplier replay = () -> {
+            replays.incrementAndGet();
+            try {
+                return DFAWarmUp.replay(new StringReader(CORPUS), new PyJavaOptions());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        DFAWarmUp.warmUp(cache, replay);
+        Path snapshot;
+        try (var files = Files.list(cache)) {
+            snapshot = files.filter(file -> file.toString().endsWith(".snapshot")).findFirst().orElseThrow();
+        }
+        int states = DFAWarmUp.warmUp(cache, replay);
+        assertEquals(1, replays.get());
+        assertEquals(DFAWarmUp.stateCount(), states);
+
+        // a valid header followed by a negative number of prediction contexts, which fails with a RuntimeException
+        byte[] header;
+        try (var in = new GZIPInputStream(Files.newInputStream(snapshot))) {
+            header = in.readNBytes(12);
+        }
+        try (var out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(snapshot)))) {
+            out.write(header);
+            out.writeInt(-1);
+        }
+        DFAWarmUp.warmUp(cache, replay);
+        assertEquals(2, replays.get());
+        assertEquals(states, DFAWarmUp.load(snapshot));
+    }
+}